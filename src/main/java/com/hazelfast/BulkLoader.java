@@ -0,0 +1,242 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.DataStructures;
+import com.hazelfast.impl.In;
+import com.hazelfast.impl.StringsData;
+
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+import static com.hazelfast.impl.CountersData.FUNCTION_LOAD;
+import static com.hazelfast.impl.DataStructures.COUNTER;
+import static com.hazelfast.impl.DataStructures.STRINGS;
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.MAX_VAR_INT_BYTES;
+import static com.hazelfast.impl.IOUtil.putUtf8;
+import static com.hazelfast.impl.IOUtil.putVarLong;
+import static com.hazelfast.impl.IOUtil.utf8Length;
+import static com.hazelfast.impl.IOUtil.varLongSize;
+
+/**
+ * Loads large numbers of counters and strings at wire speed, e.g. to reseed a server after maintenance. The entries
+ * are encoded into a frame per partition, and a full frame is sent at once; the server applies it with a sequential
+ * insert path that sizes its maps for the expected entries up front.
+ * <p>
+ * The loader doesn't wait for the acknowledgement of each frame: it only reads acknowledgements once more than
+ * {@link Client.Context#bulkLoadAckInterval(int)} bytes are unacknowledged. So the load streams, while a server that
+ * can't keep up still pushes back.
+ * <p>
+ * A load is applied per frame, so it isn't atomic. Call {@link #flush()} to send the remaining entries and wait for
+ * all acknowledgements. The client can't be used for other requests till the loader is flushed.
+ * <p>
+ * Class is not thread-safe.
+ */
+public final class BulkLoader {
+    // type, function, partition key and expected entries; the longs are at most 10 bytes as varlong.
+    private static final int COUNTER_HEADER_SIZE = 1 + 1 + 10 + 10;
+    // type, function and expected entries.
+    private static final int STRINGS_HEADER_SIZE = 1 + 1 + INT_AS_BYTES;
+
+    private final Client client;
+    private final boolean compact;
+    private final int partitionCount;
+    private final long expectedPerPartition;
+    private final int frameCapacity;
+    private final int ackInterval;
+    private final Batch[] counterBatches;
+    private final Batch[] stringBatches;
+    // the record being encoded; the partition of a string is only known once its key is encoded.
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    // the types and lengths of the frames that are not acknowledged yet; a ring.
+    private byte[] unackedTypes = new byte[16];
+    private int[] unackedLengths = new int[16];
+    private int unackedHead;
+    private int unackedCount;
+    private long unackedBytes;
+    private long loaded;
+
+    BulkLoader(Client client, long expectedEntries, int ackInterval) {
+        this.client = client;
+        this.compact = client.compactEncoding();
+        this.partitionCount = Math.max(1, client.serverPartitionCount());
+        this.expectedPerPartition = (expectedEntries + partitionCount - 1) / partitionCount;
+        this.frameCapacity = Math.min(client.sendBuf.capacity() - MAX_VAR_INT_BYTES, client.maxFrameSize());
+        this.ackInterval = ackInterval;
+        this.counterBatches = new Batch[partitionCount];
+        this.stringBatches = new Batch[partitionCount];
+    }
+
+    public void setCounter(long id, long value) {
+        Batch batch = batch(counterBatches, DataStructures.counterPartitionHash(id), COUNTER_HEADER_SIZE);
+        int length = longSize(id) + longSize(value);
+        if (batch.records.remaining() < length) send(COUNTER, batch);
+
+        if (batch.count == 0) batch.partitionKey = id;
+        putLong(batch.records, id);
+        putLong(batch.records, value);
+        batch.count++;
+    }
+
+    public void setString(String key, String value) {
+        int keyLength = utf8Length(key);
+        int valueLength = utf8Length(value);
+        ByteBuffer records = beginString(keyLength, valueLength);
+        int keyOffset = records.position() + INT_AS_BYTES;
+        records.putInt(keyLength);
+        putUtf8(records, key);
+        records.putInt(valueLength);
+        putUtf8(records, value);
+        endString(keyOffset, keyLength);
+    }
+
+    public void setString(byte[] key, byte[] value) {
+        ByteBuffer records = beginString(key.length, value.length);
+        int keyOffset = records.position() + INT_AS_BYTES;
+        records.putInt(key.length);
+        records.put(key);
+        records.putInt(value.length);
+        records.put(value);
+        endString(keyOffset, key.length);
+    }
+
+    private ByteBuffer beginString(int keyLength, int valueLength) {
+        int length = INT_AS_BYTES + keyLength + INT_AS_BYTES + valueLength;
+        if (length > frameCapacity - STRINGS_HEADER_SIZE) {
+            throw new IllegalArgumentException("Entry of " + length + " bytes doesn't fit in a frame of "
+                    + frameCapacity + " bytes");
+        }
+        if (scratch.capacity() < length) scratch = ByteBuffer.allocate(length);
+        scratch.clear();
+        return scratch;
+    }
+
+    private void endString(int keyOffset, int keyLength) {
+        int hash = DataStructures.stringPartitionHash(scratch.array(), keyOffset, keyLength);
+        Batch batch = batch(stringBatches, hash, STRINGS_HEADER_SIZE);
+        if (batch.records.remaining() < scratch.position()) send(STRINGS, batch);
+
+        scratch.flip();
+        batch.records.put(scratch);
+        batch.count++;
+    }
+
+    private Batch batch(Batch[] batches, int hash, int headerSize) {
+        int partition = hash % partitionCount;
+        Batch batch = batches[partition];
+        if (batch == null) {
+            batch = new Batch(ByteBuffer.allocate(frameCapacity - headerSize));
+            batches[partition] = batch;
+        }
+        return batch;
+    }
+
+    private void send(byte type, Batch batch) {
+        if (batch.count == 0) return;
+
+        // the entries this partition is still expected to receive; at least the entries of this frame.
+        long expected = Math.max(batch.count, expectedPerPartition - batch.sent);
+        ByteBuffer b = client.sendBuf;
+        int length;
+        if (type == COUNTER) {
+            length = 1 + 1 + longSize(batch.partitionKey) + longSize(expected) + batch.records.position();
+            client.putFrameLength(length);
+            b.put(COUNTER);
+            b.put(compact ? (byte) (FUNCTION_LOAD | COMPACT) : FUNCTION_LOAD);
+            putLong(b, batch.partitionKey);
+            putLong(b, expected);
+        } else {
+            length = STRINGS_HEADER_SIZE + batch.records.position();
+            client.putFrameLength(length);
+            b.put(STRINGS);
+            b.put(StringsData.FUNCTION_LOAD);
+            b.putInt((int) Math.min(Integer.MAX_VALUE, expected));
+        }
+        batch.records.flip();
+        b.put(batch.records);
+        batch.records.clear();
+        client.writeAndFlush();
+        batch.sent += batch.count;
+        batch.count = 0;
+
+        addUnacked(type, length);
+        while (unackedBytes > ackInterval) {
+            readAck();
+        }
+    }
+
+    private void addUnacked(byte type, int length) {
+        if (unackedCount == unackedLengths.length) {
+            byte[] types = new byte[unackedCount * 2];
+            int[] lengths = new int[unackedCount * 2];
+            for (int k = 0; k < unackedCount; k++) {
+                types[k] = unackedTypes[(unackedHead + k) % unackedCount];
+                lengths[k] = unackedLengths[(unackedHead + k) % unackedCount];
+            }
+            unackedTypes = types;
+            unackedLengths = lengths;
+            unackedHead = 0;
+        }
+        int index = (unackedHead + unackedCount) % unackedLengths.length;
+        unackedTypes[index] = type;
+        unackedLengths[index] = length;
+        unackedCount++;
+        unackedBytes += length;
+    }
+
+    private void readAck() {
+        In in = client.readResponseIn();
+        loaded += unackedTypes[unackedHead] == COUNTER ? getLong(in) : in.getInt();
+        unackedBytes -= unackedLengths[unackedHead];
+        unackedHead = (unackedHead + 1) % unackedLengths.length;
+        unackedCount--;
+    }
+
+    /**
+     * Sends the entries that are not sent yet and waits till all frames are acknowledged.
+     *
+     * @return the number of entries the server acknowledged since the loader was created.
+     */
+    public long flush() {
+        for (Batch batch : counterBatches) {
+            if (batch != null) send(COUNTER, batch);
+        }
+        for (Batch batch : stringBatches) {
+            if (batch != null) send(STRINGS, batch);
+        }
+        while (unackedCount > 0) {
+            readAck();
+        }
+        return loaded;
+    }
+
+    private int longSize(long value) {
+        return compact ? varLongSize(value) : LONG_AS_BYTES;
+    }
+
+    private void putLong(ByteBuffer b, long value) {
+        if (compact) {
+            putVarLong(b, value);
+        } else {
+            b.putLong(value);
+        }
+    }
+
+    private long getLong(In in) {
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    // the records of the frame of a partition that is being filled.
+    private static final class Batch {
+        final ByteBuffer records;
+        int count;
+        // the counters are routed on the first id.
+        long partitionKey;
+        // the entries sent to the partition so far.
+        long sent;
+
+        Batch(ByteBuffer records) {
+            this.records = records;
+        }
+    }
+}
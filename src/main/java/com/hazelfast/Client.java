@@ -4,23 +4,41 @@ import com.hazelfast.impl.ByteArrayPool;
 import com.hazelfast.impl.DataStructures;
 import com.hazelfast.impl.Frame;
 import com.hazelfast.impl.FramePool;
+import com.hazelfast.impl.FrameReader;
+import com.hazelfast.impl.Handshake;
+import com.hazelfast.impl.IOUtil;
+import com.hazelfast.impl.LoopbackChannel;
+import com.hazelfast.impl.In;
+import com.hazelfast.impl.Lz4Codec;
+import com.hazelfast.impl.SharedMemoryChannel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
 import static com.hazelfast.impl.IOUtil.allocateByteBuffer;
 import static com.hazelfast.impl.IOUtil.compactOrClear;
 import static com.hazelfast.impl.IOUtil.setReceiveBufferSize;
 import static com.hazelfast.impl.IOUtil.setSendBufferSize;
+import static com.hazelfast.impl.IOUtil.setTcpNoDelay;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class Client {
 
     private final FramePool framePool;
-    private InetSocketAddress address;
+    private SocketAddress address;
     private SocketChannel socketChannel;
+    // the channel requests and responses are exchanged over; the socket or the shared memory.
+    private ByteChannel channel;
+    private SharedMemoryChannel sharedMemoryChannel;
+    private LoopbackChannel loopbackChannel;
     protected ByteBuffer sendBuf;
     private ByteBuffer receiveBuf;
     private final String hostname;
@@ -28,9 +46,36 @@ public class Client {
     private final int sendBufferSize;
     private final boolean tcpNoDelay;
     private final boolean directBuffers;
+    private final String unixDomainSocketPath;
+    private final boolean sharedMemory;
+    private final String sharedMemoryDirectory;
+    private final int sharedMemoryCapacity;
+    private final boolean loopback;
+    private final boolean compression;
+    private final int compressionThreshold;
+    private final int maxFrameSize;
+    private final boolean compactEncoding;
+    private final int bulkLoadAckInterval;
+    // the response of the server to the handshake.
+    private final Handshake handshake = new Handshake();
+    // true if the large request frames are compressed; negotiated in the handshake.
+    private boolean compress;
+    // true if the frame lengths are varints; negotiated in the handshake.
+    private boolean compactLengths;
+    private Lz4Codec codec;
+    private byte[] uncompressed;
+    private byte[] compressed;
     private final Counters counters;
     private final Strings strings;
+    private final RateLimiters rateLimiters;
+    private final HyperLogLogs hyperLogLogs;
+    private final WindowedCounters windowedCounters;
+    private final Queues queues;
     private final ByteArrayPool byteArrayPool;
+    private final FrameReader frameReader;
+    // the frame of the last response read by readResponseIn; returned to the pool on the next read.
+    private Frame response;
+    private final In responseIn = new In();
 
     public Client(Context context) {
         hostname = context.hostname;
@@ -38,10 +83,28 @@ public class Client {
         sendBufferSize = context.sendBufferSize;
         tcpNoDelay = context.tcpNoDelay;
         directBuffers = context.directBuffers;
+        unixDomainSocketPath = context.unixDomainSocketPath;
+        sharedMemory = context.sharedMemory;
+        sharedMemoryDirectory = context.sharedMemoryDirectory;
+        sharedMemoryCapacity = context.sharedMemoryCapacity;
+        loopback = context.loopback;
+        if (loopback && sharedMemory) {
+            throw new IllegalArgumentException("loopback and sharedMemory can't be combined");
+        }
+        compression = context.compression;
+        compressionThreshold = context.compressionThreshold;
+        maxFrameSize = context.maxFrameSize;
+        compactEncoding = context.compactEncoding;
+        bulkLoadAckInterval = context.bulkLoadAckInterval;
         counters = new Counters(this);
         strings = new Strings(this);
+        rateLimiters = new RateLimiters(this);
+        hyperLogLogs = new HyperLogLogs(this);
+        windowedCounters = new WindowedCounters(this);
+        queues = new Queues(this);
         this.byteArrayPool = new ByteArrayPool(context.objectPoolingEnabled);
         this.framePool = new FramePool(context.objectPoolingEnabled);
+        this.frameReader = new FrameReader(byteArrayPool, framePool);
     }
 
     public String hostname() {
@@ -64,6 +127,60 @@ public class Client {
         return directBuffers;
     }
 
+    public String unixDomainSocketPath() {
+        return unixDomainSocketPath;
+    }
+
+    public boolean sharedMemory() {
+        return sharedMemory;
+    }
+
+    public boolean loopback() {
+        return loopback;
+    }
+
+    /**
+     * Returns the protocol version agreed in the handshake.
+     */
+    public int protocolVersion() {
+        return handshake.version;
+    }
+
+    /**
+     * Returns the number of IO threads of the server; 0 if the server uses the blocking engine.
+     */
+    public int serverIOThreadCount() {
+        return handshake.ioThreadCount;
+    }
+
+    /**
+     * Returns the number of partitions of the server.
+     */
+    public int serverPartitionCount() {
+        return handshake.partitionCount;
+    }
+
+    /**
+     * Returns the max frame size agreed in the handshake.
+     */
+    public int maxFrameSize() {
+        return handshake.maxFrameSize;
+    }
+
+    /**
+     * Returns true if compression of large frames was agreed in the handshake.
+     */
+    public boolean compression() {
+        return handshake.hasCapability(Handshake.CAPABILITY_COMPRESSION);
+    }
+
+    /**
+     * Returns true if the compact encoding was agreed in the handshake.
+     */
+    public boolean compactEncoding() {
+        return handshake.hasCapability(Handshake.CAPABILITY_COMPACT_ENCODING);
+    }
+
     public static void main(String[] args) throws Exception {
         Client client = new Client(new Context());
         client.start();
@@ -73,22 +190,145 @@ public class Client {
     }
 
     public void start() throws IOException {
-        log("Connecting to Server on startPort 1111...");
+        if (loopback) {
+            log("Connecting to Server in this JVM on startPort 1111...");
+            sendBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
+            receiveBuf = allocateByteBuffer(directBuffers, sendBufferSize);
+            loopbackChannel = Server.connectLoopback(1111, sharedMemoryCapacity);
+            channel = loopbackChannel;
+            handshake();
+            return;
+        }
 
-        this.address = new InetSocketAddress(hostname, 1111);
+        boolean unix = unixDomainSocketPath != null;
+        if (unix) {
+            log("Connecting to Server on " + unixDomainSocketPath + "...");
+            this.address = IOUtil.unixDomainSocketAddress(unixDomainSocketPath);
+        } else {
+            log("Connecting to Server on startPort 1111...");
+            this.address = new InetSocketAddress(hostname, 1111);
+        }
         sendBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
         receiveBuf = allocateByteBuffer(directBuffers, sendBufferSize);
-        socketChannel = SocketChannel.open(address);
-        socketChannel.socket().setTcpNoDelay(tcpNoDelay);
+        socketChannel = IOUtil.openSocketChannel(unix);
+        socketChannel.connect(address);
+        setTcpNoDelay(socketChannel, tcpNoDelay);
         setReceiveBufferSize(socketChannel, receiveBufferSize);
         setSendBufferSize(socketChannel, sendBufferSize);
+        channel = socketChannel;
+        handshake();
+
+        if (sharedMemory) {
+            attachSharedMemory();
+        }
+    }
+
+    private void handshake() throws IOException {
+        handshake.capabilities = (compression ? Handshake.CAPABILITY_COMPRESSION : 0)
+                | (compactEncoding ? Handshake.CAPABILITY_COMPACT_ENCODING : 0);
+        handshake.maxFrameSize = maxFrameSize;
+        handshake.writeRequest(sendBuf);
+        flush();
+
+        for (int idle = 0; receiveBuf.position() < Handshake.RESPONSE_SIZE; ) {
+            int read = channel.read(receiveBuf);
+            if (read == -1) {
+                throw new IOException("Socket closed by remote during handshake");
+            }
+            if (read == 0) {
+                // the loopback channel doesn't block.
+                idle = idle(idle);
+            }
+        }
+        receiveBuf.flip();
+        try {
+            handshake.readResponse(receiveBuf);
+        } finally {
+            compactOrClear(receiveBuf);
+        }
+        if (handshake.version != Handshake.VERSION) {
+            throw new IOException("Server speaks unsupported protocol version " + handshake.version);
+        }
+
+        frameReader.maxFrameSize(handshake.maxFrameSize);
+        if (compression()) {
+            frameReader.enableCompression();
+            codec = new Lz4Codec();
+            compress = true;
+        }
+        if (compactEncoding()) {
+            frameReader.enableCompactLengths();
+            compactLengths = true;
+        }
+        log("Handshake complete: " + handshake);
+    }
+
+    /**
+     * Creates the shared memory file and tells the server to use it. The socket remains open so the server can
+     * detect that the client is gone.
+     */
+    private void attachSharedMemory() throws IOException {
+        Path path = Paths.get(sharedMemoryDirectory, SharedMemoryChannel.newFileName());
+        sharedMemoryChannel = SharedMemoryChannel.create(path, sharedMemoryCapacity);
+        byte[] pathBytes = path.toString().getBytes(UTF_8);
+        putFrameLength(1 + pathBytes.length);
+        sendBuf.put(DataStructures.ATTACH_SHARED_MEMORY);
+        sendBuf.put(pathBytes);
+        flush();
+
+        if (readResponseIn().getByte() != 1) {
+            sharedMemoryChannel.close();
+            sharedMemoryChannel = null;
+            throw new IOException("Server refused to attach " + path);
+        }
+        log("Attached shared memory " + path);
+        channel = sharedMemoryChannel;
+        // compression only pays off when bytes go over the network.
+        compress = false;
     }
 
     public Counters counters() {
         return counters;
     }
 
+    public Strings strings() {
+        return strings;
+    }
+
+    /**
+     * Creates a loader to stream a large number of counters and strings to the server; see {@link BulkLoader}.
+     *
+     * @param expectedEntries the number of entries that will be loaded, so the server can size its maps up front;
+     *                        0 if unknown.
+     */
+    public BulkLoader bulkLoader(long expectedEntries) {
+        return new BulkLoader(this, expectedEntries, bulkLoadAckInterval);
+    }
+
+    public RateLimiters rateLimiters() {
+        return rateLimiters;
+    }
+
+    public HyperLogLogs hyperLogLogs() {
+        return hyperLogLogs;
+    }
+
+    public WindowedCounters windowedCounters() {
+        return windowedCounters;
+    }
+
+    public Queues queues() {
+        return queues;
+    }
+
     public void stop() throws IOException {
+        if (sharedMemoryChannel != null) {
+            sharedMemoryChannel.close();
+        }
+        if (loopbackChannel != null) {
+            loopbackChannel.close();
+            return;
+        }
         socketChannel.close();
     }
 
@@ -116,8 +356,14 @@ public class Client {
         }
     }
 
+    /**
+     * Writes the message as a ping in UTF-8, without creating an intermediate byte-array.
+     */
     public void writeAndFlush(String message) throws IOException {
-        writeAndFlush(message.getBytes());
+        putFrameLength(1 + IOUtil.utf8Length(message));
+        sendBuf.put(DataStructures.PING);
+        IOUtil.putUtf8(sendBuf, message);
+        flush();
     }
 
     public void writeAndFlush(byte[] message) throws IOException {
@@ -127,7 +373,7 @@ public class Client {
 
     public void flush() throws IOException {
         sendBuf.flip();
-        int written = socketChannel.write(sendBuf);
+        writeFully();
 //        System.out.println("send " + written + " bytes");
 
         //log("sending: " + companyName);
@@ -135,7 +381,7 @@ public class Client {
     }
 
     public void write(byte[] message) {
-        sendBuf.putInt(message.length + 1);
+        putFrameLength(message.length + 1);
         //sendBuf.putInt(1);
         sendBuf.put(DataStructures.PING);
         sendBuf.put(message);
@@ -144,7 +390,7 @@ public class Client {
     protected void writeAndFlush() {
         try {
             sendBuf.flip();
-            socketChannel.write(sendBuf);
+            writeFully();
 
             //log("sending: " + companyName);
             sendBuf.clear();
@@ -153,18 +399,166 @@ public class Client {
         }
     }
 
+    private void writeFully() throws IOException {
+        if (compress) compressFrames();
+
+        // a blocking socket writes all bytes at once; the shared memory or loopback ring could be full.
+        for (int idle = 0; sendBuf.hasRemaining(); ) {
+            if (channel.write(sendBuf) == 0) {
+                idle = idle(idle);
+            }
+        }
+    }
+
+    /**
+     * Writes the length of the next frame into the sendBuf; every request starts with this.
+     */
+    void putFrameLength(int length) {
+        putHeader(sendBuf, length, false);
+    }
+
+    private void putHeader(ByteBuffer dst, int length, boolean compressed) {
+        if (compactLengths) {
+            IOUtil.putVarInt(dst, length << 1 | (compressed ? 1 : 0));
+        } else {
+            dst.putInt(compressed ? length | Frame.COMPRESSED : length);
+        }
+    }
+
+    /**
+     * Compresses the frames in the sendBuf with at least compressionThreshold bytes. A frame is only compressed if
+     * it gets smaller, so the frames can be rewritten in place. The sendBuf should be in reading mode.
+     */
+    private void compressFrames() {
+        int limit = sendBuf.limit();
+        int write = 0;
+        for (int read = 0; read < limit; ) {
+            int header = compactLengths ? getVarInt(read) : sendBuf.getInt(read);
+            int headerSize = compactLengths ? IOUtil.varIntSize(header) : INT_AS_BYTES;
+            int length = compactLengths ? header >>> 1 : header;
+            int next = read + headerSize + length;
+            int compressedLength = length < compressionThreshold ? -1 : compress(read + headerSize, length);
+            if (compressedLength > 0) {
+                // the header can't get longer since the length got smaller.
+                ByteBuffer view = sendBuf.duplicate();
+                view.limit(view.capacity()).position(write);
+                putHeader(view, compressedLength, true);
+                put(view.position(), compressed, compressedLength);
+                write = view.position() + compressedLength;
+            } else {
+                if (write != read) {
+                    // an earlier frame was compressed, so this one needs to move.
+                    get(read, uncompressed(next - read), next - read);
+                    put(write, uncompressed, next - read);
+                }
+                write += next - read;
+            }
+            read = next;
+        }
+        sendBuf.limit(write);
+    }
+
+    // compresses the frame content at the offset into the compressed array; returns -1 if it doesn't get smaller.
+    private int compress(int offset, int length) {
+        get(offset, uncompressed(length), length);
+        int maxLength = INT_AS_BYTES + Lz4Codec.maxCompressedLength(length);
+        if (compressed == null || compressed.length < maxLength) {
+            compressed = new byte[maxLength];
+        }
+        int compressedLength = INT_AS_BYTES + codec.compress(uncompressed, 0, length, compressed, INT_AS_BYTES);
+        if (compressedLength >= length) return -1;
+
+        IOUtil.putInt(compressed, 0, length);
+        return compressedLength;
+    }
+
+    private int getVarInt(int index) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = sendBuf.get(index++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private byte[] uncompressed(int length) {
+        if (uncompressed == null || uncompressed.length < length) {
+            uncompressed = new byte[length];
+        }
+        return uncompressed;
+    }
+
+    private void get(int index, byte[] dst, int length) {
+        ByteBuffer view = sendBuf.duplicate();
+        view.position(index);
+        view.get(dst, 0, length);
+    }
+
+    private void put(int index, byte[] src, int length) {
+        ByteBuffer view = sendBuf.duplicate();
+        view.limit(view.capacity()).position(index);
+        view.put(src, 0, length);
+    }
+
+    // spins for a while, then yields for a while and then parks for the shortest possible time.
+    private static int idle(int idle) {
+        if (idle < SPIN_ITERATIONS) {
+            return idle + 1;
+        } else if (idle < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+            Thread.yield();
+            return idle + 1;
+        } else {
+            LockSupport.parkNanos(1);
+            return idle;
+        }
+    }
+
+    private static final int SPIN_ITERATIONS = 100;
+    private static final int YIELD_ITERATIONS = 1_000;
+
     public void readResponse() throws IOException {
-        Frame frame = null;
-        int offset = 0;
+        Frame frame = readFrame();
+        byteArrayPool.returnToPool(frame.bytes);
+        framePool.returnToPool(frame);
+    }
+
+    /**
+     * Reads the next response. The returned In is only valid till the next response is read.
+     *
+     * @return the In to read the content of the response from.
+     */
+    protected In readResponseIn() {
+        if (response != null) {
+            byteArrayPool.returnToPool(response.bytes);
+            framePool.returnToPool(response);
+            response = null;
+        }
+
+        try {
+            response = readFrame();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        responseIn.init(response.bytes, 0, response.length);
+        return responseIn;
+    }
 
+    private Frame readFrame() throws IOException {
+        // bytes of the next response could already be in the receiveBuf.
         boolean skipRead = true;
+        int idle = 0;
         for (; ; ) {
             if (!skipRead) {
-                int read = socketChannel.read(receiveBuf);
+                int read = channel.read(receiveBuf);
                 if (read == -1) {
-                    socketChannel.close();
+                    channel.close();
                     throw new IOException("Socket Closed by remote");
                 }
+                if (read == 0) {
+                    // the shared memory and loopback channels don't block.
+                    idle = idle(idle);
+                    continue;
+                }
                 //   System.out.println("read:" + read + " bytes");
             }
 
@@ -172,33 +566,8 @@ public class Client {
 
             receiveBuf.flip();
             try {
-                if (frame == null) {
-                    if (receiveBuf.remaining() < INT_AS_BYTES) {
-                        continue;
-                    }
-
-                    frame = framePool.takeFromPool();
-                    frame.length = receiveBuf.getInt();
-                    frame.bytes = byteArrayPool.takeFromPool(frame.length);
-                }
-                int needed = frame.length - offset;
-                int length;
-                boolean complete = false;
-                if (receiveBuf.remaining() >= needed) {
-                    length = needed;
-                    complete = true;
-                } else {
-                    length = receiveBuf.remaining();
-                }
-
-                receiveBuf.get(frame.bytes, offset, length);
-                if (complete) {
-                    byteArrayPool.returnToPool(frame.bytes);
-                    framePool.returnToPool(frame);
-                    return;
-                } else {
-                    offset += length;
-                }
+                Frame frame = frameReader.read(receiveBuf);
+                if (frame != null) return frame;
             } finally {
                 compactOrClear(receiveBuf);
             }
@@ -216,6 +585,104 @@ public class Client {
         private boolean tcpNoDelay = true;
         private boolean directBuffers = true;
         private boolean objectPoolingEnabled = true;
+        private String unixDomainSocketPath;
+        private boolean sharedMemory;
+        private String sharedMemoryDirectory = "/dev/shm";
+        private int sharedMemoryCapacity = 1024 * 1024;
+        private boolean loopback;
+        private boolean compression;
+        private int compressionThreshold = 4 * 1024;
+        private int maxFrameSize = 64 * 1024 * 1024;
+        private boolean compactEncoding;
+        private int bulkLoadAckInterval = 8 * 1024 * 1024;
+
+        /**
+         * The number of bytes a {@link BulkLoader} sends before it waits for the acknowledgements of the server. A
+         * larger interval keeps more frames in flight; a smaller one pushes back on the loader sooner.
+         */
+        public Context bulkLoadAckInterval(int bulkLoadAckInterval) {
+            this.bulkLoadAckInterval = bulkLoadAckInterval;
+            return this;
+        }
+
+        /**
+         * Asks the server in the handshake for the compact encoding: varint frame lengths and zigzag varints for
+         * the Counters ids, values and results. Most of them fit in 1 or 2 bytes instead of 8.
+         */
+        public Context compactEncoding(boolean compactEncoding) {
+            this.compactEncoding = compactEncoding;
+            return this;
+        }
+
+        /**
+         * Asks the server in the handshake to compress the large frames in both directions. Worth it if the
+         * network is slow compared to the CPU, e.g. between racks, and the values compress well.
+         */
+        public Context compression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * The min length of a request frame to be compressed, if compression is negotiated.
+         */
+        public Context compressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * The max length of a frame; the server can lower it in the handshake.
+         */
+        public Context maxFrameSize(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        /**
+         * Exchanges the requests and responses with the server through shared memory instead of the socket. Only
+         * works if the client runs on the same machine as the server, and the server uses the selector engine and
+         * accepts shared memory from the same directory; see {@link Server.Context#sharedMemory(boolean)}.
+         */
+        public Context sharedMemory(boolean sharedMemory) {
+            this.sharedMemory = sharedMemory;
+            return this;
+        }
+
+        /**
+         * The directory the shared memory file is created in. Should be backed by memory, like /dev/shm.
+         */
+        public Context sharedMemoryDirectory(String sharedMemoryDirectory) {
+            this.sharedMemoryDirectory = sharedMemoryDirectory;
+            return this;
+        }
+
+        /**
+         * The capacity in bytes of each of the 2 shared memory or loopback rings. Needs to be a power of two.
+         */
+        public Context sharedMemoryCapacity(int sharedMemoryCapacity) {
+            this.sharedMemoryCapacity = sharedMemoryCapacity;
+            return this;
+        }
+
+        /**
+         * Connects to a server in the same JVM through in-memory rings instead of a socket; the server needs to
+         * accept loopback connections, see {@link Server.Context#loopback(boolean)}. The requests and responses are
+         * framed like on a socket, so this leaves out the kernel and nothing else. Meant for benchmarks and tests.
+         */
+        public Context loopback(boolean loopback) {
+            this.loopback = loopback;
+            return this;
+        }
+
+        /**
+         * Connects to a server listening on a unix domain socket with the given path instead of using TCP.
+         * Requires JDK 16+.
+         */
+        public Context unixDomainSocketPath(String unixDomainSocketPath) {
+            this.unixDomainSocketPath = unixDomainSocketPath;
+            return this;
+        }
 
         public Context hostname(String hostname) {
             this.hostname = hostname;
@@ -1,40 +1,62 @@
 package com.hazelfast;
 
+import com.hazelfast.impl.CounterProcessor;
+import com.hazelfast.impl.DataStructures;
+import com.hazelfast.impl.In;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import static com.hazelfast.impl.CountersData.COMPACT;
 import static com.hazelfast.impl.CountersData.FUNCTION_CAS;
+import static com.hazelfast.impl.CountersData.FUNCTION_EXECUTE;
 import static com.hazelfast.impl.CountersData.FUNCTION_GET;
 import static com.hazelfast.impl.CountersData.FUNCTION_INC;
+import static com.hazelfast.impl.CountersData.FUNCTION_MULTI;
+import static com.hazelfast.impl.CountersData.FUNCTION_RANGE;
 import static com.hazelfast.impl.CountersData.FUNCTION_SET;
+import static com.hazelfast.impl.CountersData.FUNCTION_TOP_N;
+import static com.hazelfast.impl.CountersData.MAX_MULTI_OPERATIONS;
+import static com.hazelfast.impl.CountersData.MAX_QUERY_RESULTS;
 import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.putVarLong;
+import static com.hazelfast.impl.IOUtil.varLongSize;
 import static com.hazelfast.impl.DataStructures.COUNTER;
 
+/**
+ * If the compact encoding is agreed in the handshake, the ids, values and results are sent as zigzag varints;
+ * otherwise as longs.
+ */
 public final class Counters {
 
-     private final Client client;
+    private final Client client;
 
     public Counters(Client client) {
         this.client = client;
     }
 
     public long get(long id) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(id, compact));
         ByteBuffer b = client.sendBuf;
-        b.putInt(1 + 1 + LONG_AS_BYTES);
         b.put(COUNTER);
-        b.put(FUNCTION_GET);
-        b.putLong(id);
+        b.put(function(FUNCTION_GET, compact));
+        putLong(b, id, compact);
         client.writeAndFlush();
-        return 0;
+        return getLong(client.readResponseIn(), compact);
     }
 
     public long set(long id, long value) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(id, compact) + longSize(value, compact));
         ByteBuffer b = client.sendBuf;
-        b.putInt(1 + 1 + LONG_AS_BYTES + LONG_AS_BYTES);
         b.put(COUNTER);
-        b.put(FUNCTION_SET);
-        b.putLong(id);
-        b.putLong(value);
+        b.put(function(FUNCTION_SET, compact));
+        putLong(b, id, compact);
+        putLong(b, value, compact);
         client.writeAndFlush();
+        client.readResponseIn();
         return 0;
     }
 
@@ -42,27 +64,305 @@ public final class Counters {
         return inc(id, 1);
     }
 
+    /**
+     * Adds the amount to the counter.
+     *
+     * @return the value after the increment. For a striped counter, see
+     * {@link Server.Context#stripedCounterIds(long...)}, it can include concurrent increments of other clients.
+     */
     public long inc(long id, int amount) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(id, compact) + longSize(amount, compact));
         ByteBuffer b = client.sendBuf;
-        b.putInt(1 + 1 + LONG_AS_BYTES + LONG_AS_BYTES);
         b.put(COUNTER);
-        b.put(FUNCTION_INC);
-        b.putLong(id);
-        b.putLong(amount);
+        b.put(function(FUNCTION_INC, compact));
+        putLong(b, id, compact);
+        putLong(b, amount, compact);
         client.writeAndFlush();
-        return 0;
+        return getLong(client.readResponseIn(), compact);
     }
 
     public boolean cas(long id, long oldValue, long newValue) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(id, compact) + longSize(oldValue, compact)
+                + longSize(newValue, compact));
         ByteBuffer b = client.sendBuf;
-        b.putInt(1 + 1 + LONG_AS_BYTES + LONG_AS_BYTES + LONG_AS_BYTES);
         b.put(COUNTER);
-        b.put(FUNCTION_CAS);
-        b.putLong(id);
-        b.putLong(oldValue);
-        b.putLong(newValue);
+        b.put(function(FUNCTION_CAS, compact));
+        putLong(b, id, compact);
+        putLong(b, oldValue, compact);
+        putLong(b, newValue, compact);
         client.writeAndFlush();
-        return true;
+        return client.readResponseIn().getByte() == 1;
+    }
+
+    /**
+     * Executes a processor registered on the server on the counter; see {@link CounterProcessor}. The processor is
+     * executed atomically, so no CAS loop is needed.
+     *
+     * @param processorId the id the processor is registered with.
+     * @param arguments   at most {@link CounterProcessor#MAX_ARGUMENTS} arguments for the processor.
+     * @return the result of the processor.
+     */
+    public long execute(int processorId, long id, long... arguments) {
+        if (arguments.length > CounterProcessor.MAX_ARGUMENTS) {
+            throw new IllegalArgumentException("At most " + CounterProcessor.MAX_ARGUMENTS + " arguments");
+        }
+
+        boolean compact = client.compactEncoding();
+        int length = 1 + 1 + longSize(id, compact) + longSize(processorId, compact)
+                + longSize(arguments.length, compact);
+        for (long argument : arguments) {
+            length += longSize(argument, compact);
+        }
+        client.putFrameLength(length);
+        ByteBuffer b = client.sendBuf;
+        b.put(COUNTER);
+        b.put(function(FUNCTION_EXECUTE, compact));
+        putLong(b, id, compact);
+        putLong(b, processorId, compact);
+        putLong(b, arguments.length, compact);
+        for (long argument : arguments) {
+            putLong(b, argument, compact);
+        }
+        client.writeAndFlush();
+        return getLong(client.readResponseIn(), compact);
+    }
+
+    /**
+     * Creates a list of operations that is executed atomically; see {@link Multi}.
+     */
+    public Multi multi() {
+        return new Multi();
+    }
+
+    /**
+     * Checks if the counters are in the same partition, so they can be part of the same {@link Multi}.
+     */
+    public boolean isSamePartition(long id1, long id2) {
+        int partitionCount = Math.max(1, client.serverPartitionCount());
+        return DataStructures.counterPartitionHash(id1) % partitionCount
+                == DataStructures.counterPartitionHash(id2) % partitionCount;
     }
 
+    /**
+     * Returns the n counters with the highest values, highest first; ties are ordered on id. Requires the counter
+     * index on the server; see {@link Server.Context#counterIndex(boolean)}.
+     * <p>
+     * The results are fetched in pages of at most {@link com.hazelfast.impl.CountersData#MAX_QUERY_RESULTS}, so
+     * the frames stay bounded for a large n. The pages are separate requests, so they don't form a snapshot.
+     */
+    public List<Entry> topN(int n) {
+        return query(FUNCTION_TOP_N, 0, 0, n);
+    }
+
+    /**
+     * Returns at most limit counters with a value between min and max (both inclusive), lowest first; ties are
+     * ordered on id. Requires the counter index on the server; fetched in pages like {@link #topN(int)}.
+     */
+    public List<Entry> range(long minValue, long maxValue, int limit) {
+        return query(FUNCTION_RANGE, minValue, maxValue, limit);
+    }
+
+    private List<Entry> query(byte function, long minValue, long maxValue, int limit) {
+        if (limit < 0) throw new IllegalArgumentException("limit can't be negative");
+
+        boolean compact = client.compactEncoding();
+        List<Entry> result = new ArrayList<>(Math.min(limit, MAX_QUERY_RESULTS));
+        Entry cursor = null;
+        while (result.size() < limit) {
+            int pageLimit = Math.min(limit - result.size(), MAX_QUERY_RESULTS);
+            int length = 1 + 1 + longSize(pageLimit, compact) + 1;
+            if (function == FUNCTION_RANGE) length += longSize(minValue, compact) + longSize(maxValue, compact);
+            if (cursor != null) length += longSize(cursor.value, compact) + longSize(cursor.id, compact);
+
+            client.putFrameLength(length);
+            ByteBuffer b = client.sendBuf;
+            b.put(COUNTER);
+            b.put(function(function, compact));
+            if (function == FUNCTION_RANGE) {
+                putLong(b, minValue, compact);
+                putLong(b, maxValue, compact);
+            }
+            putLong(b, pageLimit, compact);
+            if (cursor == null) {
+                b.put((byte) 0);
+            } else {
+                b.put((byte) 1);
+                putLong(b, cursor.value, compact);
+                putLong(b, cursor.id, compact);
+            }
+            client.writeAndFlush();
+
+            In in = client.readResponseIn();
+            int count = in.getInt();
+            for (int k = 0; k < count; k++) {
+                long id = getLong(in, compact);
+                cursor = new Entry(id, getLong(in, compact));
+                result.add(cursor);
+            }
+            if (count < pageLimit) break;
+        }
+        return result;
+    }
+
+    private static byte function(byte function, boolean compact) {
+        return compact ? (byte) (function | COMPACT) : function;
+    }
+
+    private static int longSize(long value, boolean compact) {
+        return compact ? varLongSize(value) : LONG_AS_BYTES;
+    }
+
+    private static void putLong(ByteBuffer b, long value, boolean compact) {
+        if (compact) {
+            putVarLong(b, value);
+        } else {
+            b.putLong(value);
+        }
+    }
+
+    private static long getLong(In in, boolean compact) {
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    /**
+     * Get, set, inc and cas operations on counters in the same partition that are executed atomically in a single
+     * round trip. If a cas fails, none of the operations are applied. The operations are executed in order, so a
+     * cas sees the changes of the operations before it.
+     * <p>
+     * Instances are not thread-safe and can be executed only once.
+     */
+    public final class Multi {
+        private final byte[] functions = new byte[MAX_MULTI_OPERATIONS];
+        private final long[] ids = new long[MAX_MULTI_OPERATIONS];
+        private final long[] arguments1 = new long[MAX_MULTI_OPERATIONS];
+        private final long[] arguments2 = new long[MAX_MULTI_OPERATIONS];
+        private final long[] results = new long[MAX_MULTI_OPERATIONS];
+        private int count;
+        private int failedOperation = -1;
+
+        private Multi() {
+        }
+
+        public Multi get(long id) {
+            return add(FUNCTION_GET, id, 0, 0);
+        }
+
+        public Multi set(long id, long value) {
+            return add(FUNCTION_SET, id, value, 0);
+        }
+
+        public Multi inc(long id, long amount) {
+            return add(FUNCTION_INC, id, amount, 0);
+        }
+
+        public Multi cas(long id, long oldValue, long newValue) {
+            return add(FUNCTION_CAS, id, oldValue, newValue);
+        }
+
+        private Multi add(byte function, long id, long argument1, long argument2) {
+            if (count == MAX_MULTI_OPERATIONS) {
+                throw new IllegalStateException("At most " + MAX_MULTI_OPERATIONS + " operations");
+            }
+            if (count > 0 && !isSamePartition(ids[0], id)) {
+                throw new IllegalArgumentException("Counter " + id + " is in another partition than " + ids[0]);
+            }
+            functions[count] = function;
+            ids[count] = id;
+            arguments1[count] = argument1;
+            arguments2[count] = argument2;
+            count++;
+            return this;
+        }
+
+        /**
+         * Executes the operations.
+         *
+         * @return true if they were applied; false if a cas failed.
+         */
+        public boolean execute() {
+            if (count == 0) return true;
+
+            boolean compact = client.compactEncoding();
+            int length = 1 + 1 + longSize(ids[0], compact) + longSize(count, compact);
+            for (int k = 0; k < count; k++) {
+                length += 1 + longSize(ids[k], compact) + argumentsSize(k, compact);
+            }
+            client.putFrameLength(length);
+            ByteBuffer b = client.sendBuf;
+            b.put(COUNTER);
+            b.put(function(FUNCTION_MULTI, compact));
+            putLong(b, ids[0], compact);
+            putLong(b, count, compact);
+            for (int k = 0; k < count; k++) {
+                b.put(functions[k]);
+                putLong(b, ids[k], compact);
+                if (functions[k] != FUNCTION_GET) putLong(b, arguments1[k], compact);
+                if (functions[k] == FUNCTION_CAS) putLong(b, arguments2[k], compact);
+            }
+            client.writeAndFlush();
+
+            In in = client.readResponseIn();
+            if (in.getByte() == 0) {
+                failedOperation = (int) getLong(in, compact);
+                return false;
+            }
+            for (int k = 0; k < count; k++) {
+                results[k] = getLong(in, compact);
+            }
+            return true;
+        }
+
+        private int argumentsSize(int k, boolean compact) {
+            switch (functions[k]) {
+                case FUNCTION_GET:
+                    return 0;
+                case FUNCTION_CAS:
+                    return longSize(arguments1[k], compact) + longSize(arguments2[k], compact);
+                default:
+                    return longSize(arguments1[k], compact);
+            }
+        }
+
+        /**
+         * Returns the value of the counter after the operation at the index was executed.
+         */
+        public long result(int index) {
+            return results[index];
+        }
+
+        /**
+         * Returns the index of the cas that failed; -1 if none failed.
+         */
+        public int failedOperation() {
+            return failedOperation;
+        }
+    }
+
+    /**
+     * A counter returned by a query.
+     */
+    public static final class Entry {
+        private final long id;
+        private final long value;
+
+        Entry(long id, long value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public long value() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return id + "=" + value;
+        }
+    }
 }
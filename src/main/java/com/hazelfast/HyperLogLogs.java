@@ -0,0 +1,134 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.In;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+import static com.hazelfast.impl.DataStructures.HYPERLOGLOG;
+import static com.hazelfast.impl.HyperLogLogsData.FUNCTION_ADD;
+import static com.hazelfast.impl.HyperLogLogsData.FUNCTION_ADD_ALL;
+import static com.hazelfast.impl.HyperLogLogsData.FUNCTION_COUNT;
+import static com.hazelfast.impl.HyperLogLogsData.FUNCTION_EXPORT;
+import static com.hazelfast.impl.HyperLogLogsData.FUNCTION_MERGE;
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.putVarLong;
+import static com.hazelfast.impl.IOUtil.varLongSize;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * HyperLogLog sketches on the server: approximate distinct counts in at most 12 KB per key, instead of storing
+ * every element. The estimate has a standard error of about 0.8%.
+ */
+public final class HyperLogLogs {
+
+    private final Client client;
+
+    public HyperLogLogs(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Adds the element to the sketch of the key; the sketch is created if it doesn't exist.
+     *
+     * @return true if the sketch changed.
+     */
+    public boolean add(long key, String element) {
+        byte[] bytes = element.getBytes(UTF_8);
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(key, compact) + INT_AS_BYTES + bytes.length);
+        ByteBuffer b = client.sendBuf;
+        putHeader(b, FUNCTION_ADD, key, compact);
+        b.putInt(bytes.length);
+        b.put(bytes);
+        client.writeAndFlush();
+        return client.readResponseIn().getByte() == 1;
+    }
+
+    /**
+     * Adds the elements in a single request.
+     *
+     * @return true if the sketch changed.
+     */
+    public boolean addAll(long key, Collection<String> elements) {
+        List<byte[]> bytes = new ArrayList<>(elements.size());
+        int length = 1 + 1 + longSize(key, client.compactEncoding()) + INT_AS_BYTES;
+        for (String element : elements) {
+            byte[] elementBytes = element.getBytes(UTF_8);
+            bytes.add(elementBytes);
+            length += INT_AS_BYTES + elementBytes.length;
+        }
+
+        client.putFrameLength(length);
+        ByteBuffer b = client.sendBuf;
+        putHeader(b, FUNCTION_ADD_ALL, key, client.compactEncoding());
+        b.putInt(bytes.size());
+        for (byte[] elementBytes : bytes) {
+            b.putInt(elementBytes.length);
+            b.put(elementBytes);
+        }
+        client.writeAndFlush();
+        return client.readResponseIn().getByte() == 1;
+    }
+
+    /**
+     * Returns the estimated number of distinct elements added to the sketch of the key; 0 if it doesn't exist.
+     */
+    public long count(long key) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(key, compact));
+        putHeader(client.sendBuf, FUNCTION_COUNT, key, compact);
+        client.writeAndFlush();
+        In in = client.readResponseIn();
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    /**
+     * Merges the sketches of the source keys into the sketch of the target key; the target then estimates the
+     * number of distinct elements of all of them. The sources can be in any partition: their registers are fetched
+     * and merged into the target one by one, so the merge isn't atomic.
+     *
+     * @return true if the target changed.
+     */
+    public boolean merge(long targetKey, long... sourceKeys) {
+        boolean compact = client.compactEncoding();
+        boolean changed = false;
+        for (long sourceKey : sourceKeys) {
+            client.putFrameLength(1 + 1 + longSize(sourceKey, compact));
+            putHeader(client.sendBuf, FUNCTION_EXPORT, sourceKey, compact);
+            client.writeAndFlush();
+            In in = client.readResponseIn();
+            byte[] registers = new byte[in.getInt()];
+            in.getBytes(registers, 0, registers.length);
+            if (registers.length == 0) continue;
+
+            client.putFrameLength(1 + 1 + longSize(targetKey, compact) + INT_AS_BYTES + registers.length);
+            ByteBuffer b = client.sendBuf;
+            putHeader(b, FUNCTION_MERGE, targetKey, compact);
+            b.putInt(registers.length);
+            b.put(registers);
+            client.writeAndFlush();
+            changed |= client.readResponseIn().getByte() == 1;
+        }
+        return changed;
+    }
+
+    private static void putHeader(ByteBuffer b, byte function, long key, boolean compact) {
+        b.put(HYPERLOGLOG);
+        if (compact) {
+            b.put((byte) (function | COMPACT));
+            putVarLong(b, key);
+        } else {
+            b.put(function);
+            b.putLong(key);
+        }
+    }
+
+    private static int longSize(long value, boolean compact) {
+        return compact ? varLongSize(value) : LONG_AS_BYTES;
+    }
+}
@@ -0,0 +1,149 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.In;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+import static com.hazelfast.impl.DataStructures.QUEUE;
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.putVarLong;
+import static com.hazelfast.impl.IOUtil.varLongSize;
+import static com.hazelfast.impl.QueuesData.FUNCTION_OFFER_ALL;
+import static com.hazelfast.impl.QueuesData.FUNCTION_POLL;
+import static com.hazelfast.impl.QueuesData.FUNCTION_SIZE;
+
+/**
+ * FIFO queues of byte-array elements on the server, identified by a long key.
+ * <p>
+ * A poll with a timeout on an empty queue waits on the server: the request is answered as soon as an element is
+ * offered, so a consumer doesn't need to poll in a loop. While waiting, the connection can't be used for other
+ * requests, so a consumer typically has a client of its own.
+ * <p>
+ * A poll returns at most {@link com.hazelfast.impl.QueuesData#MAX_POLL_BYTES} of elements, unless a single element
+ * is larger.
+ */
+public final class Queues {
+
+    private final Client client;
+
+    public Queues(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Adds the element to the tail of the queue; the queue is created if it doesn't exist.
+     *
+     * @return the size of the queue after the offer.
+     */
+    public long offer(long key, byte[] element) {
+        return offerAll(key, Collections.singletonList(element));
+    }
+
+    /**
+     * Adds the elements to the tail of the queue in a single request.
+     *
+     * @return the size of the queue after the offer.
+     */
+    public long offerAll(long key, Collection<byte[]> elements) {
+        boolean compact = client.compactEncoding();
+        int length = 1 + 1 + longSize(key, compact) + INT_AS_BYTES;
+        for (byte[] element : elements) {
+            length += INT_AS_BYTES + element.length;
+        }
+
+        client.putFrameLength(length);
+        ByteBuffer b = client.sendBuf;
+        putHeader(b, FUNCTION_OFFER_ALL, key, compact);
+        b.putInt(elements.size());
+        for (byte[] element : elements) {
+            b.putInt(element.length);
+            b.put(element);
+        }
+        client.writeAndFlush();
+        In in = client.readResponseIn();
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    /**
+     * Takes the head of the queue, waiting for an element if the queue is empty.
+     *
+     * @return the element; null if the timeout expired.
+     */
+    public byte[] poll(long key, long timeout, TimeUnit unit) {
+        List<byte[]> elements = pollUpTo(key, 1, timeout, unit);
+        return elements.isEmpty() ? null : elements.get(0);
+    }
+
+    /**
+     * Takes up to maxElements from the head of the queue without waiting.
+     *
+     * @return the elements; empty if the queue is empty.
+     */
+    public List<byte[]> pollUpTo(long key, int maxElements) {
+        return pollUpTo(key, maxElements, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes up to maxElements from the head of the queue, waiting for elements if the queue is empty. The timeout
+     * has a resolution of a millisecond.
+     *
+     * @return the elements; empty if the timeout expired.
+     */
+    public List<byte[]> pollUpTo(long key, int maxElements, long timeout, TimeUnit unit) {
+        if (maxElements <= 0) throw new IllegalArgumentException("maxElements should be positive");
+        long timeoutMs = timeout <= 0 ? 0 : Math.max(1, unit.toMillis(timeout));
+
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(key, compact) + INT_AS_BYTES + longSize(timeoutMs, compact));
+        ByteBuffer b = client.sendBuf;
+        putHeader(b, FUNCTION_POLL, key, compact);
+        b.putInt(maxElements);
+        if (compact) {
+            putVarLong(b, timeoutMs);
+        } else {
+            b.putLong(timeoutMs);
+        }
+        client.writeAndFlush();
+
+        In in = client.readResponseIn();
+        int count = in.getInt();
+        List<byte[]> elements = new ArrayList<>(count);
+        for (int k = 0; k < count; k++) {
+            byte[] element = new byte[in.getInt()];
+            in.getBytes(element, 0, element.length);
+            elements.add(element);
+        }
+        return elements;
+    }
+
+    public long size(long key) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(key, compact));
+        putHeader(client.sendBuf, FUNCTION_SIZE, key, compact);
+        client.writeAndFlush();
+        In in = client.readResponseIn();
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    private static void putHeader(ByteBuffer b, byte function, long key, boolean compact) {
+        b.put(QUEUE);
+        if (compact) {
+            b.put((byte) (function | COMPACT));
+            putVarLong(b, key);
+        } else {
+            b.put(function);
+            b.putLong(key);
+        }
+    }
+
+    private static int longSize(long value, boolean compact) {
+        return compact ? varLongSize(value) : LONG_AS_BYTES;
+    }
+}
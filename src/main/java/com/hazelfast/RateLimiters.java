@@ -0,0 +1,65 @@
+package com.hazelfast;
+
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+import static com.hazelfast.impl.DataStructures.RATE_LIMITER;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.putVarLong;
+import static com.hazelfast.impl.IOUtil.varLongSize;
+import static com.hazelfast.impl.RateLimitersData.FUNCTION_TRY_ACQUIRE;
+
+/**
+ * Token bucket rate limiters on the server. The refill and the acquire are done in a single request by the thread
+ * owning the key, so clients sharing a rate limiter don't race.
+ * <p>
+ * The rate and burst are passed on every call, so a rate limiter doesn't need to be created first; a new rate
+ * limiter starts with a full bucket.
+ */
+public final class RateLimiters {
+
+    private final Client client;
+
+    public RateLimiters(Client client) {
+        this.client = client;
+    }
+
+    public boolean tryAcquire(long key, long ratePerSecond, long burst) {
+        return tryAcquire(key, 1, ratePerSecond, burst);
+    }
+
+    /**
+     * Takes the permits if the bucket of the key has enough tokens.
+     *
+     * @param permits       the number of tokens to take.
+     * @param ratePerSecond the number of tokens added to the bucket per second.
+     * @param burst         the max number of tokens in the bucket.
+     * @return true if the permits were taken.
+     */
+    public boolean tryAcquire(long key, long permits, long ratePerSecond, long burst) {
+        boolean compact = client.compactEncoding();
+        client.putFrameLength(1 + 1 + longSize(key, compact) + longSize(permits, compact)
+                + longSize(ratePerSecond, compact) + longSize(burst, compact));
+        ByteBuffer b = client.sendBuf;
+        b.put(RATE_LIMITER);
+        b.put(compact ? (byte) (FUNCTION_TRY_ACQUIRE | COMPACT) : FUNCTION_TRY_ACQUIRE);
+        putLong(b, key, compact);
+        putLong(b, permits, compact);
+        putLong(b, ratePerSecond, compact);
+        putLong(b, burst, compact);
+        client.writeAndFlush();
+        return client.readResponseIn().getByte() == 1;
+    }
+
+    private static int longSize(long value, boolean compact) {
+        return compact ? varLongSize(value) : LONG_AS_BYTES;
+    }
+
+    private static void putLong(ByteBuffer b, long value, boolean compact) {
+        if (compact) {
+            putVarLong(b, value);
+        } else {
+            b.putLong(value);
+        }
+    }
+}
@@ -1,29 +1,66 @@
 package com.hazelfast;
 
 import com.hazelfast.impl.ByteArrayPool;
+import com.hazelfast.impl.CounterProcessor;
 import com.hazelfast.impl.DataStructures;
 import com.hazelfast.impl.Frame;
 import com.hazelfast.impl.FramePool;
+import com.hazelfast.impl.FrameReader;
+import com.hazelfast.impl.FrameWriter;
+import com.hazelfast.impl.Handshake;
+import com.hazelfast.impl.In;
+import com.hazelfast.impl.HotKeySketch;
+import com.hazelfast.impl.HotKeySketch.HotKey;
 import com.hazelfast.impl.IOUtil;
+import com.hazelfast.impl.LoopbackChannel;
+import com.hazelfast.impl.NotificationBuffer;
+import com.hazelfast.impl.QueryGather;
+import com.hazelfast.impl.QueuesData;
+import com.hazelfast.impl.RequestProcessor;
+import com.hazelfast.impl.ServerEvents;
+import com.hazelfast.impl.SharedMemoryChannel;
+import com.hazelfast.impl.SpscRing;
+import com.hazelfast.impl.StripedCounters;
+import com.hazelfast.impl.Subscriptions;
+import com.hazelfast.impl.ValueLog;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
 import static com.hazelfast.impl.IOUtil.allocateByteBuffer;
 import static com.hazelfast.impl.IOUtil.compactOrClear;
 import static com.hazelfast.impl.IOUtil.setReceiveBufferSize;
 import static com.hazelfast.impl.IOUtil.setSendBufferSize;
+import static com.hazelfast.impl.IOUtil.setTcpNoDelay;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.lang.Math.max;
 
 /**
@@ -40,11 +77,41 @@ import static java.lang.Math.max;
  */
 public class Server {
 
+    // the servers in this JVM that accept loopback connections; by port.
+    private static final Map<Integer, Server> LOOPBACK_SERVERS = new ConcurrentHashMap<>();
+
     private final AtomicInteger ioThreadId = new AtomicInteger(0);
     private ServerSocketChannel serverSocket;
-    private InetSocketAddress serverAddress;
+    private SocketAddress serverAddress;
     private ServerThread[] serverThreads;
     private AcceptThread acceptThread;
+    private RebalanceThread rebalanceThread;
+    private WorkerThread[] workerThreads;
+    // [ioThread][partition]; the partitions are owned by the workers in staged mode and by the IO threads in inline
+    // mode. Null in inline mode with a single IO thread.
+    private SpscRing<Frame>[][] requestRings;
+    // [partition][ioThread]
+    private SpscRing<Frame>[][] responseRings;
+    // the partitions when the blocking engine is used.
+    private DataStructures[] partitions;
+    private ReentrantLock[] partitionLocks;
+    // signalled when parked polls of the partition are completed.
+    private Condition[] partitionConditions;
+    private BlockingAcceptThread blockingAcceptThread;
+    private final Set<ByteChannel> blockingChannels = ConcurrentHashMap.newKeySet();
+    private final Set<Thread> blockingThreads = ConcurrentHashMap.newKeySet();
+    // a connection thread of the blocking engine waits for its own parked poll; see BlockingConnection#awaitParked.
+    private static final QueuesData.ParkedRequests BLOCKING_PARKED_REQUESTS = new QueuesData.ParkedRequests() {
+        @Override
+        public boolean isCancelled(Frame frame) {
+            return !((ByteChannel) frame.attachment).isOpen();
+        }
+
+        @Override
+        public void complete(Frame frame) {
+            frame.complete = true;
+        }
+    };
     private final AtomicInteger nextIOThreadId = new AtomicInteger();
     private volatile boolean stopping = false;
     private final int serverThreadCount;
@@ -57,6 +124,44 @@ public class Server {
     private final boolean optimizeSelector;
     private final boolean directBuffers;
     private final boolean selectorSpin;
+    private final boolean loadAwareAssignment;
+    private final long rebalanceIntervalMs;
+    private final float rebalanceThreshold;
+    private final int workerThreadCount;
+    // the workers in staged mode, otherwise the IO threads.
+    private final int partitionCount;
+    private final int ringCapacity;
+    private final Engine engine;
+    private final String unixDomainSocketPath;
+    private final boolean sharedMemory;
+    private final Path sharedMemoryDirectory;
+    private final int sharedMemoryMaxCapacity;
+    private final boolean sharedMemoryBusySpin;
+    private final int maxFrameSize;
+    private final boolean compression;
+    private final int compressionThreshold;
+    private final boolean compactEncoding;
+    private final boolean loopback;
+    private final boolean flightRecorderEvents;
+    private final long slowRequestThresholdNanos;
+    // null if there are no striped counters.
+    private final StripedCounters stripedCounters;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final boolean hotKeyTracking;
+    private final int hotKeyCount;
+    private final int hotKeySampleRate;
+    private final long hotKeyRotationIntervalMs;
+    private final boolean counterIndex;
+    private final long windowedCounterResolutionMs;
+    private final int windowedCounterBuckets;
+    // null if the large string values are stored on the heap.
+    private final Path valueLogDirectory;
+    private final int valueLogThreshold;
+    private final long stringsMemoryBudget;
+    private final List<ValueLog> valueLogs = new CopyOnWriteArrayList<>();
+    private final Subscriptions subscriptions = new Subscriptions();
+    // indexed by id; the unregistered ids are null.
+    private final CounterProcessor[] counterProcessors;
 
     public Server(Context context) {
         this.serverThreadCount = context.serverThreadCount;
@@ -69,6 +174,49 @@ public class Server {
         this.optimizeSelector = context.optimizeSelector;
         this.directBuffers = context.directBuffers;
         this.selectorSpin = context.selectorSpin;
+        this.loadAwareAssignment = context.loadAwareAssignment;
+        this.rebalanceIntervalMs = context.rebalanceIntervalMs;
+        this.rebalanceThreshold = context.rebalanceThreshold;
+        this.workerThreadCount = context.workerThreadCount;
+        this.ringCapacity = context.ringCapacity;
+        this.engine = context.engine;
+        this.partitionCount = engine == Engine.SELECTOR && workerThreadCount > 0
+                ? workerThreadCount
+                : serverThreadCount;
+        this.unixDomainSocketPath = context.unixDomainSocketPath;
+        this.sharedMemory = context.sharedMemory;
+        this.sharedMemoryDirectory = Paths.get(context.sharedMemoryDirectory).toAbsolutePath().normalize();
+        this.sharedMemoryMaxCapacity = context.sharedMemoryMaxCapacity;
+        this.sharedMemoryBusySpin = context.sharedMemoryBusySpin;
+        this.maxFrameSize = context.maxFrameSize;
+        this.compression = context.compression;
+        this.compressionThreshold = context.compressionThreshold;
+        this.compactEncoding = context.compactEncoding;
+        this.loopback = context.loopback;
+        this.flightRecorderEvents = context.flightRecorderEvents;
+        this.slowRequestThresholdNanos = context.slowRequestThresholdNanos;
+        if (flightRecorderEvents && !IOUtil.isFlightRecorderAvailable()) {
+            throw new IllegalArgumentException("flightRecorderEvents requires a JDK with Flight Recorder");
+        }
+        this.hotKeyTracking = context.hotKeyTracking;
+        this.hotKeyCount = context.hotKeyCount;
+        this.hotKeySampleRate = context.hotKeySampleRate;
+        this.hotKeyRotationIntervalMs = context.hotKeyRotationIntervalMs;
+        this.counterIndex = context.counterIndex;
+        this.windowedCounterResolutionMs = context.windowedCounterResolutionMs;
+        this.windowedCounterBuckets = context.windowedCounterBuckets;
+        this.valueLogDirectory = context.valueLogDirectory == null ? null : Paths.get(context.valueLogDirectory);
+        this.valueLogThreshold = context.valueLogThreshold;
+        this.stringsMemoryBudget = context.stringsMemoryBudget;
+        if (stringsMemoryBudget != Long.MAX_VALUE && valueLogDirectory == null) {
+            throw new IllegalArgumentException("stringsMemoryBudget requires a valueLogDirectory");
+        }
+        int maxProcessorId = context.counterProcessors.keySet().stream().max(Integer::compare).orElse(-1);
+        this.counterProcessors = new CounterProcessor[maxProcessorId + 1];
+        context.counterProcessors.forEach((id, processor) -> counterProcessors[id] = processor);
+        this.stripedCounters = context.stripedCounterIds.length == 0
+                ? null
+                : new StripedCounters(context.stripedCounterIds, serverThreadCount);
     }
 
     public int ioThreadCount() {
@@ -107,6 +255,98 @@ public class Server {
         return directBuffers;
     }
 
+    public boolean loadAwareAssignment() {
+        return loadAwareAssignment;
+    }
+
+    public long rebalanceIntervalMs() {
+        return rebalanceIntervalMs;
+    }
+
+    public int workerThreadCount() {
+        return workerThreadCount;
+    }
+
+    public Engine engine() {
+        return engine;
+    }
+
+    public String unixDomainSocketPath() {
+        return unixDomainSocketPath;
+    }
+
+    public boolean sharedMemory() {
+        return sharedMemory;
+    }
+
+    public int maxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public boolean compression() {
+        return compression;
+    }
+
+    public boolean compactEncoding() {
+        return compactEncoding;
+    }
+
+    public boolean loopback() {
+        return loopback;
+    }
+
+    public boolean flightRecorderEvents() {
+        return flightRecorderEvents;
+    }
+
+    /**
+     * Turns the handshake request of a client into the response: the version, capabilities and max frame size
+     * both sides support, and the topology of the server. The blocking engine has no IO threads, so it reports 0.
+     *
+     * @return true if the client speaks a supported protocol version.
+     */
+    private boolean negotiate(Handshake handshake) {
+        boolean supported = handshake.version == Handshake.VERSION;
+        handshake.version = Handshake.VERSION;
+        int capabilities = (compression ? Handshake.CAPABILITY_COMPRESSION : 0)
+                | (compactEncoding ? Handshake.CAPABILITY_COMPACT_ENCODING : 0);
+        handshake.capabilities = supported ? handshake.capabilities & capabilities : 0;
+        if (handshake.maxFrameSize <= 0 || handshake.maxFrameSize > maxFrameSize) {
+            handshake.maxFrameSize = maxFrameSize;
+        }
+        handshake.ioThreadCount = engine == Engine.SELECTOR ? serverThreadCount : 0;
+        handshake.partitionCount = partitionCount;
+        return supported;
+    }
+
+    private void applyHandshake(Handshake handshake, FrameReader frameReader, FrameWriter frameWriter) {
+        frameReader.maxFrameSize(handshake.maxFrameSize);
+        if (handshake.hasCapability(Handshake.CAPABILITY_COMPRESSION)) {
+            frameReader.enableCompression();
+            frameWriter.enableCompression(compressionThreshold);
+        }
+        if (handshake.hasCapability(Handshake.CAPABILITY_COMPACT_ENCODING)) {
+            frameReader.enableCompactLengths();
+            frameWriter.enableCompactLengths();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the load of each IO thread. The rates are updated by the rebalancer, so if
+     * rebalancing is disabled, only the connection counts and totals are current.
+     *
+     * @return the metrics; one entry per IO thread.
+     */
+    public IOThreadMetrics[] ioThreadMetrics() {
+        if (serverThreads == null) return new IOThreadMetrics[0];
+
+        IOThreadMetrics[] result = new IOThreadMetrics[serverThreads.length];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = new IOThreadMetrics(serverThreads[k]);
+        }
+        return result;
+    }
+
     @SuppressWarnings("unused")
     public static void main(String[] args) throws Exception {
         Server server = new Server(new Context().serverThreadCount(1));
@@ -118,49 +358,323 @@ public class Server {
 
     public void stop() throws IOException {
         stopping = true;
+        LOOPBACK_SERVERS.remove(port, this);
         serverSocket.close();
-        acceptThread.shutdown();
-        for (ServerThread serverThread : serverThreads) {
-            serverThread.shutdown();
+        if (unixDomainSocketPath != null) {
+            Files.deleteIfExists(Paths.get(unixDomainSocketPath));
+        }
+        if (engine == Engine.BLOCKING) {
+            join(blockingAcceptThread);
+            for (ByteChannel channel : blockingChannels) {
+                channel.close();
+            }
+            // a connection thread waiting for a parked poll doesn't notice its channel is closed.
+            for (Thread thread : blockingThreads) {
+                thread.interrupt();
+                join(thread);
+            }
+        } else {
+            acceptThread.shutdown();
+            if (rebalanceThread != null) {
+                rebalanceThread.interrupt();
+            }
+            for (ServerThread serverThread : serverThreads) {
+                serverThread.shutdown();
+            }
+            if (workerThreads != null) {
+                for (WorkerThread workerThread : workerThreads) {
+                    workerThread.interrupt();
+                }
+            }
+
+            join(acceptThread);
+            join(rebalanceThread);
+            for (ServerThread serverThread : serverThreads) {
+                join(serverThread);
+            }
+            if (workerThreads != null) {
+                for (WorkerThread workerThread : workerThreads) {
+                    join(workerThread);
+                }
+            }
+        }
+
+        // only closed once the threads executing the requests are gone, so none of them writes to a closed log.
+        for (ValueLog valueLog : valueLogs) {
+            valueLog.close();
+        }
+    }
+
+    // the thread can be null if it was never started.
+    private static void join(Thread thread) throws IOException {
+        if (thread == null) return;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + thread.getName() + " to stop");
         }
     }
 
     public void start() throws IOException {
-        serverSocket = ServerSocketChannel.open();
-        serverAddress = new InetSocketAddress(bindAddress, port);
+        boolean unix = unixDomainSocketPath != null;
+        serverSocket = IOUtil.openServerSocketChannel(unix);
+        if (unix) {
+            // a stale socket file of a previous run prevents the bind.
+            Files.deleteIfExists(Paths.get(unixDomainSocketPath));
+            serverAddress = IOUtil.unixDomainSocketAddress(unixDomainSocketPath);
+        } else {
+            serverAddress = new InetSocketAddress(bindAddress, port);
+        }
         serverSocket.bind(serverAddress);
+        log("Listening on " + serverAddress);
+
+        setReceiveBufferSize(serverSocket, receiveBufferSize);
 
-        serverSocket.socket().setReceiveBufferSize(receiveBufferSize);
-        if (serverSocket.socket().getReceiveBufferSize() != receiveBufferSize) {
-            System.out.println("socket doesn't have expected receiveBufferSize, expected:"
-                    + receiveBufferSize + " actual:" + serverSocket.socket().getReceiveBufferSize());
+        if (engine == Engine.BLOCKING) {
+            startBlockingEngine();
+            if (loopback) LOOPBACK_SERVERS.put(port, this);
+            return;
         }
 
         serverSocket.configureBlocking(false);
 
         this.serverThreads = new ServerThread[serverThreadCount];
         for (int k = 0; k < serverThreadCount; k++) {
-            serverThreads[k] = new ServerThread();
-            serverThreads[k].start();
+            serverThreads[k] = new ServerThread(k);
+        }
+        if (workerThreadCount > 0) {
+            startWorkerThreads();
+        } else if (serverThreadCount > 1) {
+            createRings(Math.min(ringCapacity, INLINE_RING_CAPACITY));
+        }
+        for (ServerThread serverThread : serverThreads) {
+            serverThread.start();
         }
         this.acceptThread = new AcceptThread();
         acceptThread.start();
+        if (rebalanceIntervalMs > 0 && serverThreadCount > 1) {
+            this.rebalanceThread = new RebalanceThread();
+            rebalanceThread.start();
+        }
+        if (loopback) LOOPBACK_SERVERS.put(port, this);
+    }
+
+    /**
+     * Connects a client to the server in this JVM listening on the port, through a {@link LoopbackChannel} instead
+     * of a socket.
+     *
+     * @return the client side of the channel.
+     * @throws IOException if there is no server accepting loopback connections on the port.
+     */
+    static LoopbackChannel connectLoopback(int port, int capacity) throws IOException {
+        Server server = LOOPBACK_SERVERS.get(port);
+        if (server == null) {
+            throw new IOException("No server accepting loopback connections on port " + port + " in this JVM");
+        }
+        return server.acceptLoopback(capacity);
+    }
+
+    private LoopbackChannel acceptLoopback(int capacity) {
+        LoopbackChannel channel = LoopbackChannel.open(capacity);
+        LoopbackChannel serverChannel = channel.peer();
+        log("Accepted: " + serverChannel);
+        if (engine == Engine.BLOCKING) {
+            // the connection thread waits on its reads, like on a socket.
+            serverChannel.configureBlocking(true);
+            startBlockingConnection(serverChannel);
+        } else {
+            ServerThread thread = nextIOThread();
+            thread.newLoopbackChannels.add(serverChannel);
+            thread.selector.wakeup();
+        }
+        return channel;
+    }
+
+    // returns null if the value log is disabled.
+    private ValueLog newValueLog(String name) {
+        if (valueLogDirectory == null) return null;
+
+        ValueLog valueLog = new ValueLog(valueLogDirectory, "values-" + port + "-" + name, valueLogThreshold,
+                ValueLog.DEFAULT_SEGMENT_SIZE);
+        valueLogs.add(valueLog);
+        return valueLog;
+    }
+
+    private void startBlockingConnection(ByteChannel channel) {
+        blockingChannels.add(channel);
+        Thread thread = blockingAcceptThread.threadFactory.newThread(new BlockingConnection(channel));
+        blockingThreads.add(thread);
+        thread.start();
+    }
+
+    private void startBlockingEngine() {
+        partitions = new DataStructures[serverThreadCount];
+        partitionLocks = new ReentrantLock[serverThreadCount];
+        partitionConditions = new Condition[serverThreadCount];
+        for (int k = 0; k < serverThreadCount; k++) {
+            // the connection threads block on reads, so they can't push notifications.
+            partitions[k] = new DataStructures(stripedCounters, k, counterIndex, null, counterProcessors,
+                    windowedCounterResolutionMs, windowedCounterBuckets, newValueLog("partition-" + k),
+                    stringsMemoryBudget);
+            partitionLocks[k] = new ReentrantLock();
+            partitionConditions[k] = partitionLocks[k].newCondition();
+        }
+        blockingAcceptThread = new BlockingAcceptThread();
+        blockingAcceptThread.start();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void createRings(int capacity) {
+        requestRings = new SpscRing[serverThreadCount][partitionCount];
+        responseRings = new SpscRing[partitionCount][serverThreadCount];
+        for (int io = 0; io < serverThreadCount; io++) {
+            for (int p = 0; p < partitionCount; p++) {
+                requestRings[io][p] = new SpscRing<>(capacity);
+                responseRings[p][io] = new SpscRing<>(capacity);
+            }
+        }
+    }
+
+    private void startWorkerThreads() {
+        createRings(ringCapacity);
+
+        workerThreads = new WorkerThread[workerThreadCount];
+        for (int k = 0; k < workerThreadCount; k++) {
+            workerThreads[k] = new WorkerThread(k);
+            workerThreads[k].start();
+        }
     }
 
     private ServerThread nextIOThread() {
-        int next = nextIOThreadId.getAndIncrement() % serverThreadCount;
-        return serverThreads[next];
+        if (!loadAwareAssignment) {
+            int next = nextIOThreadId.getAndIncrement() % serverThreadCount;
+            return serverThreads[next];
+        }
+
+        // the busy ratio is only refreshed by the rebalancer, so a burst of connects would all end up on the same
+        // thread. That is why threads with a similar busy ratio are compared on their number of connections.
+        ServerThread best = serverThreads[0];
+        for (int k = 1; k < serverThreads.length; k++) {
+            ServerThread t = serverThreads[k];
+            float diff = t.busyRatio - best.busyRatio;
+            if (diff < -BUSY_RATIO_TOLERANCE) {
+                best = t;
+            } else if (diff <= BUSY_RATIO_TOLERANCE && t.connectionCount.get() < best.connectionCount.get()) {
+                best = t;
+            }
+        }
+        return best;
     }
 
+    private static final float BUSY_RATIO_TOLERANCE = 0.05f;
+    // the number of idle loops before a ServerThread with polled connections starts to yield, and the
+    // number of yielding loops before it backs off to a blocking select.
+    private static final int POLL_SPIN_LOOPS = 100;
+    private static final int POLL_YIELD_LOOPS = 1_000;
+    private static final long POLL_BACKOFF_MS = 1;
+    // in inline mode there are rings between every pair of IO threads, so they are kept small; a request or response
+    // that doesn't fit, waits in a backlog.
+    private static final int INLINE_RING_CAPACITY = 1024;
+    // the partition of a query on all partitions; see ServerThread#partition.
+    private static final int QUERY = -1;
+
     private class ServerThread extends Thread {
+        private final int index;
         private final Selector selector;
         private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
-        private final DataStructures ds = new DataStructures();
+        private final ConcurrentLinkedQueue<LoopbackChannel> newLoopbackChannels = new ConcurrentLinkedQueue<>();
+        // connections migrated from another ServerThread.
+        private final ConcurrentLinkedQueue<Connection> migratedConnections = new ConcurrentLinkedQueue<>();
+        // the partition owned by this thread when the requests are executed by the IO threads. In staged mode it
+        // is only used for the striped counters.
+        private final DataStructures ds;
+        private final RequestProcessor processor = new RequestProcessor();
+        // reused to check if a multi request or counter load is on a single partition.
+        private final In in = new In();
+        // the pool for the responses of the parked polls.
+        private final ByteArrayPool byteArrayPool = new ByteArrayPool(objectPoolingEnabled);
+        private final QueuesData.ParkedRequests parkedRequests = new QueuesData.ParkedRequests() {
+            @Override
+            public boolean isCancelled(Frame frame) {
+                return !((Connection) frame.attachment).channel.isOpen();
+            }
 
-        private ServerThread() throws IOException {
+            @Override
+            public void complete(Frame frame) {
+                Connection con = (Connection) frame.attachment;
+                if (con.thread != ServerThread.this) {
+                    // a poll handed over by another IO thread; see processHandOffs.
+                    handBack(con.thread.index, frame);
+                    con.thread.selector.wakeup();
+                    return;
+                }
+                frame.complete = true;
+                markDirty(con);
+            }
+        };
+        // null if hot key tracking is disabled.
+        private final HotKeySketch hotKeys;
+        // the frames that didn't fit in the request ring of the owner of a partition; offered again on the next
+        // loop iteration.
+        private final ArrayDeque<Frame>[] backlogs;
+        private final boolean[] signalOwners;
+        // in inline mode, the responses that didn't fit in the response ring of the IO thread they belong to.
+        private final ArrayDeque<Frame>[] responseBacklogs;
+        private final ArrayDeque<Connection> dirtyConnections = new ArrayDeque<>();
+        // the shared memory and loopback connections; they don't go through the selector, but are polled.
+        private final ArrayList<Connection> polledConnections = new ArrayList<>();
+        // the subscribed connections with changes to push; added to by the threads executing the requests.
+        private final ConcurrentLinkedQueue<Connection> notifiedConnections = new ConcurrentLinkedQueue<>();
+        // the notified connections that lag behind; their changes are pushed once their pending frames are written.
+        private final ArrayList<Connection> laggingSubscribers = new ArrayList<>();
+        private int idleLoops;
+        // true if the compaction of the value log has more work; the selector doesn't block meanwhile.
+        private boolean compacting;
+        // set by the rebalancer; the thread a single connection should be migrated to.
+        private volatile ServerThread migrationTarget;
+        // the max fraction of the frames of this thread the migrated connection should carry.
+        private volatile float migrationFraction;
+
+        // written by the ServerThread only; published once per select loop iteration.
+        private long readFrames;
+        private long busyNanos;
+        private volatile long readFramesPublished;
+        private volatile long busyNanosPublished;
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private volatile long migrationsIn;
+        private volatile long migrationsOut;
+
+        // written by the rebalancer.
+        private volatile float framesPerSecond;
+        private volatile float busyRatio;
+
+        private ServerThread(int index) throws IOException {
             super("IOThread#" + ioThreadId.getAndIncrement());
             setDaemon(true);
+            this.index = index;
+            // in staged mode the strings are owned by the workers.
+            boolean inline = workerThreadCount == 0;
+            this.ds = new DataStructures(stripedCounters, index, counterIndex && inline, subscriptions,
+                    counterProcessors, windowedCounterResolutionMs, windowedCounterBuckets,
+                    inline ? newValueLog("io-" + index) : null, inline ? stringsMemoryBudget : Long.MAX_VALUE);
+            this.hotKeys = hotKeyTracking
+                    ? new HotKeySketch(hotKeyCount, hotKeySampleRate, hotKeyRotationIntervalMs)
+                    : null;
             selector = optimizeSelector ? IOUtil.newSelector() : Selector.open();
+            backlogs = newBacklogs(partitionCount);
+            signalOwners = new boolean[partitionCount];
+            responseBacklogs = newBacklogs(inline ? serverThreadCount : 0);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private ArrayDeque<Frame>[] newBacklogs(int count) {
+            ArrayDeque<Frame>[] result = new ArrayDeque[count];
+            for (int k = 0; k < count; k++) {
+                result[k] = new ArrayDeque<>();
+            }
+            return result;
         }
 
         @Override
@@ -177,234 +691,886 @@ public class Server {
 
         private void selectLoop() throws IOException {
             for (; ; ) {
-                int selectedKeys = selectorSpin ? selector.selectNow() : selector.select();
-                registerNewChannels();
-                if (selectedKeys == 0) continue;
-
-                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-                while (it.hasNext()) {
-                    SelectionKey sk = it.next();
-                    it.remove();
+                // migrating before the select, makes sure the cancelled key can't be part of the selected keys.
+                if (migrationTarget != null) migrateConnection();
+                int selectedKeys = select();
+                if (!flightRecorderEvents) {
+                    iterate(selectedKeys);
+                    continue;
+                }
 
-                    try {
-                        if (sk.isReadable()) onRead(sk);
-                        if (sk.isWritable()) onWrite(sk);
-                    } catch (Throwable e) {
-                        e.printStackTrace();
-                        sk.channel().close();
-                    }
+                ServerEvents.SelectLoop event = new ServerEvents.SelectLoop();
+                event.begin();
+                long frames = readFrames;
+                iterate(selectedKeys);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.selectedKeys = selectedKeys;
+                    event.frames = readFrames - frames;
+                    event.commit();
                 }
             }
         }
 
-        private void registerNewChannels() throws IOException {
-            for (; ; ) {
-                SocketChannel channel = newChannels.poll();
-                if (channel == null) break;
+        // the work of a select loop iteration after the select.
+        private void iterate(int selectedKeys) throws IOException {
+            registerNewChannels();
+            registerMigratedConnections();
+            if (requestRings != null) {
+                offerBacklogs();
+                if (workerThreads == null) processHandOffs();
+                drainResponseRings();
+            }
+            if (!polledConnections.isEmpty()) {
+                long startNanos = System.nanoTime();
+                if (pollConnections()) {
+                    busyNanos += System.nanoTime() - startNanos;
+                    busyNanosPublished = busyNanos;
+                    readFramesPublished = readFrames;
+                    idleLoops = 0;
+                } else if (selectedKeys == 0) {
+                    idleLoops++;
+                }
+            }
+            pushNotifications();
+            completeParked();
+            compacting = ds.compact();
+            if (selectedKeys > 0) processSelectedKeys();
+            if (requestRings != null) signalOwners();
+        }
 
-                channel.configureBlocking(false);
-                channel.socket().setTcpNoDelay(tcpNoDelay);
-                Connection con = new Connection(objectPoolingEnabled);
-                con.receiveBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
-                setReceiveBufferSize(channel, receiveBufferSize);
-                con.sendBuf = allocateByteBuffer(directBuffers, sendBufferSize);
-                setSendBufferSize(channel, sendBufferSize);
-                con.channel = channel;
-                channel.register(selector, SelectionKey.OP_READ, con);
+        private void processSelectedKeys() throws IOException {
+            long startNanos = System.nanoTime();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey sk = it.next();
+                it.remove();
+
+                Connection con = (Connection) sk.attachment();
+                try {
+                    if (sk.isReadable()) onRead(con);
+                    if (sk.isValid() && sk.isWritable()) onWrite(con);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    closeConnection(con);
+                }
             }
+            completeParked();
+            // a lagging subscriber that caught up, shouldn't wait for the next select.
+            if (!laggingSubscribers.isEmpty()) pushNotifications();
+            busyNanos += System.nanoTime() - startNanos;
+            busyNanosPublished = busyNanos;
+            readFramesPublished = readFrames;
         }
 
-        private void onWrite(SelectionKey sk) throws IOException {
-            //System.out.println("onWrite");
-            SocketChannel channel = (SocketChannel) sk.channel();
-            Connection con = (Connection) sk.attachment();
-            // todo: this field is increased even if we are triggered from the onRead
-            con.onWriteEvents++;
+        private int select() throws IOException {
+            if (selectorSpin || compacting || hasBacklogs()) return selector.selectNow();
+            if (polledConnections.isEmpty()) return selector.select(parkedTimeoutMs());
 
-            for (; ; ) {
-                if (con.sendFrame == null) {
-                    // check if there is enough space to writeAndFlush the length
-                    if (con.sendBuf.remaining() < INT_AS_BYTES) break;
+            // the polled connections would be starved if the selector blocks.
+            if (idleLoops < POLL_SPIN_LOOPS) return selector.selectNow();
+            if (sharedMemoryBusySpin || idleLoops < POLL_SPIN_LOOPS + POLL_YIELD_LOOPS) {
+                // give the peer a chance to run if the cores are oversubscribed.
+                Thread.yield();
+                return selector.selectNow();
+            }
+            return selector.select(POLL_BACKOFF_MS);
+        }
 
-                    con.sendFrame = con.pending.poll();
-                    if (con.sendFrame == null) break;
+        // the time till the first parked poll expires; 0 (no timeout) if there are no parked polls.
+        private long parkedTimeoutMs() {
+            if (!ds.queues.hasParked()) return 0;
+            return max(1, ds.queues.nextDeadlineMs() - System.nanoTime() / 1_000_000);
+        }
 
-                    //System.out.println("onWrite:" + con.sendFrame);
+        /**
+         * Completes the parked polls that received elements or expired, and writes their responses. Only in inline
+         * mode; in staged mode the polls are parked by the workers.
+         */
+        private void completeParked() throws IOException {
+            if (!ds.queues.hasParked()) return;
 
-                    con.sendBuf.putInt(con.sendFrame.length);
-                }
+            ds.queues.completeParked(System.nanoTime() / 1_000_000, byteArrayPool, parkedRequests);
+            writeDirtyConnections();
+        }
 
-                int missingFromFrame = con.sendFrame.length - con.sendOffset;
-                int bytesToWrite;
-                boolean complete;
-                if (con.sendBuf.remaining() <= missingFromFrame) {
-                    bytesToWrite = con.sendBuf.remaining();
-                    complete = false;
-                } else {
-                    bytesToWrite = missingFromFrame;
-                    complete = true;
-                }
+        private void closeConnection(Connection con) throws IOException {
+            con.channel.close();
+            if (con.subscriber != null) {
+                subscriptions.unsubscribeAll(con.subscriber);
+            }
+            if (con.key == null) {
+                polledConnections.remove(con);
+                // a shared memory connection is counted as part of its socket connection.
+                if (con.channel instanceof LoopbackChannel) connectionCount.decrementAndGet();
+                return;
+            }
 
-                con.sendBuf.put(con.sendFrame.bytes, con.sendOffset, bytesToWrite);
+            connectionCount.decrementAndGet();
+            if (con.sharedMemory != null) {
+                polledConnections.remove(con.sharedMemory);
+                con.sharedMemory.channel.close();
+            }
+        }
 
-                if (complete) {
-                    //System.out.println("send frame complete:" + con.sendFrame);
-                    con.byteArrayPool.returnToPool(con.sendFrame.bytes);
-                    con.framePool.returnToPool(con.sendFrame);
-                    con.sendFrame = null;
-                    con.sendOffset = 0;
-                } else {
-                    //System.out.println("send frame not complete:" + con.sendFrame);
-                    con.sendOffset += missingFromFrame;
-                    break;
+        /**
+         * Reads and writes the polled connections.
+         *
+         * @return true if any data was read.
+         */
+        private boolean pollConnections() throws IOException {
+            boolean active = false;
+            for (int k = polledConnections.size() - 1; k >= 0; k--) {
+                Connection con = polledConnections.get(k);
+                try {
+                    long bytesRead = con.bytesRead;
+                    onRead(con);
+                    if (con.bytesRead != bytesRead) active = true;
+                    if (con.writeBlocked) onWrite(con);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    closeConnection(con);
                 }
             }
-            con.sendBuf.flip();
+            return active;
+        }
 
-            //System.out.println(IOUtil.toDebugString("sendBuf", con.sendBuf));
+        /**
+         * Opens the shared memory file created by the client. From now on the client sends its requests and
+         * receives its responses through shared memory; the socket connection is kept to detect a dead client.
+         */
+        private void attachSharedMemory(Connection con, Frame frame) throws IOException {
+            Path path = Paths.get(new String(frame.bytes, 1, frame.length - 1, UTF_8));
+            frame.length = 1;
+            if (!isSharedMemoryAllowed(con, path)) {
+                log(getName() + " refused to attach " + path + " for " + con.channel);
+                frame.bytes[0] = 0;
+                return;
+            }
 
-            long bytesWritten = channel.write(con.sendBuf);
-            // System.out.println("bytes written:"+bytesWritten);
-            con.bytesWritten += bytesWritten;
+            SharedMemoryChannel channel;
+            try {
+                channel = SharedMemoryChannel.open(path, sharedMemoryMaxCapacity);
+            } catch (IOException e) {
+                log(getName() + " refused to attach " + path + " for " + con.channel + ": " + e.getMessage());
+                frame.bytes[0] = 0;
+                return;
+            }
+            Connection shmCon = new Connection(objectPoolingEnabled);
+            shmCon.receiveBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
+            shmCon.sendBuf = allocateByteBuffer(directBuffers, sendBufferSize);
+            shmCon.channel = channel;
+            shmCon.thread = this;
+            // the shared memory connection uses the same encoding as the socket, but it isn't worth compressing.
+            shmCon.handshake = con.handshake;
+            shmCon.frameReader.maxFrameSize(con.handshake.maxFrameSize);
+            if (con.handshake.hasCapability(Handshake.CAPABILITY_COMPACT_ENCODING)) {
+                shmCon.frameReader.enableCompactLengths();
+                shmCon.frameWriter.enableCompactLengths();
+            }
+            polledConnections.add(shmCon);
+            con.sharedMemory = shmCon;
+            log(getName() + " attached " + channel);
+            if (flightRecorderEvents) ServerEvents.connectionRegistered(channel, false);
 
-            if (con.sendBuf.remaining() == 0 && con.sendFrame == null) {
-                //System.out.println("unregister");
-                // unregister
-                int interestOps = sk.interestOps();
-                if ((interestOps & SelectionKey.OP_WRITE) != 0) {
-                    sk.interestOps(interestOps & ~SelectionKey.OP_WRITE);
-                }
-            } else {
-                // System.out.println("register");
-                // register OP_WRITE
-                sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
+            frame.bytes[0] = 1;
+        }
+
+        /**
+         * Checks if the connection may attach the file. The server maps the file read-write, so only a file created
+         * by a client is accepted: a regular file in the shared memory directory with the name of a channel file.
+         * And only from a client on this machine; a remote client can't share memory with the server anyway.
+         */
+        private boolean isSharedMemoryAllowed(Connection con, Path path) throws IOException {
+            if (!sharedMemory || con.key == null || con.sharedMemory != null) return false;
+
+            SocketAddress remoteAddress = ((SocketChannel) con.channel).getRemoteAddress();
+            // the address of a unix domain socket isn't an InetSocketAddress.
+            if (remoteAddress instanceof InetSocketAddress
+                    && !((InetSocketAddress) remoteAddress).getAddress().isLoopbackAddress()) {
+                return false;
             }
 
-            compactOrClear(con.sendBuf);
+            Path fileName = path.getFileName();
+            return fileName != null
+                    && SharedMemoryChannel.isFileName(fileName.toString())
+                    && sharedMemoryDirectory.equals(path.toAbsolutePath().normalize().getParent())
+                    && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS);
         }
 
-        private void onRead(SelectionKey sk) throws IOException {
-            SocketChannel channel = (SocketChannel) sk.channel();
-            Connection con = (Connection) sk.attachment();
-            con.onReadEvents++;
+        /**
+         * Subscribes the connection. The subscriptions are shared by all partitions, so the IO thread can execute
+         * the request itself. The connection stays with this thread, so the wakeup can signal this thread.
+         */
+        private void subscribe(Connection con, Frame frame) {
+            if (con.subscriber == null) {
+                con.subscriber = new NotificationBuffer(() -> {
+                    notifiedConnections.add(con);
+                    selector.wakeup();
+                });
+            }
+            processor.subscribe(ds, frame, con.subscriber, con.byteArrayPool);
+        }
 
-            int bytesRead = channel.read(con.receiveBuf);
-            if (bytesRead == -1)
-                throw new IOException("Channel " + channel.socket().getInetAddress() + " closed on the other side");
-            con.bytesRead += bytesRead;
+        /**
+         * Writes the changes of the notified connections. A connection that still has frames to write, lags
+         * behind; its changes remain in the buffer, so they are coalesced until the connection catches up.
+         */
+        private void pushNotifications() throws IOException {
+            for (; ; ) {
+                Connection con = notifiedConnections.poll();
+                if (con == null) break;
+                laggingSubscribers.add(con);
+            }
+            if (laggingSubscribers.isEmpty()) return;
 
-            con.receiveBuf.flip();
-            boolean dirty = false;
-            try {
-                while (con.receiveBuf.remaining() > 0) {
-                    if (con.receiveFrame == null) {
-                        // not enough bytes available for the frame size; we are done.
-                        if (con.receiveBuf.remaining() < INT_AS_BYTES) break;
+            for (Iterator<Connection> it = laggingSubscribers.iterator(); it.hasNext(); ) {
+                Connection con = it.next();
+                if (!con.channel.isOpen()) {
+                    it.remove();
+                    continue;
+                }
+                boolean writeBlocked = con.key == null
+                        ? con.writeBlocked
+                        : (con.key.interestOps() & SelectionKey.OP_WRITE) != 0;
+                if (!con.pending.isEmpty() || writeBlocked) continue;
+
+                it.remove();
+                con.subscriber.drainTo(con.pending, con.framePool, con.byteArrayPool);
+                try {
+                    onWrite(con);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    closeConnection(con);
+                }
+            }
+        }
 
-                        con.receiveFrame = con.framePool.takeFromPool();
-                        con.receiveFrame.length = con.receiveBuf.getInt();
-                        if (con.receiveFrame.length < 0)
-                            throw new IOException("Frame length can't be negative. Found:" + con.receiveFrame.length);
+        private void onFrame(Connection con, Frame frame) throws IOException {
+            boolean subscription = DataStructures.isSubscription(frame);
+            if (subscription || (frame.length > 0 && frame.bytes[0] == DataStructures.ATTACH_SHARED_MEMORY)) {
+                if (subscription) {
+                    subscribe(con, frame);
+                } else {
+                    attachSharedMemory(con, frame);
+                }
+                completed(con, frame);
+                return;
+            }
 
-                        con.receiveFrame.bytes = con.byteArrayPool.takeFromPool(con.receiveFrame.length);
-                    }
+            if (hotKeys != null && hotKeys.sample()) {
+                DataStructures.recordKey(frame, hotKeys);
+            }
 
-                    int missingFromFrame = con.receiveFrame.length - con.receiveOffset;
-                    int bytesToRead = con.receiveBuf.remaining() < missingFromFrame ? con.receiveBuf.remaining() : missingFromFrame;
-
-                    con.receiveBuf.get(con.receiveFrame.bytes, con.receiveOffset, bytesToRead);
-                    con.receiveOffset += bytesToRead;
-                    if (con.receiveOffset == con.receiveFrame.length) {
-                        // we have fully loaded a frame.
-                        dirty = true;
-                        con.readFrames++;
-                        con.pending.add(con.receiveFrame);
-                        con.receiveFrame = null;
-                        con.receiveOffset = 0;
+            if (workerThreads == null) {
+                // with multiple IO threads, a request on the partition of another IO thread is handed over to that
+                // thread like to a worker in staged mode. A request on a striped counter updates the own stripe.
+                int partition = requestRings == null || DataStructures.isPing(frame) || ds.isStripedCounter(frame)
+                        ? index
+                        : partition(con, frame);
+                if (partition == index) {
+                    if (processor.process(ds, frame, con.byteArrayPool)) {
+                        completed(con, frame);
+                    } else {
+                        // a parked poll; the responses of the next requests wait behind it in the inflight queue.
+                        frame.attachment = con;
+                        con.inflight.add(frame);
                     }
+                    return;
                 }
-            } finally {
-                compactOrClear(con.receiveBuf);
+
+                frame.attachment = con;
+                con.inflight.add(frame);
+                if (partition == QUERY) {
+                    gather(con, frame);
+                } else {
+                    offer(partition, frame);
+                }
+                return;
             }
 
-            if (dirty) onWrite(sk);
+            // the responses need to be send in the order of the requests; so every frame goes through the inflight
+            // queue. A ping doesn't need a worker, but it can't overtake requests that are still being processed.
+            frame.attachment = con;
+            con.inflight.add(frame);
+            if (DataStructures.isPing(frame)) {
+                frame.complete = true;
+                return;
+            }
+            if (ds.isStripedCounter(frame)) {
+                // the IO thread updates its own stripe; routing to the owner of the partition would pin all the
+                // traffic of the hot counter to a single worker.
+                processor.process(ds, frame, con.byteArrayPool);
+                frame.complete = true;
+                return;
+            }
+            int partition = partition(con, frame);
+            if (partition == QUERY) {
+                gather(con, frame);
+            } else {
+                offer(partition, frame);
+            }
         }
 
-        private void shutdown() {
-            acceptThread.interrupt();
-            try {
-                acceptThread.selector.close();
-            } catch (IOException e) {
+        /**
+         * Returns the partition of the request, or {@link #QUERY} if the request is a query on all partitions.
+         */
+        private int partition(Connection con, Frame frame) throws IOException {
+            if (DataStructures.isQuery(frame)) return QUERY;
+            if (!DataStructures.isSinglePartition(frame, partitionCount, in)) {
+                throw new IOException("Request of " + con.channel + " spans multiple partitions");
             }
+            return DataStructures.partitionHash(frame) % partitionCount;
         }
-    }
 
-    private static class Connection {
-        SocketChannel channel;
+        /**
+         * Sends a copy of the query to the owner of each partition; the responses are merged when the last one comes
+         * back. The request waits in the inflight queue in the meantime.
+         */
+        private void gather(Connection con, Frame frame) {
+            QueryGather gather = new QueryGather(frame, partitionCount, con.byteArrayPool);
+            for (int partition = 0; partition < partitionCount; partition++) {
+                offer(partition, gather.part(partition));
+            }
+        }
 
-        final ByteArrayPool byteArrayPool;
-        final FramePool framePool;
+        // dispatches the frame and emits a slow request event if that takes at least slowRequestThresholdNanos.
+        private void onFrameTimed(Connection con, Frame frame) throws IOException {
+            // the response can overwrite the request.
+            byte type = frame.length > 0 ? frame.bytes[0] : DataStructures.PING;
+            byte function = frame.length > 1 ? frame.bytes[1] : 0;
+            int length = frame.length;
+            long startNanos = System.nanoTime();
+            onFrame(con, frame);
+            long dispatchNanos = System.nanoTime() - startNanos;
+            if (dispatchNanos >= slowRequestThresholdNanos) {
+                ServerEvents.slowRequest(con.channel, type, function, length, dispatchNanos);
+            }
+        }
 
-        ByteBuffer receiveBuf;
-        Frame receiveFrame;
-        long onReadEvents;
-        int receiveOffset;
-        long readFrames;
-        long bytesRead;
+        // adds the response to the pending frames, unless it has to wait for the responses of earlier requests.
+        private void completed(Connection con, Frame frame) {
+            if (workerThreads == null && con.inflight.isEmpty()) {
+                con.pending.add(frame);
+                return;
+            }
+            frame.attachment = con;
+            frame.complete = true;
+            con.inflight.add(frame);
+        }
 
-        long bytesWritten;
-        final ArrayDeque<Frame> pending = new ArrayDeque<>();
-        int onWriteEvents;
-        int sendOffset;
-        Frame sendFrame;
-        ByteBuffer sendBuf;
+        // hands the frame over to the owner of the partition; the owner is signalled at the end of the loop iteration.
+        private void offer(int partition, Frame frame) {
+            offer(backlogs[partition], requestRings[index][partition], frame);
+            signalOwners[partition] = true;
+        }
 
-        Connection(boolean objectPoolingEnabled) {
-            byteArrayPool = new ByteArrayPool(objectPoolingEnabled);
-            framePool = new FramePool(objectPoolingEnabled);
+        private void offer(ArrayDeque<Frame> backlog, SpscRing<Frame> ring, Frame frame) {
+            if (!backlog.isEmpty() || !ring.offer(frame)) {
+                backlog.add(frame);
+            }
         }
-    }
 
-    private class AcceptThread extends Thread {
-        private Selector selector;
+        private void offerBacklogs() {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                if (offerBacklog(backlogs[partition], requestRings[index][partition])) {
+                    signalOwners[partition] = true;
+                }
+            }
+            for (int io = 0; io < responseBacklogs.length; io++) {
+                if (offerBacklog(responseBacklogs[io], responseRings[index][io])) {
+                    serverThreads[io].selector.wakeup();
+                }
+            }
+        }
 
-        AcceptThread() {
-            super("AcceptThread");
+        // returns true if any frame of the backlog was offered.
+        private boolean offerBacklog(ArrayDeque<Frame> backlog, SpscRing<Frame> ring) {
+            boolean offered = false;
+            for (; ; ) {
+                Frame frame = backlog.peek();
+                if (frame == null || !ring.offer(frame)) break;
+                backlog.poll();
+                offered = true;
+            }
+            return offered;
         }
 
-        @Override
-        public void run() {
-            try {
-                loop();
-            } catch (Exception e) {
-                if (!stopping) {
-                    log(e);
+        private boolean hasBacklogs() {
+            if (requestRings == null) return false;
+            for (ArrayDeque<Frame> backlog : backlogs) {
+                if (!backlog.isEmpty()) return true;
+            }
+            for (ArrayDeque<Frame> backlog : responseBacklogs) {
+                if (!backlog.isEmpty()) return true;
+            }
+            return false;
+        }
+
+        private void signalOwners() {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                if (signalOwners[partition]) {
+                    signalOwners[partition] = false;
+                    if (workerThreads != null) {
+                        workerThreads[partition].signal();
+                    } else {
+                        serverThreads[partition].selector.wakeup();
+                    }
                 }
             }
         }
 
-        private void shutdown() {
-            acceptThread.interrupt();
+        /**
+         * Executes the requests the IO threads handed over to the partition of this thread, and hands the responses
+         * back. Only in inline mode with multiple IO threads; the thread then acts as the worker of its partition.
+         */
+        private void processHandOffs() {
+            ds.beginBatch();
             try {
-                acceptThread.selector.close();
-            } catch (IOException e) {
+                for (int io = 0; io < serverThreadCount; io++) {
+                    SpscRing<Frame> ring = requestRings[io][index];
+                    int count = 0;
+                    for (; ; ) {
+                        Frame frame = ring.poll();
+                        if (frame == null) break;
+
+                        try {
+                            // a parked poll is handed back once it completes.
+                            if (!processor.process(ds, frame, byteArrayPool)) continue;
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            frame.length = WorkerThread.FAILED;
+                        }
+                        handBack(io, frame);
+                        count++;
+                    }
+                    if (count > 0 && io != index) serverThreads[io].selector.wakeup();
+                }
+            } finally {
+                ds.endBatch();
             }
         }
 
-        private void loop() throws IOException {
-            selector = Selector.open(); // selector is open here
+        // hands the response of a frame handed over by another IO thread back to that thread.
+        private void handBack(int io, Frame frame) {
+            offer(responseBacklogs[io], responseRings[index][io], frame);
+        }
 
-            serverSocket.register(selector, SelectionKey.OP_ACCEPT, null);
-            for (; ; ) {
-                selector.select();
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> iterator = selectedKeys.iterator();
+        private void drainResponseRings() throws IOException {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                SpscRing<Frame> ring = responseRings[partition][index];
+                for (; ; ) {
+                    Frame frame = ring.poll();
+                    if (frame == null) break;
+
+                    if (frame.attachment instanceof QueryGather) {
+                        QueryGather gather = (QueryGather) frame.attachment;
+                        if (!gather.partProcessed()) continue;
+
+                        frame = gather.request();
+                        ByteArrayPool pool = ((Connection) frame.attachment).byteArrayPool;
+                        if (gather.failed()) {
+                            gather.release(pool);
+                            frame.length = WorkerThread.FAILED;
+                        } else {
+                            gather.merge(pool);
+                        }
+                    }
 
-                while (iterator.hasNext()) {
-                    SelectionKey sk = iterator.next();
-                    iterator.remove();
+                    frame.complete = true;
+                    markDirty((Connection) frame.attachment);
+                }
+            }
+            writeDirtyConnections();
+        }
 
-                    if (sk.isAcceptable()) onAccept();
+        private void markDirty(Connection con) {
+            if (!con.dirty) {
+                con.dirty = true;
+                dirtyConnections.add(con);
+            }
+        }
+
+        private void writeDirtyConnections() throws IOException {
+            for (; ; ) {
+                Connection con = dirtyConnections.poll();
+                if (con == null) break;
+
+                con.dirty = false;
+                if (!con.channel.isOpen()) continue;
+                try {
+                    moveCompletedToPending(con);
+                    onWrite(con);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    closeConnection(con);
+                }
+            }
+        }
+
+        private void moveCompletedToPending(Connection con) throws IOException {
+            for (; ; ) {
+                Frame frame = con.inflight.peek();
+                if (frame == null || !frame.complete) break;
+
+                con.inflight.poll();
+                if (frame.length == WorkerThread.FAILED) {
+                    throw new IOException("Failed to process request of " + con.channel);
+                }
+                frame.attachment = null;
+                frame.complete = false;
+                con.pending.add(frame);
+            }
+        }
+
+        private void registerMigratedConnections() throws IOException {
+            for (; ; ) {
+                Connection con = migratedConnections.poll();
+                if (con == null) break;
+
+                // the pending frames, the partially received/send frame and the content of the buffers are all
+                // part of the connection, so nothing is lost. Bytes still in the socket will trigger an OP_READ.
+                con.key = ((SocketChannel) con.channel).register(selector, con.interestOps, con);
+                con.thread = this;
+                connectionCount.incrementAndGet();
+                migrationsIn++;
+                if (flightRecorderEvents) ServerEvents.connectionRegistered(con.channel, true);
+            }
+        }
+
+        /**
+         * Moves the heaviest connection that doesn't carry more than the migration fraction of the frames since the
+         * last migration, to the migration target. Moving a heavier connection would only move the hotspot.
+         */
+        private void migrateConnection() {
+            ServerThread target = migrationTarget;
+            migrationTarget = null;
+
+            long totalFrames = 0;
+            for (SelectionKey sk : selector.keys()) {
+                if (!sk.isValid()) continue;
+                Connection con = (Connection) sk.attachment();
+                con.migrationFrames = con.readFrames - con.readFramesAtLastMigration;
+                con.readFramesAtLastMigration = con.readFrames;
+                totalFrames += con.migrationFrames;
+            }
+
+            long maxFrames = (long) (totalFrames * migrationFraction);
+            SelectionKey heaviest = null;
+            long heaviestFrames = 0;
+            for (SelectionKey sk : selector.keys()) {
+                if (!sk.isValid()) continue;
+                Connection con = (Connection) sk.attachment();
+                // the responses of frames being processed by a worker are returned to this thread and the shared
+                // memory connection is polled by this thread. The notifications of a subscriber signal this thread.
+                if (!con.inflight.isEmpty() || con.sharedMemory != null || con.subscriber != null) continue;
+                if (con.migrationFrames > heaviestFrames && con.migrationFrames <= maxFrames) {
+                    heaviestFrames = con.migrationFrames;
+                    heaviest = sk;
+                }
+            }
+
+            if (heaviest == null) return;
+
+            Connection con = (Connection) heaviest.attachment();
+            con.interestOps = heaviest.interestOps();
+            // a channel can be registered with multiple selectors; the cancelled key is removed from
+            // this selector on its next select.
+            heaviest.cancel();
+            connectionCount.decrementAndGet();
+            migrationsOut++;
+            log(getName() + " migrating " + con.channel + " to " + target.getName());
+            target.migratedConnections.add(con);
+            target.selector.wakeup();
+        }
+
+        private void registerNewChannels() throws IOException {
+            for (; ; ) {
+                SocketChannel channel = newChannels.poll();
+                if (channel == null) break;
+
+                channel.configureBlocking(false);
+                setTcpNoDelay(channel, tcpNoDelay);
+                Connection con = new Connection(objectPoolingEnabled);
+                con.receiveBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
+                setReceiveBufferSize(channel, receiveBufferSize);
+                con.sendBuf = allocateByteBuffer(directBuffers, sendBufferSize);
+                setSendBufferSize(channel, sendBufferSize);
+                con.channel = channel;
+                con.frameReader.maxFrameSize(maxFrameSize);
+                con.key = channel.register(selector, SelectionKey.OP_READ, con);
+                con.thread = this;
+                connectionCount.incrementAndGet();
+                if (flightRecorderEvents) ServerEvents.connectionRegistered(channel, false);
+            }
+
+            for (; ; ) {
+                LoopbackChannel channel = newLoopbackChannels.poll();
+                if (channel == null) break;
+
+                // the handshake and the frames go through onRead and onWrite like those of a socket.
+                Connection con = new Connection(objectPoolingEnabled);
+                con.receiveBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
+                con.sendBuf = allocateByteBuffer(directBuffers, sendBufferSize);
+                con.channel = channel;
+                con.frameReader.maxFrameSize(maxFrameSize);
+                con.thread = this;
+                polledConnections.add(con);
+                connectionCount.incrementAndGet();
+                idleLoops = 0;
+                if (flightRecorderEvents) ServerEvents.connectionRegistered(channel, false);
+            }
+        }
+
+        private void onWrite(Connection con) throws IOException {
+            if (!flightRecorderEvents) {
+                write(con);
+                return;
+            }
+
+            ServerEvents.Write event = new ServerEvents.Write();
+            event.begin();
+            long bytesWritten = con.bytesWritten;
+            write(con);
+            event.end();
+            if (con.bytesWritten != bytesWritten && event.shouldCommit()) {
+                event.channel = con.channel.toString();
+                event.bytes = con.bytesWritten - bytesWritten;
+                event.commit();
+            }
+        }
+
+        private void write(Connection con) throws IOException {
+            //System.out.println("onWrite");
+            // todo: this field is increased even if we are triggered from the onRead
+            con.onWriteEvents++;
+
+            boolean complete;
+            for (; ; ) {
+                boolean allFramesWritten = con.frameWriter.write(con.sendBuf, con.pending);
+                con.sendBuf.flip();
+
+                //System.out.println(IOUtil.toDebugString("sendBuf", con.sendBuf));
+
+                long bytesWritten = con.channel.write(con.sendBuf);
+                // System.out.println("bytes written:"+bytesWritten);
+                con.bytesWritten += bytesWritten;
+                boolean flushed = con.sendBuf.remaining() == 0;
+                compactOrClear(con.sendBuf);
+                if (!flushed || !con.frameWriter.hasFileRegion()) {
+                    complete = flushed && allFramesWritten;
+                    break;
+                }
+
+                // the sendBuf is flushed, so the file region of the frame can be transferred behind it.
+                con.bytesWritten += con.frameWriter.transferFileRegion(con.channel);
+                if (con.frameWriter.hasFileRegion()) {
+                    complete = false;
+                    break;
+                }
+            }
+
+            SelectionKey sk = con.key;
+            if (sk == null) {
+                // a polled connection; the loop retries the write.
+                con.writeBlocked = !complete;
+            } else if (complete) {
+                //System.out.println("unregister");
+                // unregister
+                int interestOps = sk.interestOps();
+                if ((interestOps & SelectionKey.OP_WRITE) != 0) {
+                    sk.interestOps(interestOps & ~SelectionKey.OP_WRITE);
+                }
+            } else {
+                // System.out.println("register");
+                // register OP_WRITE
+                sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Replies to the handshake once the request has been received. The client waits for the reply before it
+         * sends frames.
+         *
+         * @return true if the handshake is complete.
+         */
+        private boolean handshake(Connection con) throws IOException {
+            if (con.receiveBuf.position() < Handshake.REQUEST_SIZE) return false;
+
+            Handshake handshake = new Handshake();
+            con.receiveBuf.flip();
+            try {
+                handshake.readRequest(con.receiveBuf);
+            } finally {
+                compactOrClear(con.receiveBuf);
+            }
+            boolean supported = negotiate(handshake);
+            handshake.writeResponse(con.sendBuf);
+            onWrite(con);
+            if (!supported) throw new IOException("Channel " + con.channel + " speaks an unsupported protocol");
+
+            applyHandshake(handshake, con.frameReader, con.frameWriter);
+            con.handshake = handshake;
+            return true;
+        }
+
+        private void onRead(Connection con) throws IOException {
+            if (!flightRecorderEvents) {
+                read(con);
+                return;
+            }
+
+            ServerEvents.Read event = new ServerEvents.Read();
+            event.begin();
+            long bytesRead = con.bytesRead;
+            long frames = con.readFrames;
+            read(con);
+            event.end();
+            // most reads of a polled connection find nothing.
+            if (con.bytesRead != bytesRead && event.shouldCommit()) {
+                event.channel = con.channel.toString();
+                event.bytes = con.bytesRead - bytesRead;
+                event.frames = con.readFrames - frames;
+                event.commit();
+            }
+        }
+
+        private void read(Connection con) throws IOException {
+            con.onReadEvents++;
+
+            int bytesRead = con.channel.read(con.receiveBuf);
+            if (bytesRead == -1)
+                throw new IOException("Channel " + con.channel + " closed on the other side");
+            // the shared memory connections are polled, so most reads find nothing.
+            if (bytesRead == 0) return;
+            con.bytesRead += bytesRead;
+            if (con.handshake == null && !handshake(con)) return;
+
+            con.receiveBuf.flip();
+            boolean dirty = false;
+            // the frames of a single read are executed as a batch.
+            ds.beginBatch();
+            try {
+                for (; ; ) {
+                    Frame frame = con.frameReader.read(con.receiveBuf);
+                    if (frame == null) break;
+
+                    dirty = true;
+                    con.readFrames++;
+                    readFrames++;
+                    if (flightRecorderEvents) {
+                        onFrameTimed(con, frame);
+                    } else {
+                        onFrame(con, frame);
+                    }
+                }
+            } finally {
+                ds.endBatch();
+                compactOrClear(con.receiveBuf);
+            }
+
+            if (dirty) {
+                moveCompletedToPending(con);
+                onWrite(con);
+            }
+        }
+
+        private void shutdown() {
+            interrupt();
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class Connection {
+        ByteChannel channel;
+        // null for a polled connection.
+        SelectionKey key;
+        // the shared memory connection attached to this socket connection.
+        Connection sharedMemory;
+        // true if a polled connection couldn't write all its data.
+        boolean writeBlocked;
+        // the agreed handshake; frames can only be read once the handshake is complete.
+        Handshake handshake;
+        // the changes to push to the connection; null until the connection subscribes.
+        NotificationBuffer subscriber;
+        // the IO thread the connection is registered with.
+        ServerThread thread;
+
+        final ByteArrayPool byteArrayPool;
+        final FramePool framePool;
+
+        final FrameReader frameReader;
+        final FrameWriter frameWriter;
+
+        ByteBuffer receiveBuf;
+        long onReadEvents;
+        long readFrames;
+        long readFramesAtLastMigration;
+        long migrationFrames;
+        long bytesRead;
+
+        long bytesWritten;
+        final ArrayDeque<Frame> pending = new ArrayDeque<>();
+        // the frames, in order of arrival, that are being processed by a worker thread.
+        final ArrayDeque<Frame> inflight = new ArrayDeque<>();
+        // true if the connection is scheduled for writing responses returned by a worker.
+        boolean dirty;
+        int onWriteEvents;
+        ByteBuffer sendBuf;
+        // the interest ops to restore when the connection is registered with the selector of another thread.
+        int interestOps;
+
+        Connection(boolean objectPoolingEnabled) {
+            byteArrayPool = new ByteArrayPool(objectPoolingEnabled);
+            framePool = new FramePool(objectPoolingEnabled);
+            frameReader = new FrameReader(byteArrayPool, framePool);
+            frameWriter = new FrameWriter(byteArrayPool, framePool);
+        }
+    }
+
+    private class AcceptThread extends Thread {
+        // opened up front, so a stop right after the start can close it.
+        private final Selector selector;
+
+        AcceptThread() throws IOException {
+            super("AcceptThread");
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (Exception e) {
+                if (!stopping) {
+                    log(e);
+                }
+            }
+        }
+
+        private void shutdown() {
+            interrupt();
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private void loop() throws IOException {
+            serverSocket.register(selector, SelectionKey.OP_ACCEPT, null);
+            for (; ; ) {
+                selector.select();
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iterator = selectedKeys.iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+
+                    if (sk.isAcceptable()) onAccept();
                 }
             }
         }
@@ -418,6 +1584,487 @@ public class Server {
         }
     }
 
+    /**
+     * Accepts connections for the blocking engine and starts a thread per connection.
+     */
+    private class BlockingAcceptThread extends Thread {
+        private final ThreadFactory threadFactory = IOUtil.newThreadFactory("Connection#");
+
+        BlockingAcceptThread() {
+            super("AcceptThread");
+            boolean virtual = IOUtil.isVirtual(threadFactory.newThread(() -> {
+            }));
+            log(virtual ? "Using virtual threads" : "Virtual threads are not available; using platform threads");
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (; ; ) {
+                    SocketChannel channel = serverSocket.accept();
+                    log("Accepted: " + channel.getLocalAddress());
+                    setTcpNoDelay(channel, tcpNoDelay);
+                    setReceiveBufferSize(channel, receiveBufferSize);
+                    setSendBufferSize(channel, sendBufferSize);
+                    startBlockingConnection(channel);
+                }
+            } catch (Exception e) {
+                if (!stopping) {
+                    log(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection of the blocking engine. The reads and writes block, so on a virtual thread the carrier thread is
+     * released while waiting. The partitions are shared between all connections and guarded by a ReentrantLock;
+     * contrary to synchronized, a ReentrantLock doesn't pin the virtual thread to its carrier.
+     */
+    private class BlockingConnection implements Runnable {
+        private final ByteChannel channel;
+        private final ByteArrayPool byteArrayPool = new ByteArrayPool(objectPoolingEnabled);
+        private final FramePool framePool = new FramePool(objectPoolingEnabled);
+        private final FrameReader frameReader = new FrameReader(byteArrayPool, framePool);
+        private final FrameWriter frameWriter = new FrameWriter(byteArrayPool, framePool);
+        private final RequestProcessor processor = new RequestProcessor();
+        private final In in = new In();
+        private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+        private final ByteBuffer receiveBuf = allocateByteBuffer(directBuffers, receiveBufferSize);
+        private final ByteBuffer sendBuf = allocateByteBuffer(directBuffers, sendBufferSize);
+        // executes the requests on striped counters without taking a partition lock.
+        private final DataStructures stripedDs = stripedCounters == null
+                ? null
+                : new DataStructures(stripedCounters, nextStripe.getAndIncrement(), false, null,
+                        counterProcessors, windowedCounterResolutionMs, windowedCounterBuckets, null, Long.MAX_VALUE);
+
+        BlockingConnection(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (Exception e) {
+                if (!stopping) {
+                    log(e);
+                }
+            } finally {
+                blockingChannels.remove(channel);
+                blockingThreads.remove(Thread.currentThread());
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private void handshake() throws IOException {
+            while (receiveBuf.position() < Handshake.REQUEST_SIZE) {
+                if (channel.read(receiveBuf) == -1) {
+                    throw new IOException("Channel " + channel + " closed during handshake");
+                }
+            }
+
+            Handshake handshake = new Handshake();
+            receiveBuf.flip();
+            try {
+                handshake.readRequest(receiveBuf);
+            } finally {
+                compactOrClear(receiveBuf);
+            }
+            boolean supported = negotiate(handshake);
+            handshake.writeResponse(sendBuf);
+            sendBuf.flip();
+            while (sendBuf.hasRemaining()) {
+                channel.write(sendBuf);
+            }
+            sendBuf.clear();
+            if (!supported) throw new IOException("Channel " + channel + " speaks an unsupported protocol");
+
+            applyHandshake(handshake, frameReader, frameWriter);
+        }
+
+        private void loop() throws IOException {
+            handshake();
+            for (; ; ) {
+                if (channel.read(receiveBuf) == -1) {
+                    throw new IOException("Channel " + channel + " closed on the other side");
+                }
+
+                receiveBuf.flip();
+                try {
+                    for (; ; ) {
+                        Frame frame = frameReader.read(receiveBuf);
+                        if (frame == null) break;
+
+                        execute(frame);
+                        pending.add(frame);
+                    }
+                } finally {
+                    compactOrClear(receiveBuf);
+                }
+
+                // the responses of the pipelined requests received in a single read, are written together.
+                boolean allFramesWritten;
+                do {
+                    allFramesWritten = frameWriter.write(sendBuf, pending);
+                    sendBuf.flip();
+                    while (sendBuf.hasRemaining()) {
+                        channel.write(sendBuf);
+                    }
+                    sendBuf.clear();
+                    while (frameWriter.hasFileRegion()) {
+                        frameWriter.transferFileRegion(channel);
+                    }
+                } while (!allFramesWritten);
+            }
+        }
+
+        private void execute(Frame frame) throws IOException {
+            if (DataStructures.isPing(frame)) return;
+            if (DataStructures.isSubscription(frame)) {
+                // this thread blocks on reads, so it can't push notifications; the subscription is refused.
+                frame.bytes[1] = 0;
+                frame.length = 2;
+                return;
+            }
+            if (stripedDs != null && stripedDs.isStripedCounter(frame)) {
+                processor.process(stripedDs, frame, byteArrayPool);
+                return;
+            }
+            if (DataStructures.isQuery(frame)) {
+                // the partitions are locked one at a time, so the result isn't a snapshot of all partitions.
+                QueryGather gather = new QueryGather(frame, partitions.length, byteArrayPool);
+                for (int partition = 0; partition < partitions.length; partition++) {
+                    ReentrantLock lock = partitionLocks[partition];
+                    lock.lock();
+                    try {
+                        processor.process(partitions[partition], gather.part(partition), byteArrayPool);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                gather.merge(byteArrayPool);
+                return;
+            }
+
+            if (!DataStructures.isSinglePartition(frame, partitions.length, in)) {
+                throw new IOException("Request of " + channel + " spans multiple partitions");
+            }
+            int partition = DataStructures.partitionHash(frame) % partitions.length;
+            DataStructures ds = partitions[partition];
+            ReentrantLock lock = partitionLocks[partition];
+            lock.lock();
+            try {
+                if (!processor.process(ds, frame, byteArrayPool)) {
+                    awaitParked(ds, partitionConditions[partition], frame);
+                } else if (ds.queues.hasParked()) {
+                    // an offer can complete the polls parked by other connections.
+                    ds.queues.completeParked(System.nanoTime() / 1_000_000, byteArrayPool, BLOCKING_PARKED_REQUESTS);
+                    partitionConditions[partition].signalAll();
+                }
+                // a partition has no thread of its own, so each request does a step of the compaction.
+                ds.compact();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits till the parked poll is completed by an offer of another connection, or expires. The wait releases
+         * the partition lock.
+         */
+        private void awaitParked(DataStructures ds, Condition completed, Frame frame) throws IOException {
+            frame.attachment = channel;
+            try {
+                for (; ; ) {
+                    long nowMs = System.nanoTime() / 1_000_000;
+                    ds.queues.completeParked(nowMs, byteArrayPool, BLOCKING_PARKED_REQUESTS);
+                    if (frame.complete) break;
+                    completed.await(max(1, ds.queues.nextDeadlineMs() - nowMs), TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a poll of " + channel);
+            } finally {
+                frame.attachment = null;
+                frame.complete = false;
+            }
+        }
+    }
+
+    /**
+     * Executes requests when the server runs in staged mode. The IO threads decode the frames and hand them over to
+     * the worker that owns the partition of the request. Each worker owns its own DataStructures, so no locking is
+     * needed. The frame, now containing the response, is handed back to the IO thread it came from.
+     */
+    private class WorkerThread extends Thread {
+        // the frame length of a request that failed to process.
+        static final int FAILED = -1;
+        private static final int SPIN_ITERATIONS = 1000;
+        private static final long PARK_NANOS = 100_000;
+
+        private final int index;
+        private final DataStructures ds;
+        private final RequestProcessor processor = new RequestProcessor();
+        private final ByteArrayPool byteArrayPool;
+        private volatile boolean parked;
+        // hands a completed poll back to the IO thread of its connection, like the response of any other request.
+        private final QueuesData.ParkedRequests parkedRequests = new QueuesData.ParkedRequests() {
+            @Override
+            public boolean isCancelled(Frame frame) {
+                return !((Connection) frame.attachment).channel.isOpen();
+            }
+
+            @Override
+            public void complete(Frame frame) {
+                ServerThread ioThread = ((Connection) frame.attachment).thread;
+                SpscRing<Frame> responseRing = responseRings[index][ioThread.index];
+                while (!responseRing.offer(frame)) {
+                    // the IO thread doesn't drain the ring anymore once the server stops.
+                    if (stopping) return;
+                    ioThread.selector.wakeup();
+                    Thread.yield();
+                }
+                ioThread.selector.wakeup();
+            }
+        };
+
+        WorkerThread(int index) {
+            super("WorkerThread#" + index);
+            setDaemon(true);
+            this.index = index;
+            this.ds = new DataStructures(stripedCounters, index, counterIndex, subscriptions, counterProcessors,
+                    windowedCounterResolutionMs, windowedCounterBuckets, newValueLog("worker-" + index),
+                    stringsMemoryBudget);
+            this.byteArrayPool = new ByteArrayPool(objectPoolingEnabled);
+        }
+
+        void signal() {
+            if (parked) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            log(getName() + " running");
+            int idleCount = 0;
+            while (!stopping) {
+                // a compaction step counts as work, so the worker doesn't park while compacting.
+                boolean processed = processRequestRings() | ds.compact();
+                // the expired polls are completed at least every PARK_NANOS.
+                if (ds.queues.hasParked()) {
+                    ds.queues.completeParked(System.nanoTime() / 1_000_000, byteArrayPool, parkedRequests);
+                }
+                if (processed) {
+                    idleCount = 0;
+                } else if (idleCount < SPIN_ITERATIONS) {
+                    idleCount++;
+                } else {
+                    parked = true;
+                    // the check after setting parked prevents a lost wakeup; the timeout is a safety net.
+                    if (!hasRequests()) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                    }
+                    parked = false;
+                }
+            }
+        }
+
+        private boolean hasRequests() {
+            for (int io = 0; io < serverThreadCount; io++) {
+                if (!requestRings[io][index].isEmpty()) return true;
+            }
+            return false;
+        }
+
+        private boolean processRequestRings() {
+            // the requests drained in a single pass are executed as a batch.
+            ds.beginBatch();
+            try {
+                return drainRequestRings();
+            } finally {
+                ds.endBatch();
+            }
+        }
+
+        private boolean drainRequestRings() {
+            boolean processed = false;
+            for (int io = 0; io < serverThreadCount; io++) {
+                SpscRing<Frame> requestRing = requestRings[io][index];
+                SpscRing<Frame> responseRing = responseRings[index][io];
+                ServerThread ioThread = serverThreads[io];
+                int count = 0;
+                for (; ; ) {
+                    Frame frame = requestRing.poll();
+                    if (frame == null) break;
+
+                    try {
+                        // a parked poll is handed back once it completes.
+                        if (!processor.process(ds, frame, byteArrayPool)) continue;
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        frame.length = FAILED;
+                    }
+
+                    // the response ring is full; the IO thread needs to drain it first.
+                    while (!responseRing.offer(frame)) {
+                        if (stopping) return processed;
+                        ioThread.selector.wakeup();
+                        Thread.yield();
+                    }
+                    count++;
+                }
+
+                if (count > 0) {
+                    processed = true;
+                    ioThread.selector.wakeup();
+                }
+            }
+            return processed;
+        }
+    }
+
+    /**
+     * Periodically calculates the frames/second and busy ratio of each ServerThread and migrates a connection from
+     * the busiest thread to the least busy thread if the difference in busy ratio exceeds the threshold.
+     */
+    private class RebalanceThread extends Thread {
+        private final long[] lastReadFrames = new long[serverThreadCount];
+        private final long[] lastBusyNanos = new long[serverThreadCount];
+
+        RebalanceThread() {
+            super("RebalanceThread");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long lastNanos = System.nanoTime();
+            while (!stopping) {
+                try {
+                    Thread.sleep(rebalanceIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long nowNanos = System.nanoTime();
+                long elapsedNanos = nowNanos - lastNanos;
+                lastNanos = nowNanos;
+                sample(elapsedNanos);
+                rebalance();
+            }
+        }
+
+        private void sample(long elapsedNanos) {
+            for (int k = 0; k < serverThreads.length; k++) {
+                ServerThread t = serverThreads[k];
+                long readFrames = t.readFramesPublished;
+                long busyNanos = t.busyNanosPublished;
+                t.framesPerSecond = (readFrames - lastReadFrames[k]) * 1_000_000_000f / elapsedNanos;
+                t.busyRatio = Math.min(1f, (float) (busyNanos - lastBusyNanos[k]) / elapsedNanos);
+                lastReadFrames[k] = readFrames;
+                lastBusyNanos[k] = busyNanos;
+            }
+        }
+
+        private void rebalance() {
+            ServerThread busiest = serverThreads[0];
+            ServerThread idlest = serverThreads[0];
+            for (ServerThread t : serverThreads) {
+                if (t.busyRatio > busiest.busyRatio) busiest = t;
+                if (t.busyRatio < idlest.busyRatio) idlest = t;
+            }
+
+            if (busiest.busyRatio - idlest.busyRatio < rebalanceThreshold) return;
+            if (busiest.migrationTarget != null) return;
+
+            // moving half the difference in frames equalizes both threads.
+            float fraction = busiest.framesPerSecond == 0 ? 0
+                    : (busiest.framesPerSecond - idlest.framesPerSecond) / (2 * busiest.framesPerSecond);
+            if (fraction <= 0) return;
+
+            busiest.migrationFraction = fraction;
+            busiest.migrationTarget = idlest;
+            busiest.selector.wakeup();
+        }
+    }
+
+    /**
+     * A snapshot of the load of a single IO thread.
+     */
+    public static final class IOThreadMetrics {
+        private final String name;
+        private final int connections;
+        private final long readFrames;
+        private final float framesPerSecond;
+        private final float busyRatio;
+        private final long migrationsIn;
+        private final long migrationsOut;
+        private final HotKey[] hotKeys;
+
+        private IOThreadMetrics(ServerThread t) {
+            this.name = t.getName();
+            this.connections = t.connectionCount.get();
+            this.readFrames = t.readFramesPublished;
+            this.framesPerSecond = t.framesPerSecond;
+            this.busyRatio = t.busyRatio;
+            this.migrationsIn = t.migrationsIn;
+            this.migrationsOut = t.migrationsOut;
+            this.hotKeys = t.hotKeys == null ? new HotKey[0] : t.hotKeys.hotKeys();
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int connections() {
+            return connections;
+        }
+
+        public long readFrames() {
+            return readFrames;
+        }
+
+        public float framesPerSecond() {
+            return framesPerSecond;
+        }
+
+        /**
+         * Returns the fraction of wall time the thread spend on processing selected keys.
+         *
+         * @return the busy ratio between 0 and 1.
+         */
+        public float busyRatio() {
+            return busyRatio;
+        }
+
+        public long migrationsIn() {
+            return migrationsIn;
+        }
+
+        public long migrationsOut() {
+            return migrationsOut;
+        }
+
+        /**
+         * Returns the hottest keys of the requests received by the thread in the last rotation interval, hottest
+         * first. Empty if hot key tracking is disabled.
+         */
+        public List<HotKey> hotKeys() {
+            return Arrays.asList(hotKeys);
+        }
+
+        @Override
+        public String toString() {
+            return name + "(connections:" + connections + " frames/s:" + framesPerSecond
+                    + " busy:" + busyRatio + " migrationsIn:" + migrationsIn + " migrationsOut:" + migrationsOut + ")";
+        }
+    }
+
     private static void log(String str) {
         System.out.println(str);
     }
@@ -426,7 +2073,24 @@ public class Server {
         e.printStackTrace();
     }
 
+    /**
+     * The way the server does its IO.
+     */
+    public enum Engine {
+        /**
+         * A fixed number of IO threads multiplex all connections using a selector.
+         */
+        SELECTOR,
+        /**
+         * A thread per connection doing blocking reads and writes. On JDK 21+ virtual threads are used, otherwise
+         * platform threads. The IO thread count determines the number of partitions.
+         */
+        BLOCKING
+    }
+
     public static class Context {
+        public static final int MAX_COUNTER_PROCESSOR_ID = 1023;
+
         private int serverThreadCount = max(4, Runtime.getRuntime().availableProcessors() / 2);
         private String bindAddress = "0.0.0.0";
         private int startPort = 1111;
@@ -437,6 +2101,317 @@ public class Server {
         private boolean optimizeSelector = true;
         private boolean directBuffers = true;
         private boolean selectorSpin = false;
+        private boolean loadAwareAssignment = true;
+        private long rebalanceIntervalMs = 0;
+        private float rebalanceThreshold = 0.25f;
+        private int workerThreadCount = 0;
+        private int ringCapacity = 16 * 1024;
+        private Engine engine = Engine.SELECTOR;
+        private String unixDomainSocketPath;
+        private boolean sharedMemory;
+        private String sharedMemoryDirectory = "/dev/shm";
+        private int sharedMemoryMaxCapacity = 16 * 1024 * 1024;
+        private boolean sharedMemoryBusySpin = true;
+        private boolean loopback;
+        private boolean flightRecorderEvents;
+        private long slowRequestThresholdNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        private int maxFrameSize = 64 * 1024 * 1024;
+        private boolean compression = true;
+        private int compressionThreshold = 4 * 1024;
+        private boolean compactEncoding = true;
+        private long[] stripedCounterIds = new long[0];
+        private boolean hotKeyTracking;
+        private int hotKeyCount = 16;
+        private int hotKeySampleRate = 16;
+        private long hotKeyRotationIntervalMs = 10_000;
+        private boolean counterIndex = false;
+        private long windowedCounterResolutionMs = 1000;
+        private int windowedCounterBuckets = 60;
+        private String valueLogDirectory;
+        private int valueLogThreshold = 64 * 1024;
+        private long stringsMemoryBudget = Long.MAX_VALUE;
+        private final Map<Integer, CounterProcessor> counterProcessors = new HashMap<>();
+
+        /**
+         * Registers a processor that clients can execute on a counter with {@link Counters#execute}; see
+         * {@link CounterProcessor}.
+         *
+         * @param id the id of the processor; between 0 and {@link #MAX_COUNTER_PROCESSOR_ID}.
+         */
+        public Context counterProcessor(int id, CounterProcessor processor) {
+            if (id < 0 || id > MAX_COUNTER_PROCESSOR_ID) {
+                throw new IllegalArgumentException("counter processor id should be between 0 and "
+                        + MAX_COUNTER_PROCESSOR_ID + ", but was " + id);
+            }
+            counterProcessors.put(id, processor);
+            return this;
+        }
+
+        /**
+         * If true, the counters are indexed on their value, so they can be queried with {@link Counters#topN(int)}
+         * and {@link Counters#range(long, long, int)}. The index is off-heap and updated on every set, inc and cas.
+         * The striped counters are not indexed.
+         */
+        public Context counterIndex(boolean counterIndex) {
+            this.counterIndex = counterIndex;
+            return this;
+        }
+
+        /**
+         * The interval covered by a bucket of a windowed counter; see {@link WindowedCounters}. A sum over the
+         * last seconds is rounded up to whole buckets.
+         */
+        public Context windowedCounterResolutionMs(long windowedCounterResolutionMs) {
+            this.windowedCounterResolutionMs = windowedCounterResolutionMs;
+            return this;
+        }
+
+        /**
+         * The number of buckets of a windowed counter; the window is windowedCounterResolutionMs times the number
+         * of buckets. Each windowed counter takes 8 bytes per bucket.
+         */
+        public Context windowedCounterBuckets(int windowedCounterBuckets) {
+            this.windowedCounterBuckets = windowedCounterBuckets;
+            return this;
+        }
+
+        /**
+         * The directory of the value logs; if set, the string values of at least valueLogThreshold bytes are
+         * stored in memory-mapped log files instead of on the heap, and a get transfers them straight from the file
+         * to the socket. The files are deleted when the server stops. Null (the default) disables the value logs.
+         */
+        public Context valueLogDirectory(String valueLogDirectory) {
+            this.valueLogDirectory = valueLogDirectory;
+            return this;
+        }
+
+        /**
+         * The minimum size of a string value to store in the value log; see {@link #valueLogDirectory(String)}.
+         */
+        public Context valueLogThreshold(int valueLogThreshold) {
+            this.valueLogThreshold = valueLogThreshold;
+            return this;
+        }
+
+        /**
+         * The maximum number of bytes of string values on the heap per partition. Beyond it, the least recently used
+         * values are demoted to the value log, while their keys stay on the heap; a get of a demoted value promotes
+         * it again. So a server can hold more strings than fit in memory. The garbage in the value log is compacted
+         * incrementally by the thread owning the partition. Requires a {@link #valueLogDirectory(String)}; unlimited
+         * by default.
+         */
+        public Context stringsMemoryBudget(long stringsMemoryBudget) {
+            this.stringsMemoryBudget = stringsMemoryBudget;
+            return this;
+        }
+
+        /**
+         * If true, each IO thread tracks the hottest keys of the requests it receives; see
+         * {@link IOThreadMetrics#hotKeys()}. False by default, since the sampled requests are decoded twice.
+         */
+        public Context hotKeyTracking(boolean hotKeyTracking) {
+            this.hotKeyTracking = hotKeyTracking;
+            return this;
+        }
+
+        /**
+         * The number of hot keys tracked per IO thread.
+         */
+        public Context hotKeyCount(int hotKeyCount) {
+            this.hotKeyCount = hotKeyCount;
+            return this;
+        }
+
+        /**
+         * 1 in hotKeySampleRate requests is recorded; a power of two.
+         */
+        public Context hotKeySampleRate(int hotKeySampleRate) {
+            this.hotKeySampleRate = hotKeySampleRate;
+            return this;
+        }
+
+        /**
+         * The interval the hot keys are reported over.
+         */
+        public Context hotKeyRotationIntervalMs(long hotKeyRotationIntervalMs) {
+            this.hotKeyRotationIntervalMs = hotKeyRotationIntervalMs;
+            return this;
+        }
+
+        /**
+         * The ids of the counters that are too hot for a single partition. Their increments are spread over a stripe
+         * per IO thread instead of being routed to the owner of the partition; a get sums the stripes and a set or
+         * cas drains them. An inc only writes the stripe of its thread, but sums the stripes for its result. Only
+         * worth it for write heavy counters.
+         */
+        public Context stripedCounterIds(long... stripedCounterIds) {
+            this.stripedCounterIds = stripedCounterIds;
+            return this;
+        }
+
+        /**
+         * If true, a client can negotiate the compact encoding in the handshake.
+         */
+        public Context compactEncoding(boolean compactEncoding) {
+            this.compactEncoding = compactEncoding;
+            return this;
+        }
+
+        /**
+         * The max length of a frame. A client can negotiate a lower value in the handshake.
+         */
+        public Context maxFrameSize(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        /**
+         * If true, a client can negotiate compression of large frames in the handshake.
+         */
+        public Context compression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * The min length of a response frame to be compressed, if compression is negotiated.
+         */
+        public Context compressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * If true, clients on this machine can exchange their requests and responses through shared memory instead
+         * of the socket; see {@link Client.Context#sharedMemory(boolean)}. The server maps the file created by the
+         * client read-write, so it only accepts files in the {@link #sharedMemoryDirectory(String)} named like the
+         * files of a client, and only from clients connected through the loopback interface or a unix domain
+         * socket. False by default.
+         */
+        public Context sharedMemory(boolean sharedMemory) {
+            this.sharedMemory = sharedMemory;
+            return this;
+        }
+
+        /**
+         * The directory the shared memory files of the clients need to be in; /dev/shm by default. It should be the
+         * directory configured on the clients, see {@link Client.Context#sharedMemoryDirectory(String)}.
+         */
+        public Context sharedMemoryDirectory(String sharedMemoryDirectory) {
+            this.sharedMemoryDirectory = sharedMemoryDirectory;
+            return this;
+        }
+
+        /**
+         * The max capacity in bytes of each of the 2 rings of a shared memory file; 16 MB by default. The file is
+         * created by the client, so a larger file is refused instead of mapped. Should be at least the capacity
+         * configured on the clients, see {@link Client.Context#sharedMemoryCapacity(int)}.
+         */
+        public Context sharedMemoryMaxCapacity(int sharedMemoryMaxCapacity) {
+            this.sharedMemoryMaxCapacity = sharedMemoryMaxCapacity;
+            return this;
+        }
+
+        /**
+         * If true, an IO thread with shared memory or loopback connections spins on the selector and the rings. If
+         * false, it backs off to a short blocking select after being idle for a while; this saves CPU at the cost
+         * of latency.
+         */
+        public Context sharedMemoryBusySpin(boolean sharedMemoryBusySpin) {
+            this.sharedMemoryBusySpin = sharedMemoryBusySpin;
+            return this;
+        }
+
+        /**
+         * If true, clients in the same JVM can connect through in-memory rings instead of a socket; see {@link
+         * Client.Context#loopback(boolean)}. The frames go through the same framing, dispatch and data structures,
+         * so a benchmark with and without loopback tells apart the cost of the kernel and the cost of the rest. The
+         * socket keeps accepting connections.
+         */
+        public Context loopback(boolean loopback) {
+            this.loopback = loopback;
+            return this;
+        }
+
+        /**
+         * If true, the IO threads emit JDK Flight Recorder events: the select loop iterations, the registered
+         * connections, the reads and writes with their byte counts and the slow requests; see {@link ServerEvents}.
+         * The events are only recorded while a recording is running. If false (the default), the events aren't even
+         * created. Requires a JDK with Flight Recorder: JDK 11+ or 8u262+.
+         */
+        public Context flightRecorderEvents(boolean flightRecorderEvents) {
+            this.flightRecorderEvents = flightRecorderEvents;
+            return this;
+        }
+
+        /**
+         * The min time the dispatch of a request by an IO thread takes to emit a slow request event; see
+         * {@link #flightRecorderEvents(boolean)}. In staged mode the dispatch is the hand-off to the worker.
+         */
+        public Context slowRequestThresholdNanos(long slowRequestThresholdNanos) {
+            this.slowRequestThresholdNanos = slowRequestThresholdNanos;
+            return this;
+        }
+
+        /**
+         * Listens on a unix domain socket with the given path instead of on TCP. Requires JDK 16+.
+         */
+        public Context unixDomainSocketPath(String unixDomainSocketPath) {
+            this.unixDomainSocketPath = unixDomainSocketPath;
+            return this;
+        }
+
+        public Context engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * The number of worker threads. If larger than 0, the server runs in staged mode: the IO threads only
+         * decode frames and the requests are executed by the workers that own the partitions. If 0, each IO thread
+         * owns a partition and executes the requests on it; a request on the partition of another IO thread is
+         * handed over to that thread.
+         */
+        public Context workerThreadCount(int workerThreadCount) {
+            this.workerThreadCount = workerThreadCount;
+            return this;
+        }
+
+        /**
+         * The capacity of the rings between the IO threads and the worker threads. In inline mode the capacity of
+         * the rings between the IO threads is at most 1024.
+         */
+        public Context ringCapacity(int ringCapacity) {
+            this.ringCapacity = ringCapacity;
+            return this;
+        }
+
+        /**
+         * Assigns new connections to the IO thread with the lowest busy ratio instead of round robin.
+         */
+        public Context loadAwareAssignment(boolean loadAwareAssignment) {
+            this.loadAwareAssignment = loadAwareAssignment;
+            return this;
+        }
+
+        /**
+         * The interval the IO thread load is sampled and connections are migrated. 0 (the default) disables
+         * rebalancing. A migrated connection keeps seeing the same data, since the partition of a request doesn't
+         * depend on the IO thread that receives it.
+         */
+        public Context rebalanceIntervalMs(long rebalanceIntervalMs) {
+            this.rebalanceIntervalMs = rebalanceIntervalMs;
+            return this;
+        }
+
+        /**
+         * The minimal difference in busy ratio between the busiest and the least busy IO thread before a
+         * connection is migrated.
+         */
+        public Context rebalanceThreshold(float rebalanceThreshold) {
+            this.rebalanceThreshold = rebalanceThreshold;
+            return this;
+        }
 
         public Context selectorSpin(boolean selectorSpin) {
             this.selectorSpin = selectorSpin;
@@ -4,6 +4,7 @@ import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
@@ -18,6 +19,13 @@ import java.io.IOException;
 //@Measurement(iterations = 8)
 public class ServerBenchmark {
 
+    @Param({"SELECTOR", "BLOCKING"})
+    public Server.Engine engine;
+
+    // true to connect through in-memory rings instead of TCP; the difference is the cost of the kernel.
+    @Param({"false", "true"})
+    public boolean loopback;
+
     private Client client;
     private Server server;
     private byte[] message = "foo".getBytes();
@@ -32,9 +40,9 @@ public class ServerBenchmark {
 //    }
     @Setup
     public void setup() throws Exception {
-        server = new Server(new Server.Context());
+        server = new Server(new Server.Context().engine(engine).loopback(loopback));
         server.start();
-        client = new Client(new Client.Context());
+        client = new Client(new Client.Context().loopback(loopback));
         client.start();
     }
 
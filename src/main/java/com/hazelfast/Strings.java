@@ -1,36 +1,338 @@
 package com.hazelfast;
 
+import com.hazelfast.impl.DataStructures;
+import com.hazelfast.impl.In;
+
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.hazelfast.impl.DataStructures.STRINGS;
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.MAX_VAR_INT_BYTES;
+import static com.hazelfast.impl.IOUtil.putUtf8;
+import static com.hazelfast.impl.IOUtil.utf8Length;
 import static com.hazelfast.impl.StringsData.FUNCTION_GET;
+import static com.hazelfast.impl.StringsData.FUNCTION_GET_ALL;
 import static com.hazelfast.impl.StringsData.FUNCTION_SET;
+import static com.hazelfast.impl.StringsData.FUNCTION_SET_ALL;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * The strings on the server. The keys and values are bytes; a String is encoded in UTF-8 straight into the send
+ * buffer, so a String key and a byte[] key with the same UTF-8 bytes are the same key.
+ * <p>
+ * A getAll or setAll groups the keys per partition and sends a frame per partition; all frames are written at once,
+ * so a batch costs a single round trip.
+ * <p>
+ * Class is not thread-safe.
+ */
 public class Strings {
     private final Client client;
+    // the encoded records of a batch: (key-length, key) or (key-length, key, value-length, value). They are encoded
+    // once, so they can be grouped per partition before they are copied into the send buffer.
+    private ByteBuffer batchBuf = ByteBuffer.allocate(4096);
+    // the offset of each record in the batchBuf; the record k ends at the offset of record k + 1.
+    private int[] recordOffsets = new int[65];
+    private int batchRecords;
+    private int[] recordPartitions = new int[64];
+    // the records sorted on partition.
+    private int[] order = new int[64];
+    // the end (exclusive) in the order of each frame written but not read yet.
+    private int[] frameEnds = new int[64];
+    private int[] partitionCounts = new int[1];
 
     public Strings(Client client) {
         this.client = client;
     }
 
     public void set(String key, String value) {
+        int keyLength = utf8Length(key);
+        int valueLength = utf8Length(value);
         ByteBuffer b = client.sendBuf;
+        client.putFrameLength(1 + 1 + INT_AS_BYTES + keyLength + INT_AS_BYTES + valueLength);
         b.put(STRINGS);
         b.put(FUNCTION_SET);
-
+        b.putInt(keyLength);
+        putUtf8(b, key);
+        b.putInt(valueLength);
+        putUtf8(b, value);
         client.writeAndFlush();
+        client.readResponseIn();
+    }
 
-        //return 0;
+    public void set(byte[] key, byte[] value) {
+        set(ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+    }
+
+    /**
+     * Sets the remaining bytes of the value as the value of the remaining bytes of the key. The positions of the
+     * buffers are not changed.
+     */
+    public void set(ByteBuffer key, ByteBuffer value) {
+        ByteBuffer b = client.sendBuf;
+        client.putFrameLength(1 + 1 + INT_AS_BYTES + key.remaining() + INT_AS_BYTES + value.remaining());
+        b.put(STRINGS);
+        b.put(FUNCTION_SET);
+        putBytes(b, key);
+        putBytes(b, value);
+        client.writeAndFlush();
+        client.readResponseIn();
     }
 
     public String get(String key) {
+        int keyLength = utf8Length(key);
+        ByteBuffer b = client.sendBuf;
+        client.putFrameLength(1 + 1 + INT_AS_BYTES + keyLength);
+        b.put(STRINGS);
+        b.put(FUNCTION_GET);
+        b.putInt(keyLength);
+        putUtf8(b, key);
+        client.writeAndFlush();
+
+        byte[] value = readValue(client.readResponseIn());
+        return value == null ? null : new String(value, UTF_8);
+    }
+
+    public byte[] get(byte[] key) {
+        sendGet(ByteBuffer.wrap(key));
+        return readValue(client.readResponseIn());
+    }
+
+    /**
+     * Copies the value of the remaining bytes of the key into the value buffer, without creating litter. The
+     * position of the key is not changed; the position of the value buffer is moved past the value.
+     *
+     * @return the length of the value; -1 if the key doesn't exist.
+     * @throws BufferOverflowException if the value doesn't fit in the value buffer.
+     */
+    public int get(ByteBuffer key, ByteBuffer value) {
+        sendGet(key);
+        In in = client.readResponseIn();
+        int length = in.getInt();
+        if (length == -1) return -1;
+        if (value.remaining() < length) throw new BufferOverflowException();
+        in.getBytes(value, length);
+        return length;
+    }
+
+    private void sendGet(ByteBuffer key) {
         ByteBuffer b = client.sendBuf;
+        client.putFrameLength(1 + 1 + INT_AS_BYTES + key.remaining());
         b.put(STRINGS);
         b.put(FUNCTION_GET);
+        putBytes(b, key);
+        client.writeAndFlush();
+    }
+
+    /**
+     * Gets the values of the keys in a single round trip.
+     *
+     * @return the values of the keys that exist.
+     */
+    public Map<String, String> getAll(Collection<String> keys) {
+        String[] keyArray = keys.toArray(new String[0]);
+        clearBatch(keyArray.length);
+        for (String key : keyArray) {
+            ensureBatchRemaining(INT_AS_BYTES + 3 * key.length());
+            batchBuf.putInt(utf8Length(key));
+            putUtf8(batchBuf, key);
+            endRecord();
+        }
+
+        byte[][] values = new byte[keyArray.length][];
+        sendBatch(FUNCTION_GET_ALL, keyArray.length, values);
+        Map<String, String> result = new HashMap<>();
+        for (int k = 0; k < keyArray.length; k++) {
+            if (values[k] != null) result.put(keyArray[k], new String(values[k], UTF_8));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the values of the keys in a single round trip.
+     *
+     * @return the values in the order of the keys; null for a key that doesn't exist.
+     */
+    public byte[][] getAll(byte[][] keys) {
+        clearBatch(keys.length);
+        for (byte[] key : keys) {
+            ensureBatchRemaining(INT_AS_BYTES + key.length);
+            batchBuf.putInt(key.length);
+            batchBuf.put(key);
+            endRecord();
+        }
 
+        byte[][] values = new byte[keys.length][];
+        sendBatch(FUNCTION_GET_ALL, keys.length, values);
+        return values;
+    }
+
+    /**
+     * Sets the entries in a single round trip. The entries are set per partition, so the batch isn't atomic.
+     */
+    public void setAll(Map<String, String> entries) {
+        clearBatch(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            ensureBatchRemaining(INT_AS_BYTES + 3 * key.length() + INT_AS_BYTES + 3 * value.length());
+            batchBuf.putInt(utf8Length(key));
+            putUtf8(batchBuf, key);
+            batchBuf.putInt(utf8Length(value));
+            putUtf8(batchBuf, value);
+            endRecord();
+        }
+        sendBatch(FUNCTION_SET_ALL, entries.size(), null);
+    }
+
+    /**
+     * Sets the values of the keys in a single round trip; see {@link #setAll(Map)}.
+     *
+     * @param values the values in the order of the keys.
+     */
+    public void setAll(byte[][] keys, byte[][] values) {
+        if (keys.length != values.length) throw new IllegalArgumentException("keys and values differ in length");
+
+        clearBatch(keys.length);
+        for (int k = 0; k < keys.length; k++) {
+            ensureBatchRemaining(INT_AS_BYTES + keys[k].length + INT_AS_BYTES + values[k].length);
+            batchBuf.putInt(keys[k].length);
+            batchBuf.put(keys[k]);
+            batchBuf.putInt(values[k].length);
+            batchBuf.put(values[k]);
+            endRecord();
+        }
+        sendBatch(FUNCTION_SET_ALL, keys.length, null);
+    }
+
+    // writes the remaining bytes of the buffer prefixed by their length; the position of the buffer is not changed.
+    private static void putBytes(ByteBuffer dst, ByteBuffer src) {
+        int position = src.position();
+        dst.putInt(src.remaining());
+        dst.put(src);
+        src.position(position);
+    }
+
+    private static byte[] readValue(In in) {
+        int length = in.getInt();
+        if (length == -1) return null;
+        byte[] value = new byte[length];
+        in.getBytes(value, 0, length);
+        return value;
+    }
+
+    private void clearBatch(int count) {
+        batchBuf.clear();
+        if (recordPartitions.length < count) {
+            recordOffsets = new int[count + 1];
+            recordPartitions = new int[count];
+            order = new int[count];
+            frameEnds = new int[count];
+        }
+        recordOffsets[0] = 0;
+        batchRecords = 0;
+    }
+
+    private void ensureBatchRemaining(int length) {
+        if (batchBuf.remaining() >= length) return;
+
+        ByteBuffer newBatchBuf = ByteBuffer.allocate(Math.max(batchBuf.capacity() * 2, batchBuf.position() + length));
+        batchBuf.flip();
+        newBatchBuf.put(batchBuf);
+        batchBuf = newBatchBuf;
+    }
+
+    // the record starts with the key.
+    private void endRecord() {
+        int offset = recordOffsets[batchRecords];
+        int keyLength = batchBuf.getInt(offset);
+        recordPartitions[batchRecords] = DataStructures.stringPartitionHash(batchBuf.array(), offset + INT_AS_BYTES,
+                keyLength);
+        recordOffsets[++batchRecords] = batchBuf.position();
+    }
+
+    /**
+     * Writes the records in a frame per partition and reads the responses. A partition gets multiple frames if its
+     * records don't fit in the send buffer; when the send buffer is full, it is flushed and the responses are read
+     * before more frames are written, so neither side blocks on a full socket.
+     *
+     * @param values the array to read the values of a get into; null for a set.
+     */
+    private void sendBatch(byte function, int count, byte[][] values) {
+        if (count == 0) return;
+
+        sortOnPartition(count);
+        ByteBuffer b = client.sendBuf;
+        int frames = 0;
+        int readFrom = 0;
+        for (int start = 0; start < count; ) {
+            int partition = recordPartitions[order[start]];
+            int end = start;
+            int length = 1 + 1;
+            while (end < count && recordPartitions[order[end]] == partition) {
+                int recordLength = recordLength(order[end]);
+                if (end > start && MAX_VAR_INT_BYTES + length + recordLength > b.capacity()) break;
+                length += recordLength;
+                end++;
+            }
+
+            if (frames > 0 && b.position() + MAX_VAR_INT_BYTES + length > b.capacity()) {
+                client.writeAndFlush();
+                readFrom = readResponses(function, readFrom, frames, values);
+                frames = 0;
+            }
+
+            client.putFrameLength(length);
+            b.put(STRINGS);
+            b.put(function);
+            for (int k = start; k < end; k++) {
+                b.put(batchBuf.array(), recordOffsets[order[k]], recordLength(order[k]));
+            }
+            frameEnds[frames++] = end;
+            start = end;
+        }
         client.writeAndFlush();
-        return null;
+        readResponses(function, readFrom, frames, values);
+    }
+
+    private int recordLength(int record) {
+        return recordOffsets[record + 1] - recordOffsets[record];
     }
 
+    // a counting sort; the records of a partition keep their order.
+    private void sortOnPartition(int count) {
+        int partitionCount = Math.max(1, client.serverPartitionCount());
+        if (partitionCounts.length < partitionCount + 1) {
+            partitionCounts = new int[partitionCount + 1];
+        }
+        Arrays.fill(partitionCounts, 0);
+        for (int k = 0; k < count; k++) {
+            recordPartitions[k] %= partitionCount;
+            partitionCounts[recordPartitions[k] + 1]++;
+        }
+        for (int partition = 0; partition < partitionCount; partition++) {
+            partitionCounts[partition + 1] += partitionCounts[partition];
+        }
+        for (int k = 0; k < count; k++) {
+            order[partitionCounts[recordPartitions[k]]++] = k;
+        }
+    }
 
+    // returns the position in the order after the records of the frames.
+    private int readResponses(byte function, int from, int frames, byte[][] values) {
+        for (int frame = 0; frame < frames; frame++) {
+            In in = client.readResponseIn();
+            if (function == FUNCTION_GET_ALL) {
+                for (int k = from; k < frameEnds[frame]; k++) {
+                    values[order[k]] = readValue(in);
+                }
+            }
+            from = frameEnds[frame];
+        }
+        return from;
+    }
 }
@@ -0,0 +1,171 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.In;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.hazelfast.impl.DataStructures.COUNTER;
+import static com.hazelfast.impl.DataStructures.SUBSCRIPTIONS;
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.Subscriptions.FUNCTION_SUBSCRIBE_COUNTER;
+import static com.hazelfast.impl.Subscriptions.FUNCTION_SUBSCRIBE_PREFIX;
+import static com.hazelfast.impl.Subscriptions.FUNCTION_UNSUBSCRIBE_COUNTER;
+import static com.hazelfast.impl.Subscriptions.FUNCTION_UNSUBSCRIBE_PREFIX;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Receives the changes of counters and strings pushed by the server, instead of polling for them. A subscriber has
+ * a connection of its own, since the notifications arrive between the responses. If the subscriber can't keep up,
+ * the server coalesces the changes per key, so only the latest value of a key is received.
+ * <p>
+ * The blocking engine doesn't support subscriptions.
+ * <p>
+ * Class is not thread-safe.
+ */
+public final class Subscriber {
+
+    private final Client client;
+    // the notifications received while waiting for the response of a subscription request.
+    private final ArrayDeque<Notification> received = new ArrayDeque<>();
+
+    public Subscriber(Client.Context context) {
+        this.client = new Client(context);
+    }
+
+    public void start() throws IOException {
+        client.start();
+    }
+
+    public void stop() throws IOException {
+        client.stop();
+    }
+
+    public void subscribeCounter(long id) {
+        counterRequest(FUNCTION_SUBSCRIBE_COUNTER, id);
+    }
+
+    public void unsubscribeCounter(long id) {
+        counterRequest(FUNCTION_UNSUBSCRIBE_COUNTER, id);
+    }
+
+    /**
+     * Subscribes to the strings with a key starting with the prefix; the empty prefix subscribes to all strings.
+     */
+    public void subscribePrefix(String prefix) {
+        prefixRequest(FUNCTION_SUBSCRIBE_PREFIX, prefix);
+    }
+
+    public void unsubscribePrefix(String prefix) {
+        prefixRequest(FUNCTION_UNSUBSCRIBE_PREFIX, prefix);
+    }
+
+    /**
+     * Waits for the next notification.
+     */
+    public Notification next() {
+        Notification notification = received.poll();
+        return notification != null ? notification : toNotification(client.readResponseIn());
+    }
+
+    private void counterRequest(byte function, long id) {
+        client.putFrameLength(1 + 1 + LONG_AS_BYTES);
+        ByteBuffer b = client.sendBuf;
+        b.put(SUBSCRIPTIONS);
+        b.put(function);
+        b.putLong(id);
+        client.writeAndFlush();
+        awaitResponse();
+    }
+
+    private void prefixRequest(byte function, String prefix) {
+        byte[] prefixBytes = prefix.getBytes(UTF_8);
+        client.putFrameLength(1 + 1 + INT_AS_BYTES + prefixBytes.length);
+        ByteBuffer b = client.sendBuf;
+        b.put(SUBSCRIPTIONS);
+        b.put(function);
+        b.putInt(prefixBytes.length);
+        b.put(prefixBytes);
+        client.writeAndFlush();
+        awaitResponse();
+    }
+
+    private void awaitResponse() {
+        for (; ; ) {
+            In in = client.readResponseIn();
+            byte type = in.getByte();
+            if (type == SUBSCRIPTIONS) {
+                if (in.getByte() != 1) throw new UnsupportedOperationException("Server refused the subscription");
+                return;
+            }
+            received.add(toNotification(type, in));
+        }
+    }
+
+    private static Notification toNotification(In in) {
+        return toNotification(in.getByte(), in);
+    }
+
+    private static Notification toNotification(byte type, In in) {
+        if (type == COUNTER) {
+            long id = in.getLong();
+            return new Notification(id, in.getLong(), null, null);
+        }
+
+        byte[] key = new byte[in.getInt()];
+        in.getBytes(key, 0, key.length);
+        byte[] value = new byte[in.getInt()];
+        in.getBytes(value, 0, value.length);
+        return new Notification(0, 0, new String(key, UTF_8), new String(value, UTF_8));
+    }
+
+    /**
+     * The latest value of a counter or a string.
+     */
+    public static final class Notification {
+        private final long counterId;
+        private final long counterValue;
+        private final String key;
+        private final String value;
+
+        Notification(long counterId, long counterValue, String key, String value) {
+            this.counterId = counterId;
+            this.counterValue = counterValue;
+            this.key = key;
+            this.value = value;
+        }
+
+        public boolean isCounter() {
+            return key == null;
+        }
+
+        public long counterId() {
+            return counterId;
+        }
+
+        public long counterValue() {
+            return counterValue;
+        }
+
+        /**
+         * Returns the key of the string; null for a counter.
+         */
+        public String key() {
+            return key;
+        }
+
+        /**
+         * Returns the value of the string; null for a counter.
+         */
+        public String value() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return isCounter() ? "counter " + counterId + "=" + counterValue : "string " + key + "=" + value;
+        }
+    }
+}
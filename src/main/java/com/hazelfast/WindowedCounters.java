@@ -0,0 +1,69 @@
+package com.hazelfast;
+
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+import static com.hazelfast.impl.DataStructures.WINDOWED_COUNTER;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.putVarLong;
+import static com.hazelfast.impl.IOUtil.varLongSize;
+import static com.hazelfast.impl.WindowedCountersData.FUNCTION_INC;
+import static com.hazelfast.impl.WindowedCountersData.FUNCTION_SUM;
+
+/**
+ * Counters over a sliding time window on the server, e.g. the number of requests in the last 60 seconds, without
+ * sampling a counter on the client. The resolution and the length of the window are configured on the server; see
+ * {@code Server.Context#windowedCounterResolutionMs} and {@code Server.Context#windowedCounterBuckets}.
+ * <p>
+ * The windowed counters are separate from the {@link Counters}; they can have the same ids.
+ */
+public final class WindowedCounters {
+
+    private final Client client;
+
+    public WindowedCounters(Client client) {
+        this.client = client;
+    }
+
+    public long inc(long id) {
+        return inc(id, 1);
+    }
+
+    /**
+     * Adds the delta to the current interval of the counter; the counter is created if it doesn't exist.
+     *
+     * @return the sum of the whole window after the increment.
+     */
+    public long inc(long id, long delta) {
+        return invoke(FUNCTION_INC, id, delta);
+    }
+
+    /**
+     * Returns the sum of the counter over the last seconds; 0 if the counter doesn't exist. The seconds are rounded
+     * up to whole intervals, and capped at the window.
+     */
+    public long sum(long id, int seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("seconds can't be negative");
+        return invoke(FUNCTION_SUM, id, seconds);
+    }
+
+    private long invoke(byte function, long id, long argument) {
+        boolean compact = client.compactEncoding();
+        ByteBuffer b = client.sendBuf;
+        if (compact) {
+            client.putFrameLength(1 + 1 + varLongSize(id) + varLongSize(argument));
+            b.put(WINDOWED_COUNTER);
+            b.put((byte) (function | COMPACT));
+            putVarLong(b, id);
+            putVarLong(b, argument);
+        } else {
+            client.putFrameLength(1 + 1 + LONG_AS_BYTES + LONG_AS_BYTES);
+            b.put(WINDOWED_COUNTER);
+            b.put(function);
+            b.putLong(id);
+            b.putLong(argument);
+        }
+        client.writeAndFlush();
+        return compact ? client.readResponseIn().getVarLong() : client.readResponseIn().getLong();
+    }
+}
@@ -7,6 +7,10 @@ import java.util.ArrayDeque;
  */
 public final class ByteArrayPool {
 
+    // arrays can move between pools when a request is processed by another thread than the IO thread.
+    // so the pool is bounded to prevent a pool from accumulating arrays it never hands out.
+    static final int MAX_POOLED_PER_SIZE = 1024;
+
     private final ArrayDeque<byte[]>[] array = new ArrayDeque[64];
     private final boolean enabled;
 
@@ -39,7 +43,9 @@ public final class ByteArrayPool {
             deq = new ArrayDeque<>();
             array[index] = deq;
         }
-        deq.addFirst(a);
+        if (deq.size() < MAX_POOLED_PER_SIZE) {
+            deq.addFirst(a);
+        }
     }
 
     private static boolean isPowerOfTwo(int number) {
@@ -50,7 +56,7 @@ public final class ByteArrayPool {
         return number > 0 && ((number & (number - 1)) == 0);
     }
 
-    private static int powerOfTwo(int value) {
+    static int powerOfTwo(int value) {
         int highestOneBit = Integer.highestOneBit(value);
         if (value == highestOneBit) return value;
 
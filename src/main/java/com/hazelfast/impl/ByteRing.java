@@ -0,0 +1,143 @@
+package com.hazelfast.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single producer single consumer ring of bytes in a direct ByteBuffer. Since the state of the ring is stored
+ * in the buffer itself, the producer and consumer can be in different processes when the buffer is a memory mapped
+ * file.
+ * <p>
+ * Layout: the head (read sequence) and the tail (write sequence) each on their own cache line, followed by the
+ * data. The data size needs to be a power of two.
+ * <p>
+ * The data is written using plain stores followed by a fence and a store of the tail. The consumer reads the tail
+ * followed by a fence before reading the data. The same is done in the other direction for the head. The head and
+ * tail are in the buffer, so they can't be Java volatiles; Java 8 has no public API to fence the plain accesses of a
+ * buffer, and VarHandles need Java 9. So the fence is an atomic increment: on the JVM a read-modify-write is a full
+ * fence, no access of the buffer moves across it.
+ */
+public final class ByteRing {
+
+    public static final int HEADER_SIZE = 128;
+    private static final int HEAD_OFFSET = 0;
+    private static final int TAIL_OFFSET = 64;
+
+    // the header; only accessed with absolute gets and puts, so the producer and consumer can share it.
+    private final ByteBuffer header;
+    private final ByteBuffer data;
+    // the fences of the producer and the consumer; separate objects, so the two sides don't write the same field.
+    private final AtomicLong producerFence = new AtomicLong();
+    private final AtomicLong consumerFence = new AtomicLong();
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * Creates a ByteRing on top of the buffer. The buffer isn't initialized; a new buffer is zero'd which is
+     * an empty ring.
+     *
+     * @param buffer the direct buffer; position 0 is the start of the ring and the limit the end.
+     */
+    public ByteRing(ByteBuffer buffer) {
+        if (!buffer.isDirect()) throw new IllegalArgumentException("buffer should be direct");
+
+        this.capacity = buffer.capacity() - HEADER_SIZE;
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("data size should be a power of two, found:" + capacity);
+        }
+
+        this.header = buffer.duplicate();
+        this.mask = capacity - 1;
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(HEADER_SIZE);
+        this.data = dup.slice();
+    }
+
+    /**
+     * Returns the size of a buffer needed for a ring with the given data capacity.
+     */
+    public static int bufferSize(int capacity) {
+        return HEADER_SIZE + capacity;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Checks if the ring is empty. Should only be called by the consumer.
+     */
+    public boolean isEmpty() {
+        boolean empty = header.getLong(HEAD_OFFSET) == header.getLong(TAIL_OFFSET);
+        fence(consumerFence);
+        return empty;
+    }
+
+    // no access of the buffer before the fence moves after it, and no access after it moves before it.
+    private static void fence(AtomicLong fence) {
+        fence.incrementAndGet();
+    }
+
+    /**
+     * Writes as many bytes as fit from the src buffer into the ring. Should only be called by the producer.
+     *
+     * @param src the buffer to write from; in reading mode.
+     * @return the number of bytes written.
+     */
+    public int write(ByteBuffer src) {
+        long tail = header.getLong(TAIL_OFFSET);
+        long head = header.getLong(HEAD_OFFSET);
+        // the data isn't overwritten before the consumer has read it.
+        fence(producerFence);
+        int free = capacity - (int) (tail - head);
+        int length = Math.min(free, src.remaining());
+        if (length == 0) return 0;
+
+        int index = (int) (tail & mask);
+        int firstLength = Math.min(length, capacity - index);
+        copy(src, index, firstLength);
+        if (firstLength < length) {
+            copy(src, 0, length - firstLength);
+        }
+        // the data is written before the consumer sees the tail.
+        fence(producerFence);
+        header.putLong(TAIL_OFFSET, tail + length);
+        return length;
+    }
+
+    private void copy(ByteBuffer src, int index, int length) {
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        data.clear().position(index);
+        data.put(src);
+        src.limit(limit);
+    }
+
+    /**
+     * Reads as many bytes as available and fit into the dst buffer. Should only be called by the consumer.
+     *
+     * @param dst the buffer to read into; in writing mode.
+     * @return the number of bytes read.
+     */
+    public int read(ByteBuffer dst) {
+        long head = header.getLong(HEAD_OFFSET);
+        long tail = header.getLong(TAIL_OFFSET);
+        // the data isn't read before the tail that covers it.
+        fence(consumerFence);
+        int length = Math.min((int) (tail - head), dst.remaining());
+        if (length == 0) return 0;
+
+        int index = (int) (head & mask);
+        int firstLength = Math.min(length, capacity - index);
+        data.clear().position(index).limit(index + firstLength);
+        dst.put(data);
+        if (firstLength < length) {
+            data.clear().limit(length - firstLength);
+            dst.put(data);
+        }
+        // the data is read before the producer sees the head and overwrites it.
+        fence(consumerFence);
+        header.putLong(HEAD_OFFSET, head + length);
+        return length;
+    }
+}
@@ -0,0 +1,234 @@
+package com.hazelfast.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A sorted set of (value, id) entries in off-heap memory; the secondary index of {@link CountersData} over the
+ * counter values. It is a skip list with fixed size nodes in a direct ByteBuffer, so an update doesn't create
+ * litter and the nodes don't burden the GC. A node is addressed by its index in the buffer; node 0 is the head,
+ * which also serves as null since the head is never a successor.
+ * <p>
+ * The entries are ordered on value and then on id; so all entries are distinct since a counter has a single value.
+ * Next to the forward links of the skip list, the nodes on the lowest level link back, so the entries can be
+ * iterated in both directions.
+ * <p>
+ * The buffer doubles when full; the nodes of removed entries are reused.
+ * <p>
+ * Class is not thread-safe; it is owned by the thread owning the partition.
+ */
+public final class CounterIndex {
+
+    public static final int NIL = 0;
+
+    private static final int MAX_LEVEL = 12;
+
+    private static final int VALUE_OFFSET = 0;
+    private static final int ID_OFFSET = 8;
+    private static final int PREV_OFFSET = 16;
+    private static final int LEVEL_OFFSET = 20;
+    private static final int NEXT_OFFSET = 24;
+    private static final int NODE_SIZE = NEXT_OFFSET + MAX_LEVEL * IOUtil.INT_AS_BYTES;
+
+    private ByteBuffer buffer;
+    private int capacity;
+    // the nodes below the high water mark that are not in use, linked through their first next pointer.
+    private int freeList = NIL;
+    private int highWaterMark = 1;
+    private int size;
+    private int level = 1;
+    private long seed = 0x9E3779B97F4A7C15L;
+    private final int[] update = new int[MAX_LEVEL];
+
+    public CounterIndex() {
+        this(64);
+    }
+
+    /**
+     * @param initialCapacity the number of entries to allocate memory for up front.
+     */
+    public CounterIndex(int initialCapacity) {
+        this.capacity = Math.max(2, initialCapacity + 1);
+        this.buffer = ByteBuffer.allocateDirect(capacity * NODE_SIZE);
+        setLevel(0, MAX_LEVEL);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void insert(long value, long id) {
+        int pred = findPredecessors(value, id);
+        int next = next(pred, 0);
+        if (next != NIL && compare(next, value, id) == 0) return;
+
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int l = level; l < nodeLevel; l++) {
+                update[l] = 0;
+            }
+            level = nodeLevel;
+        }
+
+        int node = allocate();
+        int offset = node * NODE_SIZE;
+        buffer.putLong(offset + VALUE_OFFSET, value);
+        buffer.putLong(offset + ID_OFFSET, id);
+        setLevel(node, nodeLevel);
+        for (int l = 0; l < nodeLevel; l++) {
+            setNext(node, l, next(update[l], l));
+            setNext(update[l], l, node);
+        }
+        setPrev(node, pred);
+        if (next != NIL) setPrev(next, node);
+        size++;
+    }
+
+    /**
+     * @return true if the entry was found and removed.
+     */
+    public boolean remove(long value, long id) {
+        int pred = findPredecessors(value, id);
+        int node = next(pred, 0);
+        if (node == NIL || compare(node, value, id) != 0) return false;
+
+        for (int l = 0; l < level(node); l++) {
+            setNext(update[l], l, next(node, l));
+        }
+        int next = next(node, 0);
+        if (next != NIL) setPrev(next, pred);
+        while (level > 1 && next(0, level - 1) == NIL) {
+            level--;
+        }
+
+        setNext(node, 0, freeList);
+        freeList = node;
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the node with the lowest entry; NIL if the index is empty.
+     */
+    public int first() {
+        return next(0, 0);
+    }
+
+    /**
+     * Returns the node with the highest entry; NIL if the index is empty.
+     */
+    public int last() {
+        int node = 0;
+        for (int l = level - 1; l >= 0; l--) {
+            for (int next = next(node, l); next != NIL; next = next(node, l)) {
+                node = next;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node with the lowest entry equal to or higher than (value, id); NIL if there is none.
+     */
+    public int ceiling(long value, long id) {
+        return next(findPredecessors(value, id), 0);
+    }
+
+    /**
+     * Returns the node with the lowest entry higher than (value, id); NIL if there is none.
+     */
+    public int higher(long value, long id) {
+        int node = ceiling(value, id);
+        return node != NIL && compare(node, value, id) == 0 ? next(node, 0) : node;
+    }
+
+    /**
+     * Returns the node with the highest entry lower than (value, id); NIL if there is none.
+     */
+    public int lower(long value, long id) {
+        return findPredecessors(value, id);
+    }
+
+    public int next(int node) {
+        return next(node, 0);
+    }
+
+    public int prev(int node) {
+        return buffer.getInt(node * NODE_SIZE + PREV_OFFSET);
+    }
+
+    public long value(int node) {
+        return buffer.getLong(node * NODE_SIZE + VALUE_OFFSET);
+    }
+
+    public long id(int node) {
+        return buffer.getLong(node * NODE_SIZE + ID_OFFSET);
+    }
+
+    // fills update with the last node before (value, id) on every level, and returns the one on the lowest level.
+    private int findPredecessors(long value, long id) {
+        int node = 0;
+        for (int l = level - 1; l >= 0; l--) {
+            for (int next = next(node, l); next != NIL && compare(next, value, id) < 0; next = next(node, l)) {
+                node = next;
+            }
+            update[l] = node;
+        }
+        return node;
+    }
+
+    private int compare(int node, long value, long id) {
+        int c = Long.compare(value(node), value);
+        return c != 0 ? c : Long.compare(id(node), id);
+    }
+
+    // a node is promoted to the next level with a chance of 1 in 4.
+    private int randomLevel() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        int nodeLevel = 1 + Long.numberOfTrailingZeros(seed | (1L << (2 * (MAX_LEVEL - 1)))) / 2;
+        return Math.min(nodeLevel, level + 1);
+    }
+
+    private int allocate() {
+        if (freeList != NIL) {
+            int node = freeList;
+            freeList = next(node, 0);
+            return node;
+        }
+        if (highWaterMark == capacity) {
+            grow();
+        }
+        return highWaterMark++;
+    }
+
+    private void grow() {
+        if (capacity > Integer.MAX_VALUE / NODE_SIZE / 2) throw new IllegalStateException("Counter index is full");
+
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity * 2 * NODE_SIZE);
+        buffer.clear();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+        capacity *= 2;
+    }
+
+    private int next(int node, int l) {
+        return buffer.getInt(node * NODE_SIZE + NEXT_OFFSET + l * IOUtil.INT_AS_BYTES);
+    }
+
+    private void setNext(int node, int l, int next) {
+        buffer.putInt(node * NODE_SIZE + NEXT_OFFSET + l * IOUtil.INT_AS_BYTES, next);
+    }
+
+    private void setPrev(int node, int prev) {
+        buffer.putInt(node * NODE_SIZE + PREV_OFFSET, prev);
+    }
+
+    private int level(int node) {
+        return buffer.getInt(node * NODE_SIZE + LEVEL_OFFSET);
+    }
+
+    private void setLevel(int node, int nodeLevel) {
+        buffer.putInt(node * NODE_SIZE + LEVEL_OFFSET, nodeLevel);
+    }
+}
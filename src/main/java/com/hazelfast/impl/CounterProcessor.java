@@ -0,0 +1,66 @@
+package com.hazelfast.impl;
+
+/**
+ * A function on a counter that is executed on the server, by the thread owning the partition of the counter. The
+ * thread executes one request at a time, so the function is atomic without locking: e.g. an "increment if below
+ * limit" is a single round trip instead of a CAS loop on the client that retries under contention.
+ * <p>
+ * Processors are registered by id when the server is created, see {@code Server.Context#counterProcessor}, and
+ * invoked with {@code Counters#execute}. A processor is called by multiple threads, so it should be stateless. It
+ * should not block and not throw; a failing request closes the connection.
+ * <p>
+ * Striped counters can't be processed; their value is spread over the threads.
+ */
+@FunctionalInterface
+public interface CounterProcessor {
+
+    /**
+     * The max number of arguments of an invocation.
+     */
+    int MAX_ARGUMENTS = 8;
+
+    /**
+     * Processes the counter.
+     *
+     * @param counter   the counter; only valid during the call.
+     * @param arguments the arguments of the invocation; only valid during the call.
+     * @return the result for the client.
+     */
+    long process(Counter counter, long[] arguments);
+
+    /**
+     * The counter being processed. A counter that doesn't exist has the value 0; it is created when its value is
+     * set.
+     */
+    final class Counter {
+        private long id;
+        private long value;
+        private boolean changed;
+
+        Counter() {
+        }
+
+        void init(long id, long value) {
+            this.id = id;
+            this.value = value;
+            this.changed = false;
+        }
+
+        boolean changed() {
+            return changed;
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public long value() {
+            return value;
+        }
+
+        public void value(long value) {
+            this.value = value;
+            this.changed = true;
+        }
+    }
+}
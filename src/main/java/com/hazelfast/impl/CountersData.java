@@ -1,5 +1,6 @@
 package com.hazelfast.impl;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -9,78 +10,568 @@ public class CountersData {
     public static final byte FUNCTION_SET = 2;
     public static final byte FUNCTION_INC = 3;
     public static final byte FUNCTION_CAS = 4;
+    // the queries on the counter index. A query reads: [range: min, max], limit, a byte that is 1 if a cursor
+    // follows, cursor value, cursor id. The response is an int count followed by the (id, value) of the counters;
+    // descending for a top N and ascending for a range. The results start after the cursor, so a client pages
+    // through large results by passing the last result of the previous page as cursor.
+    public static final byte FUNCTION_TOP_N = 5;
+    public static final byte FUNCTION_RANGE = 6;
+    // executes a registered CounterProcessor: id, processor id, argument count, arguments. The response is the
+    // result of the processor.
+    public static final byte FUNCTION_EXECUTE = 7;
+    // executes a list of get, set, inc and cas operations on counters of the same partition, atomically: partition
+    // key, operation count, and per operation: function, id, arguments. The partition key is the id the request is
+    // routed on. If a cas fails, nothing is applied and the response is: byte 0, index of the failed operation.
+    // Otherwise the response is: byte 1, and per operation the value of the counter after it.
+    public static final byte FUNCTION_MULTI = 8;
+    // sets the counters of a bulk load; all in the same partition: partition key, the number of entries the load
+    // still sends to the partition including these, and (id, value)* till the end of the frame. The response is the
+    // number of counters set. The expected entries are a hint to size the map at once.
+    public static final byte FUNCTION_LOAD = 9;
 
+    // set in the function of a request if the ids, values and results are zigzag varints instead of longs.
+    public static final byte COMPACT = 0x40;
+
+    // the max number of results of a query, so a response fits in a bounded frame regardless of the limit.
+    public static final int MAX_QUERY_RESULTS = 1024;
+    // the max number of operations of a multi request.
+    public static final int MAX_MULTI_OPERATIONS = 64;
 
     // todo: should be replaced by offheap data-structure
     // currently the key generates litter.
-    private final Map<Long, LongValue> counters = new HashMap<>();
+    private Map<Long, LongValue> counters = new HashMap<>();
+    // the number of counters the map has been sized for by a load.
+    private long reserved;
+    // the hot counters shared with the other partitions; null if there are none.
+    private final StripedCounters striped;
+    // the stripe the thread executing the requests on this partition increments.
+    private final int stripe;
+    // the index on the counter values; null if disabled. The striped counters are not indexed.
+    private final CounterIndex index;
+    // the connections to notify of changes; null if notifications are disabled.
+    private final Subscriptions subscriptions;
+    // indexed by processor id; the unregistered ids are null.
+    private final CounterProcessor[] processors;
+    private final CounterProcessor.Counter processedCounter = new CounterProcessor.Counter();
+    // reused for the arguments of the processors; indexed by argument count.
+    private final long[][] arguments = new long[CounterProcessor.MAX_ARGUMENTS + 1][];
+    // the ids and values of the counters of a multi request before it is applied.
+    private final long[] multiIds = new long[MAX_MULTI_OPERATIONS];
+    private final long[] multiValues = new long[MAX_MULTI_OPERATIONS];
+    private final long[] multiResults = new long[MAX_MULTI_OPERATIONS];
+
+    // the counters used in the current batch; direct mapped on the id.
+    private static final int BATCH_CACHE_SIZE = 64;
+    private final long[] batchIds = new long[BATCH_CACHE_SIZE];
+    private final LongValue[] batchValues = new LongValue[BATCH_CACHE_SIZE];
+    private boolean batching;
+    private boolean batchCacheUsed;
+
+    public CountersData() {
+        this(null, 0, false, null, new CounterProcessor[0]);
+    }
+
+    /**
+     * @param striped       the striped counters shared by all partitions; null if there are none.
+     * @param stripe        the stripe of the thread that executes the requests on this partition.
+     * @param indexed       if true, the values are indexed so the counters can be queried on their value.
+     * @param subscriptions the connections to notify of changes; null if notifications are disabled.
+     * @param processors    the registered processors indexed by id; the unregistered ids are null.
+     */
+    public CountersData(StripedCounters striped, int stripe, boolean indexed, Subscriptions subscriptions,
+                        CounterProcessor[] processors) {
+        this.striped = striped;
+        this.stripe = stripe;
+        this.index = indexed ? new CounterIndex() : null;
+        this.subscriptions = subscriptions;
+        this.processors = processors;
+        for (int count = 0; count < arguments.length; count++) {
+            arguments[count] = new long[count];
+        }
+    }
+
+    /**
+     * Checks if the function operates on the single counter whose id follows the function.
+     */
+    public static boolean isSingleCounter(byte function) {
+        int f = function & ~COMPACT;
+        return f >= FUNCTION_GET && f <= FUNCTION_CAS;
+    }
+
+    /**
+     * Checks if the function is a query on the counter index. A query needs the counters of all partitions.
+     */
+    public static boolean isQuery(byte function) {
+        int f = function & ~COMPACT;
+        return f == FUNCTION_TOP_N || f == FUNCTION_RANGE;
+    }
+
+    /**
+     * Checks if the counter is a striped counter, so the request can be executed by any thread.
+     */
+    public boolean isStriped(long id) {
+        return striped != null && striped.contains(id);
+    }
+
+    /**
+     * Starts a batch of requests, e.g. the frames of a single read. Within a batch a counter is looked up in the
+     * map only once; the requests after that, like the increments of a hot counter, are applied to the cached
+     * value directly. Each request still gets its own result, in order.
+     */
+    public void beginBatch() {
+        batching = true;
+    }
+
+    public void endBatch() {
+        batching = false;
+        if (batchCacheUsed) {
+            Arrays.fill(batchValues, null);
+            batchCacheUsed = false;
+        }
+    }
+
+    private LongValue lookup(long id, boolean create) {
+        if (!batching) return mapLookup(id, create);
+
+        int slot = (int) ((id ^ (id >>> 32)) * 0x9E3779B9L) & (BATCH_CACHE_SIZE - 1);
+        LongValue v = batchValues[slot];
+        if (v != null && batchIds[slot] == id) return v;
+
+        v = mapLookup(id, create);
+        if (v != null) {
+            batchIds[slot] = id;
+            batchValues[slot] = v;
+            batchCacheUsed = true;
+        }
+        return v;
+    }
+
+    private LongValue mapLookup(long id, boolean create) {
+        LongValue v = counters.get(id);
+        if (v == null && create) {
+            v = new LongValue();
+            counters.put(id, v);
+            if (index != null) index.insert(0, id);
+        }
+        return v;
+    }
 
     public void process(In in, Out out) {
         byte function = in.getByte();
-        switch (function) {
+        boolean compact = (function & COMPACT) != 0;
+        switch (function & ~COMPACT) {
             case FUNCTION_GET:
-                get(in, out);
+                get(in, out, compact);
                 break;
             case FUNCTION_SET:
-                set(in, out);
+                set(in, out, compact);
                 break;
             case FUNCTION_INC:
-                inc(in, out);
+                inc(in, out, compact);
                 break;
             case FUNCTION_CAS:
-                cas(in, out);
+                cas(in, out, compact);
+                break;
+            case FUNCTION_TOP_N:
+                topN(in, out, compact);
+                break;
+            case FUNCTION_RANGE:
+                range(in, out, compact);
+                break;
+            case FUNCTION_EXECUTE:
+                execute(in, out, compact);
+                break;
+            case FUNCTION_MULTI:
+                multi(in, out, compact);
+                break;
+            case FUNCTION_LOAD:
+                load(in, out, compact);
                 break;
             default:
                 throw new IllegalStateException("Unrecognized function:" + function);
         }
     }
 
-    private void get(In in, Out out) {
-        long id = in.getLong();
-        LongValue v = counters.get(id);
+    private static long getLong(In in, boolean compact) {
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    private static void putLong(Out out, long value, boolean compact) {
+        if (compact) {
+            out.putVarLong(value);
+        } else {
+            out.putLong(value);
+        }
+    }
+
+    private void get(In in, Out out, boolean compact) {
+        long id = getLong(in, compact);
+        if (isStriped(id)) {
+            putLong(out, striped.get(id), compact);
+            return;
+        }
+        LongValue v = lookup(id, false);
         long result = v == null ? 0 : v.v;
-        out.putLong(result);
+        putLong(out, result, compact);
     }
 
-    private void set(In in, Out out) {
-        long id = in.getLong();
-        long newValue = in.getLong();
-        LongValue v = counters.get(id);
-        if (v == null) {
-            v = new LongValue();
-            counters.put(id, v);
+    private void set(In in, Out out, boolean compact) {
+        long id = getLong(in, compact);
+        long newValue = getLong(in, compact);
+        if (isStriped(id)) {
+            striped.set(id, newValue);
+            notify(id, newValue);
+        } else {
+            LongValue v = lookup(id, true);
+            changed(id, v.v, newValue);
+            v.v = newValue;
         }
-        v.v = newValue;
         out.putByte((byte)1);
     }
 
-    private void inc(In in, Out out) {
-        long id = in.getLong();
-        long amount = in.getLong();
-        LongValue v = counters.get(id);
-        if (v == null) {
-            v = new LongValue();
-            counters.put(id, v);
+    private void inc(In in, Out out, boolean compact) {
+        long id = getLong(in, compact);
+        long amount = getLong(in, compact);
+        if (isStriped(id)) {
+            long result = striped.inc(id, stripe, amount);
+            notify(id, result);
+            putLong(out, result, compact);
+            return;
         }
+        LongValue v = lookup(id, true);
+        changed(id, v.v, v.v + amount);
         v.v += amount;
-        out.putLong(v.v);
+        putLong(out, v.v, compact);
     }
 
-    private void cas(In in, Out out) {
-        long id = in.getLong();
-        long oldValue = in.getLong();
-        long newValue = in.getLong();
-        LongValue v = counters.get(id);
-        if (v == null) {
-            v = new LongValue();
-            counters.put(id, v);
-        }
-        if (v.v == oldValue) {
-            v.v = newValue;
-            out.putByte((byte) 1);
+    private void cas(In in, Out out, boolean compact) {
+        long id = getLong(in, compact);
+        long oldValue = getLong(in, compact);
+        long newValue = getLong(in, compact);
+        boolean success;
+        if (isStriped(id)) {
+            success = striped.cas(id, oldValue, newValue);
+            if (success) notify(id, newValue);
         } else {
+            LongValue v = lookup(id, true);
+            success = v.v == oldValue;
+            if (success) {
+                changed(id, oldValue, newValue);
+                v.v = newValue;
+            }
+        }
+        out.putByte(success ? (byte) 1 : (byte) 0);
+    }
+
+    private void execute(In in, Out out, boolean compact) {
+        long id = getLong(in, compact);
+        long processorId = getLong(in, compact);
+        long argumentCount = getLong(in, compact);
+        if (processorId < 0 || processorId >= processors.length || processors[(int) processorId] == null) {
+            throw new IllegalStateException("Unregistered processor:" + processorId);
+        }
+        if (argumentCount < 0 || argumentCount > CounterProcessor.MAX_ARGUMENTS) {
+            throw new IllegalStateException("Invalid argument count:" + argumentCount);
+        }
+        if (isStriped(id)) throw new IllegalStateException("Striped counter " + id + " can't be processed");
+
+        long[] args = arguments[(int) argumentCount];
+        for (int k = 0; k < args.length; k++) {
+            args[k] = getLong(in, compact);
+        }
+        LongValue v = lookup(id, false);
+        processedCounter.init(id, v == null ? 0 : v.v);
+        long result = processors[(int) processorId].process(processedCounter, args);
+        if (processedCounter.changed()) {
+            if (v == null) v = lookup(id, true);
+            changed(id, v.v, processedCounter.value());
+            v.v = processedCounter.value();
+        }
+        putLong(out, result, compact);
+    }
+
+    // the sequential insert path: no response per counter and, without index and subscriptions, no change tracking.
+    private void load(In in, Out out, boolean compact) {
+        getLong(in, compact);
+        long expected = getLong(in, compact);
+        if (expected < 0) throw new IllegalStateException("Invalid expected entries:" + expected);
+
+        reserve(expected);
+        boolean track = index != null || subscriptions != null;
+        long count = 0;
+        while (in.remaining() > 0) {
+            long id = getLong(in, compact);
+            long value = getLong(in, compact);
+            count++;
+            if (isStriped(id)) {
+                striped.set(id, value);
+                notify(id, value);
+                continue;
+            }
+
+            LongValue v = counters.get(id);
+            if (v == null) {
+                v = new LongValue();
+                counters.put(id, v);
+                if (index != null) index.insert(0, id);
+            }
+            if (track) changed(id, v.v, value);
+            v.v = value;
+        }
+        putLong(out, count, compact);
+    }
+
+    // sizes the map for the expected counters at once, instead of doubling it repeatedly during a load.
+    private void reserve(long expected) {
+        long needed = counters.size() + expected;
+        if (needed <= reserved) return;
+
+        // at least doubles, so a load without a good hint isn't rebuilding the map for every frame.
+        reserved = Math.max(needed, 2 * Math.max(reserved, counters.size()));
+        Map<Long, LongValue> map = new HashMap<>(IOUtil.mapCapacity(reserved));
+        map.putAll(counters);
+        counters = map;
+    }
+
+    // the operations are applied to a copy of the values first, so a failing cas leaves the counters untouched.
+    private void multi(In in, Out out, boolean compact) {
+        getLong(in, compact);
+        long count = getLong(in, compact);
+        if (count < 0 || count > MAX_MULTI_OPERATIONS) throw new IllegalStateException("Invalid count:" + count);
+
+        int counters = 0;
+        int failed = -1;
+        for (int k = 0; k < count; k++) {
+            byte function = in.getByte();
+            long id = getLong(in, compact);
+            if (isStriped(id)) throw new IllegalStateException("Striped counter " + id + " can't be part of a multi");
+
+            int c = 0;
+            while (c < counters && multiIds[c] != id) {
+                c++;
+            }
+            if (c == counters) {
+                LongValue v = lookup(id, false);
+                multiIds[c] = id;
+                multiValues[c] = v == null ? 0 : v.v;
+                counters++;
+            }
+
+            switch (function) {
+                case FUNCTION_GET:
+                    break;
+                case FUNCTION_SET:
+                    multiValues[c] = getLong(in, compact);
+                    break;
+                case FUNCTION_INC:
+                    multiValues[c] += getLong(in, compact);
+                    break;
+                case FUNCTION_CAS:
+                    long oldValue = getLong(in, compact);
+                    long newValue = getLong(in, compact);
+                    if (multiValues[c] == oldValue) {
+                        multiValues[c] = newValue;
+                    } else if (failed == -1) {
+                        failed = k;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unrecognized function in multi:" + function);
+            }
+            multiResults[k] = multiValues[c];
+        }
+
+        if (failed != -1) {
             out.putByte((byte) 0);
+            putLong(out, failed, compact);
+            return;
+        }
+
+        for (int c = 0; c < counters; c++) {
+            LongValue v = lookup(multiIds[c], false);
+            long oldValue = v == null ? 0 : v.v;
+            // an unchanged counter isn't written, so a get or an inc of 0 doesn't create a missing counter.
+            if (oldValue == multiValues[c]) continue;
+            if (v == null) v = lookup(multiIds[c], true);
+            changed(multiIds[c], oldValue, multiValues[c]);
+            v.v = multiValues[c];
+        }
+        out.putByte((byte) 1);
+        for (int k = 0; k < count; k++) {
+            putLong(out, multiResults[k], compact);
+        }
+    }
+
+    /**
+     * Checks if all counters of the multi or load request in the bytes are in the same partition as its partition
+     * key.
+     * The request is assumed to be well formed up to the ids; a malformed request fails when it is executed.
+     *
+     * @param request        the request; starting at the function.
+     * @param partitionCount the number of partitions.
+     */
+    public static boolean isSinglePartition(In request, int partitionCount) {
+        byte function = request.getByte();
+        boolean compact = (function & COMPACT) != 0;
+        int partition = DataStructures.counterPartitionHash(getLong(request, compact)) % partitionCount;
+        if ((function & ~COMPACT) == FUNCTION_LOAD) {
+            getLong(request, compact);
+            while (request.remaining() > 0) {
+                if (DataStructures.counterPartitionHash(getLong(request, compact)) % partitionCount != partition) {
+                    return false;
+                }
+                getLong(request, compact);
+            }
+            return true;
+        }
+
+        long count = getLong(request, compact);
+        for (int k = 0; k < count && request.remaining() > 0; k++) {
+            int argumentCount = multiArgumentCount(request.getByte());
+            if (DataStructures.counterPartitionHash(getLong(request, compact)) % partitionCount != partition) {
+                return false;
+            }
+            for (int a = 0; a < argumentCount; a++) {
+                getLong(request, compact);
+            }
+        }
+        return true;
+    }
+
+    private static int multiArgumentCount(byte function) {
+        switch (function) {
+            case FUNCTION_SET:
+            case FUNCTION_INC:
+                return 1;
+            case FUNCTION_CAS:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    private void changed(long id, long oldValue, long newValue) {
+        notify(id, newValue);
+        if (index == null || oldValue == newValue) return;
+
+        index.remove(oldValue, id);
+        index.insert(newValue, id);
+    }
+
+    private void notify(long id, long value) {
+        if (subscriptions != null) subscriptions.counterChanged(id, value);
+    }
+
+    private CounterIndex index() {
+        if (index == null) throw new IllegalStateException("The counter index is disabled");
+        return index;
+    }
+
+    private void topN(In in, Out out, boolean compact) {
+        CounterIndex index = index();
+        int limit = limit(getLong(in, compact));
+        int node = index.last();
+        if (in.getByte() == 1) {
+            long cursorValue = getLong(in, compact);
+            long cursorId = getLong(in, compact);
+            node = index.lower(cursorValue, cursorId);
+        }
+
+        int countIndex = out.length();
+        out.putInt(0);
+        int count = 0;
+        for (; node != CounterIndex.NIL && count < limit; node = index.prev(node)) {
+            putLong(out, index.id(node), compact);
+            putLong(out, index.value(node), compact);
+            count++;
+        }
+        out.putInt(countIndex, count);
+    }
+
+    private void range(In in, Out out, boolean compact) {
+        CounterIndex index = index();
+        long min = getLong(in, compact);
+        long max = getLong(in, compact);
+        int limit = limit(getLong(in, compact));
+        int node = index.ceiling(min, Long.MIN_VALUE);
+        if (in.getByte() == 1) {
+            long cursorValue = getLong(in, compact);
+            long cursorId = getLong(in, compact);
+            if (cursorValue >= min) node = index.higher(cursorValue, cursorId);
+        }
+
+        int countIndex = out.length();
+        out.putInt(0);
+        int count = 0;
+        for (; node != CounterIndex.NIL && count < limit && index.value(node) <= max; node = index.next(node)) {
+            putLong(out, index.id(node), compact);
+            putLong(out, index.value(node), compact);
+            count++;
+        }
+        out.putInt(countIndex, count);
+    }
+
+    private static int limit(long limit) {
+        if (limit < 0) throw new IllegalStateException("Negative limit:" + limit);
+        return (int) Math.min(limit, MAX_QUERY_RESULTS);
+    }
+
+    /**
+     * Merges the responses of a query executed on several partitions into the response of the query on all of
+     * them. Each partition returns its first results after the cursor, so the merged response is the first limit
+     * of their union.
+     *
+     * @param request   the query; starting at the function.
+     * @param responses the responses of the partitions.
+     * @param out       the merged response is written to.
+     */
+    public static void mergeQueryResults(In request, In[] responses, Out out) {
+        byte function = request.getByte();
+        boolean compact = (function & COMPACT) != 0;
+        boolean descending = (function & ~COMPACT) == FUNCTION_TOP_N;
+        if (!descending) {
+            getLong(request, compact);
+            getLong(request, compact);
+        }
+        int limit = limit(getLong(request, compact));
+
+        long[][] ids = new long[responses.length][];
+        long[][] values = new long[responses.length][];
+        for (int k = 0; k < responses.length; k++) {
+            In response = responses[k];
+            int count = response.getInt();
+            ids[k] = new long[count];
+            values[k] = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[k][i] = getLong(response, compact);
+                values[k][i] = getLong(response, compact);
+            }
+        }
+
+        int[] positions = new int[responses.length];
+        int countIndex = out.length();
+        out.putInt(0);
+        int count = 0;
+        for (; count < limit; count++) {
+            int best = -1;
+            for (int k = 0; k < responses.length; k++) {
+                int p = positions[k];
+                if (p == ids[k].length) continue;
+                if (best == -1) {
+                    best = k;
+                    continue;
+                }
+                int c = Long.compare(values[k][p], values[best][positions[best]]);
+                if (c == 0) c = Long.compare(ids[k][p], ids[best][positions[best]]);
+                if (descending ? c > 0 : c < 0) best = k;
+            }
+            if (best == -1) break;
+
+            int p = positions[best]++;
+            putLong(out, ids[best][p], compact);
+            putLong(out, values[best][p], compact);
         }
+        out.putInt(countIndex, count);
     }
 
     private static class LongValue {
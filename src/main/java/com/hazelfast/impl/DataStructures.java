@@ -1,14 +1,105 @@
 package com.hazelfast.impl;
 
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.getInt;
+import static com.hazelfast.impl.IOUtil.getLong;
+import static com.hazelfast.impl.IOUtil.getVarLong;
+import static com.hazelfast.impl.IOUtil.unZigZag;
+
 public class DataStructures {
     public static final byte PING = 0;
     public static final byte COUNTER = 1;
     public static final byte STRINGS = 2;
+    // subscription requests are handled by the IO thread of the connection; see Subscriptions.
+    public static final byte SUBSCRIPTIONS = 3;
+    public static final byte RATE_LIMITER = 4;
+    public static final byte HYPERLOGLOG = 5;
+    public static final byte WINDOWED_COUNTER = 6;
+    public static final byte QUEUE = 7;
+
+    // control frames have a negative type; they are handled by the IO thread and never dispatched.
+    public static final byte ATTACH_SHARED_MEMORY = -1;
+
+    public final CountersData counters;
+    public final StringsData strings;
+    public final RateLimitersData rateLimiters = new RateLimitersData();
+    public final HyperLogLogsData hyperLogLogs = new HyperLogLogsData();
+    public final WindowedCountersData windowedCounters;
+    public final QueuesData queues = new QueuesData();
+    // null if notifications are disabled.
+    private final Subscriptions subscriptions;
+
+    public DataStructures() {
+        this(null, 0, false, null, new CounterProcessor[0], 1000, 60, null, Long.MAX_VALUE);
+    }
 
-    public CountersData counters = new CountersData();
-    public StringsData strings = new StringsData();
+    /**
+     * @param stripedCounters     the striped counters shared by all partitions; null if there are none.
+     * @param stripe              the stripe of the thread that executes the requests on this partition.
+     * @param counterIndex        if true, the counter values are indexed for the top N and range queries.
+     * @param subscriptions       the subscriptions shared by all partitions; null if notifications are disabled.
+     * @param processors          the counter processors indexed by id; the unregistered ids are null.
+     * @param windowResolutionMs  the interval covered by a bucket of a windowed counter.
+     * @param windowBuckets       the number of buckets of a windowed counter.
+     * @param valueLog            the log to store the large and cold string values in; null if there is none.
+     * @param stringsMemoryBudget the maximum number of bytes of string values on the heap; Long.MAX_VALUE if there
+     *                            is no limit. See {@link StringsData}.
+     */
+    public DataStructures(StripedCounters stripedCounters, int stripe, boolean counterIndex,
+                          Subscriptions subscriptions, CounterProcessor[] processors,
+                          long windowResolutionMs, int windowBuckets, ValueLog valueLog,
+                          long stringsMemoryBudget) {
+        this.counters = new CountersData(stripedCounters, stripe, counterIndex, subscriptions, processors);
+        this.windowedCounters = new WindowedCountersData(windowResolutionMs, windowBuckets, 16);
+        this.strings = new StringsData(subscriptions, valueLog, stringsMemoryBudget);
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Executes a subscription request of a connection.
+     *
+     * @param subscriber the notification buffer of the connection.
+     */
+    public void subscribe(In in, Out out, NotificationBuffer subscriber) {
+        byte type = in.getByte();
+        if (type != SUBSCRIPTIONS) throw new IllegalStateException("Not a subscription request:" + type);
+        if (subscriptions == null) throw new IllegalStateException("Notifications are disabled");
+        subscriptions.process(in, out, subscriber);
+    }
+
+    public static boolean isSubscription(Frame frame) {
+        return frame.length > 0 && frame.bytes[0] == SUBSCRIPTIONS;
+    }
+
+    /**
+     * Starts a batch of requests processed by the same thread without interruption; see
+     * {@link CountersData#beginBatch()}.
+     */
+    public void beginBatch() {
+        counters.beginBatch();
+    }
+
+    public void endBatch() {
+        counters.endBatch();
+    }
+
+    /**
+     * Executes a step of the background work, e.g. the compaction of the value log. Called by the thread owning the
+     * partition between requests, so the work is spread over the loop iterations instead of causing a pause.
+     *
+     * @return true if there is more work; the caller shouldn't block before calling it again.
+     */
+    public boolean compact() {
+        return strings.compact();
+    }
 
-    public void dispatch(In in, Out out) {
+    /**
+     * Executes the request.
+     *
+     * @return true if the request is a poll that needs to be parked; see {@link QueuesData#process(In, Out)}.
+     */
+    public boolean dispatch(In in, Out out) {
         byte type = in.getByte();
         switch (type) {
             case COUNTER:
@@ -16,8 +107,163 @@ public class DataStructures {
                 break;
             case STRINGS:
                 strings.process(in, out);
+                break;
+            case RATE_LIMITER:
+                rateLimiters.process(in, out);
+                break;
+            case HYPERLOGLOG:
+                hyperLogLogs.process(in, out);
+                break;
+            case WINDOWED_COUNTER:
+                windowedCounters.process(in, out);
+                break;
+            case QUEUE:
+                return queues.process(in, out);
             default:
                 throw new IllegalStateException("Unrecognized datastructure:" + type);
         }
+        return false;
+    }
+
+    /**
+     * Checks if the frame is a request on a striped counter. These requests don't need to be executed by the owner
+     * of the partition.
+     */
+    public boolean isStripedCounter(Frame frame) {
+        return frame.length > 1 && frame.bytes[0] == COUNTER && CountersData.isSingleCounter(frame.bytes[1])
+                && counters.isStriped(counterId(frame.bytes));
+    }
+
+    private static boolean isStringsBatch(Frame frame) {
+        return frame.length > 1 && frame.bytes[0] == STRINGS && StringsData.isBatch(frame.bytes[1]);
+    }
+
+    public static boolean isMulti(Frame frame) {
+        return frame.length > 1 && frame.bytes[0] == COUNTER
+                && (frame.bytes[1] & ~CountersData.COMPACT) == CountersData.FUNCTION_MULTI;
+    }
+
+    private static boolean isCounterLoad(Frame frame) {
+        return frame.length > 1 && frame.bytes[0] == COUNTER
+                && (frame.bytes[1] & ~CountersData.COMPACT) == CountersData.FUNCTION_LOAD;
+    }
+
+    /**
+     * Checks if all keys of the request in the frame are in the same partition; only a multi request, a counter
+     * load and a strings batch can have multiple keys. The in is reused by the calling thread to read the keys.
+     */
+    public static boolean isSinglePartition(Frame frame, int partitionCount, In in) {
+        if (isStringsBatch(frame)) return StringsData.isSinglePartition(frame.bytes, frame.length, partitionCount);
+        if (!isMulti(frame) && !isCounterLoad(frame)) return true;
+
+        in.init(frame.bytes, 1, frame.length - 1);
+        return CountersData.isSinglePartition(in, partitionCount);
+    }
+
+    /**
+     * Checks if the frame is a query that needs the data of all partitions; see {@link QueryGather}.
+     */
+    public static boolean isQuery(Frame frame) {
+        return frame.length > 1 && frame.bytes[0] == COUNTER && CountersData.isQuery(frame.bytes[1]);
+    }
+
+    private static long counterId(byte[] bytes) {
+        return (bytes[1] & CountersData.COMPACT) != 0 ? getVarLong(bytes, 2) : getLong(bytes, 2);
+    }
+
+    /**
+     * Records the key of the request in the frame in the sketch. Frames too short to contain a key are ignored;
+     * they fail when they are processed. The frame is only read up to its length; the byte-array comes from a pool,
+     * so it can be longer.
+     */
+    public static void recordKey(Frame frame, HotKeySketch sketch) {
+        if (isPing(frame) || frame.length < 3 || isQuery(frame)) return;
+
+        byte[] bytes = frame.bytes;
+        switch (bytes[0]) {
+            case COUNTER:
+                recordCounter(bytes, frame.length, sketch);
+                break;
+            case STRINGS:
+                int offset = StringsData.keyOffset(bytes[1]);
+                if (frame.length < offset + INT_AS_BYTES) return;
+                int keyLength = getInt(bytes, offset);
+                if (keyLength < 0 || keyLength > frame.length - offset - INT_AS_BYTES) return;
+                sketch.recordString(bytes, offset + INT_AS_BYTES, keyLength);
+                break;
+            default:
+        }
+    }
+
+    private static void recordCounter(byte[] bytes, int length, HotKeySketch sketch) {
+        if ((bytes[1] & CountersData.COMPACT) == 0) {
+            if (length >= 2 + LONG_AS_BYTES) sketch.recordCounter(getLong(bytes, 2));
+            return;
+        }
+
+        // a varint that runs past the frame is ignored.
+        long zigZag = 0;
+        for (int offset = 2, shift = 0; offset < length && shift < 64; offset++, shift += 7) {
+            byte b = bytes[offset];
+            zigZag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                sketch.recordCounter(unZigZag(zigZag));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the partition hash of a counter; see {@link #partitionHash(Frame)}.
+     */
+    public static int counterPartitionHash(long id) {
+        return spread((int) (id ^ (id >>> 32)));
+    }
+
+    public static boolean isPing(Frame frame) {
+        return frame.length == 0 || frame.bytes[0] == PING;
+    }
+
+    /**
+     * Returns the hash of the key of the request in the frame. Requests with the same key, end up in the same
+     * partition. The layout is: type, function, key.
+     *
+     * @param frame the frame containing the request.
+     * @return the hash; a non negative number.
+     */
+    public static int partitionHash(Frame frame) {
+        if (isPing(frame)) return 0;
+
+        byte[] bytes = frame.bytes;
+        switch (bytes[0]) {
+            case COUNTER:
+            case RATE_LIMITER:
+            case HYPERLOGLOG:
+            case WINDOWED_COUNTER:
+            case QUEUE:
+                // a long key at the same position as the id of a counter.
+                return counterPartitionHash(counterId(bytes));
+            case STRINGS:
+                int offset = StringsData.keyOffset(bytes[1]);
+                return stringPartitionHash(bytes, offset + INT_AS_BYTES, getInt(bytes, offset));
+            default:
+                return spread(0);
+        }
+    }
+
+    /**
+     * Returns the partition hash of a string key; see {@link #partitionHash(Frame)}.
+     */
+    public static int stringPartitionHash(byte[] key, int offset, int length) {
+        int hash = 1;
+        for (int k = offset; k < offset + length; k++) {
+            hash = 31 * hash + key[k];
+        }
+        return spread(hash);
+    }
+
+    // spreads the bits the same way HashMap does.
+    private static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) & Integer.MAX_VALUE;
     }
 }
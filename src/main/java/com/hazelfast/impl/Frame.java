@@ -5,6 +5,17 @@ package com.hazelfast.impl;
  * name of the byte-array can be larger than the number of usable bytes.
  */
 public class Frame {
+    // the bit set in the length of a frame on the wire if the frame is compressed.
+    public static final int COMPRESSED = 1 << 31;
+
     public int length;
     public byte[] bytes;
+    // the connection the frame belongs to when the frame is processed by another thread than the IO thread.
+    public Object attachment;
+    // set by the IO thread when the response of the frame is available.
+    public boolean complete;
+    // the region of a value log segment that follows the bytes on the wire; see FrameWriter. null if none.
+    public ValueLog.Segment file;
+    public long filePosition;
+    public int fileLength;
 }
@@ -16,6 +16,10 @@ public final class FramePool {
 
         frame.length = 0;
         frame.bytes = null;
+        frame.attachment = null;
+        frame.complete = false;
+        frame.file = null;
+        frame.fileLength = 0;
         deque.add(frame);
     }
 
@@ -0,0 +1,141 @@
+package com.hazelfast.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.getInt;
+
+/**
+ * Decodes frames from a ByteBuffer. A frame is an int length followed by that many bytes. The bytes of a frame can
+ * arrive in multiple reads; the partially received frame is kept till the remaining bytes arrive.
+ * <p>
+ * If compression is enabled, a length with the {@link Frame#COMPRESSED} bit set is followed by the int length of
+ * the uncompressed frame and the compressed block. The frame is decompressed once all its bytes have arrived.
+ * <p>
+ * If compact lengths are enabled, the length is an unsigned varint of {@code length << 1}, with the lowest bit set
+ * if the frame is compressed.
+ * <p>
+ * Class is not thread-safe.
+ */
+public final class FrameReader {
+
+    private final ByteArrayPool byteArrayPool;
+    private final FramePool framePool;
+    private Frame frame;
+    private int offset;
+    private boolean compressed;
+    private boolean compression;
+    private boolean compactLengths;
+    private int maxFrameSize = Integer.MAX_VALUE;
+
+    public FrameReader(ByteArrayPool byteArrayPool, FramePool framePool) {
+        this.byteArrayPool = byteArrayPool;
+        this.framePool = framePool;
+    }
+
+    /**
+     * Accepts compressed frames.
+     */
+    public void enableCompression() {
+        this.compression = true;
+    }
+
+    /**
+     * Reads the frame lengths as varints.
+     */
+    public void enableCompactLengths() {
+        this.compactLengths = true;
+    }
+
+    /**
+     * Sets the max length of a frame; a larger frame is rejected before its bytes are allocated.
+     */
+    public void maxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Reads the next frame from the src buffer. The buffer should be in reading mode (flipped).
+     *
+     * @param src the buffer to read from.
+     * @return the complete frame or null if more bytes are needed.
+     * @throws IOException if the frame is malformed.
+     */
+    public Frame read(ByteBuffer src) throws IOException {
+        if (frame == null) {
+            int length;
+            if (compactLengths) {
+                long header = readVarInt(src);
+                // not enough bytes available for the frame size; we are done.
+                if (header == -1) return null;
+                length = (int) (header >>> 1);
+                compressed = (header & 1) != 0;
+                if (compressed && !compression) throw new IOException("Compressed frame while compression is disabled");
+            } else {
+                // not enough bytes available for the frame size; we are done.
+                if (src.remaining() < INT_AS_BYTES) return null;
+
+                length = src.getInt();
+                compressed = compression && (length & Frame.COMPRESSED) != 0;
+                if (compressed) length &= ~Frame.COMPRESSED;
+            }
+            if (length < 0) throw new IOException("Frame length can't be negative. Found:" + length);
+            if (length > maxFrameSize) {
+                throw new IOException("Frame length " + length + " exceeds max frame size " + maxFrameSize);
+            }
+
+            frame = framePool.takeFromPool();
+            frame.length = length;
+            frame.bytes = byteArrayPool.takeFromPool(length);
+        }
+
+        int missingFromFrame = frame.length - offset;
+        int bytesToRead = src.remaining() < missingFromFrame ? src.remaining() : missingFromFrame;
+
+        src.get(frame.bytes, offset, bytesToRead);
+        offset += bytesToRead;
+        if (offset < frame.length) return null;
+
+        // we have fully loaded a frame.
+        Frame complete = frame;
+        frame = null;
+        offset = 0;
+        if (compressed) decompress(complete);
+        return complete;
+    }
+
+    // returns the unsigned value or -1 if the varint isn't complete; in that case nothing is consumed.
+    private static long readVarInt(ByteBuffer src) throws IOException {
+        int position = src.position();
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!src.hasRemaining()) {
+                src.position(position);
+                return -1;
+            }
+            byte b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value & 0xFFFFFFFFL;
+        }
+        throw new IOException("Malformed frame length");
+    }
+
+    private void decompress(Frame frame) throws IOException {
+        byte[] block = frame.bytes;
+        if (frame.length < INT_AS_BYTES) throw new IOException("Compressed frame too short: " + frame.length);
+        int length = getInt(block, 0);
+        if (length < 0 || length > maxFrameSize) {
+            throw new IOException("Decompressed length " + length + " exceeds max frame size " + maxFrameSize);
+        }
+
+        byte[] bytes = byteArrayPool.takeFromPool(length);
+        int decompressed = Lz4Codec.decompress(block, INT_AS_BYTES, frame.length - INT_AS_BYTES, bytes, 0, length);
+        if (decompressed != length) {
+            throw new IOException("Decompressed " + decompressed + " bytes, expected " + length);
+        }
+        byteArrayPool.returnToPool(block);
+        frame.bytes = bytes;
+        frame.length = length;
+    }
+}
@@ -0,0 +1,156 @@
+package com.hazelfast.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.MAX_VAR_INT_BYTES;
+import static com.hazelfast.impl.IOUtil.putVarInt;
+import static com.hazelfast.impl.IOUtil.putInt;
+
+/**
+ * Encodes frames into a ByteBuffer. If a frame doesn't fit, the remainder is written on the next call. Written
+ * frames are returned to their pools.
+ * <p>
+ * If compression is enabled, frames of at least the threshold size are compressed; see {@link FrameReader}. A
+ * frame that doesn't get smaller is sent as is. If compact lengths are enabled, the length is written as a varint.
+ * <p>
+ * A frame with a file region is followed on the wire by the bytes of the region; it is never compressed. Once the
+ * bytes of the frame are written, the writer stops until the caller has written the dst buffer to the channel and
+ * transferred the region with {@link #transferFileRegion(WritableByteChannel)}; see {@link #hasFileRegion()}.
+ * <p>
+ * Class is not thread-safe.
+ */
+public final class FrameWriter {
+
+    private final ByteArrayPool byteArrayPool;
+    private final FramePool framePool;
+    private Frame frame;
+    private int offset;
+    // the number of bytes of the file region of the frame transferred; -1 while the bytes of the frame are written.
+    private long fileOffset = -1;
+    private Lz4Codec codec;
+    private int compressionThreshold;
+    private boolean compactLengths;
+
+    public FrameWriter(ByteArrayPool byteArrayPool, FramePool framePool) {
+        this.byteArrayPool = byteArrayPool;
+        this.framePool = framePool;
+    }
+
+    /**
+     * Compresses the frames with at least the given number of bytes.
+     */
+    public void enableCompression(int compressionThreshold) {
+        this.codec = new Lz4Codec();
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Writes the frame lengths as varints.
+     */
+    public void enableCompactLengths() {
+        this.compactLengths = true;
+    }
+
+    /**
+     * Writes as many pending frames as fit into the dst buffer. The buffer should be in writing mode.
+     *
+     * @param dst     the buffer to write to.
+     * @param pending the frames to write.
+     * @return true if all pending frames have been written completely.
+     */
+    public boolean write(ByteBuffer dst, Queue<Frame> pending) {
+        if (fileOffset >= 0) return false;
+
+        for (; ; ) {
+            if (frame == null) {
+                // check if there is enough space to write the length
+                if (dst.remaining() < (compactLengths ? MAX_VAR_INT_BYTES : INT_AS_BYTES)) return pending.isEmpty();
+
+                frame = pending.poll();
+                if (frame == null) return true;
+
+                boolean compressed = codec != null && frame.file == null && frame.length >= compressionThreshold
+                        && compress(frame);
+                int length = frame.length + frame.fileLength;
+                if (compactLengths) {
+                    putVarInt(dst, length << 1 | (compressed ? 1 : 0));
+                } else {
+                    dst.putInt(compressed ? length | Frame.COMPRESSED : length);
+                }
+            }
+
+            int missingFromFrame = frame.length - offset;
+            if (dst.remaining() < missingFromFrame) {
+                int bytesToWrite = dst.remaining();
+                dst.put(frame.bytes, offset, bytesToWrite);
+                offset += bytesToWrite;
+                return false;
+            }
+
+            dst.put(frame.bytes, offset, missingFromFrame);
+            if (frame.file != null) {
+                fileOffset = 0;
+                return false;
+            }
+            release();
+        }
+    }
+
+    private void release() {
+        if (frame.file != null) frame.file.unpin();
+        byteArrayPool.returnToPool(frame.bytes);
+        framePool.returnToPool(frame);
+        frame = null;
+        offset = 0;
+        fileOffset = -1;
+    }
+
+    /**
+     * Checks if the bytes of the current frame are written and its file region should be transferred before more
+     * frames can be written.
+     */
+    public boolean hasFileRegion() {
+        return fileOffset >= 0;
+    }
+
+    /**
+     * Transfers the (remainder of the) file region of the current frame straight from the file to the channel. The
+     * bytes written to the dst buffer before should have been written to the channel.
+     *
+     * @return the number of bytes transferred; the region is complete if {@link #hasFileRegion()} returns false.
+     */
+    public long transferFileRegion(WritableByteChannel channel) throws IOException {
+        long transferred = frame.file.channel()
+                .transferTo(frame.filePosition + fileOffset, frame.fileLength - fileOffset, channel);
+        fileOffset += transferred;
+        if (fileOffset == frame.fileLength) release();
+        return transferred;
+    }
+
+    // replaces the content of the frame by the uncompressed length and the compressed block.
+    private boolean compress(Frame frame) {
+        byte[] block = byteArrayPool.takeFromPool(INT_AS_BYTES + Lz4Codec.maxCompressedLength(frame.length));
+        int length = INT_AS_BYTES + codec.compress(frame.bytes, 0, frame.length, block, INT_AS_BYTES);
+        if (length >= frame.length) {
+            byteArrayPool.returnToPool(block);
+            return false;
+        }
+
+        putInt(block, 0, frame.length);
+        byteArrayPool.returnToPool(frame.bytes);
+        frame.bytes = block;
+        frame.length = length;
+        return true;
+    }
+
+    /**
+     * Checks if a frame has only been partially written.
+     */
+    public boolean hasPartialFrame() {
+        return frame != null;
+    }
+}
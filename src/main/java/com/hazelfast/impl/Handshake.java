@@ -0,0 +1,95 @@
+package com.hazelfast.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+
+/**
+ * The handshake exchanged when a client connects, before any frame is sent. The client sends a request with the
+ * protocol version it speaks, the capabilities it wants and the max frame size it accepts. The server replies
+ * with the agreed version, capabilities and max frame size, followed by its topology.
+ * <p>
+ * Both messages have a fixed size, so they can be read without a frame length.
+ */
+public final class Handshake {
+
+    public static final int MAGIC = 0x48465354;
+    public static final int VERSION = 1;
+
+    /**
+     * Frames above a size threshold are compressed with the {@link Lz4Codec}.
+     */
+    public static final int CAPABILITY_COMPRESSION = 1;
+
+    /**
+     * Frame lengths are varints and Counters requests and responses use zigzag varints instead of fixed size longs.
+     */
+    public static final int CAPABILITY_COMPACT_ENCODING = 2;
+
+    public static final int REQUEST_SIZE = 4 * INT_AS_BYTES;
+    public static final int RESPONSE_SIZE = 6 * INT_AS_BYTES;
+
+    public int version = VERSION;
+    public int capabilities;
+    public int maxFrameSize;
+    public int ioThreadCount;
+    public int partitionCount;
+
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    public void writeRequest(ByteBuffer dst) {
+        dst.putInt(MAGIC);
+        dst.putInt(version);
+        dst.putInt(capabilities);
+        dst.putInt(maxFrameSize);
+    }
+
+    /**
+     * Reads the request. The buffer should be in reading mode and contain at least REQUEST_SIZE bytes.
+     *
+     * @throws IOException if the peer doesn't speak the protocol.
+     */
+    public void readRequest(ByteBuffer src) throws IOException {
+        readMagic(src);
+        version = src.getInt();
+        capabilities = src.getInt();
+        maxFrameSize = src.getInt();
+    }
+
+    public void writeResponse(ByteBuffer dst) {
+        writeRequest(dst);
+        dst.putInt(ioThreadCount);
+        dst.putInt(partitionCount);
+    }
+
+    /**
+     * Reads the response. The buffer should be in reading mode and contain at least RESPONSE_SIZE bytes.
+     *
+     * @throws IOException if the peer doesn't speak the protocol.
+     */
+    public void readResponse(ByteBuffer src) throws IOException {
+        readRequest(src);
+        ioThreadCount = src.getInt();
+        partitionCount = src.getInt();
+    }
+
+    private static void readMagic(ByteBuffer src) throws IOException {
+        int magic = src.getInt();
+        if (magic != MAGIC) {
+            throw new IOException("Unexpected handshake, found magic 0x" + Integer.toHexString(magic));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Handshake{version=" + version
+                + ", capabilities=" + capabilities
+                + ", maxFrameSize=" + maxFrameSize
+                + ", ioThreadCount=" + ioThreadCount
+                + ", partitionCount=" + partitionCount
+                + '}';
+    }
+}
@@ -0,0 +1,197 @@
+package com.hazelfast.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Finds the hot keys in the requests of a single thread using fixed memory. A count-min sketch estimates how often
+ * each key is seen, and the K keys with the highest estimates are tracked. Only 1 in sampleRate requests is
+ * recorded and nothing is allocated while recording, so the cost per request is a few nanoseconds.
+ * <p>
+ * Once per rotation interval, the tracked keys are published and the sketch is cleared, so the published list
+ * reflects the recent load. The rotation is done by the recording thread when it records a key; if there are no
+ * requests, the last list remains published.
+ * <p>
+ * Recording is done by a single thread; {@link #hotKeys()} can be called by any thread.
+ */
+public final class HotKeySketch {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024;
+    // longer string keys are truncated in the report; they are still counted as different keys.
+    private static final int MAX_KEY_BYTES = 64;
+
+    private final int[] sketch = new int[DEPTH * WIDTH];
+    private final int sampleRate;
+    private final int sampleMask;
+    private final long rotationIntervalNanos;
+    private long nextRotationNanos;
+    private int requests;
+
+    // the tracked keys; a slot with a count of 0 is empty.
+    private final long[] hashes;
+    private final int[] counts;
+    private final byte[] types;
+    private final long[] counterIds;
+    private final byte[][] stringKeys;
+    private final int[] stringKeyLengths;
+
+    private volatile HotKey[] hotKeys = new HotKey[0];
+
+    /**
+     * @param k                  the number of hot keys to track.
+     * @param sampleRate         1 in sampleRate requests is recorded; rounded up to a power of two.
+     * @param rotationIntervalMs the interval at which the hot keys are published and the sketch is cleared.
+     */
+    public HotKeySketch(int k, int sampleRate, long rotationIntervalMs) {
+        this.sampleRate = ByteArrayPool.powerOfTwo(sampleRate);
+        this.sampleMask = this.sampleRate - 1;
+        this.rotationIntervalNanos = rotationIntervalMs * 1_000_000;
+        this.nextRotationNanos = System.nanoTime() + rotationIntervalNanos;
+        this.hashes = new long[k];
+        this.counts = new int[k];
+        this.types = new byte[k];
+        this.counterIds = new long[k];
+        this.stringKeys = new byte[k][MAX_KEY_BYTES];
+        this.stringKeyLengths = new int[k];
+    }
+
+    /**
+     * Checks if the next request should be recorded.
+     */
+    public boolean sample() {
+        return (++requests & sampleMask) == 0;
+    }
+
+    public void recordCounter(long id) {
+        record(DataStructures.COUNTER, mix(id), id, null, 0, 0);
+    }
+
+    public void recordString(byte[] bytes, int offset, int length) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int k = offset; k < offset + length; k++) {
+            hash = (hash ^ bytes[k]) * 0x100000001b3L;
+        }
+        record(DataStructures.STRINGS, mix(hash), 0, bytes, offset, length);
+    }
+
+    private void record(byte type, long hash, long counterId, byte[] bytes, int offset, int length) {
+        hash ^= type;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int count = ++sketch[row * WIDTH + ((h1 + row * h2) & (WIDTH - 1))];
+            if (count < estimate) estimate = count;
+        }
+
+        int minSlot = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] > 0 && hashes[slot] == hash && types[slot] == type) {
+                counts[slot] = estimate;
+                maybeRotate();
+                return;
+            }
+            if (counts[slot] < counts[minSlot]) minSlot = slot;
+        }
+
+        if (estimate > counts[minSlot]) {
+            hashes[minSlot] = hash;
+            counts[minSlot] = estimate;
+            types[minSlot] = type;
+            counterIds[minSlot] = counterId;
+            int copied = Math.min(length, MAX_KEY_BYTES);
+            if (bytes != null) System.arraycopy(bytes, offset, stringKeys[minSlot], 0, copied);
+            stringKeyLengths[minSlot] = copied;
+        }
+        maybeRotate();
+    }
+
+    private void maybeRotate() {
+        if (System.nanoTime() >= nextRotationNanos) rotate();
+    }
+
+    /**
+     * Publishes the tracked keys and starts over.
+     */
+    public void rotate() {
+        List<HotKey> list = new ArrayList<>();
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] == 0) continue;
+
+            String key = types[slot] == DataStructures.COUNTER
+                    ? Long.toString(counterIds[slot])
+                    : new String(stringKeys[slot], 0, stringKeyLengths[slot], UTF_8);
+            list.add(new HotKey(types[slot], key, (long) counts[slot] * sampleRate));
+        }
+        list.sort((a, b) -> Long.compare(b.estimatedRequests, a.estimatedRequests));
+        hotKeys = list.toArray(new HotKey[0]);
+
+        Arrays.fill(sketch, 0);
+        Arrays.fill(counts, 0);
+        nextRotationNanos = System.nanoTime() + rotationIntervalNanos;
+    }
+
+    /**
+     * Returns the hot keys of the last rotation interval, hottest first.
+     */
+    public HotKey[] hotKeys() {
+        return hotKeys.clone();
+    }
+
+    // the finalizer of MurmurHash3; spreads the bits of sequential ids.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A key with its estimated number of requests in a rotation interval.
+     */
+    public static final class HotKey {
+        private final byte type;
+        private final String key;
+        private final long estimatedRequests;
+
+        HotKey(byte type, String key, long estimatedRequests) {
+            this.type = type;
+            this.key = key;
+            this.estimatedRequests = estimatedRequests;
+        }
+
+        /**
+         * Returns the data structure of the key; e.g. {@link DataStructures#COUNTER}.
+         */
+        public byte type() {
+            return type;
+        }
+
+        /**
+         * Returns the key; the id of a counter or the (possibly truncated) key of a string.
+         */
+        public String key() {
+            return key;
+        }
+
+        /**
+         * Returns the estimated number of requests. The count-min sketch can only over estimate, and the sampling
+         * makes it a multiple of the sample rate.
+         */
+        public long estimatedRequests() {
+            return estimatedRequests;
+        }
+
+        @Override
+        public String toString() {
+            return (type == DataStructures.COUNTER ? "counter " : "string ") + key + ": " + estimatedRequests;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.hazelfast.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch: estimates the number of distinct elements added to it in constant memory, with a standard
+ * error of about 0.8%. There are 2^14 registers of 6 bits, so a dense sketch is 12 KB off-heap.
+ * <p>
+ * A small sketch is sparse: only the registers that are set are stored, as a sorted list of (index, value) ints.
+ * Once the list would take more than half the memory of the dense registers, the sketch becomes dense.
+ * <p>
+ * Class is not thread-safe.
+ */
+public final class HyperLogLog {
+
+    public static final int PRECISION = 14;
+    public static final int REGISTER_COUNT = 1 << PRECISION;
+    public static final int REGISTER_BITS = 6;
+    // the size of the dense registers.
+    public static final int DENSE_BYTES = REGISTER_COUNT * REGISTER_BITS / 8;
+
+    private static final int REGISTER_MASK = (1 << REGISTER_BITS) - 1;
+    private static final int SPARSE_MAX_ENTRIES = DENSE_BYTES / 2 / IOUtil.INT_AS_BYTES;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTER_COUNT);
+
+    // the sorted (index << REGISTER_BITS | value) ints; null once dense.
+    private ByteBuffer sparse = ByteBuffer.allocateDirect(16 * IOUtil.INT_AS_BYTES);
+    private int sparseSize;
+    // null while sparse; one byte longer than needed, so a register can always be read as 2 bytes.
+    private ByteBuffer dense;
+
+    /**
+     * Adds an element.
+     *
+     * @return true if the sketch changed.
+     */
+    public boolean add(byte[] bytes, int offset, int length) {
+        return addHash(hash(bytes, offset, length));
+    }
+
+    public boolean addHash(long hash) {
+        int index = (int) (hash >>> (64 - PRECISION));
+        // the number of leading zeros of the remaining bits plus 1; the sentinel bit caps it.
+        int value = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        return update(index, value);
+    }
+
+    // sets the register to the max of its value and the given value.
+    private boolean update(int index, int value) {
+        if (dense != null) {
+            if (register(index) >= value) return false;
+            setRegister(index, value);
+            return true;
+        }
+
+        int position = search(index);
+        if (position >= 0) {
+            int entry = sparse.getInt(position * IOUtil.INT_AS_BYTES);
+            if ((entry & REGISTER_MASK) >= value) return false;
+            sparse.putInt(position * IOUtil.INT_AS_BYTES, index << REGISTER_BITS | value);
+            return true;
+        }
+
+        if (sparseSize == SPARSE_MAX_ENTRIES) {
+            toDense();
+            setRegister(index, value);
+            return true;
+        }
+        insertSparse(-position - 1, index << REGISTER_BITS | value);
+        return true;
+    }
+
+    // binary search on the register index; returns -(insertion point) - 1 if absent.
+    private int search(int index) {
+        int low = 0;
+        int high = sparseSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = sparse.getInt(mid * IOUtil.INT_AS_BYTES) >>> REGISTER_BITS;
+            if (midIndex < index) {
+                low = mid + 1;
+            } else if (midIndex > index) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insertSparse(int position, int entry) {
+        if ((sparseSize + 1) * IOUtil.INT_AS_BYTES > sparse.capacity()) {
+            ByteBuffer newSparse = ByteBuffer.allocateDirect(sparse.capacity() * 2);
+            sparse.clear();
+            newSparse.put(sparse);
+            sparse = newSparse;
+        }
+        for (int k = sparseSize; k > position; k--) {
+            sparse.putInt(k * IOUtil.INT_AS_BYTES, sparse.getInt((k - 1) * IOUtil.INT_AS_BYTES));
+        }
+        sparse.putInt(position * IOUtil.INT_AS_BYTES, entry);
+        sparseSize++;
+    }
+
+    private void toDense() {
+        dense = ByteBuffer.allocateDirect(DENSE_BYTES + 1);
+        for (int k = 0; k < sparseSize; k++) {
+            int entry = sparse.getInt(k * IOUtil.INT_AS_BYTES);
+            setRegister(entry >>> REGISTER_BITS, entry & REGISTER_MASK);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    public boolean isSparse() {
+        return dense == null;
+    }
+
+    /**
+     * Returns the estimated number of distinct elements.
+     */
+    public long count() {
+        double sum = 0;
+        int zeros = 0;
+        if (dense == null) {
+            zeros = REGISTER_COUNT - sparseSize;
+            sum = zeros;
+            for (int k = 0; k < sparseSize; k++) {
+                sum += 1.0 / (1L << (sparse.getInt(k * IOUtil.INT_AS_BYTES) & REGISTER_MASK));
+            }
+        } else {
+            for (int index = 0; index < REGISTER_COUNT; index++) {
+                int value = register(index);
+                if (value == 0) zeros++;
+                sum += 1.0 / (1L << value);
+            }
+        }
+
+        double estimate = ALPHA * REGISTER_COUNT * REGISTER_COUNT / sum;
+        // linear counting is more accurate for small cardinalities.
+        if (estimate <= 2.5 * REGISTER_COUNT && zeros > 0) {
+            estimate = REGISTER_COUNT * Math.log((double) REGISTER_COUNT / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Writes the registers in the dense format.
+     *
+     * @param dst the array to write to; at least {@link #DENSE_BYTES} long.
+     */
+    public void exportRegisters(byte[] dst, int offset) {
+        if (dense != null) {
+            ByteBuffer view = dense.duplicate();
+            view.clear();
+            view.get(dst, offset, DENSE_BYTES);
+            return;
+        }
+
+        Arrays.fill(dst, offset, offset + DENSE_BYTES, (byte) 0);
+        for (int k = 0; k < sparseSize; k++) {
+            int entry = sparse.getInt(k * IOUtil.INT_AS_BYTES);
+            putRegister(dst, offset, entry >>> REGISTER_BITS, entry & REGISTER_MASK);
+        }
+    }
+
+    /**
+     * Merges registers in the dense format into this sketch; the sketch then estimates the union.
+     *
+     * @return true if the sketch changed.
+     */
+    public boolean merge(byte[] src, int offset) {
+        boolean changed = false;
+        for (int index = 0; index < REGISTER_COUNT; index++) {
+            int value = getRegister(src, offset, index);
+            if (value != 0) changed |= update(index, value);
+        }
+        return changed;
+    }
+
+    private int register(int index) {
+        int bit = index * REGISTER_BITS;
+        int twoBytes = (dense.get(bit >>> 3) & 0xFF) | (dense.get((bit >>> 3) + 1) & 0xFF) << 8;
+        return (twoBytes >>> (bit & 7)) & REGISTER_MASK;
+    }
+
+    private void setRegister(int index, int value) {
+        int bit = index * REGISTER_BITS;
+        int position = bit >>> 3;
+        int twoBytes = (dense.get(position) & 0xFF) | (dense.get(position + 1) & 0xFF) << 8;
+        twoBytes = (twoBytes & ~(REGISTER_MASK << (bit & 7))) | value << (bit & 7);
+        dense.put(position, (byte) twoBytes);
+        dense.put(position + 1, (byte) (twoBytes >>> 8));
+    }
+
+    // the registers in an array; the last register fits in the last byte, so the second byte is optional.
+    private static int getRegister(byte[] bytes, int offset, int index) {
+        int bit = index * REGISTER_BITS;
+        int position = offset + (bit >>> 3);
+        int twoBytes = bytes[position] & 0xFF;
+        if ((bit & 7) + REGISTER_BITS > 8) twoBytes |= (bytes[position + 1] & 0xFF) << 8;
+        return (twoBytes >>> (bit & 7)) & REGISTER_MASK;
+    }
+
+    private static void putRegister(byte[] bytes, int offset, int index, int value) {
+        int bit = index * REGISTER_BITS;
+        int position = offset + (bit >>> 3);
+        int shifted = value << (bit & 7);
+        bytes[position] |= (byte) shifted;
+        if ((bit & 7) + REGISTER_BITS > 8) bytes[position + 1] |= (byte) (shifted >>> 8);
+    }
+
+    // FNV-1a followed by the finalizer of MurmurHash3, so all 64 bits are well mixed.
+    static long hash(byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int k = offset; k < offset + length; k++) {
+            h = (h ^ bytes[k]) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,114 @@
+package com.hazelfast.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+
+/**
+ * HyperLogLog sketches identified by a long key; see {@link HyperLogLog}. The key is encoded like the id of a
+ * counter, so the requests are routed the same way.
+ * <p>
+ * A merge needs the sketches to be in the same partition. That is why the client exports the registers of the
+ * source sketches and merges them into the target, so sketches in any partition can be merged.
+ */
+public class HyperLogLogsData {
+    // request: key, element-length, element. response: byte 1 if the sketch changed.
+    public static final byte FUNCTION_ADD = 1;
+    // request: key, element count, (element-length, element)*. response: byte 1 if the sketch changed.
+    public static final byte FUNCTION_ADD_ALL = 2;
+    // request: key. response: the estimated number of distinct elements.
+    public static final byte FUNCTION_COUNT = 3;
+    // request: key. response: the length of the registers (0 if the sketch doesn't exist), the dense registers.
+    public static final byte FUNCTION_EXPORT = 4;
+    // request: key, the length of the registers, the dense registers. response: byte 1 if the sketch changed.
+    public static final byte FUNCTION_MERGE = 5;
+
+    // todo: the key generates litter, like the counters.
+    private final Map<Long, HyperLogLog> sketches = new HashMap<>();
+    private byte[] scratch = new byte[64];
+
+    public void process(In in, Out out) {
+        byte function = in.getByte();
+        boolean compact = (function & COMPACT) != 0;
+        long key = compact ? in.getVarLong() : in.getLong();
+        switch (function & ~COMPACT) {
+            case FUNCTION_ADD:
+                out.putByte(add(sketch(key, true), in) ? (byte) 1 : (byte) 0);
+                break;
+            case FUNCTION_ADD_ALL:
+                addAll(sketch(key, true), in, out);
+                break;
+            case FUNCTION_COUNT:
+                HyperLogLog sketch = sketch(key, false);
+                long count = sketch == null ? 0 : sketch.count();
+                if (compact) {
+                    out.putVarLong(count);
+                } else {
+                    out.putLong(count);
+                }
+                break;
+            case FUNCTION_EXPORT:
+                export(sketch(key, false), out);
+                break;
+            case FUNCTION_MERGE:
+                merge(key, in, out);
+                break;
+            default:
+                throw new IllegalStateException("Unrecognized function:" + function);
+        }
+    }
+
+    private HyperLogLog sketch(long key, boolean create) {
+        HyperLogLog sketch = sketches.get(key);
+        if (sketch == null && create) {
+            sketch = new HyperLogLog();
+            sketches.put(key, sketch);
+        }
+        return sketch;
+    }
+
+    private boolean add(HyperLogLog sketch, In in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) throw new IllegalStateException("Invalid length:" + length);
+        in.getBytes(scratch(length), 0, length);
+        return sketch.add(scratch, 0, length);
+    }
+
+    private void addAll(HyperLogLog sketch, In in, Out out) {
+        int count = in.getInt();
+        boolean changed = false;
+        for (int k = 0; k < count; k++) {
+            changed |= add(sketch, in);
+        }
+        out.putByte(changed ? (byte) 1 : (byte) 0);
+    }
+
+    private void export(HyperLogLog sketch, Out out) {
+        if (sketch == null) {
+            out.putInt(0);
+            return;
+        }
+        sketch.exportRegisters(scratch(HyperLogLog.DENSE_BYTES), 0);
+        out.putInt(HyperLogLog.DENSE_BYTES);
+        out.putBytes(scratch, 0, HyperLogLog.DENSE_BYTES);
+    }
+
+    private void merge(long key, In in, Out out) {
+        int length = in.getInt();
+        if (length == 0) {
+            out.putByte((byte) 0);
+            return;
+        }
+        if (length != HyperLogLog.DENSE_BYTES) throw new IllegalStateException("Invalid register length:" + length);
+        in.getBytes(scratch(length), 0, length);
+        out.putByte(sketch(key, true).merge(scratch, 0) ? (byte) 1 : (byte) 0);
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[ByteArrayPool.powerOfTwo(length)];
+        }
+        return scratch;
+    }
+}
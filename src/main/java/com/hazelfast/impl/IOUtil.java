@@ -2,21 +2,32 @@ package com.hazelfast.impl;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.net.SocketException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
+import java.nio.channels.NetworkChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Class.forName;
 import static java.lang.System.arraycopy;
+import static java.net.StandardSocketOptions.SO_RCVBUF;
+import static java.net.StandardSocketOptions.SO_SNDBUF;
+import static java.net.StandardSocketOptions.TCP_NODELAY;
 
 public class IOUtil {
     public static final int INT_AS_BYTES = 4;
     public static final int LONG_AS_BYTES = 8;
+    public static final int MAX_VAR_INT_BYTES = 5;
 
     public static ByteBuffer allocateByteBuffer(boolean direct, int capacity){
         return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
@@ -30,19 +41,235 @@ public class IOUtil {
         }
     }
 
-    public static void setSendBufferSize(SocketChannel channel, int sendBufferSize) throws SocketException {
-        channel.socket().setSendBufferSize(sendBufferSize);
-        if (channel.socket().getSendBufferSize() != sendBufferSize) {
+    // the socket options are used instead of channel.socket() since a unix domain socket channel has no socket.
+    public static void setSendBufferSize(NetworkChannel channel, int sendBufferSize) throws IOException {
+        channel.setOption(SO_SNDBUF, sendBufferSize);
+        if (channel.getOption(SO_SNDBUF) != sendBufferSize) {
             System.out.println("socket doesn't have expected sendBufferSize, expected:"
-                    + sendBufferSize + " actual:" + channel.socket().getSendBufferSize());
+                    + sendBufferSize + " actual:" + channel.getOption(SO_SNDBUF));
         }
     }
 
-    public static void setReceiveBufferSize(SocketChannel channel, int receiveBufferSize) throws SocketException {
-        channel.socket().setReceiveBufferSize(receiveBufferSize);
-        if (channel.socket().getReceiveBufferSize() != receiveBufferSize) {
+    public static void setReceiveBufferSize(NetworkChannel channel, int receiveBufferSize) throws IOException {
+        channel.setOption(SO_RCVBUF, receiveBufferSize);
+        if (channel.getOption(SO_RCVBUF) != receiveBufferSize) {
             System.out.println("socket doesn't have expected receiveBufferSize, expected:"
-                    + receiveBufferSize + " actual:" + channel.socket().getReceiveBufferSize());
+                    + receiveBufferSize + " actual:" + channel.getOption(SO_RCVBUF));
+        }
+    }
+
+    /**
+     * Sets TCP_NODELAY if the channel supports it; a unix domain socket doesn't.
+     */
+    public static void setTcpNoDelay(NetworkChannel channel, boolean tcpNoDelay) throws IOException {
+        if (channel.supportedOptions().contains(TCP_NODELAY)) {
+            channel.setOption(TCP_NODELAY, tcpNoDelay);
+        }
+    }
+
+    /**
+     * Creates a UnixDomainSocketAddress (JDK 16+). Reflection is used so that the code still compiles with Java 8.
+     *
+     * @param path the path of the socket file.
+     * @return the created address.
+     * @throws UnsupportedOperationException if the JVM doesn't support unix domain sockets.
+     */
+    public static SocketAddress unixDomainSocketAddress(String path) {
+        try {
+            return (SocketAddress) forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class)
+                    .invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require JDK 16+", e);
+        }
+    }
+
+    /**
+     * Opens a SocketChannel; a unix domain socket channel if unix is true.
+     */
+    public static SocketChannel openSocketChannel(boolean unix) throws IOException {
+        if (!unix) return SocketChannel.open();
+
+        try {
+            return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require JDK 16+", e);
+        }
+    }
+
+    /**
+     * Opens a ServerSocketChannel; a unix domain socket channel if unix is true.
+     */
+    public static ServerSocketChannel openServerSocketChannel(boolean unix) throws IOException {
+        if (!unix) return ServerSocketChannel.open();
+
+        try {
+            return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require JDK 16+", e);
+        }
+    }
+
+    /**
+     * Reads a big endian int from the byte-array; the same byte order as a ByteBuffer uses by default.
+     */
+    public static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24)
+                | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Reads a big endian long from the byte-array; the same byte order as a ByteBuffer uses by default.
+     */
+    public static long getLong(byte[] bytes, int offset) {
+        return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + INT_AS_BYTES) & 0xffffffffL);
+    }
+
+    /**
+     * Returns the initial capacity of a HashMap that holds the number of entries without resizing.
+     */
+    public static int mapCapacity(long entries) {
+        return (int) Math.min(1 << 30, entries * 4 / 3 + 1);
+    }
+
+    /**
+     * Returns the number of bytes {@link #putVarInt(ByteBuffer, int)} needs for the value.
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the value as an unsigned varint: 7 bits per byte, least significant first, with the high bit set if
+     * more bytes follow.
+     */
+    public static void putVarInt(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Returns the number of bytes {@link #putVarLong(ByteBuffer, long)} needs for the value.
+     */
+    public static int varLongSize(long value) {
+        long zigZag = zigZag(value);
+        int size = 1;
+        while ((zigZag & ~0x7FL) != 0) {
+            zigZag >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the value as a zigzag varint; small negative values take as few bytes as small positive ones.
+     */
+    public static void putVarLong(ByteBuffer dst, long value) {
+        long zigZag = zigZag(value);
+        while ((zigZag & ~0x7FL) != 0) {
+            dst.put((byte) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        dst.put((byte) zigZag);
+    }
+
+    /**
+     * Reads a zigzag varint written by {@link #putVarLong(ByteBuffer, long)} from the byte-array.
+     */
+    public static long getVarLong(byte[] bytes, int offset) {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bytes[offset++];
+            zigZag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return unZigZag(zigZag);
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long zigZag) {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    /**
+     * Writes a big endian int into the byte-array.
+     */
+    public static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Writes a big endian long into the byte-array.
+     */
+    public static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset + INT_AS_BYTES, (int) value);
+    }
+
+    /**
+     * Returns the number of bytes of the string in UTF-8; see {@link #putUtf8(ByteBuffer, CharSequence)}.
+     */
+    public static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && k + 1 < s.length() && Character.isLowSurrogate(s.charAt(k + 1))) {
+                length += 4;
+                k++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the string in UTF-8 without creating the intermediate byte-array of {@link String#getBytes}. The bytes
+     * are the same as those of String.getBytes(UTF_8): an unpaired surrogate is written as '?'.
+     */
+    public static void putUtf8(ByteBuffer dst, CharSequence s) {
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6));
+                dst.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && k + 1 < s.length() && Character.isLowSurrogate(s.charAt(k + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++k));
+                dst.put((byte) (0xF0 | codePoint >> 18));
+                dst.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                dst.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                dst.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | c >> 12));
+                dst.put((byte) (0x80 | c >> 6 & 0x3F));
+                dst.put((byte) (0x80 | c & 0x3F));
+            }
         }
     }
 
@@ -51,6 +278,97 @@ public class IOUtil {
 
     }
 
+    /**
+     * Creates a ThreadFactory for virtual threads if the JVM supports them (JDK 21+) and for daemon platform threads
+     * otherwise. Reflection is used so that the code still compiles with Java 8.
+     *
+     * @param namePrefix the prefix of the thread name; a counter is appended.
+     * @return the created ThreadFactory.
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            // on JDK 19/20 without preview features enabled, ofVirtual throws an UnsupportedOperationException
+            // which ends up as the cause of the InvocationTargetException.
+            AtomicInteger threadId = new AtomicInteger();
+            return r -> {
+                Thread thread = new Thread(r, namePrefix + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the JDK has Flight Recorder; it was added in JDK 11 and backported to 8u262.
+     */
+    public static boolean isFlightRecorderAvailable() {
+        try {
+            forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Releases the memory or the mapping of a direct or mapped buffer right away, instead of once the buffer is
+     * garbage collected; the mapping of a deleted file keeps the file on disk. The buffer can't be accessed anymore,
+     * since that could crash the JVM. The cleaner of the buffer is internal, so it is invoked through reflection: with
+     * {@code Unsafe.invokeCleaner} on JDK 9+ and {@code DirectBuffer.cleaner()} on JDK 8. If neither is accessible,
+     * this does nothing and the buffer is released by the garbage collector.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (UNMAPPER == null || !buffer.isDirect()) return;
+
+        try {
+            UNMAPPER.unmap(buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // e.g. a slice; it is released with the buffer it was sliced from.
+        }
+    }
+
+    private static final Unmapper UNMAPPER = newUnmapper();
+
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+    }
+
+    private static Unmapper newUnmapper() {
+        try {
+            Class<?> unsafeClass = forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 8.
+        }
+        try {
+            Method cleaner = forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object c = cleaner.invoke(buffer);
+                if (c != null) clean.invoke(c);
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
     /**
      * Creates a debug String for te given ByteBuffer. Useful when debugging IO.
      * <p>
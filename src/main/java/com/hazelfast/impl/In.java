@@ -2,19 +2,72 @@ package com.hazelfast.impl;
 
 import java.nio.ByteBuffer;
 
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+
+/**
+ * Reads the content of a frame. The In reads directly from the byte-array of the frame so that no ByteBuffer needs
+ * to be wrapped for every frame.
+ */
 public class In {
-    private ByteBuffer bb;
+    private byte[] bytes;
+    private int position;
+    private int limit;
+
+    public void init(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public int remaining() {
+        return limit - position;
+    }
 
+    public byte getByte() {
+        if (position >= limit) throw new IllegalStateException("No byte available");
+        return bytes[position++];
+    }
+
+    public int getInt() {
+        if (remaining() < INT_AS_BYTES) throw new IllegalStateException("No int available");
+        int result = IOUtil.getInt(bytes, position);
+        position += INT_AS_BYTES;
+        return result;
+    }
+
+    public long getLong() {
+        if (remaining() < LONG_AS_BYTES) throw new IllegalStateException("No long available");
+        long result = IOUtil.getLong(bytes, position);
+        position += LONG_AS_BYTES;
+        return result;
+    }
 
-    public byte getByte(){
-        return bb.get();
+    /**
+     * Reads a zigzag varint; see {@link IOUtil#putVarLong(java.nio.ByteBuffer, long)}.
+     */
+    public long getVarLong() {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = getByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return IOUtil.unZigZag(zigZag);
+        }
+        throw new IllegalStateException("Malformed varint");
     }
 
-    public int getInt(){
-        return bb.getInt();
+    public void getBytes(byte[] dst, int offset, int length) {
+        if (remaining() < length) throw new IllegalStateException("No " + length + " bytes available");
+        System.arraycopy(bytes, position, dst, offset, length);
+        position += length;
     }
 
-    public long getLong(){
-        return bb.getLong();
+    /**
+     * Copies the bytes to the position of the buffer; the position of the buffer is moved past them.
+     */
+    public void getBytes(ByteBuffer dst, int length) {
+        if (remaining() < length) throw new IllegalStateException("No " + length + " bytes available");
+        dst.put(bytes, position, length);
+        position += length;
     }
 }
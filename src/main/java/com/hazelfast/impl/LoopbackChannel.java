@@ -0,0 +1,123 @@
+package com.hazelfast.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ByteChannel between a client and a server in the same JVM using a pair of {@link ByteRing}s in direct memory. It
+ * carries the same bytes as a socket, so the frames go through the same framing, dispatch and data structures; only
+ * the kernel is left out. That makes it possible to tell apart the cost of the kernel and the cost of the rest.
+ * <p>
+ * Like the {@link SharedMemoryChannel}, the reads and writes don't block: a read returns 0 if no data is available
+ * and a write returns 0 if the ring is full. Unless the channel is made blocking for a thread that would otherwise
+ * block on a socket; then a read waits for data and a write waits till all bytes are written.
+ */
+public final class LoopbackChannel implements ByteChannel {
+    private static final int SPIN_ITERATIONS = 100;
+    private static final int YIELD_ITERATIONS = 1_000;
+
+    private final ByteRing in;
+    private final ByteRing out;
+    private final String name;
+    private LoopbackChannel peer;
+    private volatile boolean open = true;
+    private boolean blocking;
+
+    private LoopbackChannel(ByteRing in, ByteRing out, String name) {
+        this.in = in;
+        this.out = out;
+        this.name = name;
+    }
+
+    /**
+     * Opens a channel; the returned side belongs to the client and its {@link #peer()} to the server.
+     *
+     * @param capacity the capacity of each ring; needs to be a power of two.
+     * @return the client side of the channel.
+     */
+    public static LoopbackChannel open(int capacity) {
+        ByteRing first = new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(capacity)));
+        ByteRing second = new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(capacity)));
+        LoopbackChannel client = new LoopbackChannel(second, first, "client");
+        LoopbackChannel server = new LoopbackChannel(first, second, "server");
+        client.peer = server;
+        server.peer = client;
+        return client;
+    }
+
+    /**
+     * Returns the other side of the channel.
+     */
+    public LoopbackChannel peer() {
+        return peer;
+    }
+
+    /**
+     * Makes the reads and writes of this side of the channel wait, like a blocking socket. They spin, yield and then
+     * park for the shortest possible time, so the latency stays low at the price of a core.
+     */
+    public void configureBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        for (int idle = 0; ; idle = idle(idle)) {
+            if (!open) throw new ClosedChannelException();
+
+            int read = in.read(dst);
+            if (read == 0 && !peer.open) {
+                // the peer could have written data just before closing.
+                read = in.read(dst);
+                return read == 0 ? -1 : read;
+            }
+            if (read > 0 || !blocking || !dst.hasRemaining()) return read;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = 0;
+        for (int idle = 0; ; idle = idle(idle)) {
+            if (!open) throw new ClosedChannelException();
+            if (!peer.open) throw new IOException("Channel " + this + " closed on the other side");
+
+            written += out.write(src);
+            if (!blocking || !src.hasRemaining()) return written;
+        }
+    }
+
+    // spins for a while, then yields for a while and then parks for the shortest possible time.
+    private static int idle(int idle) {
+        if (idle < SPIN_ITERATIONS) {
+            return idle + 1;
+        } else if (idle < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+            Thread.yield();
+            return idle + 1;
+        } else {
+            LockSupport.parkNanos(1);
+            return idle;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes this side of the channel; the peer reads the data written before closing and then the end of stream.
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackChannel(" + name + ")";
+    }
+}
@@ -0,0 +1,194 @@
+package com.hazelfast.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.hazelfast.impl.IOUtil.getInt;
+
+/**
+ * A block compressor using the LZ4 block format. A block is a sequence of literal runs, each followed by a match
+ * that copies bytes from earlier in the output. Matches are found with a single hash table of 4 byte sequences;
+ * this gives a modest ratio, but it is very fast and repeated content like string values compresses well.
+ * <p>
+ * Class is not thread-safe; the hash table is reused between calls.
+ */
+public final class Lz4Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 65535;
+    // the last bytes of a block are always literals and the last match starts at least 12 bytes before the end.
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int RUN_MASK = 15;
+
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    /**
+     * Returns the size of the buffer needed to compress a block of the given length in the worst case.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses a block.
+     *
+     * @param src    the bytes to compress.
+     * @param srcOff the offset of the first byte.
+     * @param srcLen the number of bytes to compress.
+     * @param dst    the array to write to; should have at least maxCompressedLength(srcLen) bytes available.
+     * @param dstOff the offset to start writing.
+     * @return the number of bytes written.
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int end = srcOff + srcLen;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        Arrays.fill(hashTable, -1);
+        int ip = srcOff;
+        while (ip < mfLimit) {
+            int sequence = getInt(src, ip);
+            int h = hash(sequence);
+            int ref = hashTable[h];
+            hashTable[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || getInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            // extend the match backwards over the pending literals and then forwards.
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit && src[ref + matchLen] == src[ip + matchLen]) {
+                matchLen++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        op = writeLiterals(src, anchor, end - anchor, dst, op);
+        return op - dstOff;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeSequence(byte[] src, int literalOff, int literalLen, int offset, int matchLen,
+                                     byte[] dst, int op) {
+        int tokenPos = op;
+        op = writeLiterals(src, literalOff, literalLen, dst, op);
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        int length = matchLen - MIN_MATCH;
+        if (length >= RUN_MASK) {
+            dst[tokenPos] |= RUN_MASK;
+            op = writeLength(length - RUN_MASK, dst, op);
+        } else {
+            dst[tokenPos] |= length;
+        }
+        return op;
+    }
+
+    // writes the token with the literal length, followed by the literals.
+    private static int writeLiterals(byte[] src, int literalOff, int literalLen, byte[] dst, int op) {
+        if (literalLen >= RUN_MASK) {
+            dst[op++] = (byte) (RUN_MASK << 4);
+            op = writeLength(literalLen - RUN_MASK, dst, op);
+        } else {
+            dst[op++] = (byte) (literalLen << 4);
+        }
+        System.arraycopy(src, literalOff, dst, op, literalLen);
+        return op + literalLen;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        for (; length >= 255; length -= 255) {
+            dst[op++] = (byte) 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Decompresses a block. The input is validated, so a corrupt block can't write outside of the dst range.
+     *
+     * @param src    the compressed block.
+     * @param srcOff the offset of the block.
+     * @param srcLen the length of the block.
+     * @param dst    the array to write to.
+     * @param dstOff the offset to start writing.
+     * @param dstLen the number of bytes available in dst.
+     * @return the number of bytes written.
+     * @throws IOException if the block is malformed.
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws IOException {
+        int ip = srcOff;
+        int end = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        for (; ; ) {
+            if (ip >= end) throw new IOException("Malformed block: missing token");
+            int token = src[ip++] & 0xFF;
+
+            int literalLen = token >>> 4;
+            if (literalLen == RUN_MASK) {
+                for (int b = 255; b == 255; ) {
+                    if (ip >= end) throw new IOException("Malformed block: truncated literal length");
+                    b = src[ip++] & 0xFF;
+                    literalLen += b;
+                    // checked on every byte, so a long run can't overflow the length.
+                    if (literalLen > dstEnd - op) throw new IOException("Malformed block: literals out of bounds");
+                }
+            }
+            if (literalLen > end - ip || literalLen > dstEnd - op) {
+                throw new IOException("Malformed block: literals out of bounds");
+            }
+            System.arraycopy(src, ip, dst, op, literalLen);
+            ip += literalLen;
+            op += literalLen;
+            // the last sequence has no match.
+            if (ip == end) return op - dstOff;
+
+            if (end - ip < 2) throw new IOException("Malformed block: truncated offset");
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOff) throw new IOException("Malformed block: offset out of bounds");
+
+            int matchLen = token & RUN_MASK;
+            if (matchLen == RUN_MASK) {
+                for (int b = 255; b == 255; ) {
+                    if (ip >= end) throw new IOException("Malformed block: truncated match length");
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                    if (matchLen > dstEnd - op) throw new IOException("Malformed block: match out of bounds");
+                }
+            }
+            matchLen += MIN_MATCH;
+            if (matchLen > dstEnd - op) throw new IOException("Malformed block: match out of bounds");
+
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, op, matchLen);
+                op += matchLen;
+            } else {
+                // the match overlaps with the bytes it produces; e.g. a run of the same byte.
+                for (int k = 0; k < matchLen; k++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+    }
+}
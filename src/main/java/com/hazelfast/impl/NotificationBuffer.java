@@ -0,0 +1,97 @@
+package com.hazelfast.impl;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static com.hazelfast.impl.IOUtil.LONG_AS_BYTES;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The changes waiting to be pushed to a subscribed connection. The changes are coalesced per key: if the connection
+ * lags behind, a key that changes again only has its latest value sent. So the memory of a slow subscriber is
+ * bounded by the number of keys it subscribed to, not by the rate of changes.
+ * <p>
+ * Changes are added by the threads executing the requests; the buffer is drained by the IO thread of the connection.
+ * The first change after a drain calls the wakeup, so the IO thread is signalled once per batch of changes.
+ */
+public final class NotificationBuffer {
+
+    private final Runnable wakeup;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // guarded by this.
+    private final LinkedHashMap<Long, Long> counters = new LinkedHashMap<>();
+    private final LinkedHashMap<String, byte[]> strings = new LinkedHashMap<>();
+
+    /**
+     * @param wakeup signals the IO thread of the connection that the buffer needs to be drained.
+     */
+    public NotificationBuffer(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    public void counterChanged(long id, long value) {
+        synchronized (this) {
+            counters.put(id, value);
+        }
+        schedule();
+    }
+
+    public void stringChanged(String key, byte[] value) {
+        synchronized (this) {
+            strings.put(key, value);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            wakeup.run();
+        }
+    }
+
+    /**
+     * Converts the buffered changes into notification frames. The wakeup is armed again before the buffer is
+     * drained, so a change that comes in during the drain isn't missed.
+     *
+     * @param pending       the queue the frames are added to.
+     * @param framePool     the pool to take the frames from.
+     * @param byteArrayPool the pool to take the byte-arrays from.
+     */
+    public void drainTo(ArrayDeque<Frame> pending, FramePool framePool, ByteArrayPool byteArrayPool) {
+        scheduled.set(false);
+        synchronized (this) {
+            for (Map.Entry<Long, Long> entry : counters.entrySet()) {
+                Frame frame = frame(1 + 2 * LONG_AS_BYTES, framePool, byteArrayPool);
+                frame.bytes[0] = DataStructures.COUNTER;
+                IOUtil.putLong(frame.bytes, 1, entry.getKey());
+                IOUtil.putLong(frame.bytes, 1 + LONG_AS_BYTES, entry.getValue());
+                pending.add(frame);
+            }
+            counters.clear();
+
+            for (Map.Entry<String, byte[]> entry : strings.entrySet()) {
+                byte[] key = entry.getKey().getBytes(UTF_8);
+                byte[] value = entry.getValue();
+                Frame frame = frame(1 + 2 * INT_AS_BYTES + key.length + value.length, framePool,
+                        byteArrayPool);
+                frame.bytes[0] = DataStructures.STRINGS;
+                IOUtil.putInt(frame.bytes, 1, key.length);
+                System.arraycopy(key, 0, frame.bytes, 1 + INT_AS_BYTES, key.length);
+                IOUtil.putInt(frame.bytes, 1 + INT_AS_BYTES + key.length, value.length);
+                System.arraycopy(value, 0, frame.bytes, 1 + 2 * INT_AS_BYTES + key.length, value.length);
+                pending.add(frame);
+            }
+            strings.clear();
+        }
+    }
+
+    private static Frame frame(int length, FramePool framePool, ByteArrayPool byteArrayPool) {
+        Frame frame = framePool.takeFromPool();
+        frame.bytes = byteArrayPool.takeFromPool(length);
+        frame.length = length;
+        return frame;
+    }
+}
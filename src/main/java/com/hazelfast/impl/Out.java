@@ -2,19 +2,112 @@ package com.hazelfast.impl;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Collects the response of a request. The buffer grows when needed, so a handler doesn't need to know the size of
+ * the response up front.
+ */
 public class Out {
 
-    private ByteBuffer bb;
+    private ByteBuffer bb = ByteBuffer.allocate(1024);
+    // the region of a value log segment that follows the bytes of the response; null if none.
+    private ValueLog.Segment file;
+    private long filePosition;
+    private int fileLength;
+
+    public void clear() {
+        bb.clear();
+        file = null;
+        filePosition = 0;
+        fileLength = 0;
+    }
+
+    /**
+     * Ends the response with a region of a value log segment; the region is transferred straight from the file to the
+     * channel instead of being copied into the response. Nothing can be written after the region.
+     */
+    public void fileRegion(ValueLog.Segment file, long position, int length) {
+        this.file = file;
+        this.filePosition = position;
+        this.fileLength = length;
+    }
+
+    public ValueLog.Segment file() {
+        return file;
+    }
+
+    public long filePosition() {
+        return filePosition;
+    }
+
+    public int fileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Returns the number of bytes written since the last {@link #clear()}.
+     */
+    public int length() {
+        return bb.position();
+    }
+
+    public void copyTo(byte[] dst) {
+        System.arraycopy(bb.array(), 0, dst, 0, bb.position());
+    }
 
     public void putString(String s){
+        ensureRemaining(IOUtil.INT_AS_BYTES);
         bb.putInt(s.length());
     }
 
     public void putLong(long result) {
+        ensureRemaining(IOUtil.LONG_AS_BYTES);
         bb.putLong(result);
     }
 
+    /**
+     * Writes a zigzag varint; see {@link IOUtil#putVarLong(ByteBuffer, long)}.
+     */
+    public void putVarLong(long value) {
+        ensureRemaining(10);
+        IOUtil.putVarLong(bb, value);
+    }
+
+    public void putInt(int value) {
+        ensureRemaining(IOUtil.INT_AS_BYTES);
+        bb.putInt(value);
+    }
+
+    /**
+     * Overwrites the int at the index; e.g. a count that is only known after writing the items.
+     */
+    public void putInt(int index, int value) {
+        bb.putInt(index, value);
+    }
+
     public void putByte(byte b) {
+        ensureRemaining(1);
         bb.put(b);
     }
+
+    public void putBytes(byte[] src, int offset, int length) {
+        ensureRemaining(length);
+        bb.put(src, offset, length);
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer; the position of the buffer is moved to its limit.
+     */
+    public void putBytes(ByteBuffer src) {
+        ensureRemaining(src.remaining());
+        bb.put(src);
+    }
+
+    private void ensureRemaining(int length) {
+        if (bb.remaining() >= length) return;
+
+        ByteBuffer newBb = ByteBuffer.allocate(Math.max(bb.capacity() * 2, bb.position() + length));
+        bb.flip();
+        newBb.put(bb);
+        bb = newBb;
+    }
 }
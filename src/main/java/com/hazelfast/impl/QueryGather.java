@@ -0,0 +1,98 @@
+package com.hazelfast.impl;
+
+/**
+ * Executes a query that needs the data of all partitions, like a top N on the counters. The request is copied for
+ * every partition; once all copies are processed, their responses are merged into the response of the request.
+ * <p>
+ * In staged mode the copies are processed by the workers and the attachment of each copy is the gather; the IO
+ * thread merges when the last copy comes back. Class is not thread-safe.
+ */
+public final class QueryGather {
+
+    private final Frame request;
+    private final Frame[] parts;
+    private int remaining;
+
+    /**
+     * @param request        the frame with the query; it stays untouched until {@link #merge(ByteArrayPool)}.
+     * @param partitionCount the number of partitions to query.
+     * @param pool           the pool the byte-arrays of the copies are taken from.
+     */
+    public QueryGather(Frame request, int partitionCount, ByteArrayPool pool) {
+        this.request = request;
+        this.parts = new Frame[partitionCount];
+        this.remaining = partitionCount;
+        for (int k = 0; k < partitionCount; k++) {
+            Frame part = new Frame();
+            part.bytes = pool.takeFromPool(request.length);
+            System.arraycopy(request.bytes, 0, part.bytes, 0, request.length);
+            part.length = request.length;
+            part.attachment = this;
+            parts[k] = part;
+        }
+    }
+
+    public Frame request() {
+        return request;
+    }
+
+    public Frame part(int partition) {
+        return parts[partition];
+    }
+
+    /**
+     * Marks a copy as processed.
+     *
+     * @return true if it was the last one, so the responses can be merged.
+     */
+    public boolean partProcessed() {
+        return --remaining == 0;
+    }
+
+    /**
+     * Checks if the processing of a copy failed; it then has a negative length.
+     */
+    public boolean failed() {
+        for (Frame part : parts) {
+            if (part.length < 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the content of the request by the merged responses and returns the byte-arrays of the copies.
+     */
+    public void merge(ByteArrayPool pool) {
+        // skip the type; the responses of the partitions have no type.
+        In in = new In();
+        in.init(request.bytes, 1, request.length - 1);
+        In[] responses = new In[parts.length];
+        for (int k = 0; k < parts.length; k++) {
+            responses[k] = new In();
+            responses[k].init(parts[k].bytes, 0, parts[k].length);
+        }
+        Out out = new Out();
+        CountersData.mergeQueryResults(in, responses, out);
+
+        int length = out.length();
+        if (request.bytes.length < length) {
+            pool.returnToPool(request.bytes);
+            request.bytes = pool.takeFromPool(length);
+        }
+        out.copyTo(request.bytes);
+        request.length = length;
+        release(pool);
+    }
+
+    /**
+     * Returns the byte-arrays of the copies without merging, e.g. when the query failed.
+     */
+    public void release(ByteArrayPool pool) {
+        for (Frame part : parts) {
+            if (part.bytes != null) {
+                pool.returnToPool(part.bytes);
+                part.bytes = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.hazelfast.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+
+/**
+ * FIFO queues of byte-array elements, identified by a long key. The elements are stored off-heap in a chain of
+ * segments; an element is written once when it is offered and copied into the response when it is polled. The
+ * segments of a queue grow from {@link #MIN_SEGMENT_SIZE} to {@link #MAX_SEGMENT_SIZE}, and the largest segments are
+ * recycled when they are drained, so a busy queue doesn't allocate.
+ * <p>
+ * A poll on an empty queue with a timeout is parked instead of answered: the request is kept by the queue and
+ * completed by the thread owning the partition once an element is offered or the timeout expires; see
+ * {@link #completeParked(long, ByteArrayPool, ParkedRequests)}. So a consumer waits for elements without polling.
+ * <p>
+ * A queue exists only while it has elements or parked polls; once it has neither, it is removed and its last
+ * segment released, so the keys that are used once don't accumulate.
+ * <p>
+ * Class is not thread-safe; it is owned by the thread owning the partition.
+ */
+public class QueuesData {
+    // request: key, element count, (element-length, element)*. response: the size of the queue after the offer.
+    public static final byte FUNCTION_OFFER_ALL = 1;
+    // request: key, max elements, timeout in ms. response: element count, (element-length, element)*. If the queue
+    // is empty and the timeout is positive, the request is parked.
+    public static final byte FUNCTION_POLL = 2;
+    // request: key. response: the size of the queue.
+    public static final byte FUNCTION_SIZE = 3;
+
+    // a poll stops taking elements once the response exceeds this size; so a single element can exceed it.
+    public static final int MAX_POLL_BYTES = 1024 * 1024;
+    static final int MIN_SEGMENT_SIZE = 1024;
+    static final int MAX_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_FREE_SEGMENTS = 16;
+    // the length that marks the end of the elements in a segment that isn't full.
+    private static final int END = -1;
+
+    // todo: the key generates litter, like the counters.
+    private final Map<Long, Queue> queues = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> freeSegments = new ArrayDeque<>();
+    // the queues with parked polls that were offered elements since the last completeParked.
+    private final ArrayDeque<Queue> readyQueues = new ArrayDeque<>();
+    // the queues with parked polls; a queue is removed lazily when it has no parked polls left.
+    private final ArrayList<Queue> parkedQueues = new ArrayList<>();
+    private final Out parkedOut = new Out();
+    // the earliest deadline of the parked polls; can be earlier than the actual one.
+    private long nextDeadlineMs = Long.MAX_VALUE;
+    // the poll to park; set when process returns true. The queue is null if it doesn't exist yet.
+    private boolean parkPending;
+    private long parkKey;
+    private Queue parkQueue;
+    private int parkMaxElements;
+    private long parkDeadlineMs;
+
+    /**
+     * Processes the request.
+     *
+     * @return true if the request is a poll that needs to be parked; the caller should call {@link #park(Frame)}
+     * with the frame of the request.
+     */
+    public boolean process(In in, Out out) {
+        byte function = in.getByte();
+        boolean compact = (function & COMPACT) != 0;
+        long key = compact ? in.getVarLong() : in.getLong();
+        switch (function & ~COMPACT) {
+            case FUNCTION_OFFER_ALL:
+                Queue queue = queue(key, true);
+                offerAll(queue, in);
+                putLong(out, queue.size, compact);
+                removeIfIdle(queue);
+                return false;
+            case FUNCTION_POLL:
+                return poll(key, in, out, compact);
+            case FUNCTION_SIZE:
+                queue = queue(key, false);
+                putLong(out, queue == null ? 0 : queue.size, compact);
+                return false;
+            default:
+                throw new IllegalStateException("Unrecognized function:" + function);
+        }
+    }
+
+    private static void putLong(Out out, long value, boolean compact) {
+        if (compact) {
+            out.putVarLong(value);
+        } else {
+            out.putLong(value);
+        }
+    }
+
+    private Queue queue(long key, boolean create) {
+        Queue queue = queues.get(key);
+        if (queue == null && create) {
+            queue = new Queue(key);
+            queues.put(key, queue);
+        }
+        return queue;
+    }
+
+    // removes the queue if it has no elements and no parked polls; a queue that was already removed is left alone,
+    // since its key can be used by a new queue.
+    private void removeIfIdle(Queue queue) {
+        if (queue.size != 0 || !queue.parked.isEmpty()) return;
+
+        queues.remove(queue.key, queue);
+        for (ByteBuffer segment; (segment = queue.segments.poll()) != null; ) {
+            releaseSegment(segment);
+        }
+        queue.headPosition = 0;
+        queue.tailPosition = 0;
+    }
+
+    private void offerAll(Queue queue, In in) {
+        int count = in.getInt();
+        if (count < 0) throw new IllegalStateException("Negative count:" + count);
+
+        for (int k = 0; k < count; k++) {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) throw new IllegalStateException("Invalid length:" + length);
+            append(queue, in, length);
+        }
+
+        if (count > 0 && !queue.parked.isEmpty() && !queue.ready) {
+            queue.ready = true;
+            readyQueues.add(queue);
+        }
+    }
+
+    private void append(Queue queue, In in, int length) {
+        int recordLength = INT_AS_BYTES + length;
+        ByteBuffer tail = queue.segments.peekLast();
+        if (tail == null || tail.capacity() - queue.tailPosition < recordLength) {
+            if (tail != null && tail.capacity() - queue.tailPosition >= INT_AS_BYTES) {
+                tail.putInt(queue.tailPosition, END);
+            }
+            tail = newSegment(recordLength, tail == null ? 0 : tail.capacity());
+            queue.segments.add(tail);
+            queue.tailPosition = 0;
+        }
+
+        tail.putInt(queue.tailPosition, length);
+        tail.position(queue.tailPosition + INT_AS_BYTES);
+        in.getBytes(tail, length);
+        tail.clear();
+        queue.tailPosition += recordLength;
+        queue.size++;
+    }
+
+    // the segments double in size, so a small queue stays small and a large queue has few segments.
+    private ByteBuffer newSegment(int minCapacity, int lastCapacity) {
+        int capacity = Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, lastCapacity * 2));
+        if (minCapacity > capacity) return ByteBuffer.allocateDirect(minCapacity);
+
+        if (capacity == MAX_SEGMENT_SIZE && !freeSegments.isEmpty()) return freeSegments.poll();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private void releaseSegment(ByteBuffer segment) {
+        if (segment.capacity() == MAX_SEGMENT_SIZE && freeSegments.size() < MAX_FREE_SEGMENTS) {
+            freeSegments.add(segment);
+        }
+    }
+
+    private boolean poll(long key, In in, Out out, boolean compact) {
+        int maxElements = in.getInt();
+        long timeoutMs = compact ? in.getVarLong() : in.getLong();
+        if (maxElements <= 0) throw new IllegalStateException("maxElements should be positive:" + maxElements);
+
+        Queue queue = queue(key, false);
+        if ((queue == null || queue.size == 0) && timeoutMs > 0) {
+            parkPending = true;
+            parkKey = key;
+            parkQueue = queue;
+            parkMaxElements = maxElements;
+            parkDeadlineMs = nowMs() + timeoutMs;
+            return true;
+        }
+
+        pollTo(queue, maxElements, out);
+        if (queue != null) removeIfIdle(queue);
+        return false;
+    }
+
+    // monotonic, unlike the wall clock.
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    // writes the element count followed by the elements; the queue can be null.
+    private void pollTo(Queue queue, int maxElements, Out out) {
+        int countIndex = out.length();
+        out.putInt(0);
+        int count = 0;
+        int bytes = 0;
+        while (queue != null && queue.size > 0 && count < maxElements && bytes < MAX_POLL_BYTES) {
+            bytes += pollElement(queue, out);
+            count++;
+        }
+        out.putInt(countIndex, count);
+    }
+
+    private int pollElement(Queue queue, Out out) {
+        ByteBuffer head = queue.segments.peekFirst();
+        if (queue.headPosition + INT_AS_BYTES > head.capacity() || head.getInt(queue.headPosition) == END) {
+            releaseSegment(queue.segments.poll());
+            head = queue.segments.peekFirst();
+            queue.headPosition = 0;
+        }
+
+        int length = head.getInt(queue.headPosition);
+        int start = queue.headPosition + INT_AS_BYTES;
+        out.putInt(length);
+        head.limit(start + length).position(start);
+        out.putBytes(head);
+        head.clear();
+        queue.headPosition = start + length;
+        queue.size--;
+
+        if (queue.size == 0) {
+            // the tail segment is reused from the start.
+            while (queue.segments.size() > 1) {
+                releaseSegment(queue.segments.poll());
+            }
+            queue.headPosition = 0;
+            queue.tailPosition = 0;
+        }
+        return INT_AS_BYTES + length;
+    }
+
+    /**
+     * Parks the poll the last call to {@link #process(In, Out)} asked to park.
+     *
+     * @param frame the frame containing the poll request; it will contain the response once the poll is
+     *              completed.
+     */
+    public void park(Frame frame) {
+        if (!parkPending) throw new IllegalStateException("There is no poll to park");
+
+        // the queue is created for the parked poll and removed again once it has no parked polls and no elements.
+        Queue queue = parkQueue == null ? queue(parkKey, true) : parkQueue;
+        if (queue.parked.isEmpty()) parkedQueues.add(queue);
+        queue.parked.add(new ParkedPoll(frame, parkMaxElements, parkDeadlineMs));
+        nextDeadlineMs = Math.min(nextDeadlineMs, parkDeadlineMs);
+        parkPending = false;
+        parkQueue = null;
+    }
+
+    // the number of queues that exist; for testing.
+    int queueCount() {
+        return queues.size();
+    }
+
+    public boolean hasParked() {
+        return !parkedQueues.isEmpty();
+    }
+
+    /**
+     * Returns the earliest time a parked poll can expire; Long.MAX_VALUE if there are no parked polls.
+     */
+    public long nextDeadlineMs() {
+        return nextDeadlineMs;
+    }
+
+    /**
+     * Completes the parked polls on queues that received elements, and the parked polls that expired; an expired
+     * poll gets an empty response.
+     *
+     * @param nowMs    the current time; see {@link System#nanoTime()}.
+     * @param pool     the pool to take a larger byte-array from if the response doesn't fit in the request array.
+     * @param requests receives the completed polls.
+     */
+    public void completeParked(long nowMs, ByteArrayPool pool, ParkedRequests requests) {
+        for (; ; ) {
+            Queue queue = readyQueues.poll();
+            if (queue == null) break;
+
+            queue.ready = false;
+            while (queue.size > 0) {
+                ParkedPoll poll = queue.parked.poll();
+                if (poll == null) break;
+                if (requests.isCancelled(poll.frame)) continue;
+
+                complete(queue, poll, pool, requests);
+            }
+            removeIfIdle(queue);
+        }
+
+        if (nowMs >= nextDeadlineMs) expire(nowMs, pool, requests);
+    }
+
+    private void expire(long nowMs, ByteArrayPool pool, ParkedRequests requests) {
+        long next = Long.MAX_VALUE;
+        for (Iterator<Queue> queueIt = parkedQueues.iterator(); queueIt.hasNext(); ) {
+            Queue queue = queueIt.next();
+            for (Iterator<ParkedPoll> it = queue.parked.iterator(); it.hasNext(); ) {
+                ParkedPoll poll = it.next();
+                if (requests.isCancelled(poll.frame)) {
+                    it.remove();
+                } else if (poll.deadlineMs <= nowMs) {
+                    it.remove();
+                    complete(queue, poll, pool, requests);
+                } else {
+                    next = Math.min(next, poll.deadlineMs);
+                }
+            }
+            if (queue.parked.isEmpty()) {
+                queueIt.remove();
+                removeIfIdle(queue);
+            }
+        }
+        nextDeadlineMs = next;
+    }
+
+    private void complete(Queue queue, ParkedPoll poll, ByteArrayPool pool, ParkedRequests requests) {
+        parkedOut.clear();
+        pollTo(queue, poll.maxElements, parkedOut);
+        RequestProcessor.writeResponse(parkedOut, poll.frame, pool);
+        requests.complete(poll.frame);
+    }
+
+    /**
+     * The thread owning the partition; it hands the completed polls back to their connections.
+     */
+    public interface ParkedRequests {
+
+        /**
+         * Checks if the parked poll should be dropped, e.g. since its connection is closed. A cancelled poll doesn't
+         * take elements.
+         */
+        boolean isCancelled(Frame frame);
+
+        /**
+         * Called when the parked poll is completed; the frame contains the response.
+         */
+        void complete(Frame frame);
+    }
+
+    private static final class Queue {
+        final long key;
+        final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>();
+        final ArrayDeque<ParkedPoll> parked = new ArrayDeque<>();
+        int headPosition;
+        int tailPosition;
+        long size;
+        boolean ready;
+
+        Queue(long key) {
+            this.key = key;
+        }
+    }
+
+    private static final class ParkedPoll {
+        final Frame frame;
+        final int maxElements;
+        final long deadlineMs;
+
+        ParkedPoll(Frame frame, int maxElements, long deadlineMs) {
+            this.frame = frame;
+            this.maxElements = maxElements;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+}
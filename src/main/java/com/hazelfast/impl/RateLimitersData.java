@@ -0,0 +1,152 @@
+package com.hazelfast.impl;
+
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+
+/**
+ * Token bucket rate limiters, identified by a long key. A try-acquire refills the bucket for the time passed since
+ * the last refill and takes the permits if there are enough tokens, in a single request on the thread owning the
+ * partition; so there are no races between clients.
+ * <p>
+ * The buckets are records in an off-heap open addressing table: key, state, tokens and time of the last refill. So
+ * a try-acquire doesn't create litter. A new bucket starts full. Buckets are never removed.
+ * <p>
+ * Class is not thread-safe; it is owned by the thread owning the partition.
+ */
+public class RateLimitersData {
+    // request: key, permits, rate (permits per second), burst (the capacity of the bucket). response: byte 1 if
+    // the permits were acquired, 0 otherwise.
+    public static final byte FUNCTION_TRY_ACQUIRE = 1;
+
+    private static final int KEY_OFFSET = 0;
+    private static final int STATE_OFFSET = 8;
+    private static final int TOKENS_OFFSET = 16;
+    private static final int REFILL_NANOS_OFFSET = 24;
+    private static final int RECORD_SIZE = 32;
+    private static final long USED = 1;
+
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+
+    public RateLimitersData() {
+        this(64);
+    }
+
+    /**
+     * @param initialCapacity the number of buckets to allocate memory for up front; rounded up to a power of two.
+     */
+    public RateLimitersData(int initialCapacity) {
+        this.capacity = ByteArrayPool.powerOfTwo(Math.max(2, initialCapacity * 2));
+        this.table = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+    }
+
+    public void process(In in, Out out) {
+        byte function = in.getByte();
+        boolean compact = (function & COMPACT) != 0;
+        switch (function & ~COMPACT) {
+            case FUNCTION_TRY_ACQUIRE:
+                tryAcquire(in, out, compact);
+                break;
+            default:
+                throw new IllegalStateException("Unrecognized function:" + function);
+        }
+    }
+
+    private static long getLong(In in, boolean compact) {
+        return compact ? in.getVarLong() : in.getLong();
+    }
+
+    private void tryAcquire(In in, Out out, boolean compact) {
+        long key = getLong(in, compact);
+        long permits = getLong(in, compact);
+        long rate = getLong(in, compact);
+        long burst = getLong(in, compact);
+        if (permits < 0 || rate < 0 || burst < 0) throw new IllegalStateException("Negative permits, rate or burst");
+
+        out.putByte(tryAcquire(key, permits, rate, burst, System.nanoTime()) ? (byte) 1 : (byte) 0);
+    }
+
+    /**
+     * Refills the bucket and takes the permits if there are enough tokens.
+     *
+     * @param nowNanos the current time; see {@link System#nanoTime()}.
+     * @return true if the permits were acquired.
+     */
+    public boolean tryAcquire(long key, long permits, long rate, long burst, long nowNanos) {
+        int record = find(key);
+        double tokens;
+        if (table.getLong(record + STATE_OFFSET) != USED) {
+            record = insert(record, key);
+            tokens = burst;
+        } else {
+            tokens = Double.longBitsToDouble(table.getLong(record + TOKENS_OFFSET));
+            long elapsedNanos = nowNanos - table.getLong(record + REFILL_NANOS_OFFSET);
+            if (elapsedNanos > 0) {
+                tokens = Math.min(burst, tokens + elapsedNanos * (rate / 1e9));
+            }
+        }
+
+        boolean acquired = tokens >= permits;
+        if (acquired) tokens -= permits;
+        table.putLong(record + TOKENS_OFFSET, Double.doubleToRawLongBits(tokens));
+        table.putLong(record + REFILL_NANOS_OFFSET, nowNanos);
+        return acquired;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // returns the offset of the record of the key, or of the empty record where it should be inserted.
+    private int find(long key) {
+        int mask = capacity - 1;
+        for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+            int record = slot * RECORD_SIZE;
+            if (table.getLong(record + STATE_OFFSET) != USED || table.getLong(record + KEY_OFFSET) == key) {
+                return record;
+            }
+        }
+    }
+
+    // the keys of a partition share the bits of the partition hash, so the slot is taken from a different hash.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int insert(int record, long key) {
+        // the load factor is kept below 0.5, so the probe sequences stay short.
+        if (2 * (size + 1) > capacity) {
+            grow();
+            record = find(key);
+        }
+        table.putLong(record + KEY_OFFSET, key);
+        table.putLong(record + STATE_OFFSET, USED);
+        size++;
+        return record;
+    }
+
+    private void grow() {
+        if (capacity > Integer.MAX_VALUE / RECORD_SIZE / 2) throw new IllegalStateException("Rate limiters are full");
+
+        ByteBuffer oldTable = table;
+        int oldCapacity = capacity;
+        capacity *= 2;
+        table = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int oldRecord = slot * RECORD_SIZE;
+            if (oldTable.getLong(oldRecord + STATE_OFFSET) != USED) continue;
+
+            int record = find(oldTable.getLong(oldRecord + KEY_OFFSET));
+            for (int offset = 0; offset < RECORD_SIZE; offset += IOUtil.LONG_AS_BYTES) {
+                table.putLong(record + offset, oldTable.getLong(oldRecord + offset));
+            }
+        }
+    }
+}
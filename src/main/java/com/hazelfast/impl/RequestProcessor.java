@@ -0,0 +1,59 @@
+package com.hazelfast.impl;
+
+/**
+ * Executes the request in a frame against a {@link DataStructures} and replaces the content of the frame by the
+ * response. A ping request is left untouched, so it is echoed.
+ * <p>
+ * Class is not thread-safe; each thread that processes requests has its own instance.
+ */
+public final class RequestProcessor {
+
+    private final In in = new In();
+    private final Out out = new Out();
+
+    /**
+     * Processes the frame.
+     *
+     * @param ds    the data structures to execute the request on.
+     * @param frame the frame containing the request; will contain the response afterwards.
+     * @param pool  the pool to take a larger byte-array from if the response doesn't fit in the request array.
+     * @return false if the request is a poll that is parked; the frame gets its response when the poll is
+     * completed, see {@link QueuesData#completeParked(long, ByteArrayPool, QueuesData.ParkedRequests)}.
+     */
+    public boolean process(DataStructures ds, Frame frame, ByteArrayPool pool) {
+        if (DataStructures.isPing(frame)) return true;
+
+        in.init(frame.bytes, 0, frame.length);
+        out.clear();
+        if (ds.dispatch(in, out)) {
+            ds.queues.park(frame);
+            return false;
+        }
+        writeResponse(out, frame, pool);
+        return true;
+    }
+
+    /**
+     * Processes the subscription request in the frame; see {@link DataStructures#subscribe(In, Out,
+     * NotificationBuffer)}.
+     */
+    public void subscribe(DataStructures ds, Frame frame, NotificationBuffer subscriber, ByteArrayPool pool) {
+        in.init(frame.bytes, 0, frame.length);
+        out.clear();
+        ds.subscribe(in, out, subscriber);
+        writeResponse(out, frame, pool);
+    }
+
+    static void writeResponse(Out out, Frame frame, ByteArrayPool pool) {
+        int length = out.length();
+        if (frame.bytes.length < length) {
+            pool.returnToPool(frame.bytes);
+            frame.bytes = pool.takeFromPool(length);
+        }
+        out.copyTo(frame.bytes);
+        frame.length = length;
+        frame.file = out.file();
+        frame.filePosition = out.filePosition();
+        frame.fileLength = out.fileLength();
+    }
+}
@@ -0,0 +1,135 @@
+package com.hazelfast.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.nio.channels.Channel;
+
+/**
+ * The JDK Flight Recorder events of the IO threads of the server. They make it possible to correlate a latency spike
+ * with what the server was doing at the time, e.g. a select loop iteration that took long or a slow request.
+ * <p>
+ * The events are only created if enabled in the server context, so this class is never loaded otherwise and a JDK
+ * without Flight Recorder can still run the server; see {@link IOUtil#isFlightRecorderAvailable()}. Once created, an
+ * event is only recorded while a recording with the event enabled is running. The thresholds are defaults; like those
+ * of the JDK events, they can be changed in the settings of the recording.
+ */
+public final class ServerEvents {
+
+    private static final String CATEGORY = "Hazelfast";
+
+    private ServerEvents() {
+    }
+
+    public static void connectionRegistered(Channel channel, boolean migrated) {
+        ConnectionRegistered event = new ConnectionRegistered();
+        if (!event.isEnabled()) return;
+
+        event.channel = channel.toString();
+        event.migrated = migrated;
+        event.commit();
+    }
+
+    public static void slowRequest(Channel channel, byte type, byte function, int length, long dispatchNanos) {
+        SlowRequest event = new SlowRequest();
+        if (!event.isEnabled()) return;
+
+        event.channel = channel.toString();
+        event.type = type;
+        event.function = function;
+        event.length = length;
+        event.dispatchTime = dispatchNanos;
+        event.commit();
+    }
+
+    @Name("com.hazelfast.SelectLoop")
+    @Label("Select Loop")
+    @Category(CATEGORY)
+    @Description("An iteration of the select loop of an IO thread; without the time blocked in the select")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static final class SelectLoop extends Event {
+        @Label("Selected Keys")
+        public int selectedKeys;
+
+        @Label("Frames Read")
+        public long frames;
+    }
+
+    @Name("com.hazelfast.ConnectionRegistered")
+    @Label("Connection Registered")
+    @Category(CATEGORY)
+    @Description("A connection registered with an IO thread: accepted, attached or migrated from another IO thread")
+    @StackTrace(false)
+    public static final class ConnectionRegistered extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Migrated")
+        public boolean migrated;
+    }
+
+    @Name("com.hazelfast.Read")
+    @Label("Read")
+    @Category(CATEGORY)
+    @Description("A read of a connection and the dispatch of the frames in it")
+    @StackTrace(false)
+    @Threshold("100 us")
+    public static final class Read extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Frames")
+        public long frames;
+    }
+
+    @Name("com.hazelfast.Write")
+    @Label("Write")
+    @Category(CATEGORY)
+    @Description("A write of the pending frames of a connection")
+    @StackTrace(false)
+    @Threshold("100 us")
+    public static final class Write extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.hazelfast.SlowRequest")
+    @Label("Slow Request")
+    @Category(CATEGORY)
+    @Description("A request whose dispatch by the IO thread took longer than the slow request threshold")
+    @StackTrace(false)
+    public static final class SlowRequest extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Type")
+        public byte type;
+
+        @Label("Function")
+        public byte function;
+
+        @Label("Length")
+        @DataAmount
+        public int length;
+
+        @Label("Dispatch Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long dispatchTime;
+    }
+}
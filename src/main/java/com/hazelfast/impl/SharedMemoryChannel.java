@@ -0,0 +1,198 @@
+package com.hazelfast.impl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * A ByteChannel between 2 processes on the same machine using a pair of {@link ByteRing}s in a memory mapped file.
+ * The client creates the file and writes into the first ring; the server opens the file and writes into the second
+ * ring. The reads and writes never block; a read returns 0 if no data is available and a write returns 0 if the
+ * ring is full.
+ * <p>
+ * Layout of the file: a header with the magic number, the capacity of the rings and the closed flags of both
+ * sides, followed by the 2 rings.
+ */
+public final class SharedMemoryChannel implements ByteChannel {
+
+    private static final int MAGIC = 0x48465348;
+    private static final int HEADER_SIZE = 128;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CLIENT_CLOSED_OFFSET = 8;
+    private static final int SERVER_CLOSED_OFFSET = 12;
+    // a random UUID, so the name of the file of another client can't be guessed.
+    private static final Pattern FILE_NAME = Pattern.compile(
+            "hazelfast-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final Path path;
+    private final MappedByteBuffer mapped;
+    private final ByteRing in;
+    private final ByteRing out;
+    private final boolean client;
+    private boolean open = true;
+
+    private SharedMemoryChannel(Path path, MappedByteBuffer mapped, int capacity, boolean client) {
+        this.path = path;
+        this.mapped = mapped;
+        this.client = client;
+        ByteRing first = new ByteRing(slice(mapped, HEADER_SIZE, ByteRing.bufferSize(capacity)));
+        ByteRing second = new ByteRing(slice(mapped, HEADER_SIZE + ByteRing.bufferSize(capacity),
+                ByteRing.bufferSize(capacity)));
+        this.out = client ? first : second;
+        this.in = client ? second : first;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    /**
+     * Returns a new name for the file of a channel; see {@link #isFileName(String)}.
+     */
+    public static String newFileName() {
+        return "hazelfast-" + UUID.randomUUID();
+    }
+
+    /**
+     * Checks if the name could have been returned by {@link #newFileName()}.
+     */
+    public static boolean isFileName(String name) {
+        return FILE_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Creates the file and opens the client side of the channel.
+     *
+     * @param path     the file; e.g. in /dev/shm so it is backed by memory.
+     * @param capacity the capacity of each ring; needs to be a power of two.
+     * @return the created channel.
+     * @throws IOException if the file can't be created.
+     */
+    public static SharedMemoryChannel create(Path path, int capacity) throws IOException {
+        int size = HEADER_SIZE + 2 * ByteRing.bufferSize(capacity);
+        MappedByteBuffer mapped = map(path, size);
+        mapped.putInt(CAPACITY_OFFSET, capacity);
+        mapped.putInt(MAGIC_OFFSET, MAGIC);
+        return new SharedMemoryChannel(path, mapped, capacity, true);
+    }
+
+    /**
+     * Opens the server side of a channel created by {@link #create(Path, int)}. The file is created by the client, so
+     * its size is checked before it is mapped.
+     *
+     * @param path        the file.
+     * @param maxCapacity the max capacity of each ring.
+     * @return the opened channel.
+     * @throws IOException if the file can't be opened, is larger than rings of the max capacity or isn't a shared
+     *                     memory channel file.
+     */
+    public static SharedMemoryChannel open(Path path, int maxCapacity) throws IOException {
+        long size = Files.size(path);
+        if (size < HEADER_SIZE || size > HEADER_SIZE + 2L * ByteRing.bufferSize(maxCapacity)) {
+            throw new IOException(path + " has a size of " + size + " bytes; the max ring capacity is " + maxCapacity);
+        }
+
+        MappedByteBuffer mapped = map(path, (int) size);
+        try {
+            if (mapped.getInt(MAGIC_OFFSET) != MAGIC) throw new IOException(path + " is not a shared memory channel");
+
+            int capacity = mapped.getInt(CAPACITY_OFFSET);
+            if (capacity <= 0 || capacity > maxCapacity
+                    || size != HEADER_SIZE + 2L * ByteRing.bufferSize(capacity)) {
+                throw new IOException(path + " has an unexpected size");
+            }
+            return new SharedMemoryChannel(path, mapped, capacity, false);
+        } catch (IOException | RuntimeException e) {
+            IOUtil.unmap(mapped);
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            // the mapping remains valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Checks if there is data to read without reading it.
+     */
+    public boolean hasData() {
+        // the rings are unmapped once closed.
+        return open && !in.isEmpty();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new ClosedChannelException();
+
+        int read = in.read(dst);
+        if (read == 0 && isPeerClosed()) {
+            // the peer could have written data just before closing.
+            read = in.read(dst);
+            return read == 0 ? -1 : read;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (isPeerClosed()) throw new IOException("Channel " + path + " closed on the other side");
+
+        return out.write(src);
+    }
+
+    private boolean isPeerClosed() {
+        // the data written before closing is still read since the ring is checked first.
+        return mapped.getInt(client ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET) != 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes this side of the channel and unmaps the file, so the memory is released right away instead of once the
+     * buffer is garbage collected. The client also removes the file; the memory is freed once both sides unmapped it.
+     * The channel can't be used by another thread while it is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+
+        open = false;
+        mapped.putInt(client ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET, 1);
+        try {
+            if (client) {
+                Files.deleteIfExists(path);
+            }
+        } finally {
+            IOUtil.unmap(mapped);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemoryChannel(" + path + ")";
+    }
+}
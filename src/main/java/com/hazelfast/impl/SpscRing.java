@@ -0,0 +1,80 @@
+package com.hazelfast.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free single producer single consumer ring.
+ * <p>
+ * The producer and consumer each cache the last seen sequence of the other side, so the shared sequences are only
+ * read when the ring looks full or empty.
+ *
+ * @param <E> the type of the elements.
+ */
+public final class SpscRing<E> {
+
+    private final Object[] array;
+    private final int mask;
+    // padding isn't needed for the sequences themselves since they are in different objects.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // only accessed by the producer.
+    private long cachedHead;
+    // only accessed by the consumer.
+    private long cachedTail;
+
+    public SpscRing(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity should be larger than 0, capacity=" + capacity);
+
+        int size = ByteArrayPool.powerOfTwo(capacity);
+        this.array = new Object[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    /**
+     * Offers an element. Should only be called by the producer.
+     *
+     * @param e the element.
+     * @return true if the element was added, false if the ring is full.
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException("e can't be null");
+
+        long t = tail.get();
+        if (t - cachedHead == array.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == array.length) return false;
+        }
+
+        array[(int) (t & mask)] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes an element. Should only be called by the consumer.
+     *
+     * @return the element or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == cachedTail) {
+            cachedTail = tail.get();
+            if (h == cachedTail) return null;
+        }
+
+        int index = (int) (h & mask);
+        E e = (E) array[index];
+        array[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+}
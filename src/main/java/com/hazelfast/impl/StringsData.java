@@ -1,38 +1,367 @@
 package com.hazelfast.impl;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import static com.hazelfast.impl.IOUtil.INT_AS_BYTES;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The strings; the keys and values are byte-arrays, a String is stored in UTF-8 by the client.
+ * <p>
+ * A batch request is a sequence of single requests without a count: the requests run till the end of the frame. So
+ * the first key is at the same position as the key of a single request, and the batch is routed on its first key;
+ * except for a load, where it follows the expected entries; see {@link #keyOffset(byte)}. All keys of a batch should
+ * be in the same partition.
+ * <p>
+ * If there is a {@link ValueLog}, the large values are stored in the log instead of on the heap. A single get of
+ * such a value ends the response with the file region of the value, so it is transferred straight from the log to
+ * the socket; a batch get copies it into the response.
+ * <p>
+ * With a memory budget the strings are tiered: the keys are always on the heap, but the least recently used values
+ * are demoted to the value log once the values on the heap exceed the budget. A get of a demoted value promotes it
+ * again. A value larger than the whole budget is never on the heap, since it would demote all other values and then
+ * itself. So a partition can hold more data than fits in memory, while the hot keys are served from the heap.
+ */
 public class StringsData {
+    // request: key-length, key. response: value-length (-1 if null), value
     public static final byte FUNCTION_GET = 1;
+    // request: key-length, key, value-length, value. response: byte 1
     public static final byte FUNCTION_SET = 2;
+    // request: (key-length, key)*. response: (value-length (-1 if null), value)*
+    public static final byte FUNCTION_GET_ALL = 3;
+    // request: (key-length, key, value-length, value)*. response: byte 1
+    public static final byte FUNCTION_SET_ALL = 4;
+    // request: the number of entries the bulk load still sends to the partition including these,
+    // (key-length, key, value-length, value)*. response: the number of entries set. The expected entries are a hint
+    // to size the map at once.
+    public static final byte FUNCTION_LOAD = 5;
+
+    // the number of bytes of live entries compaction copies per step.
+    static final int COMPACTION_STEP_BYTES = 256 * 1024;
 
     // todo: should be replaced by offheap data-structure
-    // currently the key generates litter.
-    private final Map<String, String> counters = new HashMap<>();
-    private final StringBuilder s1 = new StringBuilder();
-    private final StringBuilder s2 = new StringBuilder();
+    // the maps are keyed by a ByteBuffer wrapping the key bytes; ByteBuffer equality is on the content. A lookup uses
+    // the keyBuffer over the keyBytes, so only a new key generates litter. A key is in one of the maps.
+    // the values on the heap; in access order if there is a memory budget, so the eldest entry is the coldest.
+    private Map<ByteBuffer, byte[]> hot;
+    // the values in the value log: the large values and the cold values that were demoted. Empty if there is no log.
+    private Map<ByteBuffer, ValueLog.Entry> logged = new HashMap<>();
+    // the number of entries the maps have been sized for by a load.
+    private long reserved;
+    private byte[] keyBytes = new byte[64];
+    private ByteBuffer keyBuffer = ByteBuffer.wrap(keyBytes);
+    // the connections to notify of changes; null if notifications are disabled.
+    private final Subscriptions subscriptions;
+    // null if the values are stored on the heap only.
+    private final ValueLog valueLog;
+    private final long memoryBudget;
+    // the bytes of the values on the heap.
+    private long hotBytes;
+
+    public StringsData() {
+        this(null, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param subscriptions the connections to notify of changes; null if notifications are disabled.
+     * @param valueLog      the log to store the large and cold values in; null if all values are stored on the heap.
+     * @param memoryBudget  the maximum number of bytes of the values on the heap; the least recently used values are
+     *                      demoted to the value log beyond it. Long.MAX_VALUE if the values are never demoted.
+     */
+    public StringsData(Subscriptions subscriptions, ValueLog valueLog, long memoryBudget) {
+        if (memoryBudget != Long.MAX_VALUE && valueLog == null) {
+            throw new IllegalArgumentException("A memory budget requires a value log");
+        }
+        this.subscriptions = subscriptions;
+        this.valueLog = valueLog;
+        this.memoryBudget = memoryBudget;
+        this.hot = memoryBudget == Long.MAX_VALUE ? new HashMap<>() : new LinkedHashMap<>(16, 0.75f, true);
+    }
 
     public void process(In in, Out out) {
         byte function = in.getByte();
         switch (function) {
             case FUNCTION_GET:
-                get(in, out);
+                get(in, out, true);
                 break;
             case FUNCTION_SET:
-                set(in, out);
+                set(in);
+                out.putByte((byte) 1);
+                break;
+            case FUNCTION_GET_ALL:
+                while (in.remaining() > 0) {
+                    get(in, out, false);
+                }
+                break;
+            case FUNCTION_SET_ALL:
+                while (in.remaining() > 0) {
+                    set(in);
+                }
+                out.putByte((byte) 1);
+                break;
+            case FUNCTION_LOAD:
+                load(in, out);
                 break;
             default:
                 throw new IllegalStateException("Unrecognized function:" + function);
         }
     }
 
-    private void get(In in, Out out) {
+    /**
+     * @param last true if the value ends the response, so a logged value can be sent as a file region.
+     */
+    private void get(In in, Out out, boolean last) {
+        ByteBuffer key = readKey(in);
+        byte[] bytes = hot.get(key);
+        ValueLog.Entry entry = null;
+        if (bytes == null && !logged.isEmpty()) {
+            entry = logged.get(key);
+            if (entry != null && !isLogged(entry.length())) {
+                // a demoted value is promoted, so a key that turns hot again is served from the heap.
+                bytes = promote(key, entry);
+                entry = null;
+            }
+        }
 
+        if (bytes != null) {
+            out.putInt(bytes.length);
+            out.putBytes(bytes, 0, bytes.length);
+        } else if (entry == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(entry.length());
+            if (last) {
+                valueLog.fileRegion(entry, out);
+            } else {
+                valueLog.copyTo(entry, out);
+            }
+        }
     }
 
-    private void set(In in, Out out) {
+    private byte[] promote(ByteBuffer key, ValueLog.Entry entry) {
+        byte[] bytes = valueLog.toBytes(entry);
+        logged.remove(key);
+        valueLog.free(entry);
+        hot.put(copyKey(key), bytes);
+        hotBytes += bytes.length;
+        demote();
+        return bytes;
+    }
 
+    private void set(In in) {
+        ByteBuffer key = readKey(in);
+        set(key, in, readLength(in));
     }
-}
 
+    private void set(ByteBuffer key, In in, int valueLength) {
+        byte[] bytes = null;
+        ValueLog.Entry entry = null;
+        if (isLogged(valueLength)) {
+            entry = valueLog.append(in, valueLength);
+            setLogged(key, entry);
+        } else {
+            bytes = new byte[valueLength];
+            in.getBytes(bytes, 0, valueLength);
+            setHot(key, bytes);
+        }
+
+        if (subscriptions != null && subscriptions.hasPrefixSubscriptions()) {
+            if (bytes == null) bytes = valueLog.toBytes(entry);
+            subscriptions.stringChanged(new String(keyBytes, 0, key.limit(), UTF_8), bytes);
+        }
+    }
+
+    // checks if a value of the length is stored in the value log rather than on the heap.
+    private boolean isLogged(int valueLength) {
+        return valueLog != null && (valueLog.accepts(valueLength) || valueLength > memoryBudget);
+    }
+
+    // replace keeps the existing key, so the key bytes only need to be copied for a key that is new in the map.
+    private void setHot(ByteBuffer key, byte[] bytes) {
+        byte[] old = hot.replace(key, bytes);
+        if (old != null) {
+            hotBytes -= old.length;
+        } else {
+            ValueLog.Entry oldEntry = logged.isEmpty() ? null : logged.remove(key);
+            if (oldEntry != null) valueLog.free(oldEntry);
+            hot.put(copyKey(key), bytes);
+        }
+        hotBytes += bytes.length;
+        demote();
+    }
+
+    private void setLogged(ByteBuffer key, ValueLog.Entry entry) {
+        ValueLog.Entry old = logged.replace(key, entry);
+        if (old != null) {
+            valueLog.free(old);
+            return;
+        }
+
+        byte[] oldBytes = hot.remove(key);
+        if (oldBytes != null) hotBytes -= oldBytes.length;
+        logged.put(copyKey(key), entry);
+    }
+
+    // the sequential insert path: an entry is inserted with a single lookup instead of a replace and a put, and the
+    // memory budget is applied once per load request instead of per entry.
+    private void load(In in, Out out) {
+        int expected = in.getInt();
+        if (expected < 0) throw new IllegalStateException("Invalid expected entries:" + expected);
+
+        reserve(expected);
+        boolean notify = subscriptions != null && subscriptions.hasPrefixSubscriptions();
+        int count = 0;
+        while (in.remaining() > 0) {
+            count++;
+            ByteBuffer key = readKey(in);
+            int valueLength = readLength(in);
+            if (notify || isLogged(valueLength)) {
+                set(key, in, valueLength);
+                continue;
+            }
+
+            byte[] bytes = new byte[valueLength];
+            in.getBytes(bytes, 0, valueLength);
+            // the key is copied up front since most keys of a load are new.
+            ByteBuffer copy = copyKey(key);
+            byte[] old = hot.put(copy, bytes);
+            if (old != null) {
+                hotBytes -= old.length;
+            } else if (!logged.isEmpty()) {
+                ValueLog.Entry oldEntry = logged.remove(copy);
+                if (oldEntry != null) valueLog.free(oldEntry);
+            }
+            hotBytes += bytes.length;
+        }
+        demote();
+        out.putInt(count);
+    }
+
+    // sizes the map the values end up in for the expected entries at once, instead of doubling it repeatedly.
+    private void reserve(long expected) {
+        long size = size();
+        long needed = size + expected;
+        if (needed <= reserved) return;
+
+        // at least doubles, so a load without a good hint isn't rebuilding the map for every request.
+        reserved = Math.max(needed, 2 * Math.max(reserved, size));
+        int capacity = IOUtil.mapCapacity(reserved);
+        if (memoryBudget == Long.MAX_VALUE) {
+            Map<ByteBuffer, byte[]> map = new HashMap<>(capacity);
+            map.putAll(hot);
+            hot = map;
+        } else {
+            // beyond the budget, most values end up in the log.
+            Map<ByteBuffer, ValueLog.Entry> map = new HashMap<>(capacity);
+            map.putAll(logged);
+            logged = map;
+        }
+    }
+
+    // moves the least recently used values to the value log till the hot values fit in the memory budget.
+    private void demote() {
+        if (hotBytes <= memoryBudget) return;
+
+        for (Iterator<Map.Entry<ByteBuffer, byte[]>> it = hot.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ByteBuffer, byte[]> coldest = it.next();
+            it.remove();
+            byte[] bytes = coldest.getValue();
+            hotBytes -= bytes.length;
+            logged.put(coldest.getKey(), valueLog.append(bytes));
+            if (hotBytes <= memoryBudget) return;
+        }
+    }
+
+    /**
+     * Executes a step of the compaction of the value log; see {@link ValueLog#compact(int)}.
+     *
+     * @return true if there is more work.
+     */
+    public boolean compact() {
+        return valueLog != null && valueLog.compact(COMPACTION_STEP_BYTES);
+    }
+
+    public int size() {
+        return hot.size() + logged.size();
+    }
+
+    /**
+     * Returns the number of bytes of the values on the heap.
+     */
+    public long hotBytes() {
+        return hotBytes;
+    }
+
+    private ByteBuffer copyKey(ByteBuffer key) {
+        return ByteBuffer.wrap(Arrays.copyOf(keyBytes, key.limit()));
+    }
+
+    // returns the keyBuffer containing the key; only valid till the next key is read.
+    private ByteBuffer readKey(In in) {
+        int keyLength = readLength(in);
+        if (keyBytes.length < keyLength) {
+            keyBytes = new byte[ByteArrayPool.powerOfTwo(keyLength)];
+            keyBuffer = ByteBuffer.wrap(keyBytes);
+        }
+        in.getBytes(keyBytes, 0, keyLength);
+        keyBuffer.clear();
+        keyBuffer.limit(keyLength);
+        return keyBuffer;
+    }
+
+    private static int readLength(In in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) throw new IllegalStateException("Invalid length:" + length);
+        return length;
+    }
+
+    public static boolean isBatch(byte function) {
+        return function == FUNCTION_GET_ALL || function == FUNCTION_SET_ALL || function == FUNCTION_LOAD;
+    }
+
+    /**
+     * Returns the offset in the request of the length of the first key; the request starts with the type.
+     */
+    public static int keyOffset(byte function) {
+        return function == FUNCTION_LOAD ? 2 + INT_AS_BYTES : 2;
+    }
+
+    /**
+     * Checks if all keys of the batch request are in the same partition.
+     *
+     * @param bytes  the request; starting with the type.
+     * @param length the length of the request.
+     */
+    static boolean isSinglePartition(byte[] bytes, int length, int partitionCount) {
+        boolean values = bytes[1] == FUNCTION_SET_ALL || bytes[1] == FUNCTION_LOAD;
+        int partition = -1;
+        for (int position = keyOffset(bytes[1]); position < length; ) {
+            if (position + INT_AS_BYTES > length) return false;
+            int keyLength = IOUtil.getInt(bytes, position);
+            position += INT_AS_BYTES;
+            if (keyLength < 0 || keyLength > length - position) return false;
+
+            int keyPartition = DataStructures.stringPartitionHash(bytes, position, keyLength) % partitionCount;
+            if (partition == -1) {
+                partition = keyPartition;
+            } else if (partition != keyPartition) {
+                return false;
+            }
+            position += keyLength;
+
+            if (values) {
+                if (position + INT_AS_BYTES > length) return false;
+                int valueLength = IOUtil.getInt(bytes, position);
+                position += INT_AS_BYTES;
+                if (valueLength < 0 || valueLength > length - position) return false;
+                position += valueLength;
+            }
+        }
+        return true;
+    }
+}
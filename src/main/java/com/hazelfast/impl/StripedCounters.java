@@ -0,0 +1,163 @@
+package com.hazelfast.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counters that are shared by all threads and spread over stripes, for ids that are too hot to be owned by a single
+ * partition. An increment is added to the stripe of the calling thread, so threads don't contend on a cache line
+ * for the write. A get sums the stripes.
+ * <p>
+ * A set and cas need a consistent value; they take the lock of the counter and drain the stripes into the base value
+ * first. An increment that drains before the set or cas, happened before it; one after it is added on top of the new
+ * value. Readers don't lock; the version of the counter is odd while the stripes are drained, and a reader retries
+ * if it runs into a drain. The result of an increment is the sum at the time of reading, so with concurrent
+ * increments it could already include increments of other threads.
+ * <p>
+ * The ids are fixed at construction, so the table of the counters is never modified and can be read by all threads
+ * without locking. This class is thread-safe.
+ */
+public final class StripedCounters {
+
+    // the stripes are 64 bytes apart, so each stripe has its own cache line.
+    private static final int PADDING = 8;
+
+    // open addressing on the ids, so a lookup doesn't box the id; an empty slot has no counter.
+    private final long[] ids;
+    private final Counter[] counters;
+    private final int mask;
+    private final int stripeCount;
+
+    /**
+     * @param ids         the ids of the striped counters.
+     * @param stripeCount the number of stripes of each counter; typically the number of threads updating them.
+     */
+    public StripedCounters(long[] ids, int stripeCount) {
+        this.stripeCount = stripeCount;
+        // the load factor is kept below 0.5, so the probe sequences stay short.
+        int capacity = ByteArrayPool.powerOfTwo(2 * ids.length + 1);
+        this.ids = new long[capacity];
+        this.counters = new Counter[capacity];
+        this.mask = capacity - 1;
+        for (long id : ids) {
+            int slot = slot(id);
+            if (counters[slot] == null) {
+                this.ids[slot] = id;
+                counters[slot] = new Counter(stripeCount);
+            }
+        }
+    }
+
+    // returns the slot of the id, or the empty slot where it should be inserted.
+    private int slot(long id) {
+        for (int slot = (int) mix(id) & mask; ; slot = (slot + 1) & mask) {
+            if (counters[slot] == null || ids[slot] == id) return slot;
+        }
+    }
+
+    // the ids are often sequential, so the slot is taken from a mixed hash.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // returns null if the id isn't a striped counter.
+    private Counter counter(long id) {
+        return counters[slot(id)];
+    }
+
+    public int stripeCount() {
+        return stripeCount;
+    }
+
+    public boolean contains(long id) {
+        return counter(id) != null;
+    }
+
+    /**
+     * Adds the amount to the stripe.
+     *
+     * @param stripe the stripe of the calling thread; wraps around if larger than the stripe count.
+     * @return the value of the counter after the increment.
+     */
+    public long inc(long id, int stripe, long amount) {
+        Counter counter = counter(id);
+        counter.stripes.getAndAdd(((stripe & Integer.MAX_VALUE) % stripeCount) * PADDING, amount);
+        return sum(counter);
+    }
+
+    /**
+     * Returns the value of the counter; the sum of the stripes.
+     */
+    public long get(long id) {
+        return sum(counter(id));
+    }
+
+    public void set(long id, long value) {
+        Counter counter = counter(id);
+        counter.lock.lock();
+        try {
+            counter.version++;
+            drain(counter);
+            counter.base = value;
+            counter.version++;
+        } finally {
+            counter.lock.unlock();
+        }
+    }
+
+    public boolean cas(long id, long oldValue, long newValue) {
+        Counter counter = counter(id);
+        counter.lock.lock();
+        try {
+            counter.version++;
+            drain(counter);
+            boolean success = counter.base == oldValue;
+            if (success) counter.base = newValue;
+            counter.version++;
+            return success;
+        } finally {
+            counter.lock.unlock();
+        }
+    }
+
+    // a reader that runs into a set or cas retries, so it never sees the stripes drained without the base.
+    private long sum(Counter counter) {
+        for (; ; ) {
+            long version = counter.version;
+            if ((version & 1) == 0) {
+                long sum = counter.base;
+                for (int stripe = 0; stripe < stripeCount; stripe++) {
+                    sum += counter.stripes.get(stripe * PADDING);
+                }
+                if (counter.version == version) return sum;
+            }
+            Thread.yield();
+        }
+    }
+
+    private void drain(Counter counter) {
+        long base = counter.base;
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            base += counter.stripes.getAndSet(stripe * PADDING, 0);
+        }
+        counter.base = base;
+    }
+
+    private static final class Counter {
+        private final AtomicLongArray stripes;
+        // serializes the set and cas.
+        private final ReentrantLock lock = new ReentrantLock();
+        // only written while holding the lock.
+        private volatile long version;
+        private volatile long base;
+
+        Counter(int stripeCount) {
+            this.stripes = new AtomicLongArray(stripeCount * PADDING);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.hazelfast.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The connections subscribed to changes of counters and strings; shared by all partitions. A connection subscribes
+ * to a counter by id, and to strings by key prefix; the empty prefix matches all keys. Every change of a subscribed
+ * key is added to the {@link NotificationBuffer} of the connection.
+ * <p>
+ * The subscriptions change rarely compared to the data, so they are copy on write: a change checks them without
+ * locking, and without litter when there are no subscriptions.
+ * <p>
+ * A subscription request is: function, id or (prefix-length, prefix). The response is: SUBSCRIPTIONS, byte 1.
+ * A notification is: COUNTER, id, value or: STRINGS, key-length, key, value-length, value.
+ * <p>
+ * Class is thread-safe.
+ */
+public final class Subscriptions {
+    public static final byte FUNCTION_SUBSCRIBE_COUNTER = 1;
+    public static final byte FUNCTION_UNSUBSCRIBE_COUNTER = 2;
+    public static final byte FUNCTION_SUBSCRIBE_PREFIX = 3;
+    public static final byte FUNCTION_UNSUBSCRIBE_PREFIX = 4;
+
+    private static final NotificationBuffer[] EMPTY = new NotificationBuffer[0];
+
+    private final ConcurrentHashMap<Long, NotificationBuffer[]> counters = new ConcurrentHashMap<>();
+    private volatile boolean hasCounterSubscriptions;
+    private volatile PrefixSubscription[] prefixes = new PrefixSubscription[0];
+
+    public void process(In in, Out out, NotificationBuffer subscriber) {
+        byte function = in.getByte();
+        switch (function) {
+            case FUNCTION_SUBSCRIBE_COUNTER:
+                subscribeCounter(in.getLong(), subscriber);
+                break;
+            case FUNCTION_UNSUBSCRIBE_COUNTER:
+                unsubscribeCounter(in.getLong(), subscriber);
+                break;
+            case FUNCTION_SUBSCRIBE_PREFIX:
+                subscribePrefix(readPrefix(in), subscriber);
+                break;
+            case FUNCTION_UNSUBSCRIBE_PREFIX:
+                unsubscribePrefix(readPrefix(in), subscriber);
+                break;
+            default:
+                throw new IllegalStateException("Unrecognized function:" + function);
+        }
+        out.putByte(DataStructures.SUBSCRIPTIONS);
+        out.putByte((byte) 1);
+    }
+
+    private static String readPrefix(In in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) throw new IllegalStateException("Invalid prefix length:" + length);
+        byte[] bytes = new byte[length];
+        in.getBytes(bytes, 0, length);
+        return new String(bytes, UTF_8);
+    }
+
+    public synchronized void subscribeCounter(long id, NotificationBuffer subscriber) {
+        NotificationBuffer[] subscribers = counters.getOrDefault(id, EMPTY);
+        if (indexOf(subscribers, subscriber) != -1) return;
+
+        subscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+        subscribers[subscribers.length - 1] = subscriber;
+        counters.put(id, subscribers);
+        hasCounterSubscriptions = true;
+    }
+
+    public synchronized void unsubscribeCounter(long id, NotificationBuffer subscriber) {
+        NotificationBuffer[] subscribers = counters.get(id);
+        if (subscribers == null) return;
+
+        int index = indexOf(subscribers, subscriber);
+        if (index == -1) return;
+        if (subscribers.length == 1) {
+            counters.remove(id);
+        } else {
+            NotificationBuffer[] remaining = new NotificationBuffer[subscribers.length - 1];
+            System.arraycopy(subscribers, 0, remaining, 0, index);
+            System.arraycopy(subscribers, index + 1, remaining, index, remaining.length - index);
+            counters.put(id, remaining);
+        }
+        hasCounterSubscriptions = !counters.isEmpty();
+    }
+
+    public synchronized void subscribePrefix(String prefix, NotificationBuffer subscriber) {
+        for (PrefixSubscription subscription : prefixes) {
+            if (subscription.subscriber == subscriber && subscription.prefix.equals(prefix)) return;
+        }
+        PrefixSubscription[] newPrefixes = Arrays.copyOf(prefixes, prefixes.length + 1);
+        newPrefixes[newPrefixes.length - 1] = new PrefixSubscription(prefix, subscriber);
+        prefixes = newPrefixes;
+    }
+
+    public synchronized void unsubscribePrefix(String prefix, NotificationBuffer subscriber) {
+        prefixes = Arrays.stream(prefixes)
+                .filter(s -> s.subscriber != subscriber || !s.prefix.equals(prefix))
+                .toArray(PrefixSubscription[]::new);
+    }
+
+    /**
+     * Removes all subscriptions of the subscriber; e.g. when its connection closes.
+     */
+    public synchronized void unsubscribeAll(NotificationBuffer subscriber) {
+        for (Map.Entry<Long, NotificationBuffer[]> entry : counters.entrySet()) {
+            if (indexOf(entry.getValue(), subscriber) != -1) {
+                unsubscribeCounter(entry.getKey(), subscriber);
+            }
+        }
+        prefixes = Arrays.stream(prefixes)
+                .filter(s -> s.subscriber != subscriber)
+                .toArray(PrefixSubscription[]::new);
+    }
+
+    public void counterChanged(long id, long value) {
+        if (!hasCounterSubscriptions) return;
+
+        NotificationBuffer[] subscribers = counters.get(id);
+        if (subscribers == null) return;
+        for (NotificationBuffer subscriber : subscribers) {
+            subscriber.counterChanged(id, value);
+        }
+    }
+
+    /**
+     * Checks if any connection is subscribed to strings; so a change doesn't need to decode its key if not.
+     */
+    public boolean hasPrefixSubscriptions() {
+        return prefixes.length > 0;
+    }
+
+    public void stringChanged(String key, byte[] value) {
+        for (PrefixSubscription subscription : prefixes) {
+            if (key.startsWith(subscription.prefix)) {
+                subscription.subscriber.stringChanged(key, value);
+            }
+        }
+    }
+
+    private static int indexOf(NotificationBuffer[] subscribers, NotificationBuffer subscriber) {
+        for (int k = 0; k < subscribers.length; k++) {
+            if (subscribers[k] == subscriber) return k;
+        }
+        return -1;
+    }
+
+    private static final class PrefixSubscription {
+        private final String prefix;
+        private final NotificationBuffer subscriber;
+
+        PrefixSubscription(String prefix, NotificationBuffer subscriber) {
+            this.prefix = prefix;
+            this.subscriber = subscriber;
+        }
+    }
+}
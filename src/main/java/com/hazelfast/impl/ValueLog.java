@@ -0,0 +1,340 @@
+package com.hazelfast.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only log of values in memory-mapped segment files. A value is copied once into the mapping; a get
+ * doesn't copy it into the response, but hands the file region to the IO thread, which transfers it straight from the
+ * page cache to the socket with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. So
+ * serving a large value costs neither heap nor user-space copies.
+ * <p>
+ * A value that is overwritten is freed, but stays in its segment till the log is compacted; see {@link
+ * #compact(int)}. Compaction copies the live entries of the segment with the most garbage to the tail and moves their
+ * {@link Entry}, so the owner of an entry doesn't notice. The evacuated segment is deleted once no region handed to
+ * an IO thread refers to it anymore; see {@link Segment}. Its mapping is released with it, so the deleted file
+ * doesn't keep its disk space till the buffer is garbage collected.
+ * <p>
+ * The segment files are deleted when the log is closed; the log isn't a persistence mechanism.
+ * <p>
+ * Class is not thread-safe; it is owned by the thread owning the partition. The IO threads only read the files.
+ */
+public final class ValueLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final String name;
+    private final int threshold;
+    private final int segmentSize;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    // the evacuated segments that are still pinned.
+    private final ArrayList<Segment> retired = new ArrayList<>();
+    private Segment tail;
+    private int nextSegmentId;
+    // the bytes of the freed entries in the segments.
+    private long garbageBytes;
+    // the segment being evacuated; null if none.
+    private Segment compacting;
+    private int compactIndex;
+
+    /**
+     * @param directory   the directory to create the segment files in.
+     * @param name        the prefix of the segment files; unique within the directory.
+     * @param threshold   the minimum length of a value to store in the log.
+     * @param segmentSize the size of a segment file; a larger value gets a segment of its own.
+     */
+    public ValueLog(Path directory, String name, int threshold, int segmentSize) {
+        this.directory = directory;
+        this.name = name;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Checks if a value of the given length should be stored in the log.
+     */
+    public boolean accepts(int length) {
+        return length > 0 && length >= threshold;
+    }
+
+    /**
+     * Copies the next length bytes of the request into the log.
+     */
+    public Entry append(In in, int length) {
+        Entry entry = allocate(length);
+        ByteBuffer buffer = entry.segment.buffer;
+        buffer.position(entry.offset);
+        in.getBytes(buffer, length);
+        buffer.clear();
+        return entry;
+    }
+
+    public Entry append(byte[] value) {
+        Entry entry = allocate(value.length);
+        ByteBuffer buffer = entry.segment.buffer;
+        buffer.position(entry.offset);
+        buffer.put(value);
+        buffer.clear();
+        return entry;
+    }
+
+    private Entry allocate(int length) {
+        ensureTail(length);
+        Entry entry = new Entry(tail, tail.position, length);
+        tail.position += length;
+        tail.liveBytes += length;
+        tail.entries.add(entry);
+        return entry;
+    }
+
+    private void ensureTail(int length) {
+        if (tail != null && tail.buffer.capacity() - tail.position >= length) return;
+
+        int size = Math.max(segmentSize, length);
+        Path path = directory.resolve(name + "-" + nextSegmentId++ + ".log");
+        try {
+            Files.createDirectories(directory);
+            // a file left behind by a crashed process is truncated.
+            FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE, DELETE_ON_CLOSE);
+            tail = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segments.add(tail);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create value log segment " + path, e);
+        }
+    }
+
+    /**
+     * Frees the entry; its bytes become garbage that is reclaimed by compaction. The entry can't be used anymore.
+     */
+    public void free(Entry entry) {
+        Segment segment = entry.segment;
+        if (segment == null) return;
+
+        segment.liveBytes -= entry.length;
+        segment.garbageBytes += entry.length;
+        garbageBytes += entry.length;
+        entry.segment = null;
+    }
+
+    /**
+     * Copies the value into the response; for a response that can't end with a file region.
+     */
+    public void copyTo(Entry entry, Out out) {
+        ByteBuffer buffer = entry.segment.buffer;
+        buffer.limit(entry.offset + entry.length).position(entry.offset);
+        out.putBytes(buffer);
+        buffer.clear();
+    }
+
+    public byte[] toBytes(Entry entry) {
+        byte[] bytes = new byte[entry.length];
+        ByteBuffer buffer = entry.segment.buffer;
+        buffer.position(entry.offset);
+        buffer.get(bytes);
+        buffer.clear();
+        return bytes;
+    }
+
+    /**
+     * Ends the response with the file region of the entry. The segment is pinned till the region is transferred, so
+     * compaction doesn't delete it.
+     */
+    public void fileRegion(Entry entry, Out out) {
+        entry.segment.pin();
+        out.fileRegion(entry.segment, entry.offset, entry.length);
+    }
+
+    /**
+     * Executes a step of the compaction: copies up to maxBytes of live entries out of the segment with the most
+     * garbage. A segment is only compacted if at least half of it is garbage, so a live byte is copied at most once
+     * per byte of garbage reclaimed.
+     *
+     * @return true if there is more work; the caller should call compact again soon.
+     */
+    public boolean compact(int maxBytes) {
+        if (!retired.isEmpty()) deleteUnpinned();
+        if (compacting == null && !selectSegment()) return false;
+
+        int copied = 0;
+        ArrayList<Entry> entries = compacting.entries;
+        while (compactIndex < entries.size() && copied < maxBytes) {
+            Entry entry = entries.get(compactIndex++);
+            if (entry.segment != compacting) continue;
+
+            copied += entry.length;
+            move(entry);
+        }
+        if (compactIndex < entries.size()) return true;
+
+        segments.remove(compacting);
+        garbageBytes -= compacting.garbageBytes;
+        retired.add(compacting);
+        compacting = null;
+        deleteUnpinned();
+        return selectSegment();
+    }
+
+    private boolean selectSegment() {
+        // a segment is only compacted if at least half of it is garbage.
+        if (garbageBytes < segmentSize / 2) return false;
+
+        Segment selected = null;
+        for (Segment segment : segments) {
+            if (segment == tail || segment.garbageBytes * 2 < segment.position) continue;
+
+            if (selected == null || segment.garbageBytes > selected.garbageBytes) selected = segment;
+        }
+        compacting = selected;
+        compactIndex = 0;
+        return selected != null;
+    }
+
+    // copies the entry to the tail.
+    private void move(Entry entry) {
+        Segment from = entry.segment;
+        ensureTail(entry.length);
+        from.buffer.limit(entry.offset + entry.length).position(entry.offset);
+        tail.buffer.position(tail.position);
+        tail.buffer.put(from.buffer);
+        from.buffer.clear();
+        tail.buffer.clear();
+
+        from.liveBytes -= entry.length;
+        entry.segment = tail;
+        entry.offset = tail.position;
+        tail.position += entry.length;
+        tail.liveBytes += entry.length;
+        tail.entries.add(entry);
+    }
+
+    private void deleteUnpinned() {
+        for (Iterator<Segment> it = retired.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment.pins.get() > 0) continue;
+
+            it.remove();
+            delete(segment);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes in the segment files; including the garbage.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.position;
+        }
+        return size;
+    }
+
+    public long garbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * Returns the number of segment files; including the evacuated segments that are still pinned.
+     */
+    public int segmentCount() {
+        return segments.size() + retired.size();
+    }
+
+    /**
+     * Closes and deletes the segment files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        for (Segment segment : retired) {
+            segment.close();
+        }
+        segments.clear();
+        retired.clear();
+        tail = null;
+        compacting = null;
+    }
+
+    /**
+     * A value in the log. Compaction can move it to another segment.
+     */
+    public static final class Entry {
+        // null if freed.
+        Segment segment;
+        int offset;
+        final int length;
+
+        Entry(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+    }
+
+    /**
+     * A segment file. A region of the file handed to another thread pins the segment; the thread unpins it once the
+     * region is transferred. The pin of a frame that is dropped without being written, e.g. when its connection is
+     * closed, keeps an evacuated segment till the log is closed.
+     */
+    public static final class Segment {
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // the entries in the order they were appended; including the freed and moved ones.
+        final ArrayList<Entry> entries = new ArrayList<>();
+        final AtomicInteger pins = new AtomicInteger();
+        int position;
+        long liveBytes;
+        long garbageBytes;
+
+        Segment(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        public FileChannel channel() {
+            return channel;
+        }
+
+        void pin() {
+            pins.incrementAndGet();
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+
+        // the file is deleted on close, but its disk space is only reclaimed once the mapping is released too.
+        void close() throws IOException {
+            channel.close();
+            IOUtil.unmap(buffer);
+        }
+    }
+}
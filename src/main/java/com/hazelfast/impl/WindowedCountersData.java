@@ -0,0 +1,205 @@
+package com.hazelfast.impl;
+
+import java.nio.ByteBuffer;
+
+import static com.hazelfast.impl.CountersData.COMPACT;
+
+/**
+ * Counters over a sliding time window, identified by a long key; e.g. the number of requests in the last 60 seconds.
+ * Each counter is a ring of buckets, one per interval of the resolution; an increment adds to the bucket of the
+ * current interval and a sum adds the buckets of the last intervals.
+ * <p>
+ * The buckets are part of a record in an off-heap open addressing table: key, state, the interval of the latest
+ * bucket and the ring. The buckets that fell out of the window are cleared lazily when the counter is accessed, so
+ * there is no timer and an increment doesn't create litter. Counters are never removed.
+ * <p>
+ * Class is not thread-safe; it is owned by the thread owning the partition.
+ */
+public class WindowedCountersData {
+    // request: key, delta. response: the sum of the whole window after the increment.
+    public static final byte FUNCTION_INC = 1;
+    // request: key, seconds. response: the sum of the buckets in the last seconds; 0 if the counter doesn't exist.
+    public static final byte FUNCTION_SUM = 2;
+
+    private static final int KEY_OFFSET = 0;
+    private static final int STATE_OFFSET = 8;
+    private static final int INTERVAL_OFFSET = 16;
+    private static final int BUCKETS_OFFSET = 24;
+    private static final long USED = 1;
+
+    private final long resolutionMs;
+    private final int bucketCount;
+    private final int recordSize;
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+
+    public WindowedCountersData() {
+        this(1000, 60, 16);
+    }
+
+    /**
+     * @param resolutionMs    the interval covered by a bucket.
+     * @param bucketCount     the number of buckets; the window is resolutionMs * bucketCount.
+     * @param initialCapacity the number of counters to allocate memory for up front; rounded up to a power of two.
+     */
+    public WindowedCountersData(long resolutionMs, int bucketCount, int initialCapacity) {
+        if (resolutionMs <= 0) throw new IllegalArgumentException("resolutionMs should be positive");
+        if (bucketCount <= 0 || bucketCount > 1024 * 1024) {
+            throw new IllegalArgumentException("bucketCount should be between 1 and 1M, but was " + bucketCount);
+        }
+
+        this.resolutionMs = resolutionMs;
+        this.bucketCount = bucketCount;
+        this.recordSize = BUCKETS_OFFSET + bucketCount * IOUtil.LONG_AS_BYTES;
+        this.capacity = ByteArrayPool.powerOfTwo(Math.max(2, initialCapacity * 2));
+        this.table = ByteBuffer.allocateDirect(capacity * recordSize);
+    }
+
+    public void process(In in, Out out) {
+        byte function = in.getByte();
+        boolean compact = (function & COMPACT) != 0;
+        long key = compact ? in.getVarLong() : in.getLong();
+        long argument = compact ? in.getVarLong() : in.getLong();
+        long result;
+        switch (function & ~COMPACT) {
+            case FUNCTION_INC:
+                result = inc(key, argument, nowMs());
+                break;
+            case FUNCTION_SUM:
+                if (argument < 0) throw new IllegalStateException("Negative seconds:" + argument);
+                result = sum(key, argument * 1000, nowMs());
+                break;
+            default:
+                throw new IllegalStateException("Unrecognized function:" + function);
+        }
+
+        if (compact) {
+            out.putVarLong(result);
+        } else {
+            out.putLong(result);
+        }
+    }
+
+    // monotonic, unlike the wall clock.
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Adds the delta to the bucket of the current interval; the counter is created if it doesn't exist.
+     *
+     * @param nowMs the current time in ms; it should not go back.
+     * @return the sum of the whole window after the increment.
+     */
+    public long inc(long key, long delta, long nowMs) {
+        long interval = nowMs / resolutionMs;
+        int record = find(key);
+        if (table.getLong(record + STATE_OFFSET) != USED) {
+            record = insert(record, key, interval);
+        } else {
+            roll(record, interval);
+        }
+
+        int bucket = bucket(record, interval);
+        table.putLong(bucket, table.getLong(bucket) + delta);
+        return sumBuckets(record, bucketCount);
+    }
+
+    /**
+     * Sums the buckets covering the last windowMs; a partially elapsed interval counts as a whole one, and the
+     * window is capped at the full window.
+     *
+     * @param nowMs the current time in ms; it should not go back.
+     */
+    public long sum(long key, long windowMs, long nowMs) {
+        int record = find(key);
+        if (table.getLong(record + STATE_OFFSET) != USED) return 0;
+
+        roll(record, nowMs / resolutionMs);
+        long buckets = (windowMs + resolutionMs - 1) / resolutionMs;
+        return sumBuckets(record, (int) Math.min(buckets, bucketCount));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // clears the buckets of the intervals between the latest bucket and the current interval.
+    private void roll(int record, long interval) {
+        long latest = table.getLong(record + INTERVAL_OFFSET);
+        if (interval <= latest) return;
+
+        long stale = Math.min(interval - latest, bucketCount);
+        for (long k = 1; k <= stale; k++) {
+            table.putLong(bucket(record, latest + k), 0);
+        }
+        table.putLong(record + INTERVAL_OFFSET, interval);
+    }
+
+    // sums the buckets of the latest intervals.
+    private long sumBuckets(int record, int buckets) {
+        long latest = table.getLong(record + INTERVAL_OFFSET);
+        long sum = 0;
+        for (int k = 0; k < buckets; k++) {
+            sum += table.getLong(bucket(record, latest - k));
+        }
+        return sum;
+    }
+
+    private int bucket(int record, long interval) {
+        return record + BUCKETS_OFFSET + (int) Math.floorMod(interval, (long) bucketCount) * IOUtil.LONG_AS_BYTES;
+    }
+
+    // returns the offset of the record of the key, or of the empty record where it should be inserted.
+    private int find(long key) {
+        int mask = capacity - 1;
+        for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+            int record = slot * recordSize;
+            if (table.getLong(record + STATE_OFFSET) != USED || table.getLong(record + KEY_OFFSET) == key) {
+                return record;
+            }
+        }
+    }
+
+    // the keys of a partition share the bits of the partition hash, so the slot is taken from a different hash.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int insert(int record, long key, long interval) {
+        // the load factor is kept below 0.5, so the probe sequences stay short.
+        if (2 * (size + 1) > capacity) {
+            grow();
+            record = find(key);
+        }
+        table.putLong(record + KEY_OFFSET, key);
+        table.putLong(record + STATE_OFFSET, USED);
+        table.putLong(record + INTERVAL_OFFSET, interval);
+        size++;
+        return record;
+    }
+
+    private void grow() {
+        if (capacity > Integer.MAX_VALUE / recordSize / 2) throw new IllegalStateException("Windowed counters are full");
+
+        ByteBuffer oldTable = table;
+        int oldCapacity = capacity;
+        capacity *= 2;
+        table = ByteBuffer.allocateDirect(capacity * recordSize);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int oldRecord = slot * recordSize;
+            if (oldTable.getLong(oldRecord + STATE_OFFSET) != USED) continue;
+
+            int record = find(oldTable.getLong(oldRecord + KEY_OFFSET));
+            for (int offset = 0; offset < recordSize; offset += IOUtil.LONG_AS_BYTES) {
+                table.putLong(record + offset, oldTable.getLong(oldRecord + offset));
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.hazelfast;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Guards the request hot paths against allocation regressions. Each operation is executed through a Client and a
+ * Server in this JVM, and the bytes allocated by the client thread and by the IO thread of the server are measured
+ * with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}. A test fails when a side allocates more
+ * than its budget per request.
+ * <p>
+ * The client connects through the loopback channel, so no kernel buffers or selector keys are involved and the
+ * allocations of both sides are deterministic. The operations are warmed up first, so the pools are filled and the
+ * JIT has done its escape analysis.
+ * <p>
+ * A budget is the litter the operation is known to create, e.g. the boxed key of a counter; see the todos in the
+ * data structures. When such litter is removed, lower the budget so it stays removed.
+ */
+public class AllocationTest {
+
+    private static final int WARMUP_REQUESTS = 20_000;
+    private static final int REQUESTS = 20_000;
+    // the ids are outside the cache of Long.valueOf, like most real ids.
+    private static final long FIRST_ID = 1_000_000;
+    private static final int IDS = 1024;
+    // the size of a boxed Long with or without compressed oops.
+    private static final int LONG_BYTES = 24;
+
+    private static Server server;
+    private static Client client;
+    private static Thread ioThread;
+
+    @BeforeAll
+    public static void beforeAll() throws IOException {
+        server = new Server(new Server.Context()
+                .serverThreadCount(1)
+                .loopback(true)
+                .rebalanceIntervalMs(0));
+        server.start();
+        client = new Client(new Client.Context().loopback(true));
+        client.start();
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("IOThread#")) ioThread = thread;
+        }
+    }
+
+    @AfterAll
+    public static void afterAll() throws IOException {
+        client.stop();
+        server.stop();
+    }
+
+    @Test
+    public void ping() throws IOException {
+        byte[] message = "foo".getBytes();
+        assertBudget("ping", 0, 0, k -> {
+            client.writeAndFlush(message);
+            client.readResponse();
+        });
+    }
+
+    @Test
+    public void counters() throws IOException {
+        Counters counters = client.counters();
+        // the server boxes the id to look up the counter.
+        assertBudget("counters.get", 0, LONG_BYTES, k -> counters.get(id(k)));
+        assertBudget("counters.set", 0, LONG_BYTES, k -> counters.set(id(k), k));
+        assertBudget("counters.inc", 0, LONG_BYTES, k -> counters.inc(id(k)));
+        assertBudget("counters.cas", 0, LONG_BYTES, k -> counters.cas(id(k), 0, 0));
+    }
+
+    @Test
+    public void strings() throws IOException {
+        Strings strings = client.strings();
+        ByteBuffer key = ByteBuffer.allocate(16);
+        ByteBuffer value = ByteBuffer.allocate(100);
+        // a set stores the value in a new array; a get copies the stored array into the response.
+        assertBudget("strings.set", 0, arrayBytes(100), k -> {
+            key.clear();
+            key.putLong(id(k)).flip();
+            value.clear();
+            strings.set(key, value);
+        });
+        assertBudget("strings.get", 0, 0, k -> {
+            key.clear();
+            key.putLong(id(k)).flip();
+            value.clear();
+            strings.get(key, value);
+        });
+    }
+
+    @Test
+    public void rateLimiters() throws IOException {
+        RateLimiters rateLimiters = client.rateLimiters();
+        assertBudget("rateLimiters.tryAcquire", 0, 0, k -> rateLimiters.tryAcquire(id(k), 1_000_000, 1_000_000));
+    }
+
+    @Test
+    public void windowedCounters() throws IOException {
+        WindowedCounters windowedCounters = client.windowedCounters();
+        assertBudget("windowedCounters.inc", 0, 0, k -> windowedCounters.inc(id(k)));
+        assertBudget("windowedCounters.sum", 0, 0, k -> windowedCounters.sum(id(k), 10));
+    }
+
+    private static long id(int k) {
+        return FIRST_ID + k % IDS;
+    }
+
+    // the size of a byte array; the header is at most 24 bytes and the size is aligned on 8 bytes.
+    private static int arrayBytes(int length) {
+        return (24 + length + 7) & ~7;
+    }
+
+    private static void assertBudget(String operation, long clientBudget, long serverBudget, Request request)
+            throws IOException {
+        for (int k = 0; k < WARMUP_REQUESTS; k++) {
+            request.execute(k);
+        }
+
+        long clientStart = allocatedBytes(Thread.currentThread());
+        long serverStart = allocatedBytes(ioThread);
+        for (int k = 0; k < REQUESTS; k++) {
+            request.execute(k);
+        }
+        // rounded down, so a rare allocation, e.g. a pool growing, doesn't fail a budget of 0.
+        long clientBytes = (allocatedBytes(Thread.currentThread()) - clientStart) / REQUESTS;
+        long serverBytes = (allocatedBytes(ioThread) - serverStart) / REQUESTS;
+
+        System.out.println(operation + ": client " + clientBytes + " bytes/request, server " + serverBytes
+                + " bytes/request");
+        assertTrue(clientBytes <= clientBudget, operation + " allocates " + clientBytes
+                + " bytes/request on the client; the budget is " + clientBudget);
+        assertTrue(serverBytes <= serverBudget, operation + " allocates " + serverBytes
+                + " bytes/request on the server; the budget is " + serverBudget);
+    }
+
+    private static long allocatedBytes(Thread thread) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(thread.getId());
+    }
+
+    private interface Request {
+        void execute(int k) throws IOException;
+    }
+}
@@ -0,0 +1,115 @@
+package com.hazelfast;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Round trips of counters and strings through the blocking engine, with several clients at the same time; each
+ * client has a connection thread of its own and the partitions are shared by all of them.
+ */
+public class BlockingEngineTest {
+
+    private static final int CLIENTS = 4;
+    private static final int KEYS = 256;
+    private static final int ROUNDS = 10;
+    // incremented by all clients.
+    private static final long SHARED_ID = -1;
+
+    private Server server;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        server = new Server(new Server.Context()
+                .engine(Server.Engine.BLOCKING)
+                .serverThreadCount(4));
+        server.start();
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        server.stop();
+    }
+
+    @Test
+    public void concurrentClients() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int k = 0; k < CLIENTS; k++) {
+                int clientId = k;
+                futures.add(executor.submit(() -> {
+                    roundTrips(clientId);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Client client = new Client(new Client.Context());
+        client.start();
+        try {
+            assertEquals(CLIENTS * ROUNDS * KEYS, client.counters().get(SHARED_ID));
+            for (int clientId = 0; clientId < CLIENTS; clientId++) {
+                for (int key = 0; key < KEYS; key++) {
+                    assertEquals(ROUNDS - 1, client.counters().get(id(clientId, key)));
+                    assertEquals(value(clientId, key, ROUNDS - 1), client.strings().get(key(clientId, key)));
+                }
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    private static void roundTrips(int clientId) throws IOException {
+        Client client = new Client(new Client.Context());
+        client.start();
+        try {
+            Counters counters = client.counters();
+            Strings strings = client.strings();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int key = 0; key < KEYS; key++) {
+                    long id = id(clientId, key);
+                    if (round == 0) {
+                        counters.set(id, 0);
+                    } else {
+                        assertEquals(round, counters.inc(id));
+                    }
+                    assertEquals(round, counters.get(id));
+                    counters.inc(SHARED_ID);
+
+                    strings.set(key(clientId, key), value(clientId, key, round));
+                    assertEquals(value(clientId, key, round), strings.get(key(clientId, key)));
+                }
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    private static long id(int clientId, int key) {
+        return clientId * KEYS + key;
+    }
+
+    private static String key(int clientId, int key) {
+        return "key-" + clientId + "-" + key;
+    }
+
+    private static String value(int clientId, int key, int round) {
+        return "value-" + clientId + "-" + key + "-" + round;
+    }
+}
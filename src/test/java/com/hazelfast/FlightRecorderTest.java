@@ -0,0 +1,80 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.IOUtil;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the server emits its Flight Recorder events while a recording is running. The thresholds of the events
+ * and the slow request threshold are 0, so every select loop, read, write and request is recorded.
+ */
+public class FlightRecorderTest {
+
+    private static final String[] EVENTS = {
+            "com.hazelfast.SelectLoop",
+            "com.hazelfast.ConnectionRegistered",
+            "com.hazelfast.Read",
+            "com.hazelfast.Write",
+            "com.hazelfast.SlowRequest"};
+    private static final int REQUESTS = 100;
+
+    @Test
+    public void events() throws IOException {
+        assumeTrue(IOUtil.isFlightRecorderAvailable(), "Flight Recorder is not available");
+
+        Path file = Files.createTempFile("hazelfast", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+
+            Server server = new Server(new Server.Context()
+                    .serverThreadCount(1)
+                    .flightRecorderEvents(true)
+                    .slowRequestThresholdNanos(0));
+            server.start();
+            try {
+                Client client = new Client(new Client.Context());
+                client.start();
+                try {
+                    for (long id = 0; id < REQUESTS; id++) {
+                        client.counters().set(id, id);
+                    }
+                } finally {
+                    client.stop();
+                }
+            } finally {
+                server.stop();
+            }
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            counts.merge(event.getEventType().getName(), 1, Integer::sum);
+        }
+        Files.delete(file);
+
+        for (String event : EVENTS) {
+            assertTrue(counts.containsKey(event), event + " not recorded: " + counts);
+        }
+        assertEquals(Integer.valueOf(1), counts.get("com.hazelfast.ConnectionRegistered"));
+        assertTrue(counts.get("com.hazelfast.SlowRequest") >= REQUESTS, counts.toString());
+    }
+}
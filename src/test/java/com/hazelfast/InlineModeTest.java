@@ -0,0 +1,120 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.DataStructures;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that in inline mode the clients on different IO threads see the same data: each IO thread owns a
+ * partition and the requests on the partitions of the other IO threads are handed over.
+ */
+public class InlineModeTest {
+
+    private static final int KEYS = 256;
+
+    private Server server;
+    private Client client0;
+    private Client client1;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        server = new Server(new Server.Context()
+                .serverThreadCount(2)
+                .loadAwareAssignment(false)
+                .rebalanceIntervalMs(0)
+                .counterIndex(true));
+        server.start();
+        // the connections are assigned round robin.
+        client0 = new Client(new Client.Context());
+        client0.start();
+        client1 = new Client(new Client.Context());
+        client1.start();
+
+        for (Server.IOThreadMetrics metrics : server.ioThreadMetrics()) {
+            assertEquals(1, metrics.connections(), metrics.toString());
+        }
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        client0.stop();
+        client1.stop();
+        server.stop();
+    }
+
+    @Test
+    public void counters() {
+        Counters counters0 = client0.counters();
+        Counters counters1 = client1.counters();
+        for (long id = 0; id < KEYS; id++) {
+            counters0.set(id, id * 10);
+        }
+        for (long id = 0; id < KEYS; id++) {
+            assertEquals(id * 10, counters1.get(id));
+            assertEquals(id * 10 + 1, counters1.inc(id));
+        }
+        for (long id = 0; id < KEYS; id++) {
+            assertEquals(id * 10 + 1, counters0.get(id));
+        }
+    }
+
+    @Test
+    public void strings() {
+        Strings strings0 = client0.strings();
+        Strings strings1 = client1.strings();
+        for (int k = 0; k < KEYS; k++) {
+            strings0.set("key" + k, "value" + k);
+        }
+        for (int k = 0; k < KEYS; k++) {
+            assertEquals("value" + k, strings1.get("key" + k));
+        }
+    }
+
+    @Test
+    public void topN() {
+        Counters counters0 = client0.counters();
+        for (long id = 0; id < KEYS; id++) {
+            counters0.set(id, id);
+        }
+
+        List<Counters.Entry> top = client1.counters().topN(3);
+        assertEquals(3, top.size());
+        for (int k = 0; k < 3; k++) {
+            assertEquals(KEYS - 1 - k, top.get(k).id());
+            assertEquals(KEYS - 1 - k, top.get(k).value());
+        }
+        assertEquals(KEYS, client1.counters().range(0, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    public void queues() throws Exception {
+        byte[] element = "element".getBytes();
+        for (long key = 0; key < KEYS; key++) {
+            client0.queues().offer(key, element);
+        }
+        for (long key = 0; key < KEYS; key++) {
+            assertArrayEquals(element, client1.queues().poll(key, 0, TimeUnit.MILLISECONDS));
+        }
+
+        // polls parked on the partition of either IO thread, completed by an offer of the other client.
+        for (long k = 0; k < 4; k++) {
+            long key = KEYS + k;
+            AtomicReference<byte[]> polled = new AtomicReference<>();
+            Thread consumer = new Thread(() -> polled.set(client1.queues().poll(key, 1, TimeUnit.MINUTES)));
+            consumer.start();
+            Thread.sleep(100);
+            client0.queues().offer(key, element);
+            consumer.join(TimeUnit.SECONDS.toMillis(10));
+            assertArrayEquals(element, polled.get(), "partition " + DataStructures.counterPartitionHash(key) % 2);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.hazelfast;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round trips through the in-process loopback rings. The rings are smaller than some of the values, so the frames
+ * wrap around and are transferred in parts.
+ */
+public class LoopbackTest {
+
+    private static final int RING_CAPACITY = 4096;
+
+    @Test
+    public void selector() throws IOException {
+        roundTrips(Server.Engine.SELECTOR);
+    }
+
+    @Test
+    public void blocking() throws IOException {
+        roundTrips(Server.Engine.BLOCKING);
+    }
+
+    @Test
+    public void refused_whenServerDoesNotAcceptLoopback() throws IOException {
+        Server server = new Server(new Server.Context().serverThreadCount(1));
+        server.start();
+        try {
+            Client client = new Client(new Client.Context().loopback(true));
+            assertThrows(IOException.class, client::start);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void roundTrips(Server.Engine engine) throws IOException {
+        Server server = new Server(new Server.Context()
+                .engine(engine)
+                .serverThreadCount(2)
+                .loopback(true));
+        server.start();
+        try {
+            Client client = new Client(new Client.Context()
+                    .loopback(true)
+                    .sharedMemoryCapacity(RING_CAPACITY));
+            client.start();
+            try {
+                Counters counters = client.counters();
+                for (long id = 0; id < 100; id++) {
+                    counters.set(id, id);
+                    assertEquals(id + 1, counters.inc(id));
+                    assertEquals(id + 1, counters.get(id));
+                }
+
+                Strings strings = client.strings();
+                for (int length : new int[]{0, 10, RING_CAPACITY - 1, 5 * RING_CAPACITY}) {
+                    char[] value = new char[length];
+                    Arrays.fill(value, 'x');
+                    strings.set("key" + length, new String(value));
+                    assertEquals(new String(value), strings.get("key" + length));
+                }
+                assertNull(strings.get("missing"));
+
+                byte[] element = "element".getBytes();
+                assertNull(client.queues().poll(1, 10, TimeUnit.MILLISECONDS));
+                client.queues().offer(1, element);
+                assertArrayEquals(element, client.queues().poll(1, 1, TimeUnit.SECONDS));
+            } finally {
+                client.stop();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
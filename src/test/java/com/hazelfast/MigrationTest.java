@@ -0,0 +1,78 @@
+package com.hazelfast;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a connection migrated by the rebalancer keeps receiving the right responses and sees the same data
+ * as before the migration.
+ */
+public class MigrationTest {
+
+    private static final int KEYS = 64;
+    private static final long TIMEOUT_MS = 30_000;
+
+    private Server server;
+    private final Client[] clients = new Client[3];
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        server = new Server(new Server.Context()
+                .serverThreadCount(2)
+                .loadAwareAssignment(false)
+                .rebalanceIntervalMs(50)
+                .rebalanceThreshold(0.01f));
+        server.start();
+        // assigned round robin: clients 0 and 2 end up on the first IO thread.
+        for (int k = 0; k < clients.length; k++) {
+            clients[k] = new Client(new Client.Context());
+            clients[k].start();
+        }
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        for (Client client : clients) {
+            client.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void migration() {
+        for (long id = 0; id < KEYS; id++) {
+            clients[0].counters().set(id, id);
+            clients[0].strings().set("key" + id, "value" + id);
+        }
+
+        // the first IO thread carries all the load; client 2 carries a third of it, so it is the one to move.
+        long[] expected = new long[KEYS];
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int k = 0;
+        while (server.ioThreadMetrics()[0].migrationsOut() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "no migration within " + TIMEOUT_MS + " ms");
+            int id = k++ % KEYS;
+            expected[id]++;
+            assertEquals(id + expected[id], clients[0].counters().inc(id));
+            if (k % 2 == 0) {
+                assertEquals("value" + id, clients[2].strings().get("key" + id));
+                assertEquals(id + expected[id], clients[2].counters().get(id));
+            }
+        }
+
+        // the migrated connection still works and all connections see the same values.
+        for (Client client : clients) {
+            for (long id = 0; id < KEYS; id++) {
+                assertEquals(id + expected[(int) id], client.counters().get(id));
+                assertEquals("value" + id, client.strings().get("key" + id));
+            }
+        }
+        assertEquals(clients.length, server.ioThreadMetrics()[0].connections() + server.ioThreadMetrics()[1].connections());
+    }
+}
@@ -0,0 +1,135 @@
+package com.hazelfast;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips through shared memory between a Client and a Server in this JVM, and the refusals of the files the
+ * server shouldn't map.
+ */
+public class SharedMemoryTest {
+
+    private static final int MAX_CAPACITY = 1024 * 1024;
+
+    private Path directory;
+    private Server server;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        directory = Files.createTempDirectory("hazelfast-shm");
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        if (server != null) server.stop();
+        Files.delete(directory);
+    }
+
+    private void startServer(boolean sharedMemory, Path sharedMemoryDirectory) throws IOException {
+        server = new Server(new Server.Context()
+                .serverThreadCount(2)
+                .sharedMemory(sharedMemory)
+                .sharedMemoryDirectory(sharedMemoryDirectory.toString())
+                .sharedMemoryMaxCapacity(MAX_CAPACITY));
+        server.start();
+    }
+
+    private Client newClient() {
+        return newClient(MAX_CAPACITY);
+    }
+
+    private Client newClient(int capacity) {
+        return new Client(new Client.Context()
+                .sharedMemory(true)
+                .sharedMemoryDirectory(directory.toString())
+                .sharedMemoryCapacity(capacity));
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        startServer(true, directory);
+        Client client = newClient();
+        client.start();
+        try {
+            assertEquals(1, list(directory).length);
+            Counters counters = client.counters();
+            for (long id = 0; id < 1000; id++) {
+                counters.set(id, id);
+                assertEquals(id + 1, counters.inc(id));
+                assertEquals(id + 1, counters.get(id));
+            }
+            client.strings().set("foo", "bar");
+            assertEquals("bar", client.strings().get("foo"));
+        } finally {
+            client.stop();
+        }
+        // the client removes its file.
+        assertEquals(0, list(directory).length);
+        // both sides unmap the file once the connection is closed.
+        Path maps = Paths.get("/proc/self/maps");
+        if (Files.isReadable(maps)) {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (mappings(maps) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            assertEquals(0, mappings(maps));
+        }
+    }
+
+    private long mappings(Path maps) throws IOException {
+        try (Stream<String> lines = Files.lines(maps)) {
+            return lines.filter(line -> line.contains(directory.toString())).count();
+        }
+    }
+
+    @Test
+    public void refused_whenDisabled() throws IOException {
+        startServer(false, directory);
+        assertRefused();
+    }
+
+    @Test
+    public void refused_whenOutsideDirectory() throws IOException {
+        Path serverDirectory = Files.createTempDirectory("hazelfast-shm");
+        try {
+            startServer(true, serverDirectory);
+            assertRefused();
+        } finally {
+            Files.delete(serverDirectory);
+        }
+    }
+
+    @Test
+    public void refused_whenCapacityTooLarge() throws IOException {
+        startServer(true, directory);
+        assertRefused(newClient(2 * MAX_CAPACITY));
+    }
+
+    private void assertRefused() throws IOException {
+        assertRefused(newClient());
+    }
+
+    private void assertRefused(Client client) throws IOException {
+        IOException e = assertThrows(IOException.class, client::start);
+        assertTrue(e.getMessage().startsWith("Server refused to attach"), e.getMessage());
+        client.stop();
+        // the client removes the refused file.
+        assertEquals(0, list(directory).length);
+    }
+
+    private static File[] list(Path directory) {
+        return directory.toFile().listFiles();
+    }
+}
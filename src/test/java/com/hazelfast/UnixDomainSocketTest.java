@@ -0,0 +1,76 @@
+package com.hazelfast;
+
+import com.hazelfast.impl.IOUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Round trips through a unix domain socket; skipped below JDK 16.
+ */
+public class UnixDomainSocketTest {
+
+    private Path directory;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        assumeTrue(isSupported(), "Unix domain sockets require JDK 16+");
+        directory = Files.createTempDirectory("hazelfast-uds");
+    }
+
+    private static boolean isSupported() {
+        try {
+            IOUtil.unixDomainSocketAddress("hazelfast.sock");
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void selector() throws IOException {
+        roundTrips(Server.Engine.SELECTOR);
+    }
+
+    @Test
+    public void blocking() throws IOException {
+        roundTrips(Server.Engine.BLOCKING);
+    }
+
+    private void roundTrips(Server.Engine engine) throws IOException {
+        String path = directory.resolve("hazelfast.sock").toString();
+        Server server = new Server(new Server.Context()
+                .engine(engine)
+                .serverThreadCount(2)
+                .unixDomainSocketPath(path));
+        server.start();
+        try {
+            Client client = new Client(new Client.Context().unixDomainSocketPath(path));
+            client.start();
+            try {
+                Counters counters = client.counters();
+                for (long id = 0; id < 100; id++) {
+                    counters.set(id, id);
+                    assertEquals(id + 1, counters.inc(id));
+                    assertEquals(id + 1, counters.get(id));
+                }
+                client.strings().set("foo", "bar");
+                assertEquals("bar", client.strings().get("foo"));
+            } finally {
+                client.stop();
+            }
+        } finally {
+            server.stop();
+        }
+        // the socket file is removed when the server stops.
+        assertFalse(Files.exists(directory.resolve("hazelfast.sock")));
+        Files.delete(directory);
+    }
+}
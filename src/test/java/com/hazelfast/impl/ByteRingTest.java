@@ -0,0 +1,99 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ByteRingTest {
+
+    @Test
+    public void construct_whenNotPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(10))));
+    }
+
+    @Test
+    public void construct_whenHeapBuffer() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ByteRing(ByteBuffer.allocate(ByteRing.bufferSize(16))));
+    }
+
+    @Test
+    public void read_whenEmpty() {
+        ByteRing ring = new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(16)));
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.read(ByteBuffer.allocate(16)));
+    }
+
+    @Test
+    public void write_whenFull() {
+        ByteRing ring = new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(16)));
+
+        assertEquals(16, ring.write(ByteBuffer.wrap(new byte[20])));
+        assertEquals(0, ring.write(ByteBuffer.wrap(new byte[1])));
+        assertFalse(ring.isEmpty());
+    }
+
+    @Test
+    public void writeAndRead_wrapAround() {
+        ByteRing ring = new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(16)));
+        ByteBuffer dst = ByteBuffer.allocate(16);
+
+        for (int round = 0; round < 10; round++) {
+            byte[] bytes = new byte[11];
+            for (int k = 0; k < bytes.length; k++) {
+                bytes[k] = (byte) (round * bytes.length + k);
+            }
+
+            assertEquals(bytes.length, ring.write(ByteBuffer.wrap(bytes)));
+            dst.clear();
+            assertEquals(bytes.length, ring.read(dst));
+            dst.flip();
+            for (byte b : bytes) {
+                assertEquals(b, dst.get());
+            }
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void concurrent_preservesOrder() throws Exception {
+        ByteRing ring = new ByteRing(ByteBuffer.allocateDirect(ByteRing.bufferSize(64)));
+        int count = 1_000_000;
+        Thread producer = new Thread(() -> {
+            ByteBuffer src = ByteBuffer.allocate(7);
+            for (int k = 0; k < count; ) {
+                src.clear();
+                while (src.hasRemaining() && k + src.position() < count) {
+                    src.put((byte) (k + src.position()));
+                }
+                src.flip();
+                k += src.remaining();
+                while (src.hasRemaining()) {
+                    if (ring.write(src) == 0) Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        ByteBuffer dst = ByteBuffer.allocate(13);
+        for (int k = 0; k < count; ) {
+            dst.clear();
+            if (ring.read(dst) == 0) {
+                Thread.yield();
+                continue;
+            }
+            dst.flip();
+            while (dst.hasRemaining()) {
+                assertEquals((byte) k++, dst.get());
+            }
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static com.hazelfast.impl.CounterIndex.NIL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CounterIndexTest {
+
+    private static final Comparator<long[]> ORDER =
+            Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[1]);
+
+    @Test
+    public void iterate_bothDirections() {
+        CounterIndex index = new CounterIndex(2);
+        index.insert(5, 1);
+        index.insert(3, 2);
+        index.insert(5, 0);
+        index.insert(-1, 3);
+
+        assertEquals(4, index.size());
+        assertEquals(asList(-1, 3, 3, 2, 5, 0, 5, 1), ascending(index));
+        assertEquals(asList(5, 1, 5, 0, 3, 2, -1, 3), descending(index));
+    }
+
+    @Test
+    public void seek() {
+        CounterIndex index = new CounterIndex();
+        for (long id = 0; id < 10; id++) {
+            index.insert(id * 10, id);
+        }
+
+        assertEquals(3, index.id(index.ceiling(25, 0)));
+        assertEquals(3, index.id(index.ceiling(30, 3)));
+        assertEquals(4, index.id(index.higher(30, 3)));
+        assertEquals(2, index.id(index.lower(30, 3)));
+        assertEquals(NIL, index.lower(0, 0));
+        assertEquals(NIL, index.higher(90, 9));
+        assertEquals(9, index.id(index.last()));
+    }
+
+    @Test
+    public void randomUpdates_matchTreeSet() {
+        CounterIndex index = new CounterIndex(4);
+        TreeSet<long[]> expected = new TreeSet<>(ORDER);
+        Random random = new Random(42);
+        long[] values = new long[500];
+        for (int k = 0; k < 100_000; k++) {
+            int id = random.nextInt(values.length);
+            long newValue = random.nextInt(1000) - 500;
+            if (index.remove(values[id], id)) {
+                expected.remove(new long[]{values[id], id});
+            } else {
+                assertFalse(expected.contains(new long[]{values[id], id}));
+            }
+            index.insert(newValue, id);
+            expected.add(new long[]{newValue, id});
+            values[id] = newValue;
+        }
+
+        assertEquals(expected.size(), index.size());
+        List<Long> expectedAscending = new ArrayList<>();
+        for (long[] e : expected) {
+            expectedAscending.add(e[0]);
+            expectedAscending.add(e[1]);
+        }
+        assertEquals(expectedAscending, ascending(index));
+        assertTrue(index.remove(values[0], 0));
+        assertFalse(index.remove(values[0], 0));
+    }
+
+    private static List<Long> ascending(CounterIndex index) {
+        List<Long> list = new ArrayList<>();
+        for (int node = index.first(); node != NIL; node = index.next(node)) {
+            list.add(index.value(node));
+            list.add(index.id(node));
+        }
+        return list;
+    }
+
+    private static List<Long> descending(CounterIndex index) {
+        List<Long> list = new ArrayList<>();
+        for (int node = index.last(); node != NIL; node = index.prev(node)) {
+            list.add(index.value(node));
+            list.add(index.id(node));
+        }
+        return list;
+    }
+
+    private static List<Long> asList(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,220 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hazelfast.impl.CountersData.FUNCTION_EXECUTE;
+import static com.hazelfast.impl.CountersData.FUNCTION_GET;
+import static com.hazelfast.impl.CountersData.FUNCTION_CAS;
+import static com.hazelfast.impl.CountersData.FUNCTION_INC;
+import static com.hazelfast.impl.CountersData.FUNCTION_LOAD;
+import static com.hazelfast.impl.CountersData.FUNCTION_MULTI;
+import static com.hazelfast.impl.CountersData.FUNCTION_SET;
+import static com.hazelfast.impl.CountersData.FUNCTION_TOP_N;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CountersDataTest {
+
+    // 0: increment if below the limit, returns 1 on success. 1: swap, returns the old value.
+    private static final CounterProcessor[] PROCESSORS = {
+            (counter, args) -> {
+                if (counter.value() + args[0] > args[1]) return 0;
+                counter.value(counter.value() + args[0]);
+                return 1;
+            },
+            (counter, args) -> {
+                long old = counter.value();
+                counter.value(args[0]);
+                return old;
+            }
+    };
+
+    private final CountersData counters = new CountersData(null, 0, false, null, PROCESSORS);
+    private final In in = new In();
+    private final Out out = new Out();
+
+    @Test
+    public void batch_incSameCounter() {
+        counters.beginBatch();
+        for (int k = 1; k <= 100; k++) {
+            assertEquals(k, execute(FUNCTION_INC, 5, 1));
+        }
+        counters.endBatch();
+
+        assertEquals(100, execute(FUNCTION_GET, 5));
+    }
+
+    @Test
+    public void batch_manyCounters() {
+        // more counters than the batch cache has slots, so slots get reused.
+        counters.beginBatch();
+        for (int round = 1; round <= 3; round++) {
+            for (long id = 0; id < 1000; id++) {
+                assertEquals(round * id, execute(FUNCTION_INC, id, id));
+            }
+        }
+        counters.endBatch();
+
+        for (long id = 0; id < 1000; id++) {
+            assertEquals(3 * id, execute(FUNCTION_GET, id));
+        }
+    }
+
+    @Test
+    public void batch_setThenInc() {
+        counters.beginBatch();
+        assertEquals(0, execute(FUNCTION_GET, 1));
+        execute(FUNCTION_SET, 1, 10);
+        assertEquals(11, execute(FUNCTION_INC, 1, 1));
+        counters.endBatch();
+
+        counters.beginBatch();
+        assertEquals(12, execute(FUNCTION_INC, 1, 1));
+        counters.endBatch();
+    }
+
+    @Test
+    public void processors() {
+        for (int k = 0; k < 3; k++) {
+            assertEquals(1, execute(FUNCTION_EXECUTE, 1, 0, 2, 4, 12));
+        }
+        assertEquals(0, execute(FUNCTION_EXECUTE, 1, 0, 2, 4, 12));
+        assertEquals(12, execute(FUNCTION_EXECUTE, 1, 1, 1, 100));
+        assertEquals(100, execute(FUNCTION_GET, 1));
+
+        // a processor that doesn't change the counter, doesn't create it.
+        assertEquals(0, execute(FUNCTION_EXECUTE, 2, 0, 2, 4, 3));
+        assertEquals(0, execute(FUNCTION_GET, 2));
+    }
+
+    @Test
+    public void multi() {
+        execute(FUNCTION_SET, 1, 100);
+
+        // move 30 from 1 to 2, guarded by a cas on 1.
+        ByteBuffer request = ByteBuffer.allocate(256);
+        request.put(FUNCTION_MULTI).putLong(1).putLong(3);
+        request.put(FUNCTION_CAS).putLong(1).putLong(100).putLong(70);
+        request.put(FUNCTION_INC).putLong(2).putLong(30);
+        request.put(FUNCTION_GET).putLong(1);
+        ByteBuffer response = process(request);
+        assertEquals(1, response.get());
+        assertEquals(70, response.getLong());
+        assertEquals(30, response.getLong());
+        assertEquals(70, response.getLong());
+
+        // the cas fails, so the inc before it isn't applied either.
+        request.clear();
+        request.put(FUNCTION_MULTI).putLong(1).putLong(2);
+        request.put(FUNCTION_INC).putLong(2).putLong(30);
+        request.put(FUNCTION_CAS).putLong(1).putLong(100).putLong(70);
+        response = process(request);
+        assertEquals(0, response.get());
+        assertEquals(1, response.getLong());
+        assertEquals(30, execute(FUNCTION_GET, 2));
+    }
+
+    @Test
+    public void stripedInc_returnsValueOfCounter() {
+        StripedCounters striped = new StripedCounters(new long[]{7}, 2);
+        CountersData stripe0 = new CountersData(striped, 0, false, null, PROCESSORS);
+        CountersData stripe1 = new CountersData(striped, 1, false, null, PROCESSORS);
+
+        assertEquals(1, execute(stripe0, FUNCTION_INC, 7, 1));
+        assertEquals(3, execute(stripe1, FUNCTION_INC, 7, 2));
+        assertEquals(6, execute(stripe0, FUNCTION_INC, 7, 3));
+        execute(stripe1, FUNCTION_SET, 7, 100);
+        assertEquals(110, execute(stripe0, FUNCTION_INC, 7, 10));
+        assertEquals(110, execute(stripe1, FUNCTION_GET, 7));
+    }
+
+    @Test
+    public void multi_withoutChanges_doesNotCreateCounters() {
+        Subscriptions subscriptions = new Subscriptions();
+        AtomicInteger wakeups = new AtomicInteger();
+        NotificationBuffer subscriber = new NotificationBuffer(wakeups::incrementAndGet);
+        subscriptions.subscribeCounter(1, subscriber);
+        subscriptions.subscribeCounter(2, subscriber);
+        CountersData counters = new CountersData(null, 0, true, subscriptions, PROCESSORS);
+
+        ByteBuffer request = ByteBuffer.allocate(256);
+        request.put(FUNCTION_MULTI).putLong(1).putLong(2);
+        request.put(FUNCTION_GET).putLong(1);
+        request.put(FUNCTION_INC).putLong(2).putLong(0);
+        ByteBuffer response = process(counters, request);
+        assertEquals(1, response.get());
+        assertEquals(0, response.getLong());
+        assertEquals(0, response.getLong());
+
+        assertEquals(0, topNCount(counters));
+        assertEquals(0, wakeups.get());
+
+        // a multi that changes a counter, does create it.
+        request.clear();
+        request.put(FUNCTION_MULTI).putLong(1).putLong(1);
+        request.put(FUNCTION_INC).putLong(2).putLong(5);
+        process(counters, request);
+        assertEquals(1, topNCount(counters));
+        assertEquals(1, wakeups.get());
+    }
+
+    @Test
+    public void load() {
+        execute(FUNCTION_SET, 2, 5);
+
+        // the expected entries are a hint; a load can send more entries than expected.
+        for (int frame = 0; frame < 3; frame++) {
+            ByteBuffer request = ByteBuffer.allocate(1 + 2 * 8 + 1000 * 2 * 8);
+            request.put(FUNCTION_LOAD).putLong(frame * 1000).putLong(10);
+            for (long id = frame * 1000; id < (frame + 1) * 1000; id++) {
+                request.putLong(id).putLong(id * 2);
+            }
+            assertEquals(1000, process(request).getLong());
+        }
+
+        for (long id = 0; id < 3000; id++) {
+            assertEquals(id * 2, execute(FUNCTION_GET, id));
+        }
+    }
+
+    private ByteBuffer process(ByteBuffer request) {
+        return process(counters, request);
+    }
+
+    private ByteBuffer process(CountersData counters, ByteBuffer request) {
+        in.init(request.array(), 0, request.position());
+        out.clear();
+        counters.process(in, out);
+        byte[] response = new byte[out.length()];
+        out.copyTo(response);
+        return ByteBuffer.wrap(response);
+    }
+
+    // the number of counters in the index.
+    private int topNCount(CountersData counters) {
+        ByteBuffer request = ByteBuffer.allocate(1 + 8 + 1);
+        request.put(FUNCTION_TOP_N).putLong(Integer.MAX_VALUE).put((byte) 0);
+        return process(counters, request).getInt();
+    }
+
+    private long execute(byte function, long... args) {
+        return execute(counters, function, args);
+    }
+
+    private long execute(CountersData counters, byte function, long... args) {
+        ByteBuffer request = ByteBuffer.allocate(1 + args.length * IOUtil.LONG_AS_BYTES);
+        request.put(function);
+        for (long arg : args) {
+            request.putLong(arg);
+        }
+        in.init(request.array(), 0, request.position());
+        out.clear();
+        counters.process(in, out);
+
+        byte[] response = new byte[out.length()];
+        out.copyTo(response);
+        return response.length == 1 ? response[0] : IOUtil.getLong(response, 0);
+    }
+}
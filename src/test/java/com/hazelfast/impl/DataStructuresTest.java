@@ -0,0 +1,66 @@
+package com.hazelfast.impl;
+
+import com.hazelfast.impl.HotKeySketch.HotKey;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DataStructuresTest {
+
+    @Test
+    public void recordKey_counter() {
+        HotKeySketch sketch = new HotKeySketch(4, 1, 60_000);
+        DataStructures.recordKey(counterFrame(false, 42, 10), sketch);
+        DataStructures.recordKey(counterFrame(true, -42, 3), sketch);
+
+        sketch.rotate();
+        HotKey[] hotKeys = sketch.hotKeys();
+        assertEquals(Set.of("42", "-42"), Set.of(hotKeys[0].key(), hotKeys[1].key()));
+    }
+
+    @Test
+    public void recordKey_whenIdTruncated() {
+        HotKeySketch sketch = new HotKeySketch(4, 1, 60_000);
+        // the pooled byte-array is longer than the frame; the id runs past the length.
+        DataStructures.recordKey(counterFrame(false, 42, 2 + 7), sketch);
+        DataStructures.recordKey(counterFrame(true, Long.MIN_VALUE, 2 + 5), sketch);
+
+        sketch.rotate();
+        assertEquals(0, sketch.hotKeys().length);
+    }
+
+    @Test
+    public void recordKey_whenVarintUnterminated() {
+        HotKeySketch sketch = new HotKeySketch(4, 1, 60_000);
+        Frame frame = new Frame();
+        frame.bytes = new byte[16];
+        Arrays.fill(frame.bytes, (byte) 0x80);
+        frame.bytes[0] = DataStructures.COUNTER;
+        frame.bytes[1] = CountersData.COMPACT;
+        frame.length = 10;
+        DataStructures.recordKey(frame, sketch);
+
+        sketch.rotate();
+        assertEquals(0, sketch.hotKeys().length);
+    }
+
+    // a get of the counter, cut off at the length; the byte-array is as large as a pooled one would be.
+    private static Frame counterFrame(boolean compact, long id, int length) {
+        ByteBuffer b = ByteBuffer.allocate(64);
+        b.put(DataStructures.COUNTER);
+        b.put(compact ? CountersData.COMPACT : 0);
+        if (compact) {
+            IOUtil.putVarLong(b, id);
+        } else {
+            b.putLong(id);
+        }
+        Frame frame = new Frame();
+        frame.bytes = b.array();
+        frame.length = length;
+        return frame;
+    }
+}
@@ -0,0 +1,60 @@
+package com.hazelfast.impl;
+
+import com.hazelfast.impl.HotKeySketch.HotKey;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HotKeySketchTest {
+
+    @Test
+    public void sample() {
+        HotKeySketch sketch = new HotKeySketch(4, 4, 60_000);
+        int sampled = 0;
+        for (int k = 0; k < 100; k++) {
+            if (sketch.sample()) sampled++;
+        }
+        assertEquals(25, sampled);
+    }
+
+    @Test
+    public void hotKeys_whenSkewed() {
+        HotKeySketch sketch = new HotKeySketch(4, 1, 60_000);
+        for (int round = 0; round < 1000; round++) {
+            sketch.recordCounter(7);
+            sketch.recordCounter(round);
+            if (round % 2 == 0) {
+                byte[] key = "hot".getBytes(UTF_8);
+                sketch.recordString(key, 0, key.length);
+            }
+        }
+        assertEquals(0, sketch.hotKeys().length);
+
+        sketch.rotate();
+
+        HotKey[] hotKeys = sketch.hotKeys();
+        assertEquals(DataStructures.COUNTER, hotKeys[0].type());
+        assertEquals("7", hotKeys[0].key());
+        assertTrue(hotKeys[0].estimatedRequests() >= 1000);
+        assertEquals(DataStructures.STRINGS, hotKeys[1].type());
+        assertEquals("hot", hotKeys[1].key());
+        assertTrue(hotKeys[1].estimatedRequests() >= 500);
+    }
+
+    @Test
+    public void rotate_startsOver() {
+        HotKeySketch sketch = new HotKeySketch(4, 1, 60_000);
+        sketch.recordCounter(1);
+        sketch.rotate();
+        sketch.recordCounter(2);
+        sketch.rotate();
+
+        HotKey[] hotKeys = sketch.hotKeys();
+        assertEquals(1, hotKeys.length);
+        assertEquals("2", hotKeys[0].key());
+        assertFalse(hotKeys[0].estimatedRequests() > 1);
+    }
+}
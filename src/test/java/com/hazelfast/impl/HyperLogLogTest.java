@@ -0,0 +1,69 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void small_isSparseAndExact() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int k = 0; k < 100; k++) {
+            add(sketch, "visitor-" + k);
+            add(sketch, "visitor-" + k);
+        }
+
+        assertTrue(sketch.isSparse());
+        assertEquals(100, sketch.count(), 1);
+    }
+
+    @Test
+    public void large_isDenseWithinError() {
+        HyperLogLog sketch = new HyperLogLog();
+        int n = 1_000_000;
+        for (int k = 0; k < n; k++) {
+            add(sketch, "visitor-" + k);
+        }
+
+        assertFalse(sketch.isSparse());
+        assertEquals(n, sketch.count(), n * 0.03);
+    }
+
+    @Test
+    public void merge_estimatesUnion() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        for (int k = 0; k < 20_000; k++) {
+            add(a, "visitor-" + k);
+            add(b, "visitor-" + (k + 10_000));
+        }
+
+        byte[] registers = new byte[HyperLogLog.DENSE_BYTES];
+        b.exportRegisters(registers, 0);
+        assertTrue(a.merge(registers, 0));
+        assertEquals(30_000, a.count(), 30_000 * 0.03);
+
+        // a sparse sketch exports the same registers as after becoming dense.
+        HyperLogLog sparse = new HyperLogLog();
+        add(sparse, "x");
+        HyperLogLog dense = new HyperLogLog();
+        dense.merge(registers, 0);
+        add(dense, "x");
+        byte[] expected = new byte[HyperLogLog.DENSE_BYTES];
+        dense.exportRegisters(expected, 0);
+        sparse.merge(registers, 0);
+        byte[] actual = new byte[HyperLogLog.DENSE_BYTES];
+        sparse.exportRegisters(actual, 0);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void add(HyperLogLog sketch, String element) {
+        byte[] bytes = element.getBytes(UTF_8);
+        sketch.add(bytes, 0, bytes.length);
+    }
+}
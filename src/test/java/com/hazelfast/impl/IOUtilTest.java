@@ -0,0 +1,66 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class IOUtilTest {
+
+    private static final long[] VALUES = {0, 1, -1, 63, -64, 64, -65, 1L << 40, Long.MIN_VALUE, Long.MAX_VALUE};
+
+    @Test
+    public void varLong_roundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        for (long value : VALUES) {
+            IOUtil.putVarLong(buffer, value);
+        }
+
+        In in = new In();
+        in.init(buffer.array(), 0, buffer.position());
+        for (long value : VALUES) {
+            assertEquals(value, in.getVarLong());
+        }
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    public void varLongSize() {
+        for (long value : VALUES) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            IOUtil.putVarLong(buffer, value);
+            assertEquals(buffer.position(), IOUtil.varLongSize(value));
+            assertEquals(value, IOUtil.getVarLong(buffer.array(), 0));
+        }
+        assertEquals(1, IOUtil.varLongSize(-64));
+        assertEquals(2, IOUtil.varLongSize(64));
+    }
+
+    @Test
+    public void varIntSize() {
+        for (int value : new int[]{0, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1}) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            IOUtil.putVarInt(buffer, value);
+            assertEquals(buffer.position(), IOUtil.varIntSize(value));
+        }
+        assertEquals(5, IOUtil.varIntSize(-1));
+    }
+
+    @Test
+    public void utf8_sameAsGetBytes() {
+        String[] strings = {"", "key:1", "caf\u00e9", "\u20ac100", "\ud83d\ude00 smile", "unpaired \ud83d!", "\ude00"};
+        for (String s : strings) {
+            byte[] expected = s.getBytes(UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            IOUtil.putUtf8(buffer, s);
+            assertEquals(expected.length, IOUtil.utf8Length(s));
+            byte[] actual = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(actual);
+            assertArrayEquals(expected, actual, s);
+        }
+    }
+}
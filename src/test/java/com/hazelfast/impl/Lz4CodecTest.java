@@ -0,0 +1,118 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Lz4CodecTest {
+
+    private final Lz4Codec codec = new Lz4Codec();
+
+    @Test
+    public void empty() throws IOException {
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    public void shorterThanMinMatch() throws IOException {
+        assertRoundTrip(new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void repetitive_compresses() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 1000; k++) {
+            sb.append("value-").append(k % 10).append(';');
+        }
+        byte[] bytes = sb.toString().getBytes(UTF_8);
+
+        int compressedLength = assertRoundTrip(bytes);
+        assertTrue(compressedLength < bytes.length / 4, "compressed length " + compressedLength);
+    }
+
+    @Test
+    public void runOfSameByte() throws IOException {
+        byte[] bytes = new byte[100_000];
+        Arrays.fill(bytes, (byte) 'x');
+        assertRoundTrip(bytes);
+    }
+
+    @Test
+    public void random() throws IOException {
+        Random random = new Random(42);
+        for (int length : new int[]{13, 100, 1000, 70_000}) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertRoundTrip(bytes);
+        }
+    }
+
+    @Test
+    public void decompress_whenTruncated() {
+        byte[] bytes = new byte[1000];
+        Arrays.fill(bytes, (byte) 'x');
+        byte[] block = new byte[Lz4Codec.maxCompressedLength(bytes.length)];
+        int length = codec.compress(bytes, 0, bytes.length, block, 0);
+
+        assertThrows(IOException.class,
+                () -> Lz4Codec.decompress(block, 0, length - 1, new byte[bytes.length], 0, bytes.length));
+    }
+
+    @Test
+    public void decompress_whenDstTooSmall() {
+        byte[] bytes = new byte[1000];
+        Arrays.fill(bytes, (byte) 'x');
+        byte[] block = new byte[Lz4Codec.maxCompressedLength(bytes.length)];
+        int length = codec.compress(bytes, 0, bytes.length, block, 0);
+
+        assertThrows(IOException.class,
+                () -> Lz4Codec.decompress(block, 0, length, new byte[bytes.length - 1], 0, bytes.length - 1));
+    }
+
+    @Test
+    public void decompress_whenLengthOverflows() {
+        // a literal length of more than Integer.MAX_VALUE, the sum of the length bytes of the run.
+        byte[] block = new byte[1 + Integer.MAX_VALUE / 255 + 2];
+        Arrays.fill(block, (byte) 0xFF);
+        block[0] = (byte) 0xF0;
+        block[block.length - 1] = 0;
+
+        assertThrows(IOException.class, () -> Lz4Codec.decompress(block, 0, block.length, new byte[100], 0, 100));
+    }
+
+    @Test
+    public void decompress_whenMatchLengthOverflows() {
+        // a literal, an offset of 1 and a match length of more than Integer.MAX_VALUE.
+        byte[] block = new byte[1 + 1 + 2 + Integer.MAX_VALUE / 255 + 2];
+        Arrays.fill(block, (byte) 0xFF);
+        block[0] = (byte) 0x1F;
+        block[1] = 'x';
+        block[2] = 1;
+        block[3] = 0;
+        block[block.length - 1] = 0;
+
+        assertThrows(IOException.class, () -> Lz4Codec.decompress(block, 0, block.length, new byte[100], 0, 100));
+    }
+
+    private int assertRoundTrip(byte[] bytes) throws IOException {
+        // use offsets to make sure they are respected.
+        byte[] src = new byte[bytes.length + 3];
+        System.arraycopy(bytes, 0, src, 3, bytes.length);
+        byte[] block = new byte[5 + Lz4Codec.maxCompressedLength(bytes.length)];
+        int compressedLength = codec.compress(src, 3, bytes.length, block, 5);
+
+        byte[] dst = new byte[bytes.length + 7];
+        int length = Lz4Codec.decompress(block, 5, compressedLength, dst, 7, bytes.length);
+        assertEquals(bytes.length, length);
+        assertArrayEquals(bytes, Arrays.copyOfRange(dst, 7, 7 + length));
+        return compressedLength;
+    }
+}
@@ -0,0 +1,197 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QueuesDataTest {
+
+    private final QueuesData queues = new QueuesData();
+    private final ByteArrayPool pool = new ByteArrayPool(false);
+    private final List<Frame> completed = new ArrayList<>();
+    private final List<Frame> cancelled = new ArrayList<>();
+    private final QueuesData.ParkedRequests requests = new QueuesData.ParkedRequests() {
+        @Override
+        public boolean isCancelled(Frame frame) {
+            return cancelled.contains(frame);
+        }
+
+        @Override
+        public void complete(Frame frame) {
+            completed.add(frame);
+        }
+    };
+
+    @Test
+    public void fifo_acrossSegments() {
+        List<byte[]> offered = new ArrayList<>();
+        for (int k = 0; k < 1000; k++) {
+            // some elements are larger than a segment.
+            byte[] element = new byte[k % 100 == 0 ? QueuesData.MAX_SEGMENT_SIZE + k : k % 50];
+            if (element.length > 0) element[element.length - 1] = (byte) k;
+            offered.add(element);
+            assertEquals(k + 1, offer(1, element));
+        }
+
+        List<byte[]> polled = new ArrayList<>();
+        for (; ; ) {
+            List<byte[]> batch = poll(1, 7);
+            if (batch.isEmpty()) break;
+            polled.addAll(batch);
+        }
+
+        assertEquals(offered.size(), polled.size());
+        for (int k = 0; k < offered.size(); k++) {
+            assertArrayEquals(offered.get(k), polled.get(k));
+        }
+        assertEquals(0, size(1));
+    }
+
+    @Test
+    public void parkedPoll_completedByOffer() {
+        Frame frame = request(pollRequest(1, 10, 60_000));
+        assertTrue(process(frame));
+        queues.park(frame);
+        Frame cancelledFrame = request(pollRequest(1, 10, 60_000));
+        assertTrue(process(cancelledFrame));
+        queues.park(cancelledFrame);
+        cancelled.add(frame);
+        Frame waiting = request(pollRequest(1, 10, 60_000));
+        assertTrue(process(waiting));
+        queues.park(waiting);
+        cancelled.add(cancelledFrame);
+
+        queues.completeParked(0, pool, requests);
+        assertTrue(completed.isEmpty());
+
+        offer(1, new byte[]{1});
+        offer(1, new byte[]{2});
+        queues.completeParked(0, pool, requests);
+
+        assertEquals(1, completed.size());
+        List<byte[]> elements = elements(completed.get(0));
+        assertEquals(2, elements.size());
+        assertArrayEquals(new byte[]{2}, elements.get(1));
+        assertEquals(0, size(1));
+    }
+
+    @Test
+    public void parkedPoll_expires() {
+        Frame frame = request(pollRequest(2, 1, 10));
+        assertTrue(process(frame));
+        queues.park(frame);
+        assertTrue(queues.hasParked());
+
+        queues.completeParked(Long.MAX_VALUE, pool, requests);
+
+        assertEquals(1, completed.size());
+        assertTrue(elements(completed.get(0)).isEmpty());
+        assertFalse(queues.hasParked());
+    }
+
+    @Test
+    public void emptyQueue_removed() {
+        offer(3, new byte[]{1});
+        assertEquals(1, queues.queueCount());
+        assertEquals(1, poll(3, 10).size());
+        assertEquals(0, queues.queueCount());
+
+        // a poll or size of a missing queue doesn't create it.
+        assertTrue(poll(4, 10).isEmpty());
+        assertEquals(0, size(4));
+        assertEquals(0, queues.queueCount());
+    }
+
+    @Test
+    public void parkedPoll_removesQueue_whenCompletedOrExpired() {
+        Frame frame = request(pollRequest(5, 1, 10));
+        assertTrue(process(frame));
+        assertEquals(0, queues.queueCount());
+        queues.park(frame);
+        assertEquals(1, queues.queueCount());
+
+        queues.completeParked(Long.MAX_VALUE, pool, requests);
+        assertEquals(0, queues.queueCount());
+
+        frame = request(pollRequest(5, 1, 60_000));
+        assertTrue(process(frame));
+        queues.park(frame);
+        offer(5, new byte[]{1});
+        queues.completeParked(0, pool, requests);
+
+        assertEquals(2, completed.size());
+        assertArrayEquals(new byte[]{1}, elements(completed.get(1)).get(0));
+        assertEquals(0, queues.queueCount());
+
+        // the queue removed with the completed poll doesn't take the key of a new queue along once it expires.
+        offer(5, new byte[]{2});
+        queues.completeParked(Long.MAX_VALUE, pool, requests);
+        assertEquals(1, size(5));
+    }
+
+    private long offer(long key, byte[] element) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 1 + 8 + 4 + 4 + element.length);
+        b.put(DataStructures.QUEUE).put(QueuesData.FUNCTION_OFFER_ALL).putLong(key).putInt(1);
+        b.putInt(element.length).put(element);
+        Frame frame = request(b);
+        assertFalse(process(frame));
+        return IOUtil.getLong(frame.bytes, 0);
+    }
+
+    private List<byte[]> poll(long key, int maxElements) {
+        Frame frame = request(pollRequest(key, maxElements, 0));
+        assertFalse(process(frame));
+        return elements(frame);
+    }
+
+    private long size(long key) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 1 + 8);
+        b.put(DataStructures.QUEUE).put(QueuesData.FUNCTION_SIZE).putLong(key);
+        Frame frame = request(b);
+        assertFalse(process(frame));
+        return IOUtil.getLong(frame.bytes, 0);
+    }
+
+    private static ByteBuffer pollRequest(long key, int maxElements, long timeoutMs) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 1 + 8 + 4 + 8);
+        return b.put(DataStructures.QUEUE).put(QueuesData.FUNCTION_POLL).putLong(key).putInt(maxElements)
+                .putLong(timeoutMs);
+    }
+
+    private static Frame request(ByteBuffer b) {
+        Frame frame = new Frame();
+        frame.bytes = b.array();
+        frame.length = b.position();
+        return frame;
+    }
+
+    // processes the request like the RequestProcessor; the response replaces the request.
+    private boolean process(Frame frame) {
+        In in = new In();
+        in.init(frame.bytes, 1, frame.length - 1);
+        Out out = new Out();
+        if (queues.process(in, out)) return true;
+        RequestProcessor.writeResponse(out, frame, pool);
+        return false;
+    }
+
+    private static List<byte[]> elements(Frame frame) {
+        In in = new In();
+        in.init(frame.bytes, 0, frame.length);
+        int count = in.getInt();
+        List<byte[]> elements = new ArrayList<>();
+        for (int k = 0; k < count; k++) {
+            byte[] element = new byte[in.getInt()];
+            in.getBytes(element, 0, element.length);
+            elements.add(element);
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,41 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimitersDataTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private final RateLimitersData rateLimiters = new RateLimitersData(2);
+
+    @Test
+    public void burstThenRefill() {
+        // 10 per second, burst of 5.
+        for (int k = 0; k < 5; k++) {
+            assertTrue(rateLimiters.tryAcquire(1, 1, 10, 5, 0));
+        }
+        assertFalse(rateLimiters.tryAcquire(1, 1, 10, 5, 0));
+
+        assertTrue(rateLimiters.tryAcquire(1, 1, 10, 5, SECOND / 10));
+        assertFalse(rateLimiters.tryAcquire(1, 1, 10, 5, SECOND / 10));
+
+        // the refill is capped by the burst.
+        assertTrue(rateLimiters.tryAcquire(1, 5, 10, 5, 100 * SECOND));
+        assertFalse(rateLimiters.tryAcquire(1, 1, 10, 5, 100 * SECOND));
+    }
+
+    @Test
+    public void manyKeys() {
+        for (long key = 0; key < 1000; key++) {
+            assertTrue(rateLimiters.tryAcquire(key, 2, 1, 2, 0));
+        }
+        for (long key = 0; key < 1000; key++) {
+            assertFalse(rateLimiters.tryAcquire(key, 1, 1, 2, 0));
+        }
+        assertEquals(1000, rateLimiters.size());
+    }
+}
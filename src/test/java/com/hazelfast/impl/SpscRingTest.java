@@ -0,0 +1,66 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpscRingTest {
+
+    @Test
+    public void capacity_isPowerOfTwo() {
+        assertEquals(8, new SpscRing<String>(5).capacity());
+    }
+
+    @Test
+    public void poll_whenEmpty() {
+        SpscRing<String> ring = new SpscRing<>(4);
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void offer_whenFull() {
+        SpscRing<String> ring = new SpscRing<>(2);
+        assertTrue(ring.offer("1"));
+        assertTrue(ring.offer("2"));
+        assertFalse(ring.offer("3"));
+
+        assertEquals("1", ring.poll());
+        assertTrue(ring.offer("3"));
+        assertEquals("2", ring.poll());
+        assertEquals("3", ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void offer_whenNull() {
+        assertThrows(NullPointerException.class, () -> new SpscRing<String>(2).offer(null));
+    }
+
+    @Test
+    public void concurrent_preservesOrder() throws Exception {
+        SpscRing<Integer> ring = new SpscRing<>(16);
+        int count = 100000;
+        Thread producer = new Thread(() -> {
+            for (int k = 0; k < count; k++) {
+                while (!ring.offer(k)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        for (int k = 0; k < count; k++) {
+            Integer found;
+            while ((found = ring.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(k, found.intValue());
+        }
+        producer.join();
+    }
+}
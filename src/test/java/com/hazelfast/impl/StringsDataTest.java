@@ -0,0 +1,153 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StringsDataTest {
+
+    private static final int BUDGET = 10_000;
+
+    private final Path directory;
+    private final ValueLog log;
+    private final StringsData strings;
+    private final In in = new In();
+    private final Out out = new Out();
+
+    public StringsDataTest() throws IOException {
+        directory = Files.createTempDirectory("strings");
+        log = new ValueLog(directory, "test", 64 * 1024, 64 * 1024);
+        strings = new StringsData(null, log, BUDGET);
+    }
+
+    @AfterEach
+    public void after() throws IOException {
+        log.close();
+        Files.delete(directory);
+    }
+
+    @Test
+    public void coldValues_areDemotedAndPromoted() {
+        for (int k = 0; k < 100; k++) {
+            set(k, value(k, 1000));
+            assertTrue(strings.hotBytes() <= BUDGET);
+        }
+        assertEquals(100, strings.size());
+        assertEquals(BUDGET, strings.hotBytes());
+        assertEquals(90 * 1000, log.size());
+
+        // the demoted value of key 0 is promoted; so it is hot again and key 10 is the coldest now.
+        assertArrayEquals(value(0, 1000), get(0));
+        assertEquals(90 * 1000 + 1000, log.size());
+        assertEquals(1000, log.garbageBytes());
+        for (int k = 0; k < 100; k++) {
+            assertArrayEquals(value(k, 1000), get(k));
+        }
+        assertEquals(BUDGET, strings.hotBytes());
+        assertNull(get(100));
+    }
+
+    @Test
+    public void valueLargerThanBudget_isServedFromTheLog() {
+        for (int k = 0; k < 10; k++) {
+            set(k, value(k, 1000));
+        }
+        set(10, value(10, 2 * BUDGET));
+        assertEquals(BUDGET, strings.hotBytes());
+        assertEquals(2 * BUDGET, log.size());
+
+        // the get doesn't promote the value, so it doesn't demote the hot values or leave garbage in the log.
+        for (int round = 0; round < 3; round++) {
+            assertArrayEquals(value(10, 2 * BUDGET), get(10));
+        }
+        assertEquals(BUDGET, strings.hotBytes());
+        assertEquals(2 * BUDGET, log.size());
+        assertEquals(0, log.garbageBytes());
+    }
+
+    @Test
+    public void overwrittenValues_areCompacted() {
+        for (int round = 0; round < 20; round++) {
+            for (int k = 0; k < 100; k++) {
+                set(k, value(k + round, 1000));
+            }
+        }
+        long garbage = log.garbageBytes();
+        assertTrue(garbage > 64 * 1024);
+        int segments = log.segmentCount();
+
+        while (strings.compact()) {
+        }
+        assertTrue(log.garbageBytes() < garbage);
+        assertTrue(log.segmentCount() < segments);
+        for (int k = 0; k < 100; k++) {
+            assertArrayEquals(value(k + 19, 1000), get(k));
+        }
+    }
+
+    @Test
+    public void load_beyondBudget() {
+        set(0, value(99, 1000));
+
+        ByteBuffer request = ByteBuffer.allocate(1 + 4 + 100 * (4 + 5 + 4 + 1000));
+        request.put(StringsData.FUNCTION_LOAD).putInt(100);
+        for (int k = 0; k < 100; k++) {
+            byte[] key = key(k);
+            request.putInt(key.length).put(key).putInt(1000).put(value(k, 1000));
+        }
+        assertEquals(100, IOUtil.getInt(process(request), 0));
+
+        // the budget is applied once the request is loaded.
+        assertEquals(100, strings.size());
+        assertEquals(BUDGET, strings.hotBytes());
+        for (int k = 0; k < 100; k++) {
+            assertArrayEquals(value(k, 1000), get(k));
+        }
+    }
+
+    private static byte[] value(int k, int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) k);
+        return value;
+    }
+
+    private static byte[] key(int k) {
+        return ("key" + k).getBytes();
+    }
+
+    private void set(int k, byte[] value) {
+        byte[] key = key(k);
+        ByteBuffer request = ByteBuffer.allocate(1 + 4 + key.length + 4 + value.length);
+        request.put(StringsData.FUNCTION_SET).putInt(key.length).put(key).putInt(value.length).put(value);
+        process(request);
+    }
+
+    // a value in the log is copied, since a test can't transfer a file region.
+    private byte[] get(int k) {
+        byte[] key = key(k);
+        ByteBuffer request = ByteBuffer.allocate(1 + 4 + key.length);
+        request.put(StringsData.FUNCTION_GET_ALL).putInt(key.length).put(key);
+        byte[] response = process(request);
+        int length = IOUtil.getInt(response, 0);
+        return length == -1 ? null : Arrays.copyOfRange(response, 4, 4 + length);
+    }
+
+    private byte[] process(ByteBuffer request) {
+        in.init(request.array(), 0, request.position());
+        out.clear();
+        strings.process(in, out);
+        byte[] response = new byte[out.length()];
+        out.copyTo(response);
+        return response;
+    }
+}
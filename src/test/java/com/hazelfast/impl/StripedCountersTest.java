@@ -0,0 +1,85 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StripedCountersTest {
+
+    @Test
+    public void contains() {
+        StripedCounters counters = new StripedCounters(new long[]{1, 2}, 4);
+        assertTrue(counters.contains(1));
+        assertFalse(counters.contains(3));
+        assertFalse(counters.contains(0));
+    }
+
+    @Test
+    public void contains_manyIds() {
+        long[] ids = new long[100];
+        for (int k = 0; k < ids.length; k++) {
+            ids[k] = k * 1024L - 10_000;
+        }
+        StripedCounters counters = new StripedCounters(ids, 4);
+        for (long id : ids) {
+            assertTrue(counters.contains(id));
+            assertFalse(counters.contains(id + 1));
+            counters.inc(id, 0, id);
+        }
+        for (long id : ids) {
+            assertEquals(id, counters.get(id));
+        }
+    }
+
+    @Test
+    public void incSetCas() {
+        StripedCounters counters = new StripedCounters(new long[]{1}, 4);
+        // an inc returns the value of the counter, summed over the stripes.
+        assertEquals(1, counters.inc(1, 0, 1));
+        assertEquals(3, counters.inc(1, 1, 2));
+        assertEquals(6, counters.inc(1, 7, 3));
+        assertEquals(9, counters.inc(1, 0, 3));
+        assertEquals(9, counters.get(1));
+
+        // a set drains the stripes.
+        counters.set(1, 100);
+        assertEquals(101, counters.inc(1, 2, 1));
+        assertEquals(101, counters.get(1));
+        assertFalse(counters.cas(1, 100, 200));
+        assertTrue(counters.cas(1, 101, 200));
+        assertEquals(200, counters.get(1));
+    }
+
+    @Test
+    public void concurrentIncs() throws InterruptedException {
+        int threadCount = 4;
+        int incsPerThread = 100_000;
+        StripedCounters counters = new StripedCounters(new long[]{1}, threadCount);
+        AtomicInteger casSuccesses = new AtomicInteger();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int k = 0; k < threadCount; k++) {
+            int stripe = k;
+            threads[k] = new Thread(() -> {
+                for (int i = 0; i < incsPerThread; i++) {
+                    counters.inc(1, stripe, 1);
+                    // a cas that adds one, so the total is still known.
+                    if (i % 1000 == 0) {
+                        long value = counters.get(1);
+                        if (counters.cas(1, value, value + 1)) casSuccesses.incrementAndGet();
+                    }
+                }
+            });
+            threads[k].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals((long) threadCount * incsPerThread + casSuccesses.get(), counters.get(1));
+    }
+}
@@ -0,0 +1,64 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SubscriptionsTest {
+
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final AtomicInteger wakeups = new AtomicInteger();
+    private final NotificationBuffer subscriber = new NotificationBuffer(wakeups::incrementAndGet);
+    private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+
+    @Test
+    public void counter_coalesced() {
+        subscriptions.subscribeCounter(1, subscriber);
+        for (int value = 1; value <= 10; value++) {
+            subscriptions.counterChanged(1, value);
+        }
+        subscriptions.counterChanged(2, 100);
+
+        assertEquals(1, wakeups.get());
+        drain();
+        assertEquals(1, pending.size());
+        Frame frame = pending.poll();
+        assertEquals(DataStructures.COUNTER, frame.bytes[0]);
+        assertEquals(1, IOUtil.getLong(frame.bytes, 1));
+        assertEquals(10, IOUtil.getLong(frame.bytes, 1 + IOUtil.LONG_AS_BYTES));
+
+        // the wakeup is armed again by the drain.
+        subscriptions.counterChanged(1, 11);
+        assertEquals(2, wakeups.get());
+    }
+
+    @Test
+    public void prefix() {
+        subscriptions.subscribePrefix("user:", subscriber);
+        subscriptions.stringChanged("user:1", new byte[]{1});
+        subscriptions.stringChanged("order:1", new byte[]{2});
+        subscriptions.stringChanged("user:2", new byte[]{3});
+
+        drain();
+        assertEquals(2, pending.size());
+        assertEquals(DataStructures.STRINGS, pending.peek().bytes[0]);
+    }
+
+    @Test
+    public void unsubscribeAll() {
+        subscriptions.subscribeCounter(1, subscriber);
+        subscriptions.subscribePrefix("", subscriber);
+        subscriptions.unsubscribeAll(subscriber);
+
+        subscriptions.counterChanged(1, 1);
+        subscriptions.stringChanged("a", new byte[0]);
+        assertEquals(0, wakeups.get());
+    }
+
+    private void drain() {
+        subscriber.drainTo(pending, new FramePool(false), new ByteArrayPool(false));
+    }
+}
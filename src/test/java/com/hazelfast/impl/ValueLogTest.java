@@ -0,0 +1,213 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ValueLogTest {
+
+    private final Path directory;
+    private final ValueLog log;
+
+    public ValueLogTest() throws IOException {
+        directory = Files.createTempDirectory("valuelog");
+        log = new ValueLog(directory, "test", 100, 4096);
+    }
+
+    @AfterEach
+    public void after() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void append_acrossSegments() throws IOException {
+        assertFalse(log.accepts(99));
+        assertTrue(log.accepts(100));
+
+        List<byte[]> values = new ArrayList<>();
+        List<ValueLog.Entry> entries = new ArrayList<>();
+        for (int k = 0; k < 50; k++) {
+            // some values are larger than a segment.
+            byte[] value = new byte[k % 10 == 0 ? 5000 + k : 100 + k * 10];
+            Arrays.fill(value, (byte) k);
+            values.add(value);
+            entries.add(append(value));
+        }
+
+        Out out = new Out();
+        for (int k = 0; k < values.size(); k++) {
+            ValueLog.Entry entry = entries.get(k);
+            assertArrayEquals(values.get(k), log.toBytes(entry));
+
+            out.clear();
+            log.copyTo(entry, out);
+            byte[] copy = new byte[out.length()];
+            out.copyTo(copy);
+            assertArrayEquals(values.get(k), copy);
+
+            out.clear();
+            log.fileRegion(entry, out);
+            assertEquals(0, out.length());
+            assertArrayEquals(values.get(k), transfer(out.file(), out.filePosition(), out.fileLength()));
+            out.file().unpin();
+        }
+    }
+
+    @Test
+    public void compact_movesLiveEntries() throws IOException {
+        List<byte[]> values = new ArrayList<>();
+        List<ValueLog.Entry> entries = new ArrayList<>();
+        for (int k = 0; k < 80; k++) {
+            byte[] value = new byte[500];
+            Arrays.fill(value, (byte) k);
+            values.add(value);
+            entries.add(append(value));
+        }
+        assertEquals(10, log.segmentCount());
+        for (int k = 0; k < 80; k++) {
+            if (k % 4 != 0) log.free(entries.get(k));
+        }
+
+        // a region handed to an IO thread pins the segment.
+        Out out = new Out();
+        log.fileRegion(entries.get(0), out);
+        ValueLog.Segment pinned = out.file();
+
+        int steps = 0;
+        while (log.compact(1000)) {
+            steps++;
+        }
+        assertTrue(steps > 1);
+        assertEquals(0, log.garbageBytes());
+        // 20 live entries fit in 3 segments; the pinned segment isn't deleted yet.
+        assertEquals(3 + 1, log.segmentCount());
+        assertTrue(pinned.channel().isOpen());
+        assertArrayEquals(values.get(0), transfer(pinned, out.filePosition(), out.fileLength()));
+        for (int k = 0; k < 80; k += 4) {
+            assertArrayEquals(values.get(k), log.toBytes(entries.get(k)));
+        }
+
+        pinned.unpin();
+        assertFalse(log.compact(1000));
+        assertEquals(3, log.segmentCount());
+        assertFalse(pinned.channel().isOpen());
+    }
+
+    @Test
+    public void compact_unmapsEvacuatedSegments() throws IOException {
+        Path maps = Paths.get("/proc/self/maps");
+        assumeTrue(Files.isReadable(maps), "Requires /proc/self/maps");
+
+        List<ValueLog.Entry> entries = new ArrayList<>();
+        for (int k = 0; k < 80; k++) {
+            entries.add(append(new byte[500]));
+        }
+        for (int k = 0; k < 80; k++) {
+            if (k % 4 != 0) log.free(entries.get(k));
+        }
+        assertEquals(10, mappedSegments(maps));
+
+        while (log.compact(1000)) {
+        }
+        // the deleted files of the evacuated segments are no longer mapped, so their disk space is reclaimed.
+        assertEquals(3, log.segmentCount());
+        assertEquals(3, mappedSegments(maps));
+
+        log.close();
+        assertEquals(0, mappedSegments(maps));
+    }
+
+    // the number of mappings of segment files of the log. The files are unlinked on open, see DELETE_ON_CLOSE, so
+    // they only show in the mappings; and a mapping keeps the disk space of its file.
+    private long mappedSegments(Path maps) throws IOException {
+        String prefix = directory.resolve("test-").toString();
+        try (Stream<String> lines = Files.lines(maps)) {
+            return lines.filter(line -> line.contains(prefix)).count();
+        }
+    }
+
+    @Test
+    public void frameWriter_fileRegion() throws IOException {
+        byte[] value = new byte[3000];
+        Arrays.fill(value, (byte) 7);
+        ValueLog.Entry entry = append(value);
+
+        FrameWriter writer = new FrameWriter(new ByteArrayPool(false), new FramePool(false));
+        writer.enableCompression(16);
+        ArrayDeque<Frame> pending = new ArrayDeque<>();
+        Frame frame = new Frame();
+        frame.bytes = new byte[]{0, 0, 11, -72};
+        frame.length = 4;
+        frame.file = entry.segment;
+        frame.filePosition = entry.offset;
+        frame.fileLength = entry.length();
+        entry.segment.pin();
+        pending.add(frame);
+        pending.add(frame(1, 2, 3));
+
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        assertFalse(writer.write(dst, pending));
+        assertTrue(writer.hasFileRegion());
+        // no frame is written before the region is transferred.
+        assertFalse(writer.write(dst, pending));
+        assertEquals(4 + 4, dst.position());
+        assertEquals(4 + 3000, dst.getInt(0));
+
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(transferred);
+        while (writer.hasFileRegion()) {
+            writer.transferFileRegion(channel);
+        }
+        assertArrayEquals(value, transferred.toByteArray());
+
+        assertTrue(writer.write(dst, pending));
+        assertEquals(4 + 4 + 4 + 3, dst.position());
+        // the writer unpins the segment once the region is transferred.
+        assertEquals(0, entry.segment.pins.get());
+    }
+
+    private static byte[] transfer(ValueLog.Segment segment, long position, int length) throws IOException {
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        segment.channel().transferTo(position, length, Channels.newChannel(transferred));
+        return transferred.toByteArray();
+    }
+
+    private ValueLog.Entry append(byte[] value) {
+        In in = new In();
+        in.init(value, 0, value.length);
+        return log.append(in, value.length);
+    }
+
+    private static Frame frame(int... bytes) {
+        Frame frame = new Frame();
+        frame.bytes = new byte[bytes.length];
+        for (int k = 0; k < bytes.length; k++) {
+            frame.bytes[k] = (byte) bytes[k];
+        }
+        frame.length = bytes.length;
+        return frame;
+    }
+}
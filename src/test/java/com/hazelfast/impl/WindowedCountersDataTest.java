@@ -0,0 +1,41 @@
+package com.hazelfast.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class WindowedCountersDataTest {
+
+    // 10 buckets of 1 second.
+    private final WindowedCountersData counters = new WindowedCountersData(1000, 10, 2);
+
+    @Test
+    public void slidingWindow() {
+        for (int second = 0; second < 10; second++) {
+            assertEquals(second + 1, counters.inc(1, 1, second * 1000 + 500));
+        }
+        assertEquals(10, counters.sum(1, 10_000, 9_999));
+        assertEquals(3, counters.sum(1, 3_000, 9_999));
+        // rounded up to whole buckets and capped at the window.
+        assertEquals(3, counters.sum(1, 2_500, 9_999));
+        assertEquals(10, counters.sum(1, 60_000, 9_999));
+
+        // the oldest 4 buckets fall out of the window.
+        assertEquals(6, counters.sum(1, 10_000, 13_000));
+        assertEquals(7, counters.inc(1, 1, 13_000));
+        // all buckets are stale.
+        assertEquals(0, counters.sum(1, 10_000, 100_000));
+        assertEquals(0, counters.sum(2, 10_000, 100_000));
+    }
+
+    @Test
+    public void manyKeys() {
+        for (long key = 0; key < 1000; key++) {
+            counters.inc(key, key, 0);
+        }
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(key, counters.sum(key, 1000, 0));
+        }
+        assertEquals(1000, counters.size());
+    }
+}